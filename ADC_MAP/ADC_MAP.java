@@ -18,6 +18,22 @@
  * 09.18.17 - Added slope multiplication 
  * 09.20.17 - Created a GUI window to have the user select the slices that 
  *            will have the ROIs placed on the main stack
+ * 10.19.26 - Slopes and b-value separation run at the acquired matrix,
+ *            only the stacks used for ROI placement are upscaled
+ * 10.19.26 - ADC and R^2 maps of the selected slices are fitted here from
+ *            the pdata/1 stack instead of with MRI analysis calc
+ * 10.19.26 - The fits of all slices are kept in the ResultCache, choosing
+ *            other slices on a rerun does not read or fit the data again
+ * 10.19.26 - exec() makes the ADC stack, ta_adc image and maps without
+ *            windows or dialogs (macro, batch and headless runs pass
+ *            "dir=[...] ta_dir=[...] slices=6,7,8")
+ * 10.19.26 - The slice selection and the maps use the pdata/1 stack read
+ *            with Bruker2dseq, the 80 image window pipeline and the
+ *            scale-first path are removed
+ * 10.19.26 - The slope scaled pdata/1 stack is cached as well, a rerun
+ *            does not read and scale the 2dseq again
+ * 10.19.26 - Interactive runs ask for the folders and slices and then use
+ *            exec(), the Substack Maker / Multiply pipeline is removed
  */
 
 import java.util.*;
@@ -39,6 +55,13 @@ public class ADC_MAP implements PlugIn {
 	public static final int NUM_BVALS = 8;
 	public static final String VP_SLOPE = "##$VisuCoreDataSlope=(";
 	
+	// Processing is done at the acquired matrix and only the stacks used
+	// for ROI placement are upscaled to OUTPUT_SIZE
+	public static final int OUTPUT_SIZE = 256;
+	
+	// b-value ranges (1-based, inclusive) that are fitted separately
+	public static final int[][] B_RANGES = {{1, 3}, {4, 8}};
+	
 	/**
 	// For Windows:
 	public static final String PATHS1 = "pdata\\1";
@@ -52,169 +75,188 @@ public class ADC_MAP implements PlugIn {
 	public static final String PATHS2 = "pdata/2";
 	public static final String IM = "/2dseq";
 	public static final String VIS_PAR = "/visu_pars";
+	
+	// Slices of the dialog and of Params (0-based)
+	public static final int NUM_SLICES = 10;
+	public static final boolean[] DEFAULT_SLICES = {false, false, false,
+			false, false, true, true, true, false, false};
+	// Files saved by exec()
+	public static final String STACK_FILE = "adc2_unstratified_map.tif";
+	public static final String MAPS_FILE = "adc_maps.tif";
+	
+	/**
+	 * Settings of one headless run
+	 */
+	public static class Params {
+		public String dir; // i.e. .../9_adc/
+		public String taDir; // i.e. .../10_ta_adc/, null to skip
+		public boolean[] slices = DEFAULT_SLICES.clone();
+		
+		/**
+		 * @param options macro options, i.e. from Macro.getOptions()
+		 * @return the settings
+		 */
+		public static Params fromOptions(String options) {
+			PluginOptions o = new PluginOptions(options);
+			Params p = new Params();
+			p.dir = o.getDir("dir");
+			if (o.get("ta_dir", null) != null) {
+				p.taDir = o.getDir("ta_dir");
+			}
+			int[] sel = o.getInts("slices", null);
+			if (sel != null) {
+				p.slices = new boolean[NUM_SLICES];
+				for (int z : sel) {
+					if (z < 1 || z > NUM_SLICES) {
+						throw new IllegalArgumentException("Slice " + z
+								+ " is not in 1-" + NUM_SLICES);
+					}
+					p.slices[z - 1] = true;
+				}
+			}
+			return p;
+		}
+	}
 
 	public void run(String arg) {
 		
-		// Clears previous images if any
-		IJ.run("Close All", "");
-		
-		// Gets ADC directory
-		String dir = this.grabDir("ADC", 4);
-		
-		// Grabs the images from the selected ADC files
-		ImagePlus adc = this.modifyADC(dir);
-		
-		// Grabs and modifies the images from the selected ta_adc file
-		ImagePlus taADC = this.makeTaADC();
-		
-		// Open second 2dseq image stack of 80 images for B-value separation
-		ImagePlus adc1 = this.getImage(dir, PATHS1, 80);
-		
-		// Basic Modification of the ImagePlus file (Gray, 32-bit, 256x256)
-		adc1 = this.basicModify(adc1);
-		adc1.changes = false; // Allows modified ImagePlus to be closed
-		IJ.run("Stack to Images", "");
-		
-		// Grabs the slope and B values, or throws an error
-		double[] slopes = null;
-		int[] bVal = null;
+		// Macro and batch runs skip the windows and dialogs
+		String options = Macro.getOptions();
 		try {
-			String vpDir = dir + PATHS1; // file directory of the visu_par file
-			slopes = this.getSlope(vpDir, VP_SLOPE);
-			bVal = this.getBVals(vpDir);
-		} catch (FileNotFoundException e) {
-			IJ.error("The slopes were not retrieved");
-		}
-		
-		// Normalization of image stacks with slopes
-		int[] openImp = WindowManager.getIDList();
-		int index = slopes.length - 1;
-		String s = "";
-		for (int i = 0; i < openImp.length; i++) {
-			s = s + openImp[i];
-		}
-		
-		int counter = 1;
-		int slice = 80;
-		ImagePlus curr = null;
-		for (int i = openImp.length - 1; i >= openImp.length - 80; i--) {
-			curr = WindowManager.getImage(openImp[i]);
-			IJ.run(curr, "Multiply...", "value=" + slopes[index]);
-			IJ.log("slice index " + slice + " is multiplied by " + slopes[index]);
-			
-			
-			if (counter % 10 == 0) {
-				index--;
+			Params p;
+			if (options != null) {
+				p = Params.fromOptions(options);
+			} else {
+				// Clears previous images if any
+				IJ.run("Close All", "");
+				p = this.askParams();
+				if (p == null) {
+					return;
+				}
 			}
-			counter++;
-			slice--;
-		}
-		
-		IJ.run(curr, "Images to Stack", "name=Stack title=2dseq-1 use");
-		
-		IJ.run("DeInterleave ", "number=10"); // 10 substacks created
-		
-		// Updates list of open images
-		openImp = WindowManager.getIDList();
-		
-		// Creates the dialog prompting the user to select the image slices
-		// that will be analyzed
-		boolean[] userSlice = this.createDialog();
-		
-		if (userSlice != null & userSlice.length == 10) {
-			int count = 10;
-			for (int i = openImp.length - 1; i >= openImp.length - 10; i--) {
-				int currIm = openImp[i];
-				ImagePlus currIp = WindowManager.getImage(currIm);
-				
-				// Checks if the if the slice was selected by user
-				if (userSlice[count - 1]) {
-					IJ.log("Selected slice substacks are created for slice " + count);
-					IJ.run(currIp, "Substack Maker", "slices=1-3");
-					WindowManager.getImage("Substack (1-3)").setTitle("Slice " + count
-							+ " Substack (1-3)");
-					
-					IJ.run(currIp, "Substack Maker", "slices=4-8");
-					WindowManager.getImage("Substack (4-8)").setTitle("Slice " + count
-							+ " Substack (4-8)");
+			ImagePlus[] out = this.exec(p);
+			IJ.log("ADC stack and maps saved in " + p.dir);
+			if (options == null) {
+				for (ImagePlus imp : out) {
+					imp.show();
 				}
-				
-				// Closes images
-				this.closer(currIp.getTitle());
-				count--;
+				//Prompts user to auto contrast the ADC stack labled "Stack"
+				IJ.showMessage("Auto contrast image labeled \"Stack\"");
+				WindowManager.getImage("Stack");
+				IJ.run("Brightness/Contrast...");
 			}
-			
-			// Prompts users to close the create the diffusion maps
-			IJ.showMessage("Create Diffusion maps. \n Plugins -> MRIAnalysisPak -> "
-					+ "MRI analysis calc \n Substacks 1-3 B Values: 7 47 81"
-					+ "\n Substacks 4-8 B Values: 126 180 234 340 549");
-			
-			//Prompts user to auto contrast the modified 2dseq now labled "Stack"
-			IJ.showMessage("Auto contrast image labeled \"Stack\"");
-			WindowManager.getImage("Stack");
-			IJ.run("Brightness/Contrast...");
-			WindowManager.getImage("Stack");
+		} catch (IOException e) {
+			IJ.error("The ADC maps could not be made: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			IJ.error(e.getMessage());
 		}
 	}
 	
 	/**
-	 * Grabs the ADC 2dseq file and scales the images to the corresponding
-	 * slopes found in the ADC visu_par file. 2desq images for the low and high
-	 * B-value separation are also gathered in this methods
-	 * @param dir the string directory of the selected ADC root file
+	 * Asks for the ADC and ta_adc folders and shows the b-value images of
+	 * every slice for the slice selection
+	 * @return the settings, or null if a dialog was canceled
+	 * @throws IOException if the 2dseq cannot be read
+	 * @throws IllegalArgumentException if the scan does not have NUM_BVALS
+	 * b-values
 	 */
-	public ImagePlus modifyADC(String dir) {
-		//Opens 2dseq stack
-		ImagePlus adc2 = this.getImage(dir, PATHS2, 50);
-		
-		// Image Slice Indices
-		String sliceNums = this.strStackBuilder(adc2.getNSlices());
+	private Params askParams() throws IOException {
+		Params p = new Params();
 		
-		// Gather VisuCoreDataSlopes and checks if image is an ADC Sequence
-		double[] slopes = null;
-		try {
-			slopes = this.getSlope(dir + PATHS2, "##$VisuCoreDataSlope=(");
-			
-		} catch (FileNotFoundException e) {
-			IJ.error("The visu_par file was not found.");
+		// Gets ADC directory
+		p.dir = this.grabDir("ADC", 4);
+		if (p.dir == null) {
+			return null;
 		}
+		// The ta_adc image is skipped when no folder is chosen
+		p.taDir = this.grabDir("ta_adc", 5);
 		
-		// Multiply cooresponding slope values to each image in substack
-		adc2 = this.modifyStack(adc2, slopes, sliceNums);
-		
-		// Closes the rescaled 2dseq
-		this.closer("2dseq_256_256");
+		// The slope scaled pdata/1 stack and its b-values
+		ImagePlus scan = this.calibrated(p.dir);
+		int[] bVal = AdcEngine.bValues(JcampParams.read(p.dir + PATHS1,
+				Bruker2dseq.VISU_PARS));
+		if (bVal.length != NUM_BVALS) {
+			throw new IllegalArgumentException("Expected " + NUM_BVALS
+					+ " b-values, found " + bVal.length);
+		}
 		
-		// Prompts User for Auto contrast and save sequence
-		IJ.log("Auto adjust brightness and contrast ("
-				+ "Select \"Auto\") and Save as"
-				+ " \"adc2_unstratified_map\"");
+		// Shows the b-value images of every slice for the slice selection,
+		// slices along z and b-values along t
+		ImagePlus view = new ImagePlus("2dseq-1", scan.getStack());
+		view.setDimensions(1, scan.getStackSize() / NUM_BVALS, NUM_BVALS);
+		view.setOpenAsHyperStack(true);
+		ImagePlus bStack = MapResampler.upscale(view, OUTPUT_SIZE,
+				OUTPUT_SIZE, "2dseq-1");
+		bStack.show();
 		
-		return adc2;
+		// Creates the dialog prompting the user to select the image slices
+		// that will be analyzed
+		boolean[] userSlice = this.createDialog();
+		bStack.changes = false;
+		bStack.close();
+		if (userSlice == null) {
+			return null;
+		}
+		p.slices = userSlice;
+		return p;
 	}
 	
 	/**
-	 * Opens a the ta adc image and prompts user to create and save ROIs
-	 * @return ImagePlus of the opened ta_adc 2dseq image
+	 * Makes and saves the slope scaled ADC stack (STACK_FILE), the ta_adc
+	 * image and the ADC maps of the selected slices (MAPS_FILE) without
+	 * windows or dialogs, so it can run headless and several studies can
+	 * run at once
+	 * @param p the settings
+	 * @return the ADC stack, the maps, and the ta_adc image if p.taDir is
+	 * set, all at OUTPUT_SIZE
+	 * @throws IOException if a 2dseq cannot be read or an image saved
+	 * @throws IllegalArgumentException if the scan does not have NUM_BVALS
+	 * b-values
 	 */
-	public ImagePlus makeTaADC() {
-		// Retrieves the directory for the ta_adc folder
-		String dir = this.grabDir("ta_adc", 5);
-		
-		// Opens the Image stack 
-		ImagePlus taADC = this.getImage(dir, PATHS1, 50);
+	public ImagePlus[] exec(Params p) throws IOException {
+		java.util.List<ImagePlus> out = new ArrayList<ImagePlus>();
 		
-		// Performs 256x256 scaling, 32-bit, and gray changes on ImagePlus
-		taADC = this.basicModify(taADC);
+		// The diffusion constant image of each set, in 10^-3 mm^2/s
+		Bruker2dseq adc2 = new Bruker2dseq(p.dir + PATHS2);
+		float[][] images = adc2.selectSet(START_SLICE - 1, NUMBER_IN_SET);
+		ImageStack stack = new ImageStack(adc2.getWidth(), adc2.getHeight());
+		for (int i = 0; i < images.length; i++) {
+			float[] px = images[i].clone();
+			for (int j = 0; j < px.length; j++) {
+				px[j] *= 1000; // 1000 Yields 10^-3 mm^2/s
+			}
+			stack.addSlice("slice " + (i + 1), px);
+		}
+		ImagePlus imp = adc2.toImagePlus("Stack");
+		imp.setStack(stack);
+		imp = MapResampler.upscale(imp, OUTPUT_SIZE, OUTPUT_SIZE, "Stack");
+		MapWriter.writeTiff(imp, p.dir + STACK_FILE);
+		out.add(imp);
 		
-		// Saves the taADC image file in the same directory as selected
-		// folder as .tif file
-		IJ.run(taADC, "Save", "save=[" + dir + PATHS1 + IM + ".tif]");
+		// ADC and R^2 maps of the selected slices
+		int[] bVal = AdcEngine.bValues(JcampParams.read(p.dir + PATHS1,
+				Bruker2dseq.VISU_PARS));
+		if (bVal.length != NUM_BVALS) {
+			throw new IllegalArgumentException("Expected " + NUM_BVALS
+					+ " b-values, found " + bVal.length);
+		}
+		ImagePlus maps = this.adcMaps(p.dir, null, bVal, p.slices);
+		if (maps != null) {
+			MapWriter.writeTiff(maps, p.dir + PATHS1 + "/" + MAPS_FILE);
+			out.add(maps);
+		}
 		
-		//IJ.showMessage("Select ROIs on 3 slices and save ROIs.");
-		return taADC;
+		// The stored ta_adc values, as the raw import saved them
+		if (p.taDir != null) {
+			Bruker2dseq ta = new Bruker2dseq(p.taDir + PATHS1, false);
+			ImagePlus taADC = MapResampler.upscale(ta.toImagePlus("2dseq-1"),
+					OUTPUT_SIZE, OUTPUT_SIZE, "2dseq-1");
+			MapWriter.writeTiff(taADC, p.taDir + PATHS1 + IM + ".tif");
+			out.add(taADC);
+		}
+		return out.toArray(new ImagePlus[out.size()]);
 	}
-
+	
 	/** 
 	 * Input from user to grab the root directory for desired files
 	 * @param folder, folder that contains desired files
@@ -233,290 +275,156 @@ public class ADC_MAP implements PlugIn {
 	
 
 	/**
-	 * Provides instructions to Import raw image files
-	 * @param numIm number of images in the original image stack
-	 */
-	private void instructions(int numIm) {
-		IJ.log("Please adjust import settings to:");
-		IJ.log("    Image type: 32-bit signed");
-		IJ.log("    Width: 128 pixels");
-		IJ.log("    Height: 128 pixels");
-		IJ.log("    Number of images: " + numIm + " images");
-		IJ.log("    Check Little-endian byte order");
-	}
-	
-	/**
-	 * Closes the image that has the associated title
-	 * @param title the image's title or name in the Window Manager
+	 * Fits the ADC and R^2 maps of the selected slices for each range in
+	 * B_RANGES from the slope scaled pdata/1 stack
+	 * @param dir the string directory of the selected ADC root file
+	 * @param scan the slope scaled pdata/1 stack in file order, or null to
+	 * get it from calibrated() if the fits are not cached
+	 * @param bVal the b-values from the visu_par file
+	 * @param userSlice the slices selected in the dialog
+	 * @return hyperstack with an ADC and an R^2 channel per b-value range
+	 * and one z-slice per selected slice, or null if nothing was fitted
+	 * @throws IOException if the 2dseq cannot be read
 	 */
-	private void closer(String title) {
-		ImagePlus imp = WindowManager.getImage(title);
-		if (imp != null) {
-			imp.changes = false;
-			imp.close();
+	private ImagePlus adcMaps(String dir, ImagePlus scan, int[] bVal,
+			boolean[] userSlice) throws IOException {
+		int numSel = 0;
+		for (int i = 0; i < userSlice.length; i++) {
+			if (userSlice[i]) {
+				numSel++;
+			}
 		}
-	}
-	
-	/**
-	 * Retrieves image and scales to correct size
-	 * @param dir directory that the images files are located at
-	 * @param pathChoice 1 or 2 from pdata folder
-	 * @param numIm number of images in this image stack
-	 * @return ImagePlus of the scaled image stack
-	 */
-	private ImagePlus getImage(String dir, String pathChoice, int numIm) {
-		// Import Instructions to user
-		this.instructions(numIm);
-		IJ.openImage(dir + pathChoice+ IM);		
-		ImagePlus curr = WindowManager.getImage(IM.substring(1));
-		return curr;
-	}
-	
-	/**
-	 * Builds the string that will create a substack
-	 * i.e. returns "3,8,13,18,..." for the 3rd image in each set of five
-	 * @param numImages number of images in the stack
-	 * @return String that has the slice numberID of the images that will be in
-	 * the final stack
-	 */
-	private String strStackBuilder(int numImages) {
-		String returnSlices = DESIRED_IMAGE;
-		for (int i = START_SLICE + NUMBER_IN_SET; i <= numImages;
-				i += NUMBER_IN_SET) {
-			returnSlices += "," + i;
+		int[] slices = new int[numSel];
+		for (int i = 0, j = 0; i < userSlice.length; i++) {
+			if (userSlice[i]) {
+				slices[j++] = i;
+			}
 		}
-		return returnSlices;
-	}
-	
-	/**
-	 * Grabs the VisuCoreDataSlope data from the visu_par file.
-	 * Assumes the file structure in the visu_pars file will be consistent
-	 * with desiring the DESIRED_IMAGE index of each image grouping
-	 * @param vp the name of the file that contains an image's parameters
-	 * @param find item that needs to be found within the visu_par file
-	 * @return slope the slope that multiplies the image data
-	 * @throws FileNotFoundException
-	 */	
-	private double[] getSlope(String dir, String find)
-			throws FileNotFoundException {
-		
-		File vp = new File(dir + VIS_PAR);
-		if (!vp.exists()) {
-			throw new FileNotFoundException();
+		if (numSel == 0 || bVal == null) {
+			return null;
 		}
-		double[] pars = null;
-		Scanner scanner = new Scanner(vp); 
-		while (scanner.hasNext()) {
-			String currItem = scanner.next();
-			if (currItem.equalsIgnoreCase(find)) {
-				if (find.contains("Slope") && dir.contains(PATHS2)) {
-					return this.getCertainSlopes(scanner, pars);
-				} else {
-					return this.get8Slopes(scanner, pars);
-				}
+		
+		ImagePlus all = this.adcFits(dir, scan, bVal);
+		int numCh = all.getNChannels();
+		ImageStack fits = all.getStack();
+		ImageStack stack = new ImageStack(all.getWidth(), all.getHeight());
+		for (int z = 0; z < numSel; z++) {
+			for (int c = 1; c <= numCh; c++) {
+				int idx = all.getStackIndex(c, slices[z] + 1, 1);
+				stack.addSlice(fits.getSliceLabel(idx), fits.getPixels(idx));
 			}
 		}
-		// IJ.error("The visu_par file did not read any slope data.");
-		return pars;
+		ImagePlus maps = new ImagePlus("ADC maps", stack);
+		maps.setCalibration(all.getCalibration());
+		maps.setDimensions(numCh, numSel, 1);
+		maps.setOpenAsHyperStack(true);
+		return MapResampler.upscale(maps, OUTPUT_SIZE, OUTPUT_SIZE,
+				maps.getTitle());
 	}
 	
 	/**
-	 * Retrieves certain slopes
-	 * @param scanner that is attached to the visu_par data file
-	 * @param pars the array that holds the slope values
-	 * @return the slopes in the array, or leaves pars unchanged if the
-	 * slope data did not exist
+	 * Fits the ADC and R^2 maps of all slices for each range in B_RANGES,
+	 * or loads them from the ResultCache if the pdata/1 data and the
+	 * b-values did not change
+	 * @param dir the string directory of the selected ADC root file
+	 * @param scan the slope scaled pdata/1 stack in file order, or null to
+	 * get it from calibrated() on a cache miss
+	 * @param bVal the b-values from the visu_par file
+	 * @return hyperstack with an ADC and an R^2 channel per b-value range
+	 * and one z-slice per slice, at the acquired matrix
+	 * @throws IOException if the 2dseq cannot be read
 	 */
-	private double[] getCertainSlopes(Scanner scanner, double[] pars) {
-		if (scanner.hasNext()) {
-			int numIm = scanner.nextInt(); // Number of Images
-			scanner.next(); // Discard ')'
-			pars = new double[numIm / NUMBER_IN_SET];
-			double currSlope;
-			int arrIndex = 0;
-			// Search for particular slopes
-			int i = 1;
-			int sliceMod = 0;
-			while (i <= numIm && arrIndex < numIm / NUMBER_IN_SET) {
-				currSlope = scanner.nextDouble();
-				sliceMod = i % (2 * NUMBER_IN_SET);
-				if (sliceMod == START_SLICE || 
-						sliceMod == (START_SLICE + NUMBER_IN_SET)) {
-					pars[arrIndex] = currSlope;
-					arrIndex++;
-				}
-				i++;
+	private ImagePlus adcFits(String dir, ImagePlus scan, int[] bVal)
+			throws IOException {
+		ResultCache cache = ResultCache.shared();
+		String key = null;
+		if (cache != null) {
+			key = cache.key("adc", new File[] {
+					new File(dir + PATHS1 + IM),
+					new File(dir + PATHS1 + VIS_PAR)},
+					bVal, B_RANGES, NUM_BVALS, AdcEngine.settings());
+			ImagePlus cached = cache.get(key);
+			if (cached != null) {
+				IJ.log("ADC fits loaded from the cache");
+				return cached;
 			}
 		}
-		return pars;
-	}
-	
-	/** 
-	 * The second algorithm to obtain the visu_par slopes for the 8 substacks
-	 * @param scanner that is attached to the visu_par data file
-	 * @param pars the array that will store the parameters
-	 * @return the parameters gathered from the file in the updated pars array
-	 */
-	private double[] get8Slopes(Scanner scanner, double[] pars) {
-		pars = new double[8];
-		if (scanner.hasNext()) {
-			int numIm = scanner.nextInt(); // number of images
-			if (numIm / 10 == 8) {
-				scanner.next(); // Discard the ")"
-				int indx = 0;
-				for (int i = 1; i <= 80; i++) {
-					double curr = scanner.nextDouble(); // gets next slope
-					
-					// Retains only the first value for every set 
-					// of 10 (i.e. 1, 11, 21, ... etc)
-					if (i % 10 == 1) {
-						pars[indx] = curr;
-						indx++;
-					}
-				}
-				return pars;
-			} else {
-				IJ.error("There are not 80 images in the stack");
-			}
+		if (scan == null) {
+			scan = this.calibrated(dir);
 		}
-		return null;
-	}
-	
-	/**
-	 * Retrieves the B values
-	 * @param dir string where the location of the visu_par file is
-	 * @return updated pars file that contains B values
-	 * @throws FileNotFoundException
-	 */
-	private int[] getBVals(String dir) 			
-			throws FileNotFoundException {
-		// Open visu_par file
-		File vp = new File(dir + VIS_PAR);
-		if (!vp.exists()) {
-			throw new FileNotFoundException();
+		ImageStack images = scan.getStack();
+		float[][] pixels = new float[images.getSize()][];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (float[]) images.getPixels(i + 1);
 		}
-		int[] pars = new int[8]; // Will hold the bVals
-		Scanner scanner = new Scanner(vp); 
-		while (scanner.hasNext()) {
-			String find = "##$VisuFGElemComment=(";
-			String current = scanner.next();
-			if (current.equalsIgnoreCase(find)) {
-				if (scanner.hasNext()) {
-					// Number of B vals, also number of substacks
-					String s = scanner.next(); // integer with a comma. i.e: 8,
-					int numIn = Integer.parseInt(s.substring(0, 1)); 
-					scanner.next(); // Integer number
-					scanner.next(); // Discard closing parentheses, )
-					int i = 1;
-					int line = 0; // Length of line
-					while (scanner.hasNext() && i <= numIn) {
-						scanner.next(); // Discard <Dir
-						scanner.next(); // Discard 1
-						scanner.next(); // Discard B
-						// The B value retrieved and placed into stack
-						String num = scanner.next();
-						if (num.contains(">")) {
-							pars[i - 1] = Integer.parseInt(
-									num.substring(0, num.length() - 1));
-						} else {
-							pars[i - 1] = Integer.parseInt(num);
-							scanner.next(); // Removes ">" on new line
-						}
-						IJ.log("Bval " + i + " is: " + pars[i - 1]);
-						i++;
-					}
-				}
-				return pars;
-			}
+		float[][][] src = AdcEngine.bySlice(pixels, NUM_BVALS);
+		int[] slices = new int[src.length];
+		for (int z = 0; z < slices.length; z++) {
+			slices[z] = z;
 		}
-		return pars;
-	}
-	
-	/**
-	 * Takes in a stack and multiplies by the corresponding slope values
-	 * @param curr the stack of images that will be modified
-	 * @param slopes the slopes that will multiply the corresponding image
-	 * @param sliceNums desired slices within the stack
-	 * @return the modified ImagePlus of the stack of images
-	 */
-	private ImagePlus modifyStack(ImagePlus curr, double[] slopes, String sliceNums) {
-		// Scales curr to 256 by 256 pixels
-		IJ.run(curr, "Scale...", "x=2 y=2 z=1.0 width=256 height=256 depth=50 "
-				+ "interpolation=Bilinear average process create title=" + 
-				curr.getTitle() + "_256_256");
-		this.closer(curr.getTitle());
-		curr = WindowManager.getImage(IM.substring(1) + "_256_256");
 		
-		int numImages = curr.getNSlices(); // number of images in stack
-		IJ.run(curr, "Substack Maker", "slices=" + sliceNums);
-		IJ.run("Stack to Images", "");
-		
-		// Get the Window ID
-		String title = "Substack-00";
-		String currTitle;
-		ImagePlus curSub;
-		for (int j = 1; j <= numImages / NUMBER_IN_SET; j++) {
-			if (j < 10) {
-				currTitle = title + "0";
-			} else if (j < 100){
-				currTitle = title;
-			} else if (j < 1000) {
-				currTitle = title.substring(0, title.length() - 2);
-			} else {
-				currTitle = title.substring(0, title.length() - 3);
+		// One engine per b-value range, channels are ordered range by range
+		int numCh = B_RANGES.length * AdcEngine.NUM_MAPS;
+		float[][][][] fits = new float[B_RANGES.length][][][];
+		String[] names = new String[numCh];
+		for (int r = 0; r < B_RANGES.length; r++) {
+			int first = B_RANGES[r][0] - 1;
+			int last = B_RANGES[r][1] - 1;
+			fits[r] = new AdcEngine(bVal, first, last).fit(src, slices);
+			for (int m = 0; m < AdcEngine.NUM_MAPS; m++) {
+				names[r * AdcEngine.NUM_MAPS + m] = AdcEngine.MAP_NAMES[m]
+						+ " (" + bVal[first] + "-" + bVal[last] + ")";
 			}
-			IJ.log("Image " + currTitle + j + " will be multiplied by: " 
-					+ slopes[j - 1]);
-			curSub = WindowManager.getImage(currTitle + j);
-			double val = slopes[j - 1] * 1000; // 1000 Yields 10^-3 mm^2/s
-			IJ.run(curSub, "Multiply...", "value=" + val + " stack");			
+			IJ.log("Fitted b-values " + B_RANGES[r][0] + "-"
+					+ B_RANGES[r][1]);
 		}
-		IJ.run(curr, "Images to Stack", "name=Stack title=[] use");
-		return curr;
-	}
-	
-	/**
-	 * Takes in an ImagePlus file and does basic 32-bit, gray, and 256x256 
-	 * scaling and returns the modified ImagePlus file
-	 * @param curr the ImagePlus that needs to be modified
-	 * @return the modified the ImagePlus file
-	 */
-	private ImagePlus basicModify(ImagePlus curr) {
-		int depth = curr.getNSlices();
-		IJ.run(curr, "Grays", "");
-		IJ.run("32-bit", "");
-		IJ.run(curr, "Scale...", "x=- y=- z=1.0 width=256 height=256 " + 
-				"depth=" + depth + " interpolation=Bilinear average " +
-				"process create" + " title=2dseq-1");
 		
-		return curr;
+		ImageStack stack = new ImageStack(scan.getWidth(),
+				scan.getHeight());
+		for (int z = 0; z < slices.length; z++) {
+			for (int r = 0; r < B_RANGES.length; r++) {
+				for (int m = 0; m < AdcEngine.NUM_MAPS; m++) {
+					stack.addSlice(names[r * AdcEngine.NUM_MAPS + m]
+							+ " slice " + (z + 1), fits[r][z][m]);
+				}
+			}
+		}
+		ImagePlus all = new ImagePlus("ADC fits", stack);
+		all.setCalibration(scan.getCalibration());
+		all.setDimensions(numCh, slices.length, 1);
+		if (cache != null) {
+			cache.put(key, all);
+		}
+		return all;
 	}
 	
 	/**
-	 * Creates the diffusion/perfusion map
-	 * @param curr the current ImagePlus
-	 * @param dir the directory path for saving file
-	 * @param num example: 1-3 or 4-8 for substack slices
-	 * @param bVal high and low bValues i.e. 7 47 81 or 126 180 234 340 549
-	 * @param count the current slice
+	 * The slope scaled pdata/1 stack in file order, loaded from the
+	 * ResultCache if the 2dseq and visu_pars did not change, so choosing
+	 * other slices on a rerun does not read and scale the 2dseq again
+	 * @param dir the string directory of the selected ADC root file
+	 * @return 32-bit stack of every b-value image of every slice
+	 * @throws IOException if the 2dseq cannot be read
 	 */
-	private void diffusionMap(ImagePlus curr, String dir, String num, 
-			String bVal, int count) {
-		
-		if (curr.getNSlices() == 8) {
-			IJ.run(curr, "Substack Maker", "slices=" + num);
-			ImagePlus front = WindowManager.getImage("Substack (" + num + ")");
-			IJ.run("MRI Analysis Calc", "calculation=[Diffusion Calculation] "
-					+ "=[Substack (" + num + ")] =[" + bVal + "] =0 =800000");
-			ImagePlus sub = WindowManager.getImage(
-					"Diffusion ADC (10^-3*mm^2/sec)");
-			IJ.run(sub, "Save", "save=[" + dir + PATHS1 + "/slice " + count +
-					" (" + num + ") norm map" + ".tif]");
-			this.closer("Substack (" + num + ")");
-			this.closer("Diffusion ADC (10^-3*mm^2/sec)");
-		} else {
-			IJ.error("There are not 8 slices to get the diffusion map.");
+	private ImagePlus calibrated(String dir) throws IOException {
+		ResultCache cache = ResultCache.shared();
+		String key = null;
+		if (cache != null) {
+			key = cache.key("adc_stack", new File[] {
+					new File(dir + PATHS1 + IM),
+					new File(dir + PATHS1 + VIS_PAR)});
+			ImagePlus cached = cache.get(key);
+			if (cached != null) {
+				IJ.log("ADC stack loaded from the cache");
+				cached.setTitle("2dseq-1");
+				return cached;
+			}
+		}
+		ImagePlus imp = new Bruker2dseq(dir + PATHS1).toImagePlus("2dseq-1");
+		if (cache != null) {
+			cache.put(key, imp);
 		}
+		return imp;
 	}
 	
 	/**
@@ -528,8 +436,7 @@ public class ADC_MAP implements PlugIn {
 		GenericDialog gd = new GenericDialog("Slice Selection");
 		String[] labels = {"1", "2", "3", "4", "5", 
 				"6", "7", "8", "9", "10"};
-		boolean[] defaults = {false, false, false, false, 
-				false, true, true, true, false, false};
+		boolean[] defaults = DEFAULT_SLICES;
 		gd.addMessage("Select the Image slices that \n you will select ROIs upon.");
 		gd.addCheckboxGroup(5, 4, labels, defaults);
 		gd.showDialog();
@@ -538,7 +445,7 @@ public class ADC_MAP implements PlugIn {
 			return null;
 		}
 		
-		boolean[] userSlice = new boolean[10];
+		boolean[] userSlice = new boolean[NUM_SLICES];
 		for (int index = 0; index < defaults.length; index++) {
 			userSlice[index] = gd.getNextBoolean();
 		}
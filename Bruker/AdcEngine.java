@@ -0,0 +1,201 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Voxel-wise ADC fit of a multi b-value diffusion scan. The mono-exponential
+ * model S = S0 exp(-b ADC) is fitted as the line ln S = ln S0 - b ADC with
+ * weights S^2 (the variance of ln S is about sigma^2 / S^2), which keeps the
+ * low signal high b-value images from dominating the fit. The weights
+ * depend on the signal, so the sums are accumulated for every voxel.
+ * Images without signal (S <= 0) are left out of the fit and of R^2, which
+ * is reported for the fitted curve in the signal domain.
+ *
+ * All voxels of all slices are fitted in parallel. ADC is returned in
+ * 10^-3 mm^2/s, the unit of MRI Analysis Calc's diffusion map.
+ *
+ * Updates:
+ * 10.19.26 - Created
+ * 10.19.26 - bValues() moved here from Watch_Scans for ADC_MAP.exec()
+ * 10.19.26 - settings() for the ResultCache keys
+ * 10.19.26 - R^2 uses the same images as the fit
+ */
+
+public class AdcEngine {
+
+	public static final String[] MAP_NAMES = {"ADC", "R2"};
+	public static final int NUM_MAPS = MAP_NAMES.length;
+	// ADC is reported in 10^-3 mm^2/s for b-values in s/mm^2
+	public static final double ADC_SCALE = 1000;
+	// Change it when the fit changes, cached results of the old one are
+	// not used
+	public static final String VERSION = "AdcEngine 2";
+
+	private final double[] b;
+	private final int first;
+	private final int n;
+
+	/**
+	 * @param bVals all b-values of the scan in s/mm^2
+	 * @param first index of the first b-value used in the fit
+	 * @param last index of the last b-value used in the fit (inclusive)
+	 */
+	public AdcEngine(int[] bVals, int first, int last) {
+		if (first < 0 || last >= bVals.length || last - first < 1) {
+			throw new IllegalArgumentException("Invalid b-value range "
+					+ (first + 1) + "-" + (last + 1));
+		}
+		this.first = first;
+		this.n = last - first + 1;
+		this.b = new double[n];
+		for (int k = 0; k < n; k++) {
+			b[k] = bVals[first + k];
+		}
+	}
+
+	/**
+	 * @return the version and constants of the fit, for the ResultCache keys
+	 */
+	public static String settings() {
+		return VERSION + " weights=S^2 scale=" + ADC_SCALE;
+	}
+
+	/**
+	 * Reads the b-values from the frame group comments (<Dir 1 B 800>)
+	 * @param visu the visu_pars of the diffusion scan
+	 * @return the b-value of each comment, empty if there are none
+	 */
+	public static int[] bValues(JcampParams visu) {
+		String[] comments = visu.getStrings("VisuFGElemComment");
+		if (comments == null) {
+			return new int[0];
+		}
+		int[] b = new int[comments.length];
+		for (int i = 0; i < comments.length; i++) {
+			String[] tok = comments[i].trim().split("\\s+");
+			for (int t = 0; t < tok.length - 1; t++) {
+				if ("B".equalsIgnoreCase(tok[t])) {
+					b[i] = (int) Math.round(Double.parseDouble(tok[t + 1]));
+				}
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Arranges the images of a scan acquired with the b-value as the outer
+	 * loop and the slice as the inner loop
+	 * @param scan the calibrated 2dseq
+	 * @param numB number of b-values
+	 * @return images indexed as [slice][b-value]
+	 */
+	public static float[][][] bySlice(Bruker2dseq scan, int numB) {
+		float[][] images = new float[scan.getImageCount()][];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = scan.getPixels(i);
+		}
+		return bySlice(images, numB);
+	}
+
+	/**
+	 * Arranges images in file order, b-value outer and slice inner
+	 * @param images the calibrated images in file order
+	 * @param numB number of b-values
+	 * @return images indexed as [slice][b-value]
+	 */
+	public static float[][][] bySlice(float[][] images, int numB) {
+		int numSlices = images.length / numB;
+		if (numSlices * numB != images.length) {
+			throw new IllegalArgumentException(images.length
+					+ " images cannot be split into " + numB + " b-values");
+		}
+		float[][][] src = new float[numSlices][numB][];
+		for (int k = 0; k < numB; k++) {
+			for (int z = 0; z < numSlices; z++) {
+				src[z][k] = images[k * numSlices + z];
+			}
+		}
+		return src;
+	}
+
+	/**
+	 * Fits the selected slices
+	 * @param src images indexed as [slice][b-value]
+	 * @param slices 0-based indices of the slices to fit
+	 * @return maps indexed as [selected slice][map][pixel]
+	 */
+	public float[][][] fit(final float[][][] src, final int[] slices) {
+		final int plane = src[0][0].length;
+		final float[][][] maps = new float[slices.length][NUM_MAPS][plane];
+		ParallelLoop.run(slices.length * plane, 256, new ParallelLoop.Body() {
+			public void run(int start, int end) {
+				float[] s = new float[n];
+				double[] out = new double[NUM_MAPS];
+				for (int v = start; v < end; v++) {
+					int z = v / plane;
+					int i = v % plane;
+					float[][] frames = src[slices[z]];
+					for (int k = 0; k < n; k++) {
+						s[k] = frames[first + k][i];
+					}
+					fitVoxel(s, out);
+					maps[z][0][i] = (float) out[0];
+					maps[z][1][i] = (float) out[1];
+				}
+			}
+		});
+		return maps;
+	}
+
+	/**
+	 * Weighted log-linear fit of one voxel
+	 * @param s signal at each b-value of the range
+	 * @param out receives ADC and R^2, both zero if the voxel has no signal
+	 */
+	public void fitVoxel(float[] s, double[] out) {
+		double sw = 0, swb = 0, swbb = 0, swy = 0, swby = 0;
+		int used = 0;
+		for (int k = 0; k < n; k++) {
+			if (s[k] <= 0) {
+				continue;
+			}
+			used++;
+			double w = (double) s[k] * s[k];
+			double y = Math.log(s[k]);
+			sw += w;
+			swb += w * b[k];
+			swbb += w * b[k] * b[k];
+			swy += w * y;
+			swby += w * b[k] * y;
+		}
+		double det = sw * swbb - swb * swb;
+		if (sw == 0 || det <= 0) {
+			out[0] = 0;
+			out[1] = 0;
+			return;
+		}
+		double slope = (sw * swby - swb * swy) / det;
+		double lnS0 = (swy - slope * swb) / sw;
+		double adc = -slope;
+
+		// R^2 of the fitted exponential over the fitted images
+		double s0 = Math.exp(lnS0);
+		double mean = 0;
+		for (int k = 0; k < n; k++) {
+			if (s[k] > 0) {
+				mean += s[k];
+			}
+		}
+		mean /= used;
+		double ssRes = 0, ssTot = 0;
+		for (int k = 0; k < n; k++) {
+			if (s[k] <= 0) {
+				continue;
+			}
+			double r = s[k] - s0 * Math.exp(-b[k] * adc);
+			ssRes += r * r;
+			ssTot += (s[k] - mean) * (s[k] - mean);
+		}
+		out[0] = adc * ADC_SCALE;
+		out[1] = ssTot > 0 ? 1 - ssRes / ssTot : 0;
+	}
+}
@@ -0,0 +1,514 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Reads a ParaVision pdata/N/2dseq image file directly into 32-bit frames
+ * using the word type, byte order, matrix size and the per frame
+ * VisuCoreDataSlope/VisuCoreDataOffs from the visu_pars next to it.
+ * No window is opened and no import dialog is needed, so the map engines
+ * can work on the calibrated data in memory.
+ *
+ * Updates:
+ * 10.19.26 - Created for the DTI tensor fit
+ * 10.19.26 - The slope can be left to the caller (fused MTR kernel)
+ * 10.19.26 - Frame groups (VisuFGOrderDesc / VisuFGElemId) give the frame
+ *            of an echo, slice, repetition, ... and the hyperstack view
+ * 10.19.26 - Stacks keep their pdata directory for ScanTiming
+ * 10.19.26 - selectSet() picks one image of every set for the map plugins
+ * 10.19.26 - selectSet() checks the set size against the frame group, and
+ *            the 2dseq is mapped in chunks so files over 2 GB can be read
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.regex.*;
+
+import ij.*;
+import ij.process.*;
+import ij.measure.*;
+
+public class Bruker2dseq {
+
+	public static final String SEQ = "2dseq";
+	public static final String VISU_PARS = "visu_pars";
+	public static final String FG_SLICE = "FG_SLICE";
+	// The single group of a 2dseq without VisuFGOrderDesc
+	public static final String FG_FRAME = "FG_FRAME";
+	// Frame groups shown as hyperstack frames, the others except the
+	// slices become channels
+	public static final String[] TIME_GROUPS = {"FG_CYCLE", "FG_MOVIE"};
+	// Largest part of the 2dseq that is memory mapped at once
+	public static final long MAP_CHUNK = 1L << 28; // 256 MB
+
+	/**
+	 * One frame group of VisuFGOrderDesc, i.e. the echoes or the slices
+	 */
+	public static class FrameGroup {
+		public final String type;
+		public final int length;
+		// VisuFGElemId (or VisuFGElemComment) of each element, or null
+		public final String[] ids;
+
+		FrameGroup(String type, int length, String[] ids) {
+			this.type = type;
+			this.length = length;
+			this.ids = ids;
+		}
+
+		/**
+		 * @param e element index
+		 * @return the element's id, or its 1-based number
+		 */
+		public String label(int e) {
+			return ids != null ? ids[e] : type + " " + (e + 1);
+		}
+	}
+
+	private static final Pattern FG_DESC = Pattern.compile(
+			"\\(\\s*(\\d+)\\s*,\\s*<([^>]*)>\\s*,\\s*<([^>]*)>\\s*,"
+			+ "\\s*(\\d+)\\s*,\\s*(\\d+)\\s*\\)");
+	private static final Pattern DEP_VAL = Pattern.compile(
+			"\\(\\s*<([^>]*)>\\s*,\\s*(\\d+)\\s*\\)");
+
+	private final JcampParams visu;
+	private final int width;
+	private final int height;
+	private final int depth; // images per frame, > 1 for 3D data
+	private final int frames;
+	private final float[][] pixels;
+	private final boolean scaled;
+	private final FrameGroup[] groups; // fastest varying first
+
+	/**
+	 * Reads and scales the 2dseq of a processed data folder
+	 * @param pdataDir directory that holds 2dseq and visu_pars (pdata/1)
+	 * @throws IOException if a file is missing or shorter than expected
+	 */
+	public Bruker2dseq(String pdataDir) throws IOException {
+		this(pdataDir, true);
+	}
+
+	/**
+	 * Reads the 2dseq of a processed data folder
+	 * @param pdataDir directory that holds 2dseq and visu_pars (pdata/1)
+	 * @param scale true to apply VisuCoreDataSlope and VisuCoreDataOffs,
+	 * false to keep the stored integer values
+	 * @throws IOException if a file is missing or shorter than expected
+	 */
+	public Bruker2dseq(String pdataDir, boolean scale) throws IOException {
+		scaled = scale;
+		visu = JcampParams.read(pdataDir, VISU_PARS);
+		int[] size = toInts(visu.getDoubles("VisuCoreSize"));
+		if (size == null || size.length < 2) {
+			throw new IOException("VisuCoreSize missing in " + visu.getPath());
+		}
+		width = size[0];
+		height = size[1];
+		depth = size.length > 2 ? size[2] : 1;
+		frames = visu.getInt("VisuCoreFrameCount", 1);
+		pixels = new float[frames * depth][];
+		groups = this.readFrameGroups();
+		this.readPixels(new File(pdataDir, SEQ));
+	}
+
+	/**
+	 * Parses VisuFGOrderDesc and the element ids of each group. A 2dseq
+	 * without frame groups, or with groups that do not multiply to the
+	 * frame count, has one FG_FRAME group.
+	 */
+	private FrameGroup[] readFrameGroups() {
+		String desc = visu.getRaw("VisuFGOrderDesc");
+		List<FrameGroup> out = new ArrayList<FrameGroup>();
+		if (desc != null) {
+			List<String[]> dep = new ArrayList<String[]>();
+			String depVals = visu.getRaw("VisuGroupDepVals");
+			if (depVals != null) {
+				Matcher d = DEP_VAL.matcher(depVals);
+				while (d.find()) {
+					dep.add(new String[] {d.group(1), d.group(2)});
+				}
+			}
+			Matcher m = FG_DESC.matcher(desc);
+			int product = 1;
+			while (m.find()) {
+				int len = Integer.parseInt(m.group(1));
+				int first = Integer.parseInt(m.group(4));
+				int count = Integer.parseInt(m.group(5));
+				out.add(new FrameGroup(m.group(2), len,
+						this.elementIds(dep, first, count, len)));
+				product *= len;
+			}
+			if (product != frames) {
+				out.clear();
+			}
+		}
+		if (out.isEmpty()) {
+			out.add(new FrameGroup(FG_FRAME, frames, null));
+		}
+		return out.toArray(new FrameGroup[out.size()]);
+	}
+
+	/**
+	 * @return the ids of a group's elements from the VisuFGElemId (or
+	 * VisuFGElemComment) dependent values of the group, or null
+	 */
+	private String[] elementIds(List<String[]> dep, int first, int count,
+			int len) {
+		for (String name : new String[] {"VisuFGElemId",
+				"VisuFGElemComment"}) {
+			for (int i = first; i < first + count && i < dep.size(); i++) {
+				if (!name.equals(dep.get(i)[0])) {
+					continue;
+				}
+				String[] all = visu.getStrings(name);
+				int start = Integer.parseInt(dep.get(i)[1]);
+				if (start + len <= all.length) {
+					return Arrays.copyOfRange(all, start, start + len);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Decodes all frames in one pass and applies the slope and offset
+	 */
+	private void readPixels(File file) throws IOException {
+		String type = visu.getString("VisuCoreWordType");
+		int bytes = bytesPerWord(type);
+		int plane = width * height;
+		long need = (long) plane * depth * frames * bytes;
+		if (file.length() < need) {
+			throw new IOException(file + " has " + file.length()
+					+ " bytes, expected " + need);
+		}
+		double[] slope = expand(visu.getDoubles("VisuCoreDataSlope"), 1);
+		double[] offs = expand(visu.getDoubles("VisuCoreDataOffs"), 0);
+		ByteOrder order = "bigEndian".equalsIgnoreCase(
+				visu.getString("VisuCoreByteOrder")) ? ByteOrder.BIG_ENDIAN
+				: ByteOrder.LITTLE_ENDIAN;
+
+		// Whole frames are mapped at once, up to MAP_CHUNK bytes
+		long frameBytes = (long) plane * depth * bytes;
+		int perChunk = (int) Math.max(1, Math.min(frames,
+				MAP_CHUNK / frameBytes));
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel ch = in.getChannel();
+			ByteBuffer buf = null;
+			for (int f = 0; f < frames; f++) {
+				if (f % perChunk == 0) {
+					int n = Math.min(perChunk, frames - f);
+					buf = ch.map(FileChannel.MapMode.READ_ONLY,
+							f * frameBytes, n * frameBytes);
+					buf.order(order);
+				}
+				float s = (float) (f < slope.length ? slope[f]
+						: slope[slope.length - 1]);
+				float o = (float) (f < offs.length ? offs[f]
+						: offs[offs.length - 1]);
+				for (int z = 0; z < depth; z++) {
+					float[] p = new float[plane];
+					decode(buf, type, p);
+					if (scaled && (s != 1f || o != 0f)) {
+						for (int i = 0; i < plane; i++) {
+							p[i] = p[i] * s + o;
+						}
+					}
+					pixels[f * depth + z] = p;
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Bulk decodes one plane from the buffer's current position
+	 */
+	private static void decode(ByteBuffer buf, String type, float[] p) {
+		int n = p.length;
+		if ("_32BIT_SGN_INT".equals(type)) {
+			int[] tmp = new int[n];
+			buf.asIntBuffer().get(tmp);
+			buf.position(buf.position() + 4 * n);
+			for (int i = 0; i < n; i++) {
+				p[i] = tmp[i];
+			}
+		} else if ("_16BIT_SGN_INT".equals(type)) {
+			short[] tmp = new short[n];
+			buf.asShortBuffer().get(tmp);
+			buf.position(buf.position() + 2 * n);
+			for (int i = 0; i < n; i++) {
+				p[i] = tmp[i];
+			}
+		} else if ("_32BIT_FLOAT".equals(type)) {
+			buf.asFloatBuffer().get(p);
+			buf.position(buf.position() + 4 * n);
+		} else {
+			for (int i = 0; i < n; i++) {
+				p[i] = buf.get() & 0xff;
+			}
+		}
+	}
+
+	/**
+	 * @param type VisuCoreWordType value
+	 * @return number of bytes in one pixel
+	 * @throws IOException for a word type that is not supported
+	 */
+	static int bytesPerWord(String type) throws IOException {
+		if ("_32BIT_SGN_INT".equals(type) || "_32BIT_FLOAT".equals(type)) {
+			return 4;
+		} else if ("_16BIT_SGN_INT".equals(type)) {
+			return 2;
+		} else if ("_8BIT_UNSGN_INT".equals(type)) {
+			return 1;
+		}
+		throw new IOException("Unsupported VisuCoreWordType: " + type);
+	}
+
+	private static double[] expand(double[] v, double def) {
+		return v == null || v.length == 0 ? new double[] {def} : v;
+	}
+
+	private static int[] toInts(double[] v) {
+		if (v == null) {
+			return null;
+		}
+		int[] out = new int[v.length];
+		for (int i = 0; i < v.length; i++) {
+			out[i] = (int) Math.round(v[i]);
+		}
+		return out;
+	}
+
+	/**
+	 * @return true if the slope and offset were applied to the pixels
+	 */
+	public boolean isScaled() {
+		return scaled;
+	}
+
+	/**
+	 * @return the visu_pars of this 2dseq
+	 */
+	public JcampParams getVisuPars() {
+		return visu;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return number of images in one frame (the z size of 3D data)
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return VisuCoreFrameCount
+	 */
+	public int getFrameCount() {
+		return frames;
+	}
+
+	/**
+	 * @return number of 2D images, frames x depth
+	 */
+	public int getImageCount() {
+		return pixels.length;
+	}
+
+	/**
+	 * @param index 0-based image index in file order
+	 * @return the calibrated pixels of the image (not a copy)
+	 */
+	public float[] getPixels(int index) {
+		return pixels[index];
+	}
+
+	/**
+	 * @return the frame groups, fastest varying first
+	 */
+	public FrameGroup[] getFrameGroups() {
+		return groups.clone();
+	}
+
+	/**
+	 * @param type group type, i.e. "FG_ECHO"
+	 * @return index of the first group of that type, or -1
+	 */
+	public int findGroup(String type) {
+		for (int g = 0; g < groups.length; g++) {
+			if (groups[g].type.equals(type)) {
+				return g;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param pos element index in every frame group
+	 * @param z image within the frame (0 for 2D data)
+	 * @return 0-based image index in file order
+	 */
+	public int imageIndex(int[] pos, int z) {
+		int frame = 0;
+		int stride = 1;
+		for (int g = 0; g < groups.length; g++) {
+			if (pos[g] < 0 || pos[g] >= groups[g].length) {
+				throw new IndexOutOfBoundsException(groups[g].type + " "
+						+ pos[g]);
+			}
+			frame += pos[g] * stride;
+			stride *= groups[g].length;
+		}
+		return frame * depth + z;
+	}
+
+	/**
+	 * Selects every image of one element of a frame group without copying,
+	 * i.e. the T2 map of each slice
+	 * @param group index of the frame group
+	 * @param element element of the group
+	 * @return the images in file order
+	 */
+	public float[][] select(int group, int element) {
+		int stride = depth;
+		for (int g = 0; g < group; g++) {
+			stride *= groups[g].length;
+		}
+		int len = groups[group].length;
+		float[][] out = new float[pixels.length / len][];
+		int n = 0;
+		for (int i = 0; i < pixels.length; i++) {
+			if ((i / stride) % len == element) {
+				out[n++] = pixels[i];
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Selects one element of every set of images, i.e. the T2 map among the
+	 * fit results of each slice. The set is the first frame group that is
+	 * not the slices; a 2dseq without frame groups is split every setSize
+	 * images.
+	 * @param element 0-based element of each set
+	 * @param setSize images per set, must match the set's frame group
+	 * @return the selected images in file order
+	 * @throws IllegalArgumentException if the element is not in the set,
+	 * or the images cannot be split into sets of setSize
+	 */
+	public float[][] selectSet(int element, int setSize) {
+		if (element < 0 || element >= setSize) {
+			throw new IllegalArgumentException("Image " + (element + 1)
+					+ " is not in a set of " + setSize);
+		}
+		for (int g = 0; g < groups.length; g++) {
+			if (!FG_SLICE.equals(groups[g].type)
+					&& !FG_FRAME.equals(groups[g].type)) {
+				if (groups[g].length != setSize) {
+					throw new IllegalArgumentException("The sets ("
+							+ groups[g].type + ") have " + groups[g].length
+							+ " images, not " + setSize);
+				}
+				return this.select(g, element);
+			}
+		}
+		if (pixels.length % setSize != 0) {
+			throw new IllegalArgumentException(pixels.length + " images "
+					+ "cannot be split into sets of " + setSize);
+		}
+		float[][] out = new float[pixels.length / setSize][];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = pixels[i * setSize + element];
+		}
+		return out;
+	}
+
+	/**
+	 * Arranges the images as a hyperstack without copying them: slices
+	 * (and the images of 3D frames) along z, TIME_GROUPS along t and the
+	 * other groups (echoes, diffusion, ...) combined as channels
+	 * @param title image title
+	 * @return the calibrated hyperstack
+	 */
+	public ImagePlus toHyperstack(String title) {
+		int nc = 1, nz = depth, nt = 1;
+		int[] axis = new int[groups.length]; // 0 = c, 1 = z, 2 = t
+		for (int g = 0; g < groups.length; g++) {
+			if (FG_SLICE.equals(groups[g].type)) {
+				axis[g] = 1;
+				nz *= groups[g].length;
+			} else if (Arrays.asList(TIME_GROUPS).contains(groups[g].type)) {
+				axis[g] = 2;
+				nt *= groups[g].length;
+			} else {
+				axis[g] = 0;
+				nc *= groups[g].length;
+			}
+		}
+		float[][] order = new float[pixels.length][];
+		String[] labels = new String[pixels.length];
+		for (int i = 0; i < pixels.length; i++) {
+			int frame = i / depth;
+			int[] idx = {0, i % depth, 0};
+			int[] scale = {1, depth, 1};
+			StringBuilder label = new StringBuilder();
+			for (int g = 0; g < groups.length; g++) {
+				int e = frame % groups[g].length;
+				frame /= groups[g].length;
+				idx[axis[g]] += e * scale[axis[g]];
+				scale[axis[g]] *= groups[g].length;
+				if (groups[g].length > 1) {
+					label.append(label.length() > 0 ? " " : "")
+							.append(groups[g].label(e));
+				}
+			}
+			int slot = idx[0] + nc * (idx[1] + nz * idx[2]);
+			order[slot] = pixels[i];
+			labels[slot] = label.toString();
+		}
+		ImagePlus imp = this.toImagePlus(title);
+		ImageStack stack = new ImageStack(width, height);
+		for (int i = 0; i < order.length; i++) {
+			stack.addSlice(labels[i], order[i]);
+		}
+		imp.setStack(stack, nc, nz, nt);
+		imp.setOpenAsHyperStack(true);
+		return imp;
+	}
+
+	/**
+	 * Wraps the calibrated images as a stack without copying them
+	 * @param title image title
+	 * @return 32-bit ImagePlus in file order
+	 */
+	public ImagePlus toImagePlus(String title) {
+		ImageStack stack = new ImageStack(width, height);
+		for (int i = 0; i < pixels.length; i++) {
+			stack.addSlice(null, pixels[i]);
+		}
+		ImagePlus imp = new ImagePlus(title, stack);
+		imp.setProperty(ScanTiming.PDATA_DIR,
+				new File(visu.getPath()).getParent());
+		double[] fov = visu.getDoubles("VisuCoreExtent");
+		if (fov != null && fov.length >= 2) {
+			Calibration cal = imp.getCalibration();
+			cal.pixelWidth = fov[0] / width;
+			cal.pixelHeight = fov[1] / height;
+			cal.setUnit("mm");
+		}
+		return imp;
+	}
+}
@@ -0,0 +1,274 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Z-spectrum / MTR asymmetry engine for the CEST scans. The slope scaled
+ * CEST stack (offsets as the outer loop, slices as the inner loop) and the
+ * zero power stack are read once, and for every slice and every symmetric
+ * offset pair the asymmetry
+ *   (S(-dw) - S(+dw)) / S0
+ * is computed in one parallel pass over the pixel arrays. This replaces the
+ * Substack Maker / Image Calculator / save loop of CEST_51.
+ *
+ * The result is a hyperstack with one channel per offset pair (the largest
+ * offset first, as the old cest_map_slice_N 50, 48, ... files) plus the
+ * unnormalised centre offset image, and one z-slice per image slice.
+ *
+ * With B0 correction on, each voxel's Z-spectrum is fitted with a smoothing
+ * spline (ZSpectrumSpline), the water centre is taken as its minimum and
+ * the asymmetry is read at +-dw around that centre instead of around 0 ppm.
+ * The centre of each voxel is added as a "B0 (ppm)" channel.
+ *
+ * Updates:
+ * 10.19.26 - Created
+ * 10.19.26 - Added the per voxel B0 correction
+ * 10.19.26 - settings() for the ResultCache keys
+ */
+
+import ij.*;
+
+public class CestEngine {
+
+	private final int numSlices;
+	private final int numOffsets;
+	private final int numPairs;
+	private final double[] ppm;
+	private ZSpectrumSpline spline; // null without B0 correction
+
+	// The water centre is searched within +-B0_WINDOW ppm in B0_STEP steps
+	public static final double B0_WINDOW = 1.0;
+	public static final double B0_STEP = 0.01;
+	// Change it when the asymmetry or the B0 correction changes
+	public static final String VERSION = "CestEngine 1";
+
+	/**
+	 * @param numSlices number of image slices in the scan
+	 * @param numOffsets number of saturation offsets (i.e. 51)
+	 * @param ppm the saturation offset of each frame group in ppm, or null
+	 */
+	public CestEngine(int numSlices, int numOffsets, double[] ppm) {
+		if (numSlices < 1 || numOffsets < 2) {
+			throw new IllegalArgumentException("Need at least one slice and "
+					+ "two offsets");
+		}
+		this.numSlices = numSlices;
+		this.numOffsets = numOffsets;
+		this.numPairs = numOffsets / 2;
+		this.ppm = ppm;
+	}
+
+	/**
+	 * @return the version and constants of the engine, for the ResultCache
+	 * keys
+	 */
+	public static String settings() {
+		return VERSION + " b0_window=" + B0_WINDOW + " b0_step=" + B0_STEP;
+	}
+
+	/**
+	 * Offsets evenly spread between -maxPpm and +maxPpm, as acquired by the
+	 * cest_51_offsets protocol (-5 to 5 ppm in 0.2 ppm steps)
+	 * @param numOffsets number of offsets
+	 * @param maxPpm largest offset in ppm
+	 * @return offset of each frame group in ppm
+	 */
+	public static double[] linearOffsets(int numOffsets, double maxPpm) {
+		double[] ppm = new double[numOffsets];
+		for (int i = 0; i < numOffsets; i++) {
+			ppm[i] = -maxPpm + 2 * maxPpm * i / (numOffsets - 1);
+		}
+		return ppm;
+	}
+
+	/**
+	 * Turns on the B0 correction. The spline basis is computed here once
+	 * for all voxels.
+	 * @param lambda smoothing weight of the Z-spectrum spline
+	 * @throws IllegalArgumentException if the offsets are not known
+	 */
+	public void setB0Correction(double lambda) {
+		if (ppm == null || ppm.length != numOffsets) {
+			throw new IllegalArgumentException("B0 correction needs the "
+					+ "offset of every frame group");
+		}
+		spline = new ZSpectrumSpline(ppm, lambda);
+	}
+
+	/**
+	 * @return number of channels in the result (pairs plus centre image,
+	 * plus the B0 map when corrected)
+	 */
+	public int getNumChannels() {
+		return numPairs + (numOffsets % 2) + (spline != null ? 1 : 0);
+	}
+
+	/**
+	 * @param c channel index
+	 * @return label of the channel
+	 */
+	public String channelLabel(int c) {
+		if (c < numPairs) {
+			return this.pairLabel(c);
+		}
+		if (c == numPairs && numOffsets % 2 == 1) {
+			return "0POWER";
+		}
+		return "B0 (ppm)";
+	}
+
+	/**
+	 * @param p pair index, 0 is the outermost pair
+	 * @return label of the pair channel
+	 */
+	public String pairLabel(int p) {
+		String label = "pair " + (numOffsets - 1 - 2 * p);
+		if (ppm != null) {
+			label += " (+-" + IJ.d2s(Math.abs(ppm[p]), 1) + " ppm)";
+		}
+		return label;
+	}
+
+	/**
+	 * Computes the asymmetry maps of all slices and pairs
+	 * @param cest the slope scaled CEST scan, numOffsets x numSlices images
+	 * @param zero the slope scaled zero power scan
+	 * @return the (pair x slice) hyperstack
+	 */
+	public ImagePlus compute(Bruker2dseq cest, Bruker2dseq zero) {
+		if (cest.getImageCount() < numSlices * numOffsets) {
+			throw new IllegalArgumentException("The CEST scan has "
+					+ cest.getImageCount() + " images, expected "
+					+ numSlices + " x " + numOffsets);
+		}
+		int plane = cest.getWidth() * cest.getHeight();
+		if (zero.getWidth() * zero.getHeight() != plane) {
+			throw new IllegalArgumentException("The zero power scan has a "
+					+ "different matrix size");
+		}
+		float[][][] maps = this.compute(this.spectra(cest),
+				this.zeroPower(zero));
+
+		int channels = this.getNumChannels();
+		ImageStack stack = new ImageStack(cest.getWidth(), cest.getHeight());
+		for (int z = 0; z < numSlices; z++) {
+			for (int c = 0; c < channels; c++) {
+				stack.addSlice("slice_" + (z + 1) + " " + this.channelLabel(c),
+						maps[z][c]);
+			}
+		}
+		ImagePlus imp = cest.toImagePlus("cest_maps");
+		imp.setStack(stack, channels, numSlices, 1);
+		imp.setOpenAsHyperStack(true);
+		return imp;
+	}
+
+	/**
+	 * Arranges the CEST images by slice and offset without copying them
+	 * @param cest the slope scaled CEST scan, numOffsets x numSlices images
+	 * @return images indexed as [slice][offset]
+	 */
+	public float[][][] spectra(Bruker2dseq cest) {
+		float[][][] src = new float[numSlices][numOffsets][];
+		for (int z = 0; z < numSlices; z++) {
+			for (int k = 0; k < numOffsets; k++) {
+				src[z][k] = cest.getPixels(k * numSlices + z);
+			}
+		}
+		return src;
+	}
+
+	/**
+	 * Picks the zero power image of each slice, the first image is used for
+	 * every slice if the scan has fewer images than slices
+	 * @param zero the slope scaled zero power scan
+	 * @return the S0 image of each slice
+	 */
+	public float[][] zeroPower(Bruker2dseq zero) {
+		float[][] m0 = new float[numSlices][];
+		for (int z = 0; z < numSlices; z++) {
+			m0[z] = zero.getPixels(zero.getImageCount() >= numSlices ? z : 0);
+		}
+		return m0;
+	}
+
+	/**
+	 * Computes the asymmetry maps from pixel arrays
+	 * @param src images indexed as [slice][offset]
+	 * @param m0 zero power image of each slice
+	 * @return maps indexed as [slice][channel]
+	 */
+	public float[][][] compute(final float[][][] src, final float[][] m0) {
+		if (spline != null) {
+			return this.computeCorrected(src, m0);
+		}
+		final int plane = m0[0].length;
+		final int channels = this.getNumChannels();
+		final float[][][] maps = new float[numSlices][channels][];
+		// One task per (slice, pair) keeps every thread on whole rows
+		ParallelLoop.run(numSlices * channels, new ParallelLoop.Body() {
+			public void run(int start, int end) {
+				for (int t = start; t < end; t++) {
+					int z = t / channels;
+					int p = t % channels;
+					float[] out = new float[plane];
+					if (p < numPairs) {
+						float[] lo = src[z][p];
+						float[] hi = src[z][numOffsets - 1 - p];
+						float[] s0 = m0[z];
+						for (int i = 0; i < plane; i++) {
+							out[i] = s0[i] != 0 ? (lo[i] - hi[i]) / s0[i] : 0f;
+						}
+					} else {
+						System.arraycopy(src[z][numPairs], 0, out, 0, plane);
+					}
+					maps[z][p] = out;
+				}
+			}
+		});
+		return maps;
+	}
+
+	/**
+	 * Computes the B0 corrected asymmetry maps, voxels in parallel
+	 * @param src images indexed as [slice][offset]
+	 * @param m0 zero power image of each slice
+	 * @return maps indexed as [slice][channel]
+	 */
+	private float[][][] computeCorrected(final float[][][] src,
+			final float[][] m0) {
+		final int plane = m0[0].length;
+		final int channels = this.getNumChannels();
+		final boolean centreImage = numOffsets % 2 == 1;
+		final float[][][] maps = new float[numSlices][channels][plane];
+		ParallelLoop.run(numSlices * plane, 256, new ParallelLoop.Body() {
+			public void run(int start, int end) {
+				float[] s = new float[numOffsets];
+				double[] zs = new double[numOffsets];
+				double[] ms = new double[numOffsets];
+				for (int v = start; v < end; v++) {
+					int z = v / plane;
+					int i = v % plane;
+					float s0 = m0[z][i];
+					if (centreImage) {
+						maps[z][numPairs][i] = src[z][numPairs][i];
+					}
+					if (s0 == 0) {
+						continue;
+					}
+					for (int k = 0; k < numOffsets; k++) {
+						s[k] = src[z][k][i];
+					}
+					spline.fit(s, zs, ms);
+					double c = spline.centre(zs, ms, B0_WINDOW, B0_STEP);
+					for (int p = 0; p < numPairs; p++) {
+						double dw = Math.abs(ppm[p]);
+						maps[z][p][i] = (float) ((spline.eval(zs, ms, c - dw)
+								- spline.eval(zs, ms, c + dw)) / s0);
+					}
+					maps[z][channels - 1][i] = (float) c;
+				}
+			}
+		});
+		return maps;
+	}
+}
@@ -0,0 +1,281 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Diffusion tensor estimation from the raw diffusion weighted frames of a
+ * DTI scan (pdata/1/2dseq) and the b-matrices in the method file
+ * (PVM_DwBMat). The log-linear tensor model
+ *   ln S = ln S0 - b:D
+ * is solved with a pseudo-inverse of the b-matrix design computed once per
+ * scan, and each voxel's tensor is diagonalised with the closed form 3x3
+ * symmetric eigen solver. Voxels are processed in parallel.
+ *
+ * Output is a hyperstack with one channel per map in MAP_NAMES and one
+ * z-slice per image slice. Diffusivities are in 10^-3 mm^2/s as in ADC_MAP.
+ *
+ * Updates:
+ * 10.19.26 - Created
+ * 10.19.26 - settings() for the ResultCache keys
+ * 10.19.26 - The frame order comes from Bruker2dseq.findGroup()
+ */
+
+import ij.*;
+import ij.process.*;
+
+public class DtiEngine {
+
+	public static final String[] MAP_NAMES = {"FA", "MD", "AD", "RD",
+			"L1", "L2", "L3", "V1x", "V1y", "V1z"};
+	public static final int NUM_MAPS = MAP_NAMES.length;
+	public static final String B_MATRIX = "PVM_DwBMat";
+	// b-values below this are treated as the unweighted (b0) images
+	public static final double B0_LIMIT = 50; // s/mm^2
+	// Diffusivities are reported in 10^-3 mm^2/s
+	public static final double D_SCALE = 1000;
+	// Change it when the tensor fit changes
+	public static final String VERSION = "DtiEngine 1";
+
+	private final int nDiff;
+	private final double[][] pinv; // 7 x nDiff
+	private final boolean[] isB0;
+
+	/**
+	 * Precomputes the pseudo-inverse of the tensor design matrix
+	 * @param bMat one row of 9 b-matrix elements (s/mm^2) per diffusion
+	 * experiment, row major as stored in PVM_DwBMat
+	 */
+	public DtiEngine(double[][] bMat) {
+		nDiff = bMat.length;
+		if (nDiff < 7) {
+			throw new IllegalArgumentException("A tensor fit needs at least "
+					+ "7 diffusion experiments, found " + nDiff);
+		}
+		double[][] x = new double[nDiff][];
+		isB0 = new boolean[nDiff];
+		for (int k = 0; k < nDiff; k++) {
+			double[] b = bMat[k];
+			x[k] = new double[] {1, -b[0], -b[4], -b[8], -2 * b[1],
+					-2 * b[2], -2 * b[5]};
+			isB0[k] = b[0] + b[4] + b[8] < B0_LIMIT;
+		}
+		pinv = LinearFit.pseudoInverse(x, null);
+	}
+
+	/**
+	 * @return the version and constants of the fit, for the ResultCache keys
+	 */
+	public static String settings() {
+		return VERSION + " b0_limit=" + B0_LIMIT + " scale=" + D_SCALE;
+	}
+
+	/**
+	 * Reads the b-matrices of all diffusion experiments
+	 * @param method the parsed method file of the scan
+	 * @return nDiff rows of 9 b-matrix elements
+	 * @throws IllegalArgumentException if PVM_DwBMat is missing
+	 */
+	public static double[][] readBMatrix(JcampParams method) {
+		double[] v = method.getDoubles(B_MATRIX);
+		if (v == null || v.length < 9 || v.length % 9 != 0) {
+			throw new IllegalArgumentException(B_MATRIX
+					+ " was not found in " + method.getPath());
+		}
+		double[][] b = new double[v.length / 9][9];
+		for (int k = 0; k < b.length; k++) {
+			System.arraycopy(v, 9 * k, b[k], 0, 9);
+		}
+		return b;
+	}
+
+	/**
+	 * @return number of diffusion experiments in the design
+	 */
+	public int getNumDiffusions() {
+		return nDiff;
+	}
+
+	/**
+	 * Fits the tensor in every voxel of the scan
+	 * @param dwi the raw diffusion weighted 2dseq
+	 * @param maskFraction voxels whose mean b0 signal is below this fraction
+	 * of the brightest b0 voxel are left at zero
+	 * @return hyperstack of NUM_MAPS channels by image slices
+	 */
+	public ImagePlus fit(Bruker2dseq dwi, double maskFraction) {
+		int images = dwi.getImageCount();
+		if (images % nDiff != 0) {
+			throw new IllegalArgumentException(images + " images cannot be "
+					+ "split into " + nDiff + " diffusion experiments");
+		}
+		final int nSlices = images / nDiff;
+		final int plane = dwi.getWidth() * dwi.getHeight();
+
+		// Diffusion index varies fastest only if the frame groups say so
+		int diffGroup = dwi.findGroup("FG_DIFFUSION");
+		final boolean diffInner = diffGroup >= 0
+				&& dwi.findGroup("FG_SLICE") > diffGroup;
+		final float[][][] src = new float[nSlices][nDiff][];
+		for (int z = 0; z < nSlices; z++) {
+			for (int k = 0; k < nDiff; k++) {
+				src[z][k] = dwi.getPixels(diffInner ? z * nDiff + k
+						: k * nSlices + z);
+			}
+		}
+
+		// Brain mask from the mean b0 signal
+		int numB0 = 0;
+		for (int k = 0; k < nDiff; k++) {
+			if (isB0[k]) {
+				numB0++;
+			}
+		}
+		final float[][] b0 = new float[nSlices][plane];
+		float max = 0;
+		for (int z = 0; z < nSlices; z++) {
+			for (int k = 0; k < nDiff; k++) {
+				if (isB0[k] || numB0 == 0) {
+					float[] p = src[z][k];
+					for (int i = 0; i < plane; i++) {
+						b0[z][i] += p[i];
+					}
+				}
+			}
+			for (int i = 0; i < plane; i++) {
+				max = Math.max(max, b0[z][i]);
+			}
+		}
+		final float threshold = (float) (maskFraction * max);
+
+		final float[][][] maps = new float[nSlices][NUM_MAPS][plane];
+		ParallelLoop.run(nSlices * plane, 256, new ParallelLoop.Body() {
+			public void run(int start, int end) {
+				double[] logS = new double[nDiff];
+				double[] out = new double[NUM_MAPS];
+				for (int v = start; v < end; v++) {
+					int z = v / plane;
+					int i = v % plane;
+					if (b0[z][i] <= threshold || b0[z][i] <= 0) {
+						continue;
+					}
+					for (int k = 0; k < nDiff; k++) {
+						logS[k] = Math.log(Math.max(src[z][k][i], 1e-6f));
+					}
+					fitVoxel(logS, out);
+					for (int m = 0; m < NUM_MAPS; m++) {
+						maps[z][m][i] = (float) out[m];
+					}
+				}
+			}
+		});
+
+		ImageStack stack = new ImageStack(dwi.getWidth(), dwi.getHeight());
+		for (int z = 0; z < nSlices; z++) {
+			for (int m = 0; m < NUM_MAPS; m++) {
+				stack.addSlice(MAP_NAMES[m] + " slice " + (z + 1), maps[z][m]);
+			}
+		}
+		ImagePlus imp = dwi.toImagePlus("DTI maps");
+		imp.setStack(stack, NUM_MAPS, nSlices, 1);
+		imp.setOpenAsHyperStack(true);
+		return imp;
+	}
+
+	/**
+	 * Fits the tensor of one voxel and computes its scalar maps
+	 * @param logS natural log of the nDiff signals
+	 * @param out receives the NUM_MAPS values in MAP_NAMES order
+	 */
+	public void fitVoxel(double[] logS, double[] out) {
+		// Tensor elements Dxx, Dyy, Dzz, Dxy, Dxz, Dyz (row 0 is ln S0)
+		double[] d = new double[6];
+		for (int j = 0; j < 6; j++) {
+			double[] row = pinv[j + 1];
+			double sum = 0;
+			for (int k = 0; k < nDiff; k++) {
+				sum += row[k] * logS[k];
+			}
+			d[j] = sum * D_SCALE;
+		}
+		double[] vec = new double[3];
+		double[] l = eigen(d[0], d[1], d[2], d[3], d[4], d[5], vec);
+		double md = (l[0] + l[1] + l[2]) / 3;
+		double norm = l[0] * l[0] + l[1] * l[1] + l[2] * l[2];
+		double fa = 0;
+		if (norm > 0) {
+			double dev = (l[0] - md) * (l[0] - md) + (l[1] - md) * (l[1] - md)
+					+ (l[2] - md) * (l[2] - md);
+			fa = Math.min(1, Math.sqrt(1.5 * dev / norm));
+		}
+		out[0] = fa;
+		out[1] = md;
+		out[2] = l[0];
+		out[3] = (l[1] + l[2]) / 2;
+		out[4] = l[0];
+		out[5] = l[1];
+		out[6] = l[2];
+		// The sign of an eigenvector is arbitrary, report its magnitudes
+		out[7] = Math.abs(vec[0]);
+		out[8] = Math.abs(vec[1]);
+		out[9] = Math.abs(vec[2]);
+	}
+
+	/**
+	 * Closed form eigen decomposition of a symmetric 3x3 matrix
+	 * @param vec receives the unit eigenvector of the largest eigenvalue
+	 * @return the eigenvalues in descending order
+	 */
+	static double[] eigen(double a11, double a22, double a33, double a12,
+			double a13, double a23, double[] vec) {
+		double p1 = a12 * a12 + a13 * a13 + a23 * a23;
+		double e1, e2, e3;
+		double q = (a11 + a22 + a33) / 3;
+		if (p1 == 0) {
+			double[] e = {a11, a22, a33};
+			java.util.Arrays.sort(e);
+			e1 = e[2];
+			e2 = e[1];
+			e3 = e[0];
+		} else {
+			double b11 = a11 - q, b22 = a22 - q, b33 = a33 - q;
+			double p2 = b11 * b11 + b22 * b22 + b33 * b33 + 2 * p1;
+			double p = Math.sqrt(p2 / 6);
+			double det = b11 * (b22 * b33 - a23 * a23)
+					- a12 * (a12 * b33 - a23 * a13)
+					+ a13 * (a12 * a23 - b22 * a13);
+			double r = det / (2 * p * p * p);
+			double phi = r <= -1 ? Math.PI / 3 : r >= 1 ? 0 : Math.acos(r) / 3;
+			e1 = q + 2 * p * Math.cos(phi);
+			e3 = q + 2 * p * Math.cos(phi + 2 * Math.PI / 3);
+			e2 = 3 * q - e1 - e3;
+		}
+		// Eigenvector of e1: the largest cross product of two rows of A - e1 I
+		double r0x = a11 - e1, r0y = a12, r0z = a13;
+		double r1x = a12, r1y = a22 - e1, r1z = a23;
+		double r2x = a13, r2y = a23, r2z = a33 - e1;
+		double[][] c = {
+				{r0y * r1z - r0z * r1y, r0z * r1x - r0x * r1z, r0x * r1y - r0y * r1x},
+				{r0y * r2z - r0z * r2y, r0z * r2x - r0x * r2z, r0x * r2y - r0y * r2x},
+				{r1y * r2z - r1z * r2y, r1z * r2x - r1x * r2z, r1x * r2y - r1y * r2x}};
+		int best = 0;
+		double bestNorm = -1;
+		for (int i = 0; i < 3; i++) {
+			double n = c[i][0] * c[i][0] + c[i][1] * c[i][1] + c[i][2] * c[i][2];
+			if (n > bestNorm) {
+				bestNorm = n;
+				best = i;
+			}
+		}
+		if (bestNorm > 1e-30) {
+			double n = Math.sqrt(bestNorm);
+			vec[0] = c[best][0] / n;
+			vec[1] = c[best][1] / n;
+			vec[2] = c[best][2] / n;
+		} else {
+			// Repeated largest eigenvalue, pick the dominant axis
+			vec[0] = vec[1] = vec[2] = 0;
+			int axis = a11 >= a22 && a11 >= a33 ? 0 : a22 >= a33 ? 1 : 2;
+			vec[axis] = 1;
+		}
+		return new double[] {e1, e2, e3};
+	}
+}
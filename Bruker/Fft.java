@@ -0,0 +1,192 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * One dimensional complex FFT plan for the fid reconstruction. The twiddle
+ * factors and bit reversal of a length are computed once and the plan is
+ * shared by every line of a scan (it is read only, so threads can share
+ * it). Powers of two use an iterative radix-2 transform, other lengths
+ * (i.e. 96 or 192 point matrices) use Bluestein's chirp-z algorithm on top
+ * of a radix-2 plan. Transforms are not normalised.
+ *
+ * Updates:
+ * 10.19.26 - Created
+ */
+
+public class Fft {
+
+	private final int n;
+	private final int[] rev; // bit reversal, radix-2 only
+	private final double[] cos;
+	private final double[] sin;
+
+	// Bluestein: chirp, transformed conjugate chirp and the radix-2 plan
+	private final Fft inner;
+	private final double[] wRe;
+	private final double[] wIm;
+	private final double[] bRe;
+	private final double[] bIm;
+
+	/**
+	 * @param n transform length
+	 */
+	public Fft(int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("FFT length " + n);
+		}
+		this.n = n;
+		if ((n & (n - 1)) == 0) {
+			int bits = Integer.numberOfTrailingZeros(n);
+			rev = new int[n];
+			for (int i = 0; i < n; i++) {
+				rev[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+			}
+			cos = new double[n / 2];
+			sin = new double[n / 2];
+			for (int k = 0; k < n / 2; k++) {
+				cos[k] = Math.cos(2 * Math.PI * k / n);
+				sin[k] = Math.sin(2 * Math.PI * k / n);
+			}
+			inner = null;
+			wRe = wIm = bRe = bIm = null;
+		} else {
+			rev = null;
+			cos = sin = null;
+			int m = Integer.highestOneBit(2 * n - 1) << 1;
+			inner = new Fft(m);
+			wRe = new double[n];
+			wIm = new double[n];
+			for (int k = 0; k < n; k++) {
+				// k^2 mod 2n keeps the angle exact for long transforms
+				long kk = ((long) k * k) % (2L * n);
+				double a = Math.PI * kk / n;
+				wRe[k] = Math.cos(a);
+				wIm[k] = -Math.sin(a);
+			}
+			bRe = new double[m];
+			bIm = new double[m];
+			for (int k = 0; k < n; k++) {
+				bRe[k] = wRe[k];
+				bIm[k] = -wIm[k];
+				if (k > 0) {
+					bRe[m - k] = wRe[k];
+					bIm[m - k] = -wIm[k];
+				}
+			}
+			inner.transform(bRe, bIm, false, null);
+		}
+	}
+
+	/**
+	 * @return transform length
+	 */
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * @return scratch buffer for transform(), null if none is needed. One
+	 * buffer per thread can be reused for every line.
+	 */
+	public double[] newScratch() {
+		return inner == null ? null : new double[2 * inner.size()];
+	}
+
+	/**
+	 * Transforms re + i im in place
+	 * @param re real parts, length size()
+	 * @param im imaginary parts, length size()
+	 * @param inverse true for the inverse (positive exponent) transform
+	 * @param scratch buffer from newScratch()
+	 */
+	public void transform(double[] re, double[] im, boolean inverse,
+			double[] scratch) {
+		if (inner == null) {
+			this.radix2(re, im, inverse);
+			return;
+		}
+		// inverse(x) = conj(forward(conj(x)))
+		if (inverse) {
+			for (int k = 0; k < n; k++) {
+				im[k] = -im[k];
+			}
+		}
+		this.bluestein(re, im, scratch);
+		if (inverse) {
+			for (int k = 0; k < n; k++) {
+				im[k] = -im[k];
+			}
+		}
+	}
+
+	/**
+	 * Forward transform as a convolution with the chirp
+	 * @param s scratch, the real parts in [0, m), the imaginary in [m, 2m)
+	 */
+	private void bluestein(double[] re, double[] im, double[] s) {
+		int m = inner.size();
+		for (int k = 0; k < n; k++) {
+			s[k] = re[k] * wRe[k] - im[k] * wIm[k];
+			s[m + k] = re[k] * wIm[k] + im[k] * wRe[k];
+		}
+		for (int k = n; k < m; k++) {
+			s[k] = 0;
+			s[m + k] = 0;
+		}
+		inner.radix2(s, 0, s, m, false);
+		for (int k = 0; k < m; k++) {
+			double r = s[k] * bRe[k] - s[m + k] * bIm[k];
+			double i = s[k] * bIm[k] + s[m + k] * bRe[k];
+			s[k] = r;
+			s[m + k] = i;
+		}
+		inner.radix2(s, 0, s, m, true);
+		for (int k = 0; k < n; k++) {
+			double r = s[k] / m;
+			double i = s[m + k] / m;
+			re[k] = r * wRe[k] - i * wIm[k];
+			im[k] = r * wIm[k] + i * wRe[k];
+		}
+	}
+
+	private void radix2(double[] re, double[] im, boolean inverse) {
+		this.radix2(re, 0, im, 0, inverse);
+	}
+
+	/**
+	 * Iterative radix-2 transform of n values starting at the offsets
+	 */
+	private void radix2(double[] re, int or, double[] im, int oi,
+			boolean inverse) {
+		for (int i = 0; i < n; i++) {
+			int j = rev[i];
+			if (j > i) {
+				double t = re[or + i];
+				re[or + i] = re[or + j];
+				re[or + j] = t;
+				t = im[oi + i];
+				im[oi + i] = im[oi + j];
+				im[oi + j] = t;
+			}
+		}
+		double sign = inverse ? 1 : -1;
+		for (int len = 2; len <= n; len <<= 1) {
+			int half = len >> 1;
+			int step = n / len;
+			for (int s = 0; s < n; s += len) {
+				for (int k = 0; k < half; k++) {
+					double c = cos[k * step];
+					double d = sign * sin[k * step];
+					int a = s + k;
+					int b = a + half;
+					double xr = re[or + b] * c - im[oi + b] * d;
+					double xi = re[or + b] * d + im[oi + b] * c;
+					re[or + b] = re[or + a] - xr;
+					im[oi + b] = im[oi + a] - xi;
+					re[or + a] += xr;
+					im[oi + a] += xi;
+				}
+			}
+		}
+	}
+}
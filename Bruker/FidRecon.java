@@ -0,0 +1,510 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Reconstructs the raw fid of a ParaVision scan for exports that have no
+ * pdata/N/2dseq. The acquisition is described by acqp (word type, byte
+ * order, block size, NI objects, NR repetitions, object order, RARE factor)
+ * and method (encoding matrix, phase encoding order, receivers, output
+ * matrix, field of view). The fid is read through a memory map, each line
+ * is put at its k-space position (PVM_EncSteps1/2, zero filled up to
+ * PVM_Matrix), and a 2D or 3D FFT is run along each axis with the lines of
+ * all images and receivers spread over the worker threads. Receivers are
+ * combined by sum of squares and the images are cropped to the matrix.
+ *
+ * The FFT plans of the axes are computed once per scan and every thread
+ * reuses its line buffers for all lines. The result is a 32-bit stack that
+ * can be written as pdata/N/2dseq + visu_pars for the map plugins.
+ *
+ * The fid loop order assumed is the ParaVision default: readout x
+ * receivers, then the echo images (ACQ_n_echo_images, NECHOES), RARE
+ * echoes, objects, phase shots, 3D phase steps and repetitions. A fid whose
+ * size does not match these loops (i.e. a diffusion loop) is rejected.
+ * Non-cartesian (i.e. radial) scans are not supported.
+ *
+ * Updates:
+ * 10.19.26 - Created
+ * 10.19.26 - Multi-echo scans get an echo loop, the fid size must match
+ * 10.19.26 - The fid is mapped in chunks of whole blocks, files over 2 GB
+ *            are read
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import ij.*;
+import ij.measure.*;
+
+public class FidRecon {
+
+	public static final String FID = "fid";
+	public static final String ACQP = "acqp";
+	public static final String METHOD = "method";
+	// Lines are padded to 1 KB with GO_block_size = Standard_KBlock
+	public static final int KBLOCK = 1024;
+
+	private final File scanDir;
+	private final String format;
+	private final ByteOrder order;
+	private final int bytes;
+	private final int dim;
+	private final int points; // complex points per readout
+	private final int receivers;
+	private final int rare;
+	private final int echoes; // echo images per excitation
+	private final int objects;
+	private final int reps;
+	private final int[] enc; // encoded lines per axis
+	private final int[] size; // output matrix per axis
+	private final int[] grid; // FFT length per axis
+	private final int[] steps1;
+	private final int[] steps2;
+	private final int[] objOrder;
+	private final long blockBytes;
+	private final double[] fov;
+	private final int diffusions; // PVM_DwNDiffExp, only for the messages
+
+	/**
+	 * Reads the acquisition parameters of a scan
+	 * @param scanDir the scan folder that holds fid, acqp and method
+	 * @throws IOException if a file is missing or the scan is not supported
+	 */
+	public FidRecon(String scanDir) throws IOException {
+		this.scanDir = new File(scanDir);
+		JcampParams acqp = JcampParams.read(scanDir, ACQP);
+		JcampParams method = JcampParams.read(scanDir, METHOD);
+
+		format = acqp.getString("GO_raw_data_format");
+		bytes = wordBytes(format);
+		order = "big".equalsIgnoreCase(acqp.getString("BYTORDA"))
+				? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		double[] acqSize = acqp.getDoubles("ACQ_size");
+		if (acqSize == null || acqSize.length < 2) {
+			throw new IOException("ACQ_size missing in " + acqp.getPath());
+		}
+		points = (int) Math.round(acqSize[0]) / 2;
+		dim = acqSize.length;
+
+		enc = toInts(method.getDoubles("PVM_EncMatrix"));
+		if (enc == null || enc.length != dim) {
+			throw new IOException("PVM_EncMatrix does not match ACQ_size");
+		}
+		int[] matrix = toInts(method.getDoubles("PVM_Matrix"));
+		size = matrix != null && matrix.length == dim ? matrix : enc.clone();
+		grid = new int[dim];
+		for (int a = 0; a < dim; a++) {
+			grid[a] = Math.max(a == 0 ? points : enc[a], size[a]);
+		}
+		steps1 = steps(method, "PVM_EncSteps1", enc[1]);
+		steps2 = dim > 2 ? steps(method, "PVM_EncSteps2", enc[2]) : null;
+
+		receivers = Math.max(1, method.getInt("PVM_EncNReceivers", 1));
+		rare = Math.max(1, acqp.getInt("ACQ_rare_factor",
+				method.getInt("PVM_RareFactor", 1)));
+		if (enc[1] % rare != 0) {
+			throw new IOException(enc[1] + " phase lines are not a multiple "
+					+ "of the RARE factor " + rare);
+		}
+		// NECHOES counts every echo of an excitation, the RARE echoes of
+		// each echo image
+		int nEchoes = Math.max(1, acqp.getInt("NECHOES", rare));
+		echoes = Math.max(1, acqp.getInt("ACQ_n_echo_images",
+				nEchoes / rare));
+		if (nEchoes != rare && nEchoes != rare * echoes) {
+			throw new IOException("NECHOES " + nEchoes + " is not the RARE "
+					+ "factor " + rare + " x " + echoes + " echo images");
+		}
+		objects = Math.max(1, acqp.getInt("NI", 1));
+		reps = Math.max(1, acqp.getInt("NR", 1));
+		int[] objs = toInts(acqp.getDoubles("ACQ_obj_order"));
+		objOrder = new int[objects];
+		for (int o = 0; o < objects; o++) {
+			objOrder[o] = objs != null && objs.length == objects ? objs[o] : o;
+		}
+
+		long line = (long) points * 2 * receivers * bytes;
+		blockBytes = "Standard_KBlock".equals(acqp.getString("GO_block_size"))
+				? (line + KBLOCK - 1) / KBLOCK * KBLOCK : line;
+		fov = method.getDoubles("PVM_Fov");
+		diffusions = method.getInt("PVM_DwNDiffExp", 1);
+	}
+
+	/**
+	 * @param format GO_raw_data_format value
+	 * @return bytes of one real or imaginary value
+	 */
+	static int wordBytes(String format) throws IOException {
+		if ("GO_32BIT_SGN_INT".equals(format)
+				|| "GO_32BIT_FLOAT".equals(format)) {
+			return 4;
+		} else if ("GO_16BIT_SGN_INT".equals(format)) {
+			return 2;
+		} else if ("GO_64BIT_FLOAT".equals(format)) {
+			return 8;
+		}
+		throw new IOException("Unsupported GO_raw_data_format: " + format);
+	}
+
+	private static int[] toInts(double[] v) {
+		if (v == null) {
+			return null;
+		}
+		int[] out = new int[v.length];
+		for (int i = 0; i < v.length; i++) {
+			out[i] = (int) Math.round(v[i]);
+		}
+		return out;
+	}
+
+	/**
+	 * @return the phase encoding steps, centred on 0, in acquisition order
+	 */
+	private static int[] steps(JcampParams method, String key, int n) {
+		int[] s = toInts(method.getDoubles(key));
+		if (s != null && s.length == n) {
+			return s;
+		}
+		s = new int[n];
+		for (int i = 0; i < n; i++) {
+			s[i] = i - n / 2;
+		}
+		return s;
+	}
+
+	/**
+	 * @return number of images per volume (1 for 2D)
+	 */
+	public int getDepth() {
+		return dim > 2 ? size[2] : 1;
+	}
+
+	/**
+	 * @return number of volumes, echo images x objects x repetitions
+	 */
+	public int getFrameCount() {
+		return echoes * objects * reps;
+	}
+
+	public int getWidth() {
+		return size[0];
+	}
+
+	public int getHeight() {
+		return size[1];
+	}
+
+	/**
+	 * Reconstructs every image of the scan
+	 * @return magnitude images, repetitions outermost, then objects in
+	 * ACQ_obj_order position, echo images and the 3D partitions
+	 * @throws IOException if the fid is missing or too short
+	 */
+	public float[][] reconstruct() throws IOException {
+		final int frames = this.getFrameCount();
+		final int gridSize = grid[0] * grid[1] * (dim > 2 ? grid[2] : 1);
+		// k[frame][receiver] interleaved complex on the FFT grid
+		final float[][][] k = new float[frames][receivers][2 * gridSize];
+		this.readKSpace(k);
+		for (int a = 0; a < dim; a++) {
+			this.fftAxis(k, a);
+		}
+		return this.combine(k);
+	}
+
+	/**
+	 * Puts every fid line at its k-space position
+	 */
+	private void readKSpace(final float[][][] k) throws IOException {
+		File file = new File(scanDir, FID);
+		final int shots = enc[1] / rare;
+		final int parts = dim > 2 ? enc[2] : 1;
+		final int blocks = echoes * rare * objects * shots * parts * reps;
+		long need = blockBytes * blocks;
+		if (file.length() != need) {
+			String why;
+			if (file.length() < need) {
+				why = "the acquisition is incomplete";
+			} else if (diffusions > 1) {
+				why = "the diffusion loop (PVM_DwNDiffExp = " + diffusions
+						+ ") is not supported";
+			} else {
+				why = "it has a loop that acqp does not describe (i.e. "
+						+ "echo or diffusion loops), which is not supported";
+			}
+			throw new IOException(file + " has " + file.length()
+					+ " bytes, expected " + need + " for " + echoes
+					+ " echo images x " + rare + " RARE echoes x " + objects
+					+ " objects x " + shots + " shots x " + parts
+					+ " partitions x " + reps + " repetitions; " + why);
+		}
+		// Whole blocks are mapped at once, up to MAP_CHUNK bytes
+		final int perChunk = (int) Math.max(1, Math.min(blocks,
+				Bruker2dseq.MAP_CHUNK / blockBytes));
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel ch = in.getChannel();
+			for (int c0 = 0; c0 < blocks; c0 += perChunk) {
+				int n = Math.min(perChunk, blocks - c0);
+				this.readBlocks(k, ch.map(FileChannel.MapMode.READ_ONLY,
+						c0 * blockBytes, n * blockBytes), c0, n);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Puts the fid lines of one mapped chunk at their k-space positions
+	 * @param k the k-space of every frame and receiver
+	 * @param map the mapped blocks
+	 * @param first index of the first block of the chunk
+	 * @param count number of blocks in the chunk
+	 */
+	private void readBlocks(final float[][][] k, final ByteBuffer map,
+			final int first, int count) {
+		final int shots = enc[1] / rare;
+		final int parts = dim > 2 ? enc[2] : 1;
+		final int x0 = grid[0] / 2 - points / 2;
+		ParallelLoop.run(count, 64, new ParallelLoop.Body() {
+			public void run(int start, int end) {
+				ByteBuffer buf = map.duplicate().order(order);
+				float[] line = new float[2 * points * receivers];
+				for (int i = start; i < end; i++) {
+					int b = first + i;
+					int e = b % echoes;
+					int rest = b / echoes;
+					int r = rest % rare;
+					rest /= rare;
+					int o = rest % objects;
+					rest /= objects;
+					int s = rest % shots;
+					rest /= shots;
+					int p = rest % parts;
+					int n = rest / parts;
+					int y = grid[1] / 2 + steps1[s * rare + r];
+					int z = dim > 2 ? grid[2] / 2 + steps2[p] : 0;
+					if (y < 0 || y >= grid[1] || z < 0
+							|| (dim > 2 && z >= grid[2])) {
+						continue;
+					}
+					buf.position((int) (i * blockBytes));
+					decode(buf, line);
+					int frame = (n * objects + objOrder[o]) * echoes + e;
+					int row = (z * grid[1] + y) * grid[0] + x0;
+					for (int c = 0; c < receivers; c++) {
+						System.arraycopy(line, 2 * c * points, k[frame][c],
+								2 * row, 2 * points);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Bulk decodes one readout of all receivers
+	 */
+	private void decode(ByteBuffer buf, float[] line) {
+		int n = line.length;
+		if ("GO_32BIT_SGN_INT".equals(format)) {
+			IntBuffer ib = buf.asIntBuffer();
+			for (int i = 0; i < n; i++) {
+				line[i] = ib.get(i);
+			}
+		} else if ("GO_16BIT_SGN_INT".equals(format)) {
+			ShortBuffer sb = buf.asShortBuffer();
+			for (int i = 0; i < n; i++) {
+				line[i] = sb.get(i);
+			}
+		} else if ("GO_32BIT_FLOAT".equals(format)) {
+			buf.asFloatBuffer().get(line);
+		} else {
+			DoubleBuffer db = buf.asDoubleBuffer();
+			for (int i = 0; i < n; i++) {
+				line[i] = (float) db.get(i);
+			}
+		}
+	}
+
+	/**
+	 * Centred inverse FFT along one axis of every frame and receiver, the
+	 * lines are spread over the threads
+	 */
+	private void fftAxis(final float[][][] k, int axis) {
+		final int n = grid[axis];
+		if (n < 2) {
+			return;
+		}
+		final Fft fft = new Fft(n);
+		int s = 1;
+		for (int a = 0; a < axis; a++) {
+			s *= grid[a];
+		}
+		final int stride = s;
+		final int total = k[0][0].length / 2;
+		final int outer = total / (n * stride);
+		final int perVolume = outer * stride;
+		int lines = k.length * receivers * perVolume;
+		ParallelLoop.run(lines, 16, new ParallelLoop.Body() {
+			public void run(int start, int end) {
+				double[] re = new double[n];
+				double[] im = new double[n];
+				double[] scratch = fft.newScratch();
+				int half = n / 2;
+				for (int l = start; l < end; l++) {
+					int vol = l / perVolume;
+					int idx = l % perVolume;
+					float[] data = k[vol / receivers][vol % receivers];
+					int base = (idx / stride) * n * stride + idx % stride;
+					// The k-space centre goes to 0 before the transform
+					for (int i = 0; i < n; i++) {
+						int src = 2 * (base + ((i + half) % n) * stride);
+						re[i] = data[src];
+						im[i] = data[src + 1];
+					}
+					fft.transform(re, im, true, scratch);
+					// ... and the image centre back to n / 2 after it
+					for (int i = 0; i < n; i++) {
+						int dst = 2 * (base + ((i + half) % n) * stride);
+						data[dst] = (float) re[i];
+						data[dst + 1] = (float) im[i];
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sum of squares over the receivers, cropped to the output matrix
+	 */
+	private float[][] combine(final float[][][] k) {
+		final int w = size[0];
+		final int h = size[1];
+		final int depth = this.getDepth();
+		final int x0 = (grid[0] - w) / 2;
+		final int y0 = (grid[1] - h) / 2;
+		final int z0 = dim > 2 ? (grid[2] - depth) / 2 : 0;
+		final float[][] images = new float[k.length * depth][];
+		ParallelLoop.run(images.length, new ParallelLoop.Body() {
+			public void run(int start, int end) {
+				for (int img = start; img < end; img++) {
+					float[][] coils = k[img / depth];
+					int z = z0 + img % depth;
+					float[] out = new float[w * h];
+					for (int y = 0; y < h; y++) {
+						int row = (z * grid[1] + y0 + y) * grid[0] + x0;
+						for (int x = 0; x < w; x++) {
+							int i = 2 * (row + x);
+							double sum = 0;
+							for (float[] c : coils) {
+								sum += c[i] * c[i] + c[i + 1] * c[i + 1];
+							}
+							out[y * w + x] = (float) Math.sqrt(sum);
+						}
+					}
+					images[img] = out;
+				}
+			}
+		});
+		return images;
+	}
+
+	/**
+	 * Wraps reconstructed images as a stack
+	 * @param images result of reconstruct()
+	 * @param title image title
+	 * @return 32-bit ImagePlus, calibrated from PVM_Fov
+	 */
+	public ImagePlus toImagePlus(float[][] images, String title) {
+		ImageStack stack = new ImageStack(size[0], size[1]);
+		for (float[] p : images) {
+			stack.addSlice(null, p);
+		}
+		ImagePlus imp = new ImagePlus(title, stack);
+		if (fov != null && fov.length >= 2) {
+			Calibration cal = imp.getCalibration();
+			cal.pixelWidth = fov[0] / size[0];
+			cal.pixelHeight = fov[1] / size[1];
+			if (dim > 2 && fov.length > 2) {
+				cal.pixelDepth = fov[2] / size[2];
+			}
+			cal.setUnit("mm");
+		}
+		return imp;
+	}
+
+	/**
+	 * Writes the images as a processed data set (2dseq + visu_pars) that
+	 * Bruker2dseq and the map plugins can read
+	 * @param images result of reconstruct()
+	 * @param pdataDir the pdata/N directory, created if missing
+	 * @throws IOException if the files cannot be written
+	 */
+	public void writePdata(float[][] images, File pdataDir)
+			throws IOException {
+		pdataDir.mkdirs();
+		FileOutputStream out = new FileOutputStream(new File(pdataDir,
+				Bruker2dseq.SEQ));
+		try {
+			FileChannel ch = out.getChannel();
+			ByteBuffer buf = ByteBuffer.allocateDirect(4 * size[0] * size[1]);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			for (float[] p : images) {
+				buf.clear();
+				buf.asFloatBuffer().put(p);
+				while (buf.hasRemaining()) {
+					ch.write(buf);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		int frames = this.getFrameCount();
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(new File(pdataDir, Bruker2dseq.VISU_PARS)),
+				"ISO-8859-1"));
+		try {
+			pw.println("##TITLE=Parameter List, reconstructed by FidRecon");
+			pw.println("##JCAMPDX=4.24");
+			pw.println("##$VisuCoreSize=( " + dim + " )");
+			StringBuilder sb = new StringBuilder();
+			for (int a = 0; a < dim; a++) {
+				sb.append(a > 0 ? " " : "").append(size[a]);
+			}
+			pw.println(sb);
+			if (fov != null && fov.length >= dim) {
+				pw.println("##$VisuCoreExtent=( " + dim + " )");
+				sb = new StringBuilder();
+				for (int a = 0; a < dim; a++) {
+					sb.append(a > 0 ? " " : "").append(fov[a]);
+				}
+				pw.println(sb);
+			}
+			pw.println("##$VisuCoreFrameCount=" + frames);
+			pw.println("##$VisuCoreWordType=_32BIT_FLOAT");
+			pw.println("##$VisuCoreByteOrder=littleEndian");
+			pw.println("##$VisuCoreDataSlope=( " + frames + " )");
+			pw.println("@" + frames + "*(1)");
+			pw.println("##$VisuCoreDataOffs=( " + frames + " )");
+			pw.println("@" + frames + "*(0)");
+			// Frame groups, fastest varying first
+			int numGroups = 1;
+			sb = new StringBuilder();
+			if (echoes > 1) {
+				sb.append("(" + echoes + ", <FG_ECHO>, <>, 0, 0) ");
+				numGroups++;
+			}
+			sb.append("(" + objects + ", <FG_SLICE>, <>, 0, 0)");
+			if (reps > 1) {
+				sb.append(" (" + reps + ", <FG_CYCLE>, <>, 0, 0)");
+				numGroups++;
+			}
+			pw.println("##$VisuFGOrderDescDim=" + numGroups);
+			pw.println("##$VisuFGOrderDesc=( " + numGroups + " )");
+			pw.println(sb);
+			pw.println("##END=");
+		} finally {
+			pw.close();
+		}
+	}
+}
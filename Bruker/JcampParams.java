@@ -0,0 +1,220 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Reads a Bruker ParaVision parameter file (visu_pars, method, acqp, reco)
+ * once and keeps every ##$ parameter so the map plugins can look values up
+ * by name instead of scanning the file with a Scanner for each value.
+ *
+ * Array values are stored with their dimensions, i.e.
+ *   ##$VisuCoreDataSlope=( 50 )
+ *   0.0123 0.0123 ...
+ * and the ParaVision 6 run length form @50*(0.0123) is expanded.
+ *
+ * Updates:
+ * 10.19.26 - Created for the DTI tensor fit
+ */
+
+import java.util.*;
+import java.io.*;
+
+public class JcampParams {
+
+	private final Map<String, String> values = new HashMap<String, String>();
+	private final Map<String, int[]> dims = new HashMap<String, int[]>();
+	private final String path;
+
+	/**
+	 * Reads the parameter file
+	 * @param file visu_pars, method or acqp file
+	 * @throws IOException if the file cannot be read
+	 */
+	public JcampParams(File file) throws IOException {
+		this.path = file.getPath();
+		if (!file.exists()) {
+			throw new FileNotFoundException(path);
+		}
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String key = null;
+			StringBuilder val = new StringBuilder();
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("$$")) {
+					continue; // comment line
+				}
+				if (line.startsWith("##")) {
+					this.store(key, val);
+					key = null;
+					val.setLength(0);
+					int eq = line.indexOf('=');
+					if (line.startsWith("##$") && eq > 0) {
+						key = line.substring(3, eq).trim();
+						val.append(line.substring(eq + 1).trim());
+					}
+				} else if (key != null) {
+					val.append('\n').append(line);
+				}
+			}
+			this.store(key, val);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the parameter file from a directory
+	 * @param dir directory that holds the file
+	 * @param name file name, i.e. "visu_pars" or "method"
+	 * @return the parsed parameters
+	 * @throws IOException if the file cannot be read
+	 */
+	public static JcampParams read(String dir, String name)
+			throws IOException {
+		return new JcampParams(new File(dir, name));
+	}
+
+	/**
+	 * Splits the dimension line from the values and stores the parameter
+	 */
+	private void store(String key, StringBuilder val) {
+		if (key == null) {
+			return;
+		}
+		String v = val.toString();
+		int nl = v.indexOf('\n');
+		String first = (nl < 0 ? v : v.substring(0, nl)).trim();
+		if (nl >= 0 && first.matches("\\(\\s*\\d+(\\s*,\\s*\\d+)*\\s*\\)")) {
+			String[] d = first.substring(1, first.length() - 1).split(",");
+			int[] n = new int[d.length];
+			for (int i = 0; i < d.length; i++) {
+				n[i] = Integer.parseInt(d[i].trim());
+			}
+			dims.put(key, n);
+			v = v.substring(nl + 1);
+		}
+		values.put(key, v.replace('\n', ' ').trim());
+	}
+
+	/**
+	 * @return path of the file that was read
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @param key parameter name without the ##$, i.e. "VisuCoreSize"
+	 * @return true if the parameter is in the file
+	 */
+	public boolean has(String key) {
+		return values.containsKey(key);
+	}
+
+	/**
+	 * @param key parameter name
+	 * @return the raw value text (lines joined by spaces) or null
+	 */
+	public String getRaw(String key) {
+		return values.get(key);
+	}
+
+	/**
+	 * @param key parameter name
+	 * @return the array dimensions, or null for a scalar
+	 */
+	public int[] getDims(String key) {
+		return dims.get(key);
+	}
+
+	/**
+	 * @param key parameter name
+	 * @return the value with the enclosing < > removed, or null
+	 */
+	public String getString(String key) {
+		String v = values.get(key);
+		if (v == null) {
+			return null;
+		}
+		if (v.startsWith("<") && v.endsWith(">")) {
+			v = v.substring(1, v.length() - 1);
+		}
+		return v;
+	}
+
+	/**
+	 * @param key parameter name
+	 * @return the strings between < > in the value, i.e. for VisuFGElemId
+	 */
+	public String[] getStrings(String key) {
+		String v = values.get(key);
+		List<String> out = new ArrayList<String>();
+		if (v != null) {
+			int start = v.indexOf('<');
+			while (start >= 0) {
+				int end = v.indexOf('>', start);
+				if (end < 0) {
+					break;
+				}
+				out.add(v.substring(start + 1, end));
+				start = v.indexOf('<', end);
+			}
+		}
+		return out.toArray(new String[out.size()]);
+	}
+
+	/**
+	 * @param key parameter name
+	 * @param def value returned if the parameter is missing
+	 * @return the first number of the value
+	 */
+	public double getDouble(String key, double def) {
+		double[] v = this.getDoubles(key);
+		return v == null || v.length == 0 ? def : v[0];
+	}
+
+	/**
+	 * @param key parameter name
+	 * @param def value returned if the parameter is missing
+	 * @return the first number of the value as an int
+	 */
+	public int getInt(String key, int def) {
+		double[] v = this.getDoubles(key);
+		return v == null || v.length == 0 ? def : (int) Math.round(v[0]);
+	}
+
+	/**
+	 * Parses every number of a numeric parameter in file order
+	 * @param key parameter name
+	 * @return the numbers or null if the parameter is missing
+	 * @throws NumberFormatException if the value is not numeric
+	 */
+	public double[] getDoubles(String key) {
+		String v = values.get(key);
+		if (v == null) {
+			return null;
+		}
+		StringTokenizer tok = new StringTokenizer(v, " \t,()");
+		double[] out = new double[16];
+		int n = 0;
+		while (tok.hasMoreTokens()) {
+			String t = tok.nextToken();
+			int repeat = 1;
+			if (t.startsWith("@")) {
+				// ParaVision 6 run length encoding: @count*(value)
+				int star = t.indexOf('*');
+				repeat = Integer.parseInt(t.substring(1, star));
+				t = star + 1 < t.length() ? t.substring(star + 1)
+						: tok.nextToken();
+			}
+			double d = Double.parseDouble(t);
+			if (n + repeat > out.length) {
+				out = Arrays.copyOf(out, Math.max(2 * out.length, n + repeat));
+			}
+			for (int r = 0; r < repeat; r++) {
+				out[n++] = d;
+			}
+		}
+		return Arrays.copyOf(out, n);
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Least squares helpers for the voxel-wise log-linear fits. The design
+ * matrix of a scan is the same for every voxel, so its (weighted)
+ * pseudo-inverse is computed once and each voxel fit is a small
+ * matrix-vector product.
+ *
+ * Updates:
+ * 10.19.26 - Created for the DTI tensor fit
+ * 10.19.26 - Added invert and multiply for the Z-spectrum spline basis
+ */
+
+public class LinearFit {
+
+	/**
+	 * Computes the pseudo-inverse (X'WX)^-1 X'W of a full column rank design
+	 * matrix
+	 * @param x design matrix, one row per measurement
+	 * @param w weight of each measurement, or null for ordinary least squares
+	 * @return the p x n pseudo-inverse, p = number of columns of x
+	 * @throws IllegalArgumentException if X'WX is singular
+	 */
+	public static double[][] pseudoInverse(double[][] x, double[] w) {
+		int n = x.length;
+		int p = x[0].length;
+		// Normal matrix X'WX augmented with X'W
+		double[][] a = new double[p][p + n];
+		for (int i = 0; i < p; i++) {
+			for (int j = 0; j < p; j++) {
+				double sum = 0;
+				for (int k = 0; k < n; k++) {
+					sum += x[k][i] * (w == null ? 1 : w[k]) * x[k][j];
+				}
+				a[i][j] = sum;
+			}
+			for (int k = 0; k < n; k++) {
+				a[i][p + k] = x[k][i] * (w == null ? 1 : w[k]);
+			}
+		}
+		gaussJordan(a, p);
+		double[][] pinv = new double[p][n];
+		for (int i = 0; i < p; i++) {
+			System.arraycopy(a[i], p, pinv[i], 0, n);
+		}
+		return pinv;
+	}
+
+	/**
+	 * Inverts a square matrix
+	 * @param m the matrix, it is not modified
+	 * @return the inverse
+	 * @throws IllegalArgumentException if the matrix is singular
+	 */
+	public static double[][] invert(double[][] m) {
+		int p = m.length;
+		double[][] a = new double[p][2 * p];
+		for (int i = 0; i < p; i++) {
+			System.arraycopy(m[i], 0, a[i], 0, p);
+			a[i][p + i] = 1;
+		}
+		gaussJordan(a, p);
+		double[][] inv = new double[p][p];
+		for (int i = 0; i < p; i++) {
+			System.arraycopy(a[i], p, inv[i], 0, p);
+		}
+		return inv;
+	}
+
+	/**
+	 * @return the matrix product a b
+	 */
+	public static double[][] multiply(double[][] a, double[][] b) {
+		int n = b.length;
+		double[][] c = new double[a.length][b[0].length];
+		for (int i = 0; i < a.length; i++) {
+			for (int k = 0; k < n; k++) {
+				double f = a[i][k];
+				if (f == 0) {
+					continue;
+				}
+				for (int j = 0; j < c[i].length; j++) {
+					c[i][j] += f * b[k][j];
+				}
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Gauss-Jordan elimination with partial pivoting of a matrix augmented
+	 * with right hand sides. The left p x p block becomes the identity.
+	 * @param a p rows of p + n columns
+	 * @param p size of the square block
+	 */
+	private static void gaussJordan(double[][] a, int p) {
+		int cols = a[0].length;
+		for (int c = 0; c < p; c++) {
+			int piv = c;
+			for (int r = c + 1; r < p; r++) {
+				if (Math.abs(a[r][c]) > Math.abs(a[piv][c])) {
+					piv = r;
+				}
+			}
+			if (Math.abs(a[piv][c]) < 1e-12 * Math.max(1, Math.abs(a[0][0]))) {
+				throw new IllegalArgumentException(
+						"The matrix is singular (column " + c + ")");
+			}
+			double[] t = a[c];
+			a[c] = a[piv];
+			a[piv] = t;
+			double d = a[c][c];
+			for (int j = 0; j < cols; j++) {
+				a[c][j] /= d;
+			}
+			for (int r = 0; r < p; r++) {
+				if (r != c && a[r][c] != 0) {
+					double f = a[r][c];
+					for (int j = 0; j < cols; j++) {
+						a[r][j] -= f * a[c][j];
+					}
+				}
+			}
+		}
+	}
+}
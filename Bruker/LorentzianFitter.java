@@ -0,0 +1,380 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Multi-pool Lorentzian fit of the CEST Z-spectra. Each voxel's normalised
+ * spectrum Z = S / S0 is modelled as
+ *   Z(dw) = c - sum_i A_i / (1 + 4 ((dw - x_i) / w_i)^2)
+ * with one Lorentzian per pool (water, amide, amine, NOE and MT by default)
+ * and fitted with a bounded Levenberg-Marquardt iteration using the analytic
+ * derivatives of the model. Parameters that leave their bounds are clamped.
+ *
+ * The offsets are shared by all voxels, every worker thread owns one set of
+ * scratch buffers, and a voxel starts from the fit of its left neighbour
+ * when that fit converged. Image rows of all slices are processed in
+ * parallel. The result has an amplitude, a width and a position channel
+ * for each pool.
+ *
+ * Updates:
+ * 10.19.26 - Created
+ * 10.19.26 - settings() for the ResultCache keys
+ */
+
+import java.util.*;
+
+import ij.*;
+
+public class LorentzianFitter {
+
+	/**
+	 * One exchange pool: starting value and bounds of its amplitude, width
+	 * (FWHM) and position, all in ppm except the amplitude (fraction of S0)
+	 */
+	public static class Pool {
+		final String name;
+		final double[] start; // amplitude, width, position
+		final double[] min;
+		final double[] max;
+
+		public Pool(String name, double amp, double ampMax, double width,
+				double widthMin, double widthMax, double pos, double posRange) {
+			this.name = name;
+			this.start = new double[] {amp, width, pos};
+			this.min = new double[] {0, widthMin, pos - posRange};
+			this.max = new double[] {ampMax, widthMax, pos + posRange};
+		}
+
+		@Override
+		public String toString() {
+			return name + " " + Arrays.toString(start) + " "
+					+ Arrays.toString(min) + " " + Arrays.toString(max);
+		}
+	}
+
+	public static final String[] PARAM_NAMES = {"amplitude", "width",
+			"position"};
+	public static final int MAX_ITER = 50;
+	public static final double TOLERANCE = 1e-4;
+	// A fit is good if its mean squared residual is below this (Z units)
+	public static final double GOOD_FIT = 1e-4;
+	// Change it when the model or the iteration changes
+	public static final String VERSION = "LorentzianFitter 1";
+
+	private final double[] ppm;
+	private final Pool[] pools;
+	private final int m; // number of offsets
+	private final int n; // number of parameters, 1 + 3 per pool
+	private final double[] start;
+	private final double[] min;
+	private final double[] max;
+
+	/**
+	 * @param ppm saturation offset of each frame group
+	 * @param pools pools in the model, i.e. defaultPools()
+	 */
+	public LorentzianFitter(double[] ppm, Pool[] pools) {
+		this.ppm = ppm.clone();
+		this.pools = pools;
+		this.m = ppm.length;
+		this.n = 1 + 3 * pools.length;
+		if (m <= n) {
+			throw new IllegalArgumentException(m + " offsets are not enough "
+					+ "for " + n + " parameters");
+		}
+		start = new double[n];
+		min = new double[n];
+		max = new double[n];
+		start[0] = 1;
+		min[0] = 0.5;
+		max[0] = 1.5;
+		for (int i = 0; i < pools.length; i++) {
+			for (int j = 0; j < 3; j++) {
+				start[1 + 3 * i + j] = pools[i].start[j];
+				min[1 + 3 * i + j] = pools[i].min[j];
+				max[1 + 3 * i + j] = pools[i].max[j];
+			}
+		}
+	}
+
+	/**
+	 * @param pools pools in the model
+	 * @return the version, constants and pools of the fit, for the
+	 * ResultCache keys
+	 */
+	public static String settings(Pool[] pools) {
+		return VERSION + " max_iter=" + MAX_ITER + " tolerance=" + TOLERANCE
+				+ " good_fit=" + GOOD_FIT + " pools=" + Arrays.toString(pools);
+	}
+
+	/**
+	 * The pools of a 5 pool fit at 7T/9.4T within +-5 ppm
+	 * @return water, amide, amine, NOE and MT pools
+	 */
+	public static Pool[] defaultPools() {
+		return new Pool[] {
+				new Pool("Water", 0.9, 1.0, 1.4, 0.3, 10, 0, 1),
+				new Pool("Amide", 0.025, 0.2, 0.5, 0.4, 3, 3.5, 0.3),
+				new Pool("Amine", 0.01, 0.2, 1.5, 0.5, 5, 2.0, 0.3),
+				new Pool("NOE", 0.02, 0.4, 3, 1, 5, -3.5, 0.3),
+				new Pool("MT", 0.1, 1.0, 25, 10, 100, -2.5, 1)};
+	}
+
+	/**
+	 * @return number of channels in the result, 3 per pool
+	 */
+	public int getNumChannels() {
+		return 3 * pools.length;
+	}
+
+	/**
+	 * @param c channel index
+	 * @return label of the channel, i.e. "Amide amplitude"
+	 */
+	public String channelLabel(int c) {
+		return pools[c / 3].name + " " + PARAM_NAMES[c % 3];
+	}
+
+	/**
+	 * Scratch buffers of one worker thread
+	 */
+	private class Workspace {
+		final double[] y = new double[m];
+		final double[] p = new double[n];
+		final double[] trial = new double[n];
+		final double[] resid = new double[m];
+		final double[] jac = new double[m * n];
+		final double[] jtj = new double[n * n];
+		final double[] grad = new double[n];
+		final double[] chol = new double[n * n];
+		final double[] delta = new double[n];
+	}
+
+	/**
+	 * Fits every voxel with a zero power signal
+	 * @param src images indexed as [slice][offset]
+	 * @param m0 zero power image of each slice
+	 * @param width image width
+	 * @return maps indexed as [slice][channel][pixel]
+	 */
+	public float[][][] fit(final float[][][] src, final float[][] m0,
+			final int width) {
+		final int numSlices = src.length;
+		final int plane = m0[0].length;
+		final int height = plane / width;
+		final int channels = this.getNumChannels();
+		final float[][][] maps = new float[numSlices][channels][plane];
+		ParallelLoop.run(numSlices * height, new ParallelLoop.Body() {
+			public void run(int first, int last) {
+				Workspace ws = new Workspace();
+				for (int row = first; row < last; row++) {
+					int z = row / height;
+					int offset = (row % height) * width;
+					boolean neighbour = false;
+					for (int x = 0; x < width; x++) {
+						int i = offset + x;
+						float s0 = m0[z][i];
+						if (s0 <= 0) {
+							neighbour = false;
+							continue;
+						}
+						for (int k = 0; k < m; k++) {
+							ws.y[k] = src[z][k][i] / s0;
+						}
+						if (!neighbour) {
+							System.arraycopy(start, 0, ws.p, 0, n);
+						}
+						neighbour = fitVoxel(ws);
+						if (!neighbour) {
+							// Retry from the default start before giving up
+							System.arraycopy(start, 0, ws.p, 0, n);
+							fitVoxel(ws);
+						}
+						for (int c = 0; c < channels; c++) {
+							maps[z][c][i] = (float) ws.p[1 + c];
+						}
+					}
+				}
+			}
+		});
+		return maps;
+	}
+
+	/**
+	 * Bounded Levenberg-Marquardt fit of ws.y starting from ws.p
+	 * @return true if the fit converged
+	 */
+	private boolean fitVoxel(Workspace ws) {
+		double lambda = 1e-3;
+		double cost = this.residuals(ws.p, ws.y, ws.resid);
+		for (int iter = 0; iter < MAX_ITER; iter++) {
+			this.jacobian(ws.p, ws.jac);
+			// Normal equations J'J and J'r
+			for (int a = 0; a < n; a++) {
+				double g = 0;
+				for (int k = 0; k < m; k++) {
+					g += ws.jac[k * n + a] * ws.resid[k];
+				}
+				ws.grad[a] = g;
+				for (int b = 0; b <= a; b++) {
+					double s = 0;
+					for (int k = 0; k < m; k++) {
+						s += ws.jac[k * n + a] * ws.jac[k * n + b];
+					}
+					ws.jtj[a * n + b] = s;
+					ws.jtj[b * n + a] = s;
+				}
+			}
+			boolean improved = false;
+			double newCost = cost;
+			for (int tries = 0; tries < 10 && !improved; tries++) {
+				if (!this.solve(ws, lambda)) {
+					lambda *= 10;
+					continue;
+				}
+				for (int a = 0; a < n; a++) {
+					double v = ws.p[a] + ws.delta[a];
+					ws.trial[a] = v < min[a] ? min[a] : v > max[a] ? max[a] : v;
+				}
+				newCost = this.residuals(ws.trial, ws.y, null);
+				if (newCost < cost) {
+					improved = true;
+					lambda = Math.max(lambda / 10, 1e-12);
+				} else {
+					lambda *= 10;
+				}
+			}
+			if (!improved) {
+				return cost < m * GOOD_FIT;
+			}
+			System.arraycopy(ws.trial, 0, ws.p, 0, n);
+			this.residuals(ws.p, ws.y, ws.resid);
+			boolean done = cost - newCost < TOLERANCE * (cost + TOLERANCE);
+			cost = newCost;
+			if (done) {
+				break;
+			}
+		}
+		return cost < m * GOOD_FIT;
+	}
+
+	/**
+	 * Solves (J'J + lambda diag(J'J)) delta = J'r by Cholesky decomposition
+	 * @return false if the damped matrix is not positive definite
+	 */
+	private boolean solve(Workspace ws, double lambda) {
+		double[] l = ws.chol;
+		for (int a = 0; a < n; a++) {
+			for (int b = 0; b <= a; b++) {
+				double s = ws.jtj[a * n + b];
+				if (a == b) {
+					s += lambda * Math.max(ws.jtj[a * n + a], 1e-12);
+				}
+				for (int k = 0; k < b; k++) {
+					s -= l[a * n + k] * l[b * n + k];
+				}
+				if (a == b) {
+					if (s <= 0) {
+						return false;
+					}
+					l[a * n + a] = Math.sqrt(s);
+				} else {
+					l[a * n + b] = s / l[b * n + b];
+				}
+			}
+		}
+		// Forward then back substitution
+		double[] d = ws.delta;
+		for (int a = 0; a < n; a++) {
+			double s = ws.grad[a];
+			for (int k = 0; k < a; k++) {
+				s -= l[a * n + k] * d[k];
+			}
+			d[a] = s / l[a * n + a];
+		}
+		for (int a = n - 1; a >= 0; a--) {
+			double s = d[a];
+			for (int k = a + 1; k < n; k++) {
+				s -= l[k * n + a] * d[k];
+			}
+			d[a] = s / l[a * n + a];
+		}
+		return true;
+	}
+
+	/**
+	 * @param resid receives y - model, may be null
+	 * @return the sum of squared residuals
+	 */
+	private double residuals(double[] p, double[] y, double[] resid) {
+		double cost = 0;
+		for (int k = 0; k < m; k++) {
+			double f = p[0];
+			for (int i = 1; i < n; i += 3) {
+				double u = 2 * (ppm[k] - p[i + 2]) / p[i + 1];
+				f -= p[i] / (1 + u * u);
+			}
+			double r = y[k] - f;
+			if (resid != null) {
+				resid[k] = r;
+			}
+			cost += r * r;
+		}
+		return cost;
+	}
+
+	/**
+	 * Analytic derivatives of the model at every offset
+	 * @param jac receives m rows of n derivatives
+	 */
+	private void jacobian(double[] p, double[] jac) {
+		for (int k = 0; k < m; k++) {
+			int row = k * n;
+			jac[row] = 1;
+			for (int i = 1; i < n; i += 3) {
+				double amp = p[i];
+				double w = p[i + 1];
+				double u = 2 * (ppm[k] - p[i + 2]) / w;
+				double l = 1 / (1 + u * u);
+				double l2 = l * l;
+				jac[row + i] = -l;
+				jac[row + i + 1] = -amp * 2 * u * u * l2 / w;
+				jac[row + i + 2] = -amp * 4 * u * l2 / w;
+			}
+		}
+	}
+
+	/**
+	 * Fits a single spectrum, i.e. the mean of an ROI
+	 * @param z normalised spectrum S / S0 at each offset
+	 * @return the fitted parameters, offset c first, then 3 per pool
+	 */
+	public double[] fitSpectrum(double[] z) {
+		Workspace ws = new Workspace();
+		System.arraycopy(z, 0, ws.y, 0, m);
+		System.arraycopy(start, 0, ws.p, 0, n);
+		this.fitVoxel(ws);
+		return ws.p.clone();
+	}
+
+	/**
+	 * Wraps the fitted maps as a (parameter x slice) hyperstack
+	 * @param maps result of fit
+	 * @param width image width
+	 * @param height image height
+	 * @return hyperstack with 3 channels per pool
+	 */
+	public ImagePlus toImagePlus(float[][][] maps, int width, int height) {
+		ImageStack stack = new ImageStack(width, height);
+		int channels = this.getNumChannels();
+		for (int z = 0; z < maps.length; z++) {
+			for (int c = 0; c < channels; c++) {
+				stack.addSlice("slice_" + (z + 1) + " " + this.channelLabel(c),
+						maps[z][c]);
+			}
+		}
+		ImagePlus imp = new ImagePlus("cest_lorentz", stack);
+		imp.setDimensions(channels, maps.length, 1);
+		imp.setOpenAsHyperStack(true);
+		return imp;
+	}
+}
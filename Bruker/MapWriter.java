@@ -0,0 +1,236 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Writes finished maps on a background thread so the plugins can go on
+ * computing while the files are written. Images are handed over through a
+ * bounded queue, a full queue blocks the caller instead of holding every
+ * map in memory.
+ *
+ * A path ending in .raw is written as an uncompressed little endian 32-bit
+ * float volume in hyperstack order (x fastest, then y, channel, slice,
+ * frame) with a .json sidecar that holds the dimensions, calibration and
+ * slice labels, so other tools can memory-map it. Any other path is saved
+ * as one calibrated (hyper)stack TIFF.
+ *
+ * Updates:
+ * 10.19.26 - Created for the CEST outputs
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+import ij.*;
+import ij.io.*;
+import ij.measure.*;
+
+public class MapWriter {
+
+	public static final String RAW = ".raw";
+	public static final String SIDECAR = ".json";
+	public static final int DEFAULT_CAPACITY = 4;
+
+	private final BlockingQueue<Object[]> queue;
+	private final Thread worker;
+	private volatile IOException error;
+	private volatile boolean closed;
+
+	// Marks the end of the queue
+	private static final Object[] END = new Object[0];
+
+	public MapWriter() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Starts the writer thread
+	 * @param capacity number of images that may wait to be written
+	 */
+	public MapWriter(int capacity) {
+		queue = new ArrayBlockingQueue<Object[]>(capacity);
+		worker = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "MapWriter");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Queues an image for writing, blocks while the queue is full
+	 * @param imp the image, its stack must not be changed until written
+	 * @param path output file, .raw for a raw volume, otherwise TIFF
+	 * @throws IOException if an earlier write failed
+	 */
+	public void submit(ImagePlus imp, String path) throws IOException {
+		if (closed) {
+			throw new IllegalStateException("The writer is closed");
+		}
+		this.checkError();
+		try {
+			queue.put(new Object[] {imp, path});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while queuing " + path);
+		}
+	}
+
+	/**
+	 * Waits until every queued image is written and stops the thread
+	 * @throws IOException the first error of the writes, if any
+	 */
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			try {
+				queue.put(END);
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while writing");
+			}
+		}
+		this.checkError();
+	}
+
+	private void checkError() throws IOException {
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Writer thread: takes images off the queue until END
+	 */
+	private void drain() {
+		while (true) {
+			Object[] job;
+			try {
+				job = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (job == END) {
+				return;
+			}
+			// Keep draining after an error so submit never blocks forever
+			if (error != null) {
+				continue;
+			}
+			ImagePlus imp = (ImagePlus) job[0];
+			String path = (String) job[1];
+			try {
+				if (path.toLowerCase().endsWith(RAW)) {
+					writeRaw(imp, path);
+				} else {
+					writeTiff(imp, path);
+				}
+			} catch (IOException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				error = new IOException("Writing " + path + " failed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Saves the image as one TIFF, hyperstack dimensions and calibration
+	 * are kept in the ImageJ header
+	 */
+	static void writeTiff(ImagePlus imp, String path) throws IOException {
+		FileSaver saver = new FileSaver(imp);
+		boolean ok = imp.getStackSize() > 1 ? saver.saveAsTiffStack(path)
+				: saver.saveAsTiff(path);
+		if (!ok) {
+			throw new IOException("Could not write " + path);
+		}
+	}
+
+	/**
+	 * Writes the 32-bit pixels in stack order and the .json sidecar
+	 */
+	static void writeRaw(ImagePlus imp, String path) throws IOException {
+		ImageStack stack = imp.getStack();
+		int plane = imp.getWidth() * imp.getHeight();
+		ByteBuffer buf = ByteBuffer.allocateDirect(4 * plane);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		FileOutputStream out = new FileOutputStream(path);
+		try {
+			FileChannel ch = out.getChannel();
+			for (int i = 1; i <= stack.getSize(); i++) {
+				float[] p = (float[]) stack.getProcessor(i).convertToFloat()
+						.getPixels();
+				buf.clear();
+				buf.asFloatBuffer().put(p);
+				buf.limit(4 * plane);
+				while (buf.hasRemaining()) {
+					ch.write(buf);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		String base = path.substring(0, path.length() - RAW.length());
+		Writer json = new OutputStreamWriter(new FileOutputStream(base
+				+ SIDECAR), "UTF-8");
+		try {
+			json.write(sidecar(imp, new File(path).getName()));
+		} finally {
+			json.close();
+		}
+	}
+
+	/**
+	 * @param imp the written image
+	 * @param rawName file name of the raw volume
+	 * @return the JSON description of the raw volume
+	 */
+	static String sidecar(ImagePlus imp, String rawName) {
+		Calibration cal = imp.getCalibration();
+		ImageStack stack = imp.getStack();
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"file\": ").append(quote(rawName)).append(",\n");
+		sb.append("  \"title\": ").append(quote(imp.getTitle())).append(",\n");
+		sb.append("  \"dtype\": \"float32\",\n");
+		sb.append("  \"byteOrder\": \"little\",\n");
+		sb.append("  \"order\": [\"x\", \"y\", \"channel\", \"slice\", "
+				+ "\"frame\"],\n");
+		sb.append("  \"width\": ").append(imp.getWidth()).append(",\n");
+		sb.append("  \"height\": ").append(imp.getHeight()).append(",\n");
+		sb.append("  \"channels\": ").append(imp.getNChannels()).append(",\n");
+		sb.append("  \"slices\": ").append(imp.getNSlices()).append(",\n");
+		sb.append("  \"frames\": ").append(imp.getNFrames()).append(",\n");
+		sb.append("  \"pixelWidth\": ").append(cal.pixelWidth).append(",\n");
+		sb.append("  \"pixelHeight\": ").append(cal.pixelHeight).append(",\n");
+		sb.append("  \"pixelDepth\": ").append(cal.pixelDepth).append(",\n");
+		sb.append("  \"unit\": ").append(quote(cal.getUnit())).append(",\n");
+		sb.append("  \"labels\": [");
+		for (int i = 1; i <= stack.getSize(); i++) {
+			sb.append(i > 1 ? ", " : "").append(quote(stack.getSliceLabel(i)));
+		}
+		sb.append("]\n}\n");
+		return sb.toString();
+	}
+
+	private static String quote(String s) {
+		if (s == null) {
+			return "null";
+		}
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Fused magnetization transfer ratio kernel. The NMT (no saturation) and
+ * YMT (saturated) stacks are read once and the ratio
+ *   MTR = 100 (sN N - sY Y) / (sN N)
+ * is written straight into a single output stack, instead of normalising,
+ * saving, subtracting, dividing and multiplying whole stacks one after the
+ * other. Voxels without NMT signal are set to zero rather than Infinity/NaN.
+ * Slices are processed in parallel.
+ *
+ * Updates:
+ * 10.19.26 - Created
+ * 10.19.26 - Scans with different image counts are both cut to the
+ *            shorter one
+ */
+
+import ij.*;
+
+public class MtrEngine {
+
+	/**
+	 * Computes the MT ratio map of every slice
+	 * @param nmt NMT images (stored values, slope not applied)
+	 * @param slopeN VisuCoreDataSlope of the NMT scan
+	 * @param ymt YMT images (stored values, slope not applied)
+	 * @param slopeY VisuCoreDataSlope of the YMT scan
+	 * @param width image width
+	 * @param height image height
+	 * @return the MTR stack in percent
+	 */
+	public static ImageStack ratio(final float[][] nmt, double slopeN,
+			final float[][] ymt, double slopeY, int width, int height) {
+		if (nmt.length != ymt.length) {
+			throw new IllegalArgumentException("NMT has " + nmt.length
+					+ " images and YMT has " + ymt.length);
+		}
+		final float sN = (float) slopeN;
+		final float sY = (float) slopeY;
+		final float[][] out = new float[nmt.length][];
+		ParallelLoop.run(nmt.length, new ParallelLoop.Body() {
+			public void run(int start, int end) {
+				for (int z = start; z < end; z++) {
+					float[] n = nmt[z];
+					float[] y = ymt[z];
+					float[] r = new float[n.length];
+					for (int i = 0; i < n.length; i++) {
+						float ref = sN * n[i];
+						r[i] = ref != 0 ? 100f * (ref - sY * y[i]) / ref : 0f;
+					}
+					out[z] = r;
+				}
+			}
+		});
+		ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < out.length; z++) {
+			stack.addSlice(null, out[z]);
+		}
+		return stack;
+	}
+
+	/**
+	 * Computes the MT ratio map of two unscaled 2dseq scans. If one scan
+	 * has more images than the other, the extra images are left out.
+	 * @param nmt the NMT 2dseq read without its slope
+	 * @param slopeN VisuCoreDataSlope of the NMT scan
+	 * @param ymt the YMT 2dseq read without its slope
+	 * @param slopeY VisuCoreDataSlope of the YMT scan
+	 * @return the MTR stack in percent
+	 */
+	public static ImageStack ratio(Bruker2dseq nmt, double slopeN,
+			Bruker2dseq ymt, double slopeY) {
+		if (nmt.getWidth() != ymt.getWidth()
+				|| nmt.getHeight() != ymt.getHeight()) {
+			throw new IllegalArgumentException("NMT and YMT matrix sizes "
+					+ "differ");
+		}
+		int n = Math.min(nmt.getImageCount(), ymt.getImageCount());
+		if (n != nmt.getImageCount() || n != ymt.getImageCount()) {
+			IJ.log("NMT has " + nmt.getImageCount() + " images and YMT has "
+					+ ymt.getImageCount() + ", using the first " + n);
+		}
+		float[][] a = new float[n][];
+		float[][] b = new float[n][];
+		for (int i = 0; i < n; i++) {
+			a[i] = nmt.getPixels(i);
+			b[i] = ymt.getPixels(i);
+		}
+		return ratio(a, slopeN, b, slopeY, nmt.getWidth(), nmt.getHeight());
+	}
+}
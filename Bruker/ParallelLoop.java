@@ -0,0 +1,99 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Small helper shared by the Bruker map engines that splits an index range
+ * (slices, rows or voxels) into chunks and runs them on a fixed pool of
+ * worker threads. The number of threads follows the ImageJ setting in
+ * Edit -> Options -> Memory & Threads.
+ *
+ * Updates:
+ * 10.19.26 - Created for the native matrix map computation
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import ij.*;
+
+public class ParallelLoop {
+
+	/**
+	 * Work done on one chunk of the index range
+	 */
+	public static abstract class Body {
+		/**
+		 * Processes the indices from start (inclusive) to end (exclusive)
+		 * @param start first index of the chunk
+		 * @param end one past the last index of the chunk
+		 */
+		public abstract void run(int start, int end);
+	}
+
+	/**
+	 * Runs the body over [0, n) on all available threads and waits for it
+	 * @param n number of indices
+	 * @param body the work to be done on each chunk
+	 */
+	public static void run(int n, Body body) {
+		run(n, 1, body);
+	}
+
+	/**
+	 * Runs the body over [0, n) on all available threads and waits for it
+	 * @param n number of indices
+	 * @param minChunk smallest number of indices handed to one task
+	 * @param body the work to be done on each chunk
+	 */
+	public static void run(final int n, int minChunk, final Body body) {
+		if (n <= 0) {
+			return;
+		}
+		int threads = Math.min(threads(), n);
+		if (threads <= 1) {
+			body.run(0, n);
+			return;
+		}
+		// Several chunks per thread keeps the threads busy when the work
+		// per index is uneven (i.e. masked voxels)
+		final int chunk = Math.max(Math.max(1, minChunk),
+				(n + 4 * threads - 1) / (4 * threads));
+		final AtomicInteger next = new AtomicInteger(0);
+		ExecutorService exe = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int t = 0; t < threads; t++) {
+			futures.add(exe.submit(new Runnable() {
+				public void run() {
+					int start;
+					while ((start = next.getAndAdd(chunk)) < n) {
+						body.run(start, Math.min(n, start + chunk));
+					}
+				}
+			}));
+		}
+		try {
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Parallel loop was interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		} finally {
+			exe.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the number of worker threads to use
+	 */
+	public static int threads() {
+		return Math.max(1, Prefs.getThreads());
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Reads the settings of a map plugin from an option string in the form
+ * ImageJ macros and batch runs pass it (Macro.getOptions()), i.e.
+ * "dir=[/data/study/6_adc/] slices=6,7,8 b0_correction". Values with
+ * spaces are put in brackets, a boolean is true when its key is present
+ * (or set to true) and false when it is missing, like an unchecked box in a
+ * recorded macro. Nothing here touches AWT, so the plugins' exec entry
+ * points can run headless.
+ *
+ * Updates:
+ * 10.19.26 - Created
+ * 10.19.26 - Keys only match whole option names (dir is not found in
+ *            ta_dir=...), a missing boolean is false
+ * 10.19.26 - A boolean can default to a plugin's class setting when missing
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class PluginOptions {
+
+	// Value of each option, null for a key without a value
+	private final Map<String, String> values = new HashMap<String, String>();
+
+	/**
+	 * @param options the option string, i.e. from Macro.getOptions()
+	 */
+	public PluginOptions(String options) {
+		String s = options == null ? "" : options;
+		int n = s.length();
+		int i = 0;
+		while (i < n) {
+			if (Character.isWhitespace(s.charAt(i))) {
+				i++;
+				continue;
+			}
+			int start = i;
+			while (i < n && s.charAt(i) != '='
+					&& !Character.isWhitespace(s.charAt(i))) {
+				i++;
+			}
+			String key = s.substring(start, i);
+			String value = null;
+			if (i < n && s.charAt(i) == '=') {
+				i++;
+				int end;
+				if (i < n && s.charAt(i) == '[') {
+					end = s.indexOf(']', ++i);
+				} else {
+					end = i;
+					while (end < n && !Character.isWhitespace(s.charAt(end))) {
+						end++;
+					}
+				}
+				if (end < 0) {
+					end = n;
+				}
+				value = s.substring(i, end);
+				i = end + 1;
+			}
+			// The first one counts, as with Macro.getValue
+			if (!values.containsKey(key)) {
+				values.put(key, value);
+			}
+		}
+	}
+
+	/**
+	 * @param key option name
+	 * @param def value if the option is missing
+	 * @return the value of the option
+	 */
+	public String get(String key, String def) {
+		String v = values.get(key);
+		return v == null ? def : v;
+	}
+
+	/**
+	 * @param key option name of a directory
+	 * @return the directory, ending with a separator like the paths from
+	 * DirectoryChooser
+	 * @throws IllegalArgumentException if the option is missing
+	 */
+	public String getDir(String key) {
+		String dir = this.get(key, null);
+		if (dir == null || dir.length() == 0) {
+			throw new IllegalArgumentException("The option " + key
+					+ "=[directory] is missing");
+		}
+		if (!dir.endsWith("/") && !dir.endsWith(File.separator)) {
+			dir += File.separator;
+		}
+		return dir;
+	}
+
+	/**
+	 * @param key option name
+	 * @param def value if the option is missing
+	 * @return the integer value
+	 * @throws IllegalArgumentException if the value is not an integer
+	 */
+	public int getInt(String key, int def) {
+		String v = this.get(key, null);
+		if (v == null) {
+			return def;
+		}
+		try {
+			return Integer.parseInt(v.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key + "=" + v
+					+ " is not an integer");
+		}
+	}
+
+	/**
+	 * @param key option name
+	 * @param def value if the option is missing
+	 * @return the numeric value
+	 * @throws IllegalArgumentException if the value is not a number
+	 */
+	public double getDouble(String key, double def) {
+		String v = this.get(key, null);
+		if (v == null) {
+			return def;
+		}
+		try {
+			return Double.parseDouble(v.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key + "=" + v
+					+ " is not a number");
+		}
+	}
+
+	/**
+	 * @param key option name
+	 * @return true if the key is present, or its value if it has one, false
+	 * if it is missing
+	 */
+	public boolean getBoolean(String key) {
+		return this.getBoolean(key, false);
+	}
+
+	/**
+	 * @param key option name
+	 * @param def value if the option is missing
+	 * @return true if the key is present, or its value if it has one
+	 */
+	public boolean getBoolean(String key, boolean def) {
+		if (!values.containsKey(key)) {
+			return def;
+		}
+		String v = values.get(key);
+		return v == null || !"false".equalsIgnoreCase(v.trim());
+	}
+
+	/**
+	 * @param key option name of a comma separated list, i.e. "6,7,8"
+	 * @param def value if the option is missing
+	 * @return the integers of the list
+	 * @throws IllegalArgumentException if an item is not an integer
+	 */
+	public int[] getInts(String key, int[] def) {
+		String v = this.get(key, null);
+		if (v == null) {
+			return def;
+		}
+		String[] items = v.trim().split("[,\\s]+");
+		int[] out = new int[items.length];
+		try {
+			for (int i = 0; i < items.length; i++) {
+				out[i] = Integer.parseInt(items[i]);
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key + "=" + v
+					+ " is not a list of integers");
+		}
+		return out;
+	}
+}
@@ -0,0 +1,253 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Content addressed cache of the images computed from Bruker data. The key
+ * of a result is the SHA-1 of the bytes of its input files (2dseq,
+ * visu_pars, method, ...) and of the processing parameters, so a rerun on
+ * unchanged data with unchanged settings loads the stored result instead of
+ * reading, scaling and fitting again. A changed file or parameter gives a
+ * new key, stale entries are never returned. The keys also hold VERSION
+ * and the settings() of the engine that made the result (its algorithm
+ * version and constants), so a changed fit does not load the results of
+ * the old one.
+ *
+ * Entries are TIFF files in the cache directory (hyperstack dimensions,
+ * calibration and slice labels are kept). The modification time of an
+ * entry is its last use, and the least recently used entries are deleted
+ * when the total size goes over the cap. Entries are written to a
+ * temporary file and renamed, so concurrent jobs never read half a file.
+ *
+ * Updates:
+ * 10.19.26 - Created
+ * 10.19.26 - Entries are saved from a copy, the caller's image keeps its
+ *            title
+ * 10.19.26 - Keys include VERSION and the engine settings
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
+import java.util.*;
+
+import ij.*;
+import ij.io.*;
+
+public class ResultCache {
+
+	public static final String EXT = ".tif";
+	public static final long DEFAULT_CAP = 2L << 30; // 2 GB
+	// Set to false to always recompute
+	public static boolean ENABLED = true;
+	// Part of every key, change it when the stored format or the scaling of
+	// the inputs changes
+	public static final String VERSION = "ResultCache 2";
+
+	private static ResultCache shared;
+
+	private final File dir;
+	private final long cap;
+	// File digests of this session, keyed by path, length and time stamp
+	private final Map<String, byte[]> digests = new HashMap<String, byte[]>();
+
+	/**
+	 * @param dir cache directory, created if missing
+	 * @param cap largest total size of the entries in bytes
+	 */
+	public ResultCache(File dir, long cap) {
+		this.dir = dir;
+		this.cap = cap;
+		dir.mkdirs();
+	}
+
+	/**
+	 * @return the cache in the ImageJ preferences directory, or null if
+	 * caching is turned off
+	 */
+	public static synchronized ResultCache shared() {
+		if (!ENABLED) {
+			return null;
+		}
+		if (shared == null) {
+			shared = new ResultCache(new File(Prefs.getPrefsDir(),
+					"bruker_cache"), DEFAULT_CAP);
+		}
+		return shared;
+	}
+
+	/**
+	 * Computes the key of a result
+	 * @param stage name of the processing step, i.e. "adc"
+	 * @param inputs files the result is computed from
+	 * @param params every setting that changes the result, including the
+	 * settings() of the engine
+	 * @return hex key
+	 * @throws IOException if an input cannot be read
+	 */
+	public String key(String stage, File[] inputs, Object... params)
+			throws IOException {
+		MessageDigest md = newDigest();
+		md.update(VERSION.getBytes("UTF-8"));
+		md.update((byte) 0);
+		md.update(stage.getBytes("UTF-8"));
+		for (File f : inputs) {
+			md.update((byte) 0);
+			md.update(f.getName().getBytes("UTF-8"));
+			md.update(this.digest(f));
+		}
+		for (Object p : params) {
+			md.update((byte) 0);
+			md.update(paramString(p).getBytes("UTF-8"));
+		}
+		return hex(md.digest());
+	}
+
+	/**
+	 * Loads a stored result and marks it as used
+	 * @param key key from key()
+	 * @return the image, or null if it is not cached
+	 */
+	public ImagePlus get(String key) {
+		File f = new File(dir, key + EXT);
+		if (!f.isFile()) {
+			return null;
+		}
+		ImagePlus imp = new Opener().openImage(f.getPath());
+		if (imp != null) {
+			f.setLastModified(System.currentTimeMillis());
+		}
+		return imp;
+	}
+
+	/**
+	 * Stores a result and evicts the least recently used entries over the
+	 * size cap. A failed write only loses the entry.
+	 * @param key key from key()
+	 * @param imp the result, its title and file info are not changed
+	 */
+	public void put(String key, ImagePlus imp) {
+		File f = new File(dir, key + EXT);
+		File tmp = new File(dir, key + "." + Thread.currentThread().getId()
+				+ ".tmp");
+		// Saving renames the image, so a copy that shares the pixels is saved
+		ImagePlus copy = new ImagePlus(imp.getTitle(), imp.getStack());
+		copy.setDimensions(imp.getNChannels(), imp.getNSlices(),
+				imp.getNFrames());
+		copy.setOpenAsHyperStack(imp.isHyperStack());
+		copy.setCalibration(imp.getCalibration());
+		try {
+			MapWriter.writeTiff(copy, tmp.getPath());
+			if (!tmp.renameTo(f)) {
+				f.delete();
+				if (!tmp.renameTo(f)) {
+					throw new IOException("Could not rename " + tmp);
+				}
+			}
+		} catch (IOException e) {
+			IJ.log("ResultCache: " + e.getMessage());
+			tmp.delete();
+			return;
+		}
+		this.evict();
+	}
+
+	/**
+	 * Deletes the least recently used entries until the cache fits its cap
+	 */
+	private synchronized void evict() {
+		File[] entries = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				return name.endsWith(EXT);
+			}
+		});
+		if (entries == null) {
+			return;
+		}
+		long total = 0;
+		for (File e : entries) {
+			total += e.length();
+		}
+		if (total <= cap) {
+			return;
+		}
+		final Map<File, Long> used = new HashMap<File, Long>();
+		for (File e : entries) {
+			used.put(e, e.lastModified());
+		}
+		Arrays.sort(entries, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return used.get(a).compareTo(used.get(b));
+			}
+		});
+		for (int i = 0; i < entries.length && total > cap; i++) {
+			long len = entries[i].length();
+			if (entries[i].delete()) {
+				total -= len;
+			}
+		}
+	}
+
+	/**
+	 * @return the SHA-1 of the file's bytes, remembered for this session
+	 * while the length and time stamp do not change
+	 */
+	private byte[] digest(File f) throws IOException {
+		String id = f.getCanonicalPath() + ":" + f.length() + ":"
+				+ f.lastModified();
+		synchronized (digests) {
+			byte[] d = digests.get(id);
+			if (d != null) {
+				return d;
+			}
+		}
+		MessageDigest md = newDigest();
+		FileInputStream in = new FileInputStream(f);
+		try {
+			FileChannel ch = in.getChannel();
+			ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+			while (ch.read(buf) > 0) {
+				buf.flip();
+				md.update(buf);
+				buf.clear();
+			}
+		} finally {
+			in.close();
+		}
+		byte[] d = md.digest();
+		synchronized (digests) {
+			digests.put(id, d);
+		}
+		return d;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String paramString(Object p) {
+		if (p instanceof int[]) {
+			return Arrays.toString((int[]) p);
+		} else if (p instanceof double[]) {
+			return Arrays.toString((double[]) p);
+		} else if (p instanceof boolean[]) {
+			return Arrays.toString((boolean[]) p);
+		} else if (p instanceof Object[]) {
+			return Arrays.deepToString((Object[]) p);
+		}
+		return String.valueOf(p);
+	}
+
+	private static String hex(byte[] b) {
+		StringBuilder sb = new StringBuilder();
+		for (byte x : b) {
+			sb.append(Character.forDigit((x >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(x & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
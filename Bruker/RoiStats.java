@@ -0,0 +1,446 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Region statistics of parameter maps (T2, ADC, MTR, CEST, ...) for many
+ * ROIs at once. The regions are a label image (0 = background, 1..n = ROI)
+ * with one plane for all slices or one plane per slice, or a RoiManager
+ * set whose masks are turned into the pixels of each ROI and slice once,
+ * so overlapping ROIs each keep all their pixels. Every (channel, slice,
+ * frame) plane of the map hyperstack is read a single time, in parallel, and the
+ * count, mean, SD, min, max, median, percentiles and histogram of each
+ * label are written as tidy CSV (one row per label, channel, slice and
+ * frame). NaN voxels are not counted.
+ *
+ * Updates:
+ * 10.19.26 - Created
+ * 10.19.26 - ROIs are measured with their own masks instead of a label
+ *            stack, overlapping ROIs no longer lose pixels; ROIs placed on
+ *            a hyperstack by stack index are on their z-slice
+ */
+
+import java.io.*;
+import java.util.*;
+
+import ij.*;
+import ij.gui.*;
+import ij.process.*;
+
+public class RoiStats {
+
+	public static final double[] PERCENTILES = {5, 25, 75, 95};
+	public static final int DEFAULT_BINS = 64;
+	public static final String HISTOGRAM_SUFFIX = "_histogram";
+
+	/**
+	 * Statistics of one label in one plane of the maps
+	 */
+	public static class Row {
+		public int label;
+		public int channel; // 1-based, as the hyperstack positions
+		public int slice;
+		public int frame;
+		public int count;
+		public double mean;
+		public double sd;
+		public double min;
+		public double max;
+		public double median;
+		public double[] percentiles;
+		public int[] histogram;
+	}
+
+	private final ImagePlus maps;
+	// Pixel indices of each label in each region plane, [label - 1][plane]
+	private final int[][][] regions;
+	private final String[] names;
+	private final int bins;
+	private Row[] rows;
+	private double[] histMin; // histogram range of each channel
+	private double[] histMax;
+
+	/**
+	 * @param maps the map image or hyperstack
+	 * @param labels 16-bit (or 8-bit) label image with one plane, or one
+	 * plane per slice of the maps
+	 * @param names ROI name of each label (index label - 1), may be null
+	 * @param bins number of histogram bins, spread over the range of each
+	 * channel inside the labels
+	 */
+	public RoiStats(ImagePlus maps, ImagePlus labels, String[] names,
+			int bins) {
+		this(maps, labelRegions(maps, labels), names, bins);
+	}
+
+	/**
+	 * @param maps the map image or hyperstack
+	 * @param rois the ROIs, i.e. RoiManager.getRoisAsArray(); ROI i is
+	 * label i + 1 and a ROI without a slice position is on every slice
+	 * @param bins number of histogram bins, spread over the range of each
+	 * channel inside the ROIs
+	 */
+	public RoiStats(ImagePlus maps, Roi[] rois, int bins) {
+		this(maps, roiRegions(maps, rois), names(rois), bins);
+	}
+
+	private RoiStats(ImagePlus maps, int[][][] regions, String[] names,
+			int bins) {
+		this.maps = maps;
+		this.regions = regions;
+		this.names = names;
+		this.bins = bins;
+	}
+
+	/**
+	 * The pixels of every label of a label image
+	 * @return pixel indices as [label - 1][label plane]
+	 */
+	private static int[][][] labelRegions(ImagePlus maps, ImagePlus labels) {
+		if (maps.getWidth() != labels.getWidth()
+				|| maps.getHeight() != labels.getHeight()) {
+			throw new IllegalArgumentException("The labels are "
+					+ labels.getWidth() + "x" + labels.getHeight()
+					+ ", the maps " + maps.getWidth() + "x"
+					+ maps.getHeight());
+		}
+		if (labels.getStackSize() != 1
+				&& labels.getStackSize() != maps.getNSlices()) {
+			throw new IllegalArgumentException("The labels have "
+					+ labels.getStackSize() + " planes for "
+					+ maps.getNSlices() + " slices");
+		}
+		if (labels.getBitDepth() != 8 && labels.getBitDepth() != 16) {
+			throw new IllegalArgumentException(
+					"The label image must be 8 or 16-bit");
+		}
+		ImageStack ls = labels.getStack();
+		int planes = ls.getSize();
+		int max = 0;
+		for (int s = 1; s <= planes; s++) {
+			ImageProcessor ip = ls.getProcessor(s);
+			for (int p = 0; p < ip.getPixelCount(); p++) {
+				max = Math.max(max, ip.get(p));
+			}
+		}
+		int[][][] out = new int[max][planes][];
+		for (int s = 0; s < planes; s++) {
+			ImageProcessor ip = ls.getProcessor(s + 1);
+			int n = ip.getPixelCount();
+			int[] count = new int[max + 1];
+			for (int p = 0; p < n; p++) {
+				count[ip.get(p)]++;
+			}
+			for (int l = 0; l < max; l++) {
+				out[l][s] = new int[count[l + 1]];
+			}
+			int[] fill = new int[max + 1];
+			for (int p = 0; p < n; p++) {
+				int l = ip.get(p);
+				if (l > 0) {
+					out[l - 1][s][fill[l]++] = p;
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * The pixels of every ROI from its own mask, so overlapping ROIs keep
+	 * all their pixels
+	 * @return pixel indices as [ROI][slice of the maps]
+	 */
+	private static int[][][] roiRegions(ImagePlus maps, Roi[] rois) {
+		int width = maps.getWidth();
+		int height = maps.getHeight();
+		int slices = maps.getNSlices();
+		int[][][] out = new int[rois.length][slices][];
+		for (int i = 0; i < rois.length; i++) {
+			Roi roi = rois[i];
+			int z = sliceOf(roi, maps);
+			ImageProcessor mask = roi.getMask();
+			java.awt.Rectangle r = roi.getBounds();
+			int[] px = new int[Math.max(0, r.width * r.height)];
+			int n = 0;
+			for (int y = Math.max(0, r.y); y < Math.min(height, r.y + r.height);
+					y++) {
+				for (int x = Math.max(0, r.x); x < Math.min(width,
+						r.x + r.width); x++) {
+					if (mask == null || mask.get(x - r.x, y - r.y) != 0) {
+						px[n++] = y * width + x;
+					}
+				}
+			}
+			px = Arrays.copyOf(px, n);
+			for (int s = 0; s < slices; s++) {
+				out[i][s] = z == 0 || z == s + 1 ? px : new int[0];
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * @param roi a ROI of the maps
+	 * @param maps the map image or hyperstack
+	 * @return the 1-based z-slice of the ROI, or 0 for every slice
+	 */
+	private static int sliceOf(Roi roi, ImagePlus maps) {
+		if (maps.getNSlices() == 1) {
+			return 0;
+		}
+		if (roi.hasHyperStackPosition()) {
+			return roi.getZPosition();
+		}
+		int pos = roi.getPosition();
+		if (pos == 0 || maps.getNChannels() * maps.getNFrames() == 1) {
+			return pos;
+		}
+		// A stack index of the hyperstack, i.e. set by the ROI Manager
+		if (pos > maps.getStackSize()) {
+			return -1;
+		}
+		return maps.convertIndexToPosition(pos)[1];
+	}
+
+	/**
+	 * @param rois the ROIs
+	 * @return the name of each ROI, as the label names
+	 */
+	public static String[] names(Roi[] rois) {
+		String[] n = new String[rois.length];
+		for (int i = 0; i < rois.length; i++) {
+			n[i] = rois[i].getName() != null ? rois[i].getName()
+					: "ROI " + (i + 1);
+		}
+		return n;
+	}
+
+	/**
+	 * Computes the statistics of every label in every plane
+	 * @return the rows, ordered by frame, slice, channel and label
+	 */
+	public Row[] measure() {
+		final int nc = maps.getNChannels();
+		final int nz = maps.getNSlices();
+		final int nt = maps.getNFrames();
+		final int nLabels = regions.length;
+		final ImageStack stack = maps.getStack();
+		final float[][][] values = new float[nc * nz * nt][][];
+
+		// One pass over the maps: the sorted values of each label
+		ParallelLoop.run(values.length, new ParallelLoop.Body() {
+			public void run(int start, int end) {
+				for (int i = start; i < end; i++) {
+					int c = i % nc;
+					int z = (i / nc) % nz;
+					int t = i / (nc * nz);
+					ImageProcessor ip = stack.getProcessor(
+							maps.getStackIndex(c + 1, z + 1, t + 1));
+					values[i] = split(ip, z);
+				}
+			}
+		});
+
+		// Histogram range of each channel over all labels
+		histMin = new double[nc];
+		histMax = new double[nc];
+		Arrays.fill(histMin, Double.POSITIVE_INFINITY);
+		Arrays.fill(histMax, Double.NEGATIVE_INFINITY);
+		for (int i = 0; i < values.length; i++) {
+			for (float[] v : values[i]) {
+				if (v.length > 0) {
+					histMin[i % nc] = Math.min(histMin[i % nc], v[0]);
+					histMax[i % nc] = Math.max(histMax[i % nc],
+							v[v.length - 1]);
+				}
+			}
+		}
+
+		rows = new Row[values.length * nLabels];
+		ParallelLoop.run(values.length, new ParallelLoop.Body() {
+			public void run(int start, int end) {
+				for (int i = start; i < end; i++) {
+					for (int l = 0; l < nLabels; l++) {
+						Row row = describe(values[i][l], i % nc);
+						row.label = l + 1;
+						row.channel = i % nc + 1;
+						row.slice = (i / nc) % nz + 1;
+						row.frame = i / (nc * nz) + 1;
+						rows[i * nLabels + l] = row;
+					}
+				}
+			}
+		});
+		return rows;
+	}
+
+	/**
+	 * Gathers the values of one map plane in every region
+	 * @param ip map plane
+	 * @param z 0-based slice of the plane
+	 * @return the sorted non NaN values of each label
+	 */
+	private float[][] split(ImageProcessor ip, int z) {
+		float[][] out = new float[regions.length][];
+		for (int l = 0; l < regions.length; l++) {
+			int[] px = regions[l][regions[l].length == 1 ? 0 : z];
+			float[] v = new float[px.length];
+			int n = 0;
+			for (int p : px) {
+				float x = ip.getf(p);
+				if (!Float.isNaN(x)) {
+					v[n++] = x;
+				}
+			}
+			out[l] = n < v.length ? Arrays.copyOf(v, n) : v;
+			Arrays.sort(out[l]);
+		}
+		return out;
+	}
+
+	/**
+	 * @param v sorted values of one label
+	 * @param c channel index, for the histogram range
+	 * @return the statistics without the position
+	 */
+	private Row describe(float[] v, int c) {
+		Row row = new Row();
+		row.count = v.length;
+		row.percentiles = new double[PERCENTILES.length];
+		row.histogram = new int[bins];
+		if (v.length == 0) {
+			row.mean = row.sd = row.min = row.max = row.median = Double.NaN;
+			Arrays.fill(row.percentiles, Double.NaN);
+			return row;
+		}
+		double sum = 0;
+		for (float x : v) {
+			sum += x;
+		}
+		row.mean = sum / v.length;
+		double ss = 0;
+		for (float x : v) {
+			ss += (x - row.mean) * (x - row.mean);
+		}
+		row.sd = v.length > 1 ? Math.sqrt(ss / (v.length - 1)) : 0;
+		row.min = v[0];
+		row.max = v[v.length - 1];
+		row.median = percentile(v, 50);
+		for (int k = 0; k < PERCENTILES.length; k++) {
+			row.percentiles[k] = percentile(v, PERCENTILES[k]);
+		}
+		double width = (histMax[c] - histMin[c]) / bins;
+		for (float x : v) {
+			int b = width > 0 ? (int) ((x - histMin[c]) / width) : 0;
+			row.histogram[Math.min(bins - 1, b)]++;
+		}
+		return row;
+	}
+
+	/**
+	 * Linear interpolated percentile of sorted values
+	 */
+	private static double percentile(float[] v, double q) {
+		double pos = q / 100 * (v.length - 1);
+		int i = (int) pos;
+		if (i + 1 >= v.length) {
+			return v[v.length - 1];
+		}
+		return v[i] + (pos - i) * (v[i + 1] - v[i]);
+	}
+
+	/**
+	 * Writes the statistics of measure() as CSV, and the histograms as a
+	 * second CSV with the HISTOGRAM_SUFFIX (one row per bin)
+	 * @param path the statistics file, i.e. "stats.csv"
+	 * @throws IOException if a file cannot be written
+	 */
+	public void writeCsv(String path) throws IOException {
+		if (rows == null) {
+			this.measure();
+		}
+		String[] channels = this.channelNames();
+		PrintWriter out = new PrintWriter(new BufferedWriter(
+				new FileWriter(path)));
+		try {
+			out.print("image,label,name,channel,channel_name,slice,frame,"
+					+ "count,mean,sd,min,max,median");
+			for (double q : PERCENTILES) {
+				out.print(",p" + (int) q);
+			}
+			out.println();
+			for (Row r : rows) {
+				out.print(csv(maps.getTitle()) + "," + r.label + ","
+						+ csv(this.labelName(r.label)) + "," + r.channel + ","
+						+ csv(channels[r.channel - 1]) + "," + r.slice + ","
+						+ r.frame + "," + r.count + "," + r.mean + "," + r.sd
+						+ "," + r.min + "," + r.max + "," + r.median);
+				for (double p : r.percentiles) {
+					out.print("," + p);
+				}
+				out.println();
+			}
+		} finally {
+			out.close();
+		}
+		if (out.checkError()) {
+			throw new IOException("Could not write " + path);
+		}
+
+		int dot = path.lastIndexOf('.');
+		String hist = dot > path.lastIndexOf(File.separatorChar)
+				? path.substring(0, dot) + HISTOGRAM_SUFFIX + path.substring(dot)
+				: path + HISTOGRAM_SUFFIX;
+		out = new PrintWriter(new BufferedWriter(new FileWriter(hist)));
+		try {
+			out.println("image,label,name,channel,slice,frame,bin_start,"
+					+ "bin_end,count");
+			for (Row r : rows) {
+				int c = r.channel - 1;
+				double width = (histMax[c] - histMin[c]) / bins;
+				for (int b = 0; b < bins; b++) {
+					out.println(csv(maps.getTitle()) + "," + r.label + ","
+							+ csv(this.labelName(r.label)) + "," + r.channel
+							+ "," + r.slice + "," + r.frame + ","
+							+ (histMin[c] + b * width) + ","
+							+ (histMin[c] + (b + 1) * width) + ","
+							+ r.histogram[b]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (out.checkError()) {
+			throw new IOException("Could not write " + hist);
+		}
+	}
+
+	private String labelName(int label) {
+		return names != null && label <= names.length ? names[label - 1]
+				: "label " + label;
+	}
+
+	/**
+	 * @return the name of each channel from the slice labels of the first
+	 * slice (i.e. "ADC" or "MTR_asym 3.5ppm"), without the slice number
+	 */
+	private String[] channelNames() {
+		String[] out = new String[maps.getNChannels()];
+		for (int c = 0; c < out.length; c++) {
+			String l = maps.getStack().getSliceLabel(
+					maps.getStackIndex(c + 1, 1, 1));
+			if (l != null) {
+				l = l.split("\n")[0].replaceAll(
+						"(?i)\\s*slice[_ ]?\\d+\\s*", " ").trim();
+			}
+			out[c] = l == null || l.length() == 0 ? "channel " + (c + 1) : l;
+		}
+		return out;
+	}
+
+	private static String csv(String s) {
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0) {
+			return s;
+		}
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+}
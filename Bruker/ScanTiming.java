@@ -0,0 +1,131 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Acquisition values of the images of a 2dseq stack, read from the scan's
+ * method (and visu_pars) file instead of being typed into the T1, T2 and
+ * diffusion dialogs: the echo times, the repetition times and the
+ * effective b-values. A stack is from a 2dseq when Bruker2dseq made it or
+ * when it was imported from a file called 2dseq. The number of values has
+ * to match the number of images in the stack.
+ *
+ * Updates:
+ * 10.19.26 - Created
+ * 10.19.26 - Readers of other formats (i.e. the FDF openers) can attach the
+ *            values to the stack as VALUE_PROPERTIES
+ */
+
+import java.io.*;
+
+import ij.*;
+import ij.io.*;
+
+public class ScanTiming {
+
+	// ImagePlus property with the pdata directory of a Bruker2dseq stack
+	public static final String PDATA_DIR = "BrukerPdataDir";
+	public static final String METHOD = "method";
+
+	// Kinds of values, the parameters are tried in order
+	public static final int ECHO_TIME = 0;
+	public static final int REPETITION_TIME = 1;
+	public static final int B_VALUE = 2;
+	private static final String[][] KEYS = {
+		{"EffectiveTE", "VisuAcqEchoTime", "PVM_EchoTime"},
+		{"MultiRepTime", "VisuAcqRepetitionTime", "PVM_RepetitionTime"},
+		{"PVM_DwEffBval"}};
+	private static final String[] NAMES = {"TE", "TR", "b"};
+	// ParaVision stores times in ms, the fits use seconds
+	private static final double[] TO_UNIT = {1e-3, 1e-3, 1};
+	// ImagePlus properties with one value per image (s, s, s/mm^2),
+	// the same names as ScanValues.PROPERTIES in Input-Output
+	public static final String[] VALUE_PROPERTIES = {"EchoTimes",
+		"RepetitionTimes", "BValues"};
+
+	/**
+	 * @param imp an image stack
+	 * @return the pdata directory the stack was read from, or null if it
+	 * is not from a 2dseq
+	 */
+	public static File pdataDir(ImagePlus imp) {
+		Object dir = imp.getProperty(PDATA_DIR);
+		if (dir != null) {
+			return new File(dir.toString());
+		}
+		FileInfo fi = imp.getOriginalFileInfo();
+		if (fi != null && Bruker2dseq.SEQ.equals(fi.fileName)
+				&& fi.directory != null) {
+			return new File(fi.directory);
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the values of each image of a 2dseq stack
+	 * @param imp the image stack
+	 * @param kind ECHO_TIME, REPETITION_TIME (both in s) or B_VALUE
+	 * (s/mm^2)
+	 * @return one value per image, or null if the stack is not from a
+	 * 2dseq and has no VALUE_PROPERTIES
+	 * @throws IOException if the method file cannot be read
+	 * @throws IllegalArgumentException if the values are missing or do
+	 * not match the number of images
+	 */
+	public static double[] values(ImagePlus imp, int kind)
+			throws IOException {
+		Object attached = imp.getProperty(VALUE_PROPERTIES[kind]);
+		if (attached instanceof double[]) {
+			double[] v = ((double[]) attached).clone();
+			if (v.length != imp.getStackSize()) {
+				throw new IllegalArgumentException(v.length + " "
+						+ NAMES[kind] + " values for " + imp.getStackSize()
+						+ " images");
+			}
+			return v;
+		}
+		File pdata = pdataDir(imp);
+		if (pdata == null) {
+			return null;
+		}
+		// pdata/N -> scan folder
+		File scan = pdata.getAbsoluteFile().getParentFile().getParentFile();
+		JcampParams method = JcampParams.read(scan.getPath(), METHOD);
+		JcampParams visu = null;
+		if (new File(pdata, Bruker2dseq.VISU_PARS).isFile()) {
+			visu = JcampParams.read(pdata.getPath(), Bruker2dseq.VISU_PARS);
+		}
+		double[] v = null;
+		for (int k = 0; k < KEYS[kind].length && v == null; k++) {
+			v = method.getDoubles(KEYS[kind][k]);
+			if (v == null && visu != null) {
+				v = visu.getDoubles(KEYS[kind][k]);
+			}
+		}
+		if (v == null) {
+			throw new IllegalArgumentException("No " + NAMES[kind]
+					+ " values in " + method.getPath());
+		}
+		int n = imp.getStackSize();
+		if (v.length != n) {
+			throw new IllegalArgumentException(v.length + " " + NAMES[kind]
+					+ " values in " + method.getPath() + " for " + n
+					+ " images");
+		}
+		for (int i = 0; i < v.length; i++) {
+			v[i] *= TO_UNIT[kind];
+		}
+		return v;
+	}
+
+	/**
+	 * @param v values
+	 * @return the values separated by spaces, as typed in the dialogs
+	 */
+	public static String toString(double[] v) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < v.length; i++) {
+			sb.append(i > 0 ? " " : "").append((float) v[i]);
+		}
+		return sb.toString();
+	}
+}
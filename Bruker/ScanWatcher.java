@@ -0,0 +1,238 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Watches a ParaVision study directory for processed data sets
+ * (study/N_name/pdata/K) that have finished landing. A data set is complete
+ * when its 2dseq and visu_pars exist, the 2dseq holds every frame listed in
+ * visu_pars, and the sizes and modification times did not change between
+ * two polls. Each complete data set is handed once to the listener on a
+ * bounded pool of worker threads.
+ *
+ * The directory is polled instead of using a WatchService because the
+ * scanner's export share is usually mounted over the network, where file
+ * events are not delivered reliably. poll() can also be called directly
+ * (i.e. on a local test directory) without starting the timer.
+ *
+ * Updates:
+ * 10.19.26 - Created for the Watch_Scans plugin
+ * 10.19.26 - stop() returns at once, stop(timeout) waits for the workers
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ScanWatcher {
+
+	/**
+	 * Receives the complete data sets, called on a worker thread
+	 */
+	public interface Listener {
+		/**
+		 * @param pdataDir the complete pdata/K directory
+		 * @throws Exception any error, it is reported to failed()
+		 */
+		void scanReady(File pdataDir) throws Exception;
+
+		/**
+		 * @param pdataDir the data set that could not be processed
+		 * @param e the error
+		 */
+		void failed(File pdataDir, Exception e);
+	}
+
+	public static final String PDATA = "pdata";
+
+	private final File study;
+	private final Listener listener;
+	private final ThreadPoolExecutor pool;
+	private final Map<File, String> lastSeen = new HashMap<File, String>();
+	private final Set<File> handled = Collections.synchronizedSet(
+			new HashSet<File>());
+	private ScheduledExecutorService timer;
+
+	/**
+	 * @param study the study directory that holds the scan folders
+	 * @param listener receives the complete data sets
+	 * @param threads number of data sets processed at the same time
+	 * @param queueSize number of complete data sets that may wait, more
+	 * are left for a later poll
+	 */
+	public ScanWatcher(File study, Listener listener, int threads,
+			int queueSize) {
+		this.study = study;
+		this.listener = listener;
+		this.pool = new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						Math.max(1, queueSize)));
+	}
+
+	/**
+	 * Marks the data sets that are complete now as handled, so only scans
+	 * that land after this call are processed
+	 */
+	public synchronized void skipExisting() {
+		for (File pdata : this.dataSets()) {
+			if (isComplete(pdata)) {
+				handled.add(pdata);
+			}
+		}
+	}
+
+	/**
+	 * Polls the study directory every period seconds until stop()
+	 * @param period seconds between two polls
+	 */
+	public synchronized void start(double period) {
+		if (timer != null) {
+			return;
+		}
+		timer = Executors.newSingleThreadScheduledExecutor();
+		long ms = Math.max(100, (long) (period * 1000));
+		timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				poll();
+			}
+		}, 0, ms, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops polling without waiting, the running and queued data sets are
+	 * still handed to the listener
+	 * @return number of data sets that are running or queued
+	 */
+	public int stop() {
+		synchronized (this) {
+			if (timer != null) {
+				timer.shutdownNow();
+				timer = null;
+			}
+		}
+		pool.shutdown();
+		return pool.getActiveCount() + pool.getQueue().size();
+	}
+
+	/**
+	 * Stops polling and waits for the running and queued data sets
+	 * @param timeout seconds to wait for the workers
+	 * @return true if all workers finished in time
+	 */
+	public boolean stop(double timeout) throws InterruptedException {
+		this.stop();
+		return pool.awaitTermination((long) (timeout * 1000),
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Checks every data set once and queues the ones that became complete
+	 * and stable since the previous poll
+	 * @return number of data sets queued by this poll
+	 */
+	public synchronized int poll() {
+		int queued = 0;
+		for (final File pdata : this.dataSets()) {
+			if (handled.contains(pdata)) {
+				continue;
+			}
+			String sig = signature(pdata);
+			String prev = lastSeen.put(pdata, sig);
+			if (sig == null || !sig.equals(prev) || !isComplete(pdata)) {
+				continue;
+			}
+			handled.add(pdata);
+			try {
+				pool.execute(new Runnable() {
+					public void run() {
+						try {
+							listener.scanReady(pdata);
+						} catch (Exception e) {
+							listener.failed(pdata, e);
+						}
+					}
+				});
+				queued++;
+			} catch (RejectedExecutionException e) {
+				// The queue is full, try again on the next poll
+				handled.remove(pdata);
+				lastSeen.remove(pdata);
+			}
+		}
+		return queued;
+	}
+
+	/**
+	 * @return number of data sets waiting or being processed
+	 */
+	public int getPending() {
+		return pool.getQueue().size() + pool.getActiveCount();
+	}
+
+	/**
+	 * @return every pdata/K directory of the study
+	 */
+	private List<File> dataSets() {
+		List<File> out = new ArrayList<File>();
+		File[] scans = study.listFiles();
+		if (scans == null) {
+			return out;
+		}
+		Arrays.sort(scans);
+		for (File scan : scans) {
+			File[] procs = new File(scan, PDATA).listFiles();
+			if (procs == null) {
+				continue;
+			}
+			Arrays.sort(procs);
+			for (File p : procs) {
+				if (p.isDirectory()) {
+					out.add(p);
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * @return sizes and modification times of 2dseq and visu_pars, or null
+	 * if one of them is missing
+	 */
+	private static String signature(File pdata) {
+		File seq = new File(pdata, Bruker2dseq.SEQ);
+		File visu = new File(pdata, Bruker2dseq.VISU_PARS);
+		if (!seq.isFile() || !visu.isFile()) {
+			return null;
+		}
+		return seq.length() + ":" + seq.lastModified() + ":" + visu.length()
+				+ ":" + visu.lastModified();
+	}
+
+	/**
+	 * @param pdata a pdata/K directory
+	 * @return true if the 2dseq holds all frames described in visu_pars
+	 */
+	public static boolean isComplete(File pdata) {
+		File seq = new File(pdata, Bruker2dseq.SEQ);
+		if (!seq.isFile()) {
+			return false;
+		}
+		try {
+			JcampParams visu = JcampParams.read(pdata.getPath(),
+					Bruker2dseq.VISU_PARS);
+			double[] size = visu.getDoubles("VisuCoreSize");
+			if (size == null || size.length < 2) {
+				return false;
+			}
+			long need = Bruker2dseq.bytesPerWord(visu.getString(
+					"VisuCoreWordType"));
+			for (double s : size) {
+				need *= Math.round(s);
+			}
+			need *= visu.getInt("VisuCoreFrameCount", 1);
+			return seq.length() >= need;
+		} catch (IOException e) {
+			// visu_pars is still being written or the word type is unknown
+			return false;
+		}
+	}
+}
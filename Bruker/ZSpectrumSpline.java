@@ -0,0 +1,177 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Smoothing spline of a voxel's Z-spectrum used for the B0 (WASSR style)
+ * correction of the CEST maps. The spectrum is smoothed with a second
+ * difference penalty (Whittaker smoother) and interpolated with a natural
+ * cubic spline. Both steps are linear in the data and depend only on the
+ * offsets, so the matrices that give the smoothed values and the spline's
+ * second derivatives are computed once and shared by all voxels.
+ *
+ * Per voxel the water centre is the minimum of the spline near 0 ppm, and
+ * the spectrum can then be read at any shifted offset.
+ *
+ * Updates:
+ * 10.19.26 - Created
+ */
+
+public class ZSpectrumSpline {
+
+	private final double[] x;
+	private final int n;
+	private final double[][] smooth; // smoothed values = smooth * s
+	private final double[][] curve; // second derivatives = curve * s
+
+	/**
+	 * Precomputes the spline basis of the offsets
+	 * @param ppm saturation offsets in increasing order
+	 * @param lambda smoothing weight, 0 interpolates the raw spectrum
+	 */
+	public ZSpectrumSpline(double[] ppm, double lambda) {
+		n = ppm.length;
+		if (n < 4) {
+			throw new IllegalArgumentException("A Z-spectrum needs at least "
+					+ "4 offsets");
+		}
+		x = ppm.clone();
+		for (int i = 1; i < n; i++) {
+			if (x[i] <= x[i - 1]) {
+				throw new IllegalArgumentException("Offsets must increase");
+			}
+		}
+
+		// Whittaker smoother (I + lambda D'D)^-1, D = second differences
+		double[][] a = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			a[i][i] = 1;
+		}
+		for (int r = 0; r < n - 2; r++) {
+			double[] d = {1, -2, 1};
+			for (int i = 0; i < 3; i++) {
+				for (int j = 0; j < 3; j++) {
+					a[r + i][r + j] += lambda * d[i] * d[j];
+				}
+			}
+		}
+		smooth = LinearFit.invert(a);
+
+		// Natural cubic spline: T m = R y for the interior second derivatives
+		int k = n - 2;
+		double[][] t = new double[k][k];
+		double[][] r = new double[k][n];
+		for (int i = 1; i < n - 1; i++) {
+			double h0 = x[i] - x[i - 1];
+			double h1 = x[i + 1] - x[i];
+			if (i > 1) {
+				t[i - 1][i - 2] = h0;
+			}
+			t[i - 1][i - 1] = 2 * (h0 + h1);
+			if (i < n - 2) {
+				t[i - 1][i] = h1;
+			}
+			r[i - 1][i - 1] = 6 / h0;
+			r[i - 1][i] = -6 / h0 - 6 / h1;
+			r[i - 1][i + 1] = 6 / h1;
+		}
+		double[][] interior = LinearFit.multiply(LinearFit.multiply(
+				LinearFit.invert(t), r), smooth);
+		curve = new double[n][];
+		curve[0] = new double[n];
+		curve[n - 1] = new double[n];
+		for (int i = 1; i < n - 1; i++) {
+			curve[i] = interior[i - 1];
+		}
+	}
+
+	/**
+	 * @return number of offsets
+	 */
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * Smooths one spectrum and computes its spline coefficients
+	 * @param s the measured spectrum
+	 * @param z receives the smoothed values
+	 * @param m receives the spline's second derivatives
+	 */
+	public void fit(float[] s, double[] z, double[] m) {
+		for (int i = 0; i < n; i++) {
+			double[] hs = smooth[i];
+			double[] hc = curve[i];
+			double a = 0, b = 0;
+			for (int j = 0; j < n; j++) {
+				a += hs[j] * s[j];
+				b += hc[j] * s[j];
+			}
+			z[i] = a;
+			m[i] = b;
+		}
+	}
+
+	/**
+	 * Evaluates the spline, clamped to the measured offset range
+	 * @param z smoothed values from fit
+	 * @param m second derivatives from fit
+	 * @param ppm offset to evaluate
+	 * @return the interpolated signal
+	 */
+	public double eval(double[] z, double[] m, double ppm) {
+		if (ppm <= x[0]) {
+			return z[0];
+		}
+		if (ppm >= x[n - 1]) {
+			return z[n - 1];
+		}
+		int lo = 0;
+		int hi = n - 1;
+		while (hi - lo > 1) {
+			int mid = (lo + hi) >>> 1;
+			if (x[mid] > ppm) {
+				hi = mid;
+			} else {
+				lo = mid;
+			}
+		}
+		double h = x[hi] - x[lo];
+		double a = (x[hi] - ppm) / h;
+		double b = (ppm - x[lo]) / h;
+		return a * z[lo] + b * z[hi] + ((a * a * a - a) * m[lo]
+				+ (b * b * b - b) * m[hi]) * h * h / 6;
+	}
+
+	/**
+	 * Finds the water centre as the minimum of the spline
+	 * @param z smoothed values from fit
+	 * @param m second derivatives from fit
+	 * @param window the centre is searched in [-window, window] ppm
+	 * @param step search step in ppm
+	 * @return the centre offset in ppm
+	 */
+	public double centre(double[] z, double[] m, double window, double step) {
+		int steps = (int) Math.round(2 * window / step);
+		double best = 0;
+		double bestVal = Double.MAX_VALUE;
+		int bestIdx = 0;
+		for (int i = 0; i <= steps; i++) {
+			double v = this.eval(z, m, -window + i * step);
+			if (v < bestVal) {
+				bestVal = v;
+				bestIdx = i;
+			}
+		}
+		best = -window + bestIdx * step;
+		// Parabola through the neighbours refines the grid minimum
+		if (bestIdx > 0 && bestIdx < steps) {
+			double l = this.eval(z, m, best - step);
+			double r = this.eval(z, m, best + step);
+			double d = l - 2 * bestVal + r;
+			if (d > 0) {
+				best += 0.5 * step * (l - r) / d;
+			}
+		}
+		return best;
+	}
+}
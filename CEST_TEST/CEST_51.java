@@ -20,6 +20,21 @@
  * 06.10.2019 - Finished 51 offset functionality and tested to work correctly, need to implmenet closing window
  * 06.21.19 - Edited file to prompt user for slices and offset counts, and uses that to generalize CEST mappings to any number
  * of offsets or slices
+ * 10.19.26 - Maps are computed at the acquired matrix and upscaled only when
+ * they are saved (NATIVE_MATRIX)
+ * 10.19.26 - All offset pairs and slices are computed by CestEngine in one
+ * pass and saved as a single (pair x slice) hyperstack
+ * 10.19.26 - Added the per voxel B0 correction of the Z-spectra (B0_CORRECTION)
+ * 10.19.26 - Added the multi-pool Lorentzian fit (LORENTZ_FIT)
+ * 10.19.26 - Maps are written on a background thread by MapWriter, as TIFF
+ * or as a raw float volume with a .json sidecar (RAW_OUTPUT)
+ * 10.19.26 - Maps of unchanged scans and settings are loaded from the
+ * ResultCache instead of being read and computed again
+ * 10.19.26 - Settings are held in Params and the maps are made by exec(),
+ * which needs no windows or dialogs (macro, batch and headless runs pass
+ * "cest=[...] zero_power=[...] slices=10 offsets=51 b0_correction")
+ * 10.19.26 - Flags missing from the macro options keep their class defaults
+ * 10.19.26 - The B0 correction is opt-in, a check box of the dialog
  *
  */
 
@@ -45,10 +60,53 @@ public class CEST_51 implements PlugIn {
 	public static final String PATHS1 = "pdata/1";
 	public static final String IM = "/2dseq";
 	public static final String VIS_PAR = "/visu_pars";
+	
+	// Maps are computed at the acquired matrix and only the saved maps are
+	// upscaled to OUTPUT_SIZE (false saves them at the acquired matrix)
+	public static boolean NATIVE_MATRIX = true;
+	public static final int OUTPUT_SIZE = 256;
+	// Largest saturation offset of the protocol, offsets are evenly spaced
+	public static final double MAX_PPM = 5;
+	// Shifts each voxel's Z-spectrum to its fitted water centre before the
+	// asymmetry is taken, SMOOTHING is the spline's smoothing weight. Off by
+	// default so the maps match the uncorrected ones, runs opt in
+	public static boolean B0_CORRECTION = false;
+	public static final double SMOOTHING = 2;
+	// Also fits water, amide, amine, NOE and MT Lorentzians in every voxel
+	public static boolean LORENTZ_FIT = false;
+	// Writes cest_map_*.raw + .json for memory mapping instead of TIFF
+	public static boolean RAW_OUTPUT = false;
 
-	private String userInput;
-	private boolean bAbort;
-	private int numSlices, numOffsets;
+	/**
+	 * Settings of one run, the flags start from the class defaults
+	 */
+	public static class Params {
+		public String dir; // i.e. .../30_cest_51_offsets/
+		public String dir0; // i.e. .../31_cest_0_power/
+		public int numSlices;
+		public int numOffsets;
+		public boolean b0Correction = B0_CORRECTION;
+		public boolean lorentzFit = LORENTZ_FIT;
+		public boolean rawOutput = RAW_OUTPUT;
+		
+		/**
+		 * @param options macro options, i.e. from Macro.getOptions()
+		 * @return the settings, a flag the options do not name keeps its
+		 * class default (b0_correction=false turns one off)
+		 */
+		public static Params fromOptions(String options) {
+			PluginOptions o = new PluginOptions(options);
+			Params p = new Params();
+			p.dir = o.getDir("cest");
+			p.dir0 = o.getDir("zero_power");
+			p.numSlices = o.getInt("slices", 0);
+			p.numOffsets = o.getInt("offsets", 0);
+			p.b0Correction = o.getBoolean("b0_correction", B0_CORRECTION);
+			p.lorentzFit = o.getBoolean("lorentz_fit", LORENTZ_FIT);
+			p.rawOutput = o.getBoolean("raw_output", RAW_OUTPUT);
+			return p;
+		}
+	}
 	
 	/**
 	// For Windows:
@@ -59,45 +117,56 @@ public class CEST_51 implements PlugIn {
 	@Override
 	public void run(String arg) {
 		IJ.log("running newest version: bkim 2");
-		// Clears previous images if any
-		IJ.run("Close All", "");
+		// Macro and batch runs skip the dialogs
+		String options = Macro.getOptions();
+		try {
+			Params p;
+			if (options != null) {
+				p = Params.fromOptions(options);
+			} else {
+				// Clears previous images if any
+				IJ.run("Close All", "");
+				p = this.askParams();
+				if (p == null) {
+					return;
+				}
+			}
+			ImagePlus[] maps = this.exec(p);
+			if (options == null) {
+				for (ImagePlus imp : maps) {
+					imp.show();
+				}
+				IJ.showMessage("All Generated maps are saved in:\n"
+						+ this.savePath(p, "all"));
+			}
+		} catch (IOException e) {
+			IJ.error("The maps could not be made: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			IJ.error(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Asks for the slice/offset counts and the two scan directories
+	 * @return the settings, or null if canceled
+	 */
+	private Params askParams() {
 		GenericDialog gd = new GenericDialog("CEST Parameters", IJ.getInstance());
 		gd.addMessage("Enter number of slices/Number of offsets (ex: 10/51)");
 		gd.addStringField("Parameters:", "", 50);
+		gd.addCheckbox("B0 correction of the Z-spectra", B0_CORRECTION);
 		gd.showDialog();
 		if (gd.wasCanceled()){
-			bAbort = true;
-			return;
+			return null;
 		}
-		userInput = gd.getNextString();
+		String userInput = gd.getNextString();
+		boolean b0Correction = gd.getNextBoolean();
 		if(userInput.length()==0){
 			IJ.error("No parameters entered");
-			bAbort = true;
-			return;
+			return null;
 		}
-		// Gets CEST directory
-		String dir = this.grabDir("cest_51_offsets", 25);
-		ImagePlus cest1 = this.getImage(dir, PATHS1);
-		cest1 = this.basicModify(cest1);
-		int[] openWindows = WindowManager.getIDList();
-		cest1 = WindowManager.getImage(openWindows[openWindows.length - 1]);
-		cest1 = this.slopeImp(cest1, dir);
-		this.closer(IM.substring(1));
-		cest1 = WindowManager.getCurrentImage();
-		
-		// Gets 0 power directory
-		String dir0 = this.grabDir("cest_0_power", 26);
-		ImagePlus zeroPow = this.getImage(dir0, PATHS1);
-		zeroPow = this.basicModify(zeroPow);
-		openWindows = WindowManager.getIDList();
-		zeroPow = WindowManager.getImage(openWindows[openWindows.length - 1]);
-		zeroPow = this.slopeImp(zeroPow, dir0);
-		this.closer(IM.substring(1));
-		zeroPow = WindowManager.getCurrentImage();
-		
-		//Directory for saving the cest maps created
-		String saveDir = dir + PATHS1.substring(0, PATHS1.length() - 1);
-
+		Params p = new Params();
+		p.b0Correction = b0Correction;
 		int idx1 = userInput.indexOf("/");
 		if (idx1 == -1) {
 			throw new IllegalArgumentException("Need to input slice/offsets");
@@ -106,62 +175,99 @@ public class CEST_51 implements PlugIn {
 			String userInputOffsets = userInput.substring(idx1 + 1);
 			IJ.log("slices: " + userInputSlices);
 			IJ.log("offsets: " + userInputOffsets);
-			this.numSlices = Integer.parseInt(userInputSlices);
-			this.numOffsets = Integer.parseInt(userInputOffsets);
+			p.numSlices = Integer.parseInt(userInputSlices.trim());
+			p.numOffsets = Integer.parseInt(userInputOffsets.trim());
 		}
 		
-		// Amide: create cest_map_35 for -5 and 5 ppm splits
-		//ImagePlus map50 = this.gagCreate(1, 501, cest1, zeroPow, 50, saveDir);
-		//for loop to create all cest maps for all frequencies, from 4.8, -4.8 to .2, -.2
-		int sliceNum = 1;
-		//outer loop through slices
-		for (int i = 1; i <= numSlices; i++) {
-			int upperSlice = ((numSlices * numOffsets) - numSlices) + i;
-			int dirVal = (numOffsets - 1);
-			int finalSlice = 0;
-			//inner loop through frequencies
-			for (int j = i; j <=((numSlices * numOffsets) - numSlices) / 2; j += numSlices) {
-				ImagePlus map50 = this.gagCreate(j, upperSlice, cest1, zeroPow, "slice_" + sliceNum + " " + dirVal, saveDir);
-				IJ.log("for slice: " + sliceNum + " Combining: " +j + " and " + upperSlice);
-				WindowManager.getCurrentImage().close();
-				WindowManager.getCurrentImage().close();
-				upperSlice -= numSlices;
-				dirVal -= 2;
-				finalSlice = j;
-
-			}
-
-			//Just saves 0 power image from original stack with no math
-			IJ.run(cest1, "Substack Maker", "slices=" + (finalSlice+10));
-			ImagePlus zeroPower = WindowManager.getImage("Substack (" + (finalSlice+10) + ")");
-			this.saveImage(zeroPower, saveDir, "slice_" + sliceNum + " 0POWER");
-			WindowManager.getCurrentImage().close();
-			sliceNum++;
+		// Gets CEST and 0 power directories
+		p.dir = this.grabDir("cest_51_offsets", 25);
+		if (p.dir == null) {
+			return null;
 		}
-
-		IJ.showMessage("All Generated maps will be saved in:\n" + saveDir);
+		p.dir0 = this.grabDir("cest_0_power", 26);
+		return p.dir0 == null ? null : p;
 	}
 	
 	/**
-	 * Finds slope and returns the updated ImagePlus file after multiplying 
-	 * the slope to the image
-	 * @param imp ImagePlus file
-	 * @param dir String of the directory where visu_par is located
+	 * Computes and saves the CEST maps without windows or dialogs, so it
+	 * can run headless and several studies can run at once
+	 * @param p the settings
+	 * @return the asymmetry maps, and the Lorentzian pool maps when
+	 * p.lorentzFit is set, at OUTPUT_SIZE
+	 * @throws IOException if a 2dseq cannot be read or a map saved
+	 * @throws IllegalArgumentException if the slice or offset count is
+	 * missing
 	 */
-	public ImagePlus slopeImp(ImagePlus imp, String dir) {
-		double slope = 0;
-		// Retrieve visu_par slope for images
-		try {
-			slope = this.getSlope(dir + PATHS1, 
-					"##$VisuCoreDataSlope=(");
-		} catch (FileNotFoundException e) {
-			IJ.error("Slopes were not retrieved.");
+	public ImagePlus[] exec(Params p) throws IOException {
+		if (p.numSlices < 1 || p.numOffsets < 1) {
+			throw new IllegalArgumentException("Need the number of slices "
+					+ "and offsets (slices=10 offsets=51)");
 		}
 		
-		// Multiply all images by the visu_par slope
-		IJ.run(imp, "Multiply...", "value=" + slope + " stack");	
+		// Results of the same scans and settings come from the cache
+		ResultCache cache = ResultCache.shared();
+		String mapsKey = this.cacheKey(cache, "cest", p, p.b0Correction,
+				SMOOTHING, CestEngine.settings());
+		String poolsKey = p.lorentzFit ? this.cacheKey(cache, "cest_lorentz",
+				p, CestEngine.settings(),
+				LorentzianFitter.settings(LorentzianFitter.defaultPools()))
+				: null;
+		ImagePlus maps = mapsKey != null ? cache.get(mapsKey) : null;
+		ImagePlus pools = poolsKey != null ? cache.get(poolsKey) : null;
+		
+		// Reads both slope scaled stacks once
+		Bruker2dseq cest1 = null;
+		Bruker2dseq zeroPow = null;
+		if (maps == null || (p.lorentzFit && pools == null)) {
+			cest1 = new Bruker2dseq(p.dir + PATHS1);
+			zeroPow = new Bruker2dseq(p.dir0 + PATHS1);
+		}
 		
-		return imp;
+		// Asymmetry of every offset pair (from +-5 down to +-0.2 ppm) and
+		// the 0 power image of every slice in one pass
+		CestEngine engine = new CestEngine(p.numSlices, p.numOffsets,
+				CestEngine.linearOffsets(p.numOffsets, MAX_PPM));
+		if (p.b0Correction) {
+			engine.setB0Correction(SMOOTHING);
+		}
+		if (maps == null) {
+			maps = engine.compute(cest1, zeroPow);
+			if (mapsKey != null) {
+				cache.put(mapsKey, maps);
+			}
+		} else {
+			IJ.log("CEST maps loaded from the cache");
+		}
+		if (NATIVE_MATRIX) {
+			maps = MapResampler.upscale(maps, OUTPUT_SIZE, OUTPUT_SIZE,
+					maps.getTitle());
+		}
+		// The maps are written while the Lorentzian fit runs
+		MapWriter writer = new MapWriter();
+		try {
+			writer.submit(maps, this.savePath(p, "all"));
+			if (!p.lorentzFit) {
+				return new ImagePlus[] {maps};
+			}
+			
+			// Pool amplitude, width and position maps
+			if (pools == null) {
+				pools = this.lorentzMaps(p, engine, cest1, zeroPow);
+				if (poolsKey != null) {
+					cache.put(poolsKey, pools);
+				}
+			} else {
+				IJ.log("Lorentzian maps loaded from the cache");
+			}
+			if (NATIVE_MATRIX) {
+				pools = MapResampler.upscale(pools, OUTPUT_SIZE,
+						OUTPUT_SIZE, pools.getTitle());
+			}
+			writer.submit(pools, this.savePath(p, "lorentz"));
+			return new ImagePlus[] {maps, pools};
+		} finally {
+			writer.close();
+		}
 	}
 	
 	/** 
@@ -180,149 +286,63 @@ public class CEST_51 implements PlugIn {
 	}
 	
 	/**
-	 * Retrieves image and scales to correct size
-	 * @param dir directory that the images files are located at
-	 * @param pathChoice 1 or 2 from pdata folder
-	 * @return ImagePlus of the scaled image stack
+	 * Fits the multi-pool Lorentzian model to every voxel's Z-spectrum
+	 * @param p the settings
+	 * @param engine the engine that arranges the spectra
+	 * @param cest1 the slope scaled CEST scan
+	 * @param zeroPow the slope scaled zero power scan
+	 * @return hyperstack of the pool amplitude, width and position maps at
+	 * the acquired matrix
 	 */
-	private ImagePlus getImage(String dir, String pathChoice) {
-		IJ.openImage(dir + pathChoice+ IM);		
-		ImagePlus curr = WindowManager.getImage(IM.substring(1));
-		return curr;
+	private ImagePlus lorentzMaps(Params p, CestEngine engine,
+			Bruker2dseq cest1, Bruker2dseq zeroPow) {
+		LorentzianFitter fitter = new LorentzianFitter(
+				CestEngine.linearOffsets(p.numOffsets, MAX_PPM),
+				LorentzianFitter.defaultPools());
+		long start = System.currentTimeMillis();
+		float[][][] fit = fitter.fit(engine.spectra(cest1),
+				engine.zeroPower(zeroPow), cest1.getWidth());
+		IJ.log("Lorentzian fit took " + (System.currentTimeMillis() - start)
+				+ " ms");
+		return fitter.toImagePlus(fit, cest1.getWidth(), cest1.getHeight());
 	}
 	
 	/**
-	 * Modifies the passed in ImagePlus file with grays, 32-bit,
-	 * and scaling to 256x256
-	 * @param imp ImagePlus that will have modifications done on it
-	 * @return the modified ImagePlus file
+	 * Key of a result computed from the CEST and 0 power scans
+	 * @param cache the result cache, may be null
+	 * @param stage name of the result
+	 * @param p the settings with the scan directories and counts
+	 * @param params settings of the stage
+	 * @return the key, or null if there is no cache or a file is missing
 	 */
-	private ImagePlus basicModify(ImagePlus imp) {
-		IJ.run(imp, "Grays", "");
-		IJ.run("32-bit", "");
-		IJ.log("" + (imp.getNSlices()));
-
-		IJ.run(imp, "Scale...", "x=2 y=2 z=1.0 width=256 height=256 depth="
-					+ imp.getNSlices() // number of slices 
-					+ " interpolation=Bilinear average process create "
-					+ "title=2dseq-1");
-		return imp;
-	}
-	
-	/**
-	 * Gets Signal Intensity from -5 to +5
-	 * Prints the the ppm in the ImageJ Log
-	 * @return the signal intensities for each image.
-	 */
-	private double[] getSI() {
-		double[] sigIn = new double[51];
-		for (int i = 0; i < 51; i++) {
-			sigIn[i] = i * 0.2 - 5;
-			IJ.log("Image " + (i + 1) + " = " + sigIn[i]);
+	private String cacheKey(ResultCache cache, String stage, Params p,
+			Object... params) {
+		if (cache == null) {
+			return null;
 		}
-		return sigIn;
-	}
-	
-	/**
-	 * Grabs the VisuCoreDataSlope data from the visu_par file.
-	 * Assumes the file structure in the visu_pars file will be consistent
-	 * @param vp the name of the file that contains an image's parameters
-	 * @param find item that needs to be found within the visu_par file
-	 * @return slope the slope that multiplies the image data or 1;
-	 * @throws FileNotFoundException
-	 */	
-	private double getSlope(String dir, String find) 
-			throws FileNotFoundException {
-		
-		File vp = new File(dir + VIS_PAR);
-		if (!vp.exists()) {
-			throw new FileNotFoundException();
+		try {
+			return cache.key(stage, new File[] {
+					new File(p.dir + PATHS1 + IM),
+					new File(p.dir + PATHS1 + VIS_PAR),
+					new File(p.dir0 + PATHS1 + IM),
+					new File(p.dir0 + PATHS1 + VIS_PAR)},
+					p.numSlices, p.numOffsets, MAX_PPM, params);
+		} catch (IOException e) {
+			return null;
 		}
-		double pars = 1;
-		Scanner scanner = new Scanner(vp); 
-		while (scanner.hasNext()) {
-			String currItem = scanner.next();
-			if (currItem.equalsIgnoreCase(find)) {
-				if (scanner.hasNext()) {
-					scanner.nextDouble(); // discard number of images
-					scanner.next(); // Discard ')'
-					if (scanner.hasNextDouble()) {
-						pars = scanner.nextDouble();
-						return pars;
-					}
-				}
-			}
-		}		
-		return pars;
-	}
-	
-	/**
-	 * Generates image by subtracting two imput images that will be saved in 
-	 * save directory of the 2dseq image
-	 * @param imp the ImagePlus that is providing the images
-	 * @param first image slice that will be subtracted from
-	 * @param second image slice be used to subtract from the first image by
-	 * @return result of subtracting the two images
-	 */
-	private ImagePlus mapCreate(ImagePlus imp, int slice1, int slice2) {		
-		IJ.run(imp, "Substack Maker", "slices=" + slice1);
-		ImagePlus first = WindowManager.getImage("Substack (" + slice1 + ")");
-		IJ.run(imp, "Substack Maker", "slices=" + slice2);
-		ImagePlus second = WindowManager.getImage("Substack (" + slice2 + ")");
-		ImageCalculator ic = new ImageCalculator();
-		ImagePlus map = ic.run("Subtract create", first, second);
-
-		return map;
-	}
-	
-	/**
-	 * Creates the Gag images for the CEST map generation∂
-	 * @param slice1 the first image slice
-	 * @param slice2 the second image slice
-	 * @param impStack ImagePlus of the images that has 14 images in its stack
-	 * @param zeroPow the ImagePlus of the zero power image
-	 * @param num the number that will be in the name of the slice
-	 * @param directory the directory the image will be saved as 
-	 * @return the image that is generated
-	 */
-	private ImagePlus gagCreate(int slice1, int slice2, ImagePlus impStack,
-			ImagePlus zeroPow, String fileName, String directory) {
-		ImagePlus subtracted = this.mapCreate(impStack, slice1, slice2);
-		ImageCalculator ic = new ImageCalculator();
-		ImagePlus map = ic.run("Divide create", subtracted, zeroPow);
-		this.saveImage(map, directory, fileName);
-		return map;
 	}
 	
 	/**
-	 * Saves the desired image as a .tiff file
-	 * @param imp ImagePlus file that will be saved
-	 * @param directory location in computer file system
-	 * @param num the number that will be placed in saved file's title
+	 * Path of a saved map, a .tiff (or .raw) file in the CEST scan's pdata
+	 * @param p the settings
+	 * @param fileName the text that will be placed in saved file's title
+	 * @return the path of the file
 	 */
-	private void saveImage(ImagePlus imp, String directory, String fileName) {
+	private String savePath(Params p, String fileName) {
+		//Directory for saving the cest maps created
+		String saveDir = p.dir + PATHS1.substring(0, PATHS1.length() - 1);
 		// For Windows: change "/" to "\\"
-		IJ.saveAs(imp, "Tiff", directory + "/cest_map_" + fileName + ".tif");
-	}
-	
-	/**
-	 * Closes the image that has the associated title
-	 * @param title the image's title or name in the Window Manager
-	 */
-	private void closer(String title) {
-		ImagePlus imp = WindowManager.getImage(title);
-		if (imp != null) {
-			imp.changes = false;
-			imp.close();
-		}
-	}
-
-	/**
-	 * To parse user inputs.
-	 */
-	void getInput() {
-
+		return saveDir + "/cest_map_" + fileName
+				+ (p.rawOutput ? MapWriter.RAW : ".tif");
 	}
 }
-
-
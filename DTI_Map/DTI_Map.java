@@ -11,6 +11,14 @@
  * 11.14.17 - Multiplies slopes with substacks
  * 12.07.17 - Fixing indexing issues
  * 12.21.17 - Adjusting scaling of imported images
+ * 10.19.26 - Added the tensor fit from the raw DWI frames in pdata/1 for
+ *            exports that do not have the scanner's maps in pdata/2
+ * 10.19.26 - Tensor maps of unchanged data are loaded from the ResultCache
+ * 10.19.26 - The scanner maps are selected from the map type frame group of
+ *            the 2dseq instead of the Stack Splitter stk_00NN windows
+ * 10.19.26 - The maps are made by exec(), which needs no windows or
+ *            dialogs (macro, batch and headless runs pass "dir=[...]" and
+ *            raw_fit to fit the tensor from pdata/1)
  */
 
 import java.util.*;
@@ -26,10 +34,19 @@ import ij.plugin.frame.*;
 
 public class DTI_Map implements PlugIn {
 
-	public static final String VP_SLOPE = "##$VisuCoreDataSlope=(";
 	public static final int[] IM_INDEX = {1, 2, 3, 11, 12, 13};
 	// Image index corresponds to the accessing Fractional anisotropy, tensor
 	// trace, and Tensor eigenvalues 1, 2, and 3.
+	public static final String[] MAP_FILES = {"FA_Map", "Tensor_Map",
+			"Signal_intensity_map", "E1_Map", "E2_Map", "E3_Map"};
+	public static final String[] MAP_FILES_20MS = {"FA_20ms_Map",
+			"Tensor_20ms_Map", "Signal_intensity_20ms_Map", "E1_20ms_Map",
+			"E2_20ms_Map", "E3_20ms_Map"};
+	public static final String METHOD = "method";
+	// Voxels below this fraction of the brightest b0 voxel are not fitted
+	public static final double MASK_FRACTION = 0.05;
+	// Fitted maps are upscaled like the scanner maps (256x128)
+	public static final int OUTPUT_SCALE = 2;
 
 	/*
 	// For Windows:
@@ -47,255 +64,213 @@ public class DTI_Map implements PlugIn {
 	public static final String IM = "/2dseq";
 	public static final String VIS_PAR = "/visu_pars";
 
-
+	/**
+	 * Settings of one run
+	 */
+	public static class Params {
+		public String dir; // i.e. .../12_dti/
+		// Fits the tensor from pdata/1, always done without pdata/2 maps
+		public boolean rawFit = false;
+
+		/**
+		 * @param options macro options, i.e. from Macro.getOptions()
+		 * @return the settings
+		 */
+		public static Params fromOptions(String options) {
+			PluginOptions o = new PluginOptions(options);
+			Params p = new Params();
+			p.dir = o.getDir("dir");
+			p.rawFit = o.getBoolean("raw_fit");
+			return p;
+		}
+	}
 
 public void run(String arg) {
 
-		// Clears previous images if any
-
-
-		// Gets DTI directory
-		IJ.log("Please c"
-				+ "hoose a directory where the DTI folder is " +
-				"");
-		String dir = this.grabDir("DTI");
-
-		// Grabs the images from the selected DTI files
-		ImagePlus dti = this.modifyDTI(dir);
-		int numSlices = dti.getNSlices();
-		IJ.log("There are "+ numSlices + " slices");
-
-		// Grabs the visu_par slopes
-		double[] slopes = null;
+		// Macro and batch runs skip the dialogs
+		String options = Macro.getOptions();
 		try {
-			String vpDir = dir + PATHS2; // file directory of the visu_par file
-			slopes = this.getSlope(vpDir, VP_SLOPE);
-		} catch (FileNotFoundException e) {
-			IJ.error("The slopes were not retrieved");
-		}
-
-		// Split stacks into the appropriate number
-		IJ.run(dti, "Stack Splitter", "number=" + slopes.length);
-
-		int typeInd = 0; // Which index within desired Image indexing
-		// Multiplies the slopes to the corresponding desired images
-		for (int i = 1; i <= slopes.length; i++) {
-			String title = "stk_00";
-			if (i < 10) {
-				title = title + "0";
+			Params p;
+			if (options != null) {
+				p = Params.fromOptions(options);
+			} else {
+				// Gets DTI directory
+				IJ.log("Please c"
+						+ "hoose a directory where the DTI folder is " +
+						"");
+				p = new Params();
+				p.dir = this.grabDir("DTI");
+				if (p.dir == null) {
+					return;
+				}
+				// Fits the tensor from the raw frames when the scanner maps
+				// are missing or the user asks for it
+				p.rawFit = !new File(p.dir + PATHS2 + IM).exists()
+						|| this.chooseRawFit();
 			}
-			title = title + i + "_2dseq";
-
-			ImagePlus im = WindowManager.getImage(title);
-			if (i == IM_INDEX[typeInd]) {
-				IJ.run(im, "Multiply...", "value=" + slopes[i - 1] +" stack");
-				IJ.log(title + " was multiplied by " + slopes[i - 1]);
-				im = this.basicModify(im, title + "scaled");
-				if (typeInd < IM_INDEX.length - 1) {
-					typeInd++;
+			ImagePlus[] maps = this.exec(p);
+			if (options == null) {
+				for (ImagePlus imp : maps) {
+					imp.show();
 				}
+				//Auto contrast
+				IJ.log("Auto Contrast is selected using: ctrl+shift+C -> Auto");
 			}
-			// Close non-essential images
-			this.closer(title);
-			//IJ.run(im, "Save", "save=[" + dir + "/" + title + "]");
-			this.save(title, dir);
+		} catch (IOException e) {
+			IJ.error("The DTI data could not be read: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			IJ.error(e.getMessage());
 		}
-
-		//Auto contrast
-		IJ.log("Auto Contrast is selected using: ctrl+shift+C -> Auto");
 	}
 
 	/**
-	 * Closes the image that has the associated title
-	 * @param title the image's title or name in the Window Manager
+	 * Makes and saves the DTI maps without windows or dialogs, so it can
+	 * run headless and several studies can run at once
+	 * @param p the settings
+	 * @return the scanner maps of IM_INDEX, or the fitted tensor maps as
+	 * one hyperstack
+	 * @throws IOException if the data cannot be read or a map saved
+	 * @throws IllegalArgumentException if the method file has no
+	 * b-matrices
 	 */
-	private void save(String title, String dir) {
-		ImagePlus imp = WindowManager.getImage(title);
-		IJ.run(imp, "Brightness/Contrast...", "");
-		IJ.run(imp, "Enhance Contrast", "saturated=0.35");
-		if (!dir.contains("20ms"))
-		{
-			if (title.equalsIgnoreCase("stk_0001_2dseq")) {
-				IJ.run(imp, "Save", "save=[" + dir + "/" + "FA_Map.tif" + "]");
-			}
-			else if (title.equalsIgnoreCase("stk_0003_2dseq")) {
-				IJ.run(imp, "Save", "save=[" + dir + "/" + "Signal_intensity_map.tif" + "]");
-			}
-			else if (title.equalsIgnoreCase("stk_0002_2dseq")) {
-				IJ.run(imp, "Save", "save=[" + dir + "/" + "Tensor_Map.tif" + "]");
-			}
-			else if (title.equalsIgnoreCase("stk_0011_2dseq")) {
-				IJ.run(imp, "Save", "save=[" + dir + "/" + "E1_Map.tif" + "]");
-			}
-			else if (title.equalsIgnoreCase("stk_0012_2dseq")) {
-				IJ.run(imp, "Save", "save=[" + dir + "/" + "E2_Map.tif" + "]");
-			}
-			else if (title.equalsIgnoreCase("stk_0013_2dseq")) {
-				IJ.run(imp, "Save", "save=[" + dir + "/" + "E3_Map.tif" + "]");
-			}
-		}
-		else
-		{
-			if (title.equalsIgnoreCase("stk_0001_2dseq")) {
-				IJ.run(imp, "Save", "save=[" + dir + "/" + "FA_20ms_Map.tif" + "]");
-			}
-			else if (title.equalsIgnoreCase("stk_0002_2dseq")) {
-				IJ.run(imp, "Save", "save=[" + dir + "/" + "Tensor_20ms_Map.tif" + "]");
-			}
-			else if (title.equalsIgnoreCase("stk_0003_2dseq")) {
-				IJ.run(imp, "Save", "save=[" + dir + "/" + "Signal_intensity_20ms_Map.tif" + "]");
-			}
-			else if (title.equalsIgnoreCase("stk_0011_2dseq")) {
-				IJ.run(imp, "Save", "save=[" + dir + "/" + "E1_20ms_Map.tif" + "]");
-			}
-			else if (title.equalsIgnoreCase("stk_0012_2dseq")) {
-				IJ.run(imp, "Save", "save=[" + dir + "/" + "E2_20ms_Map.tif" + "]");
-			}
-			else if (title.equalsIgnoreCase("stk_0013_2dseq")) {
-				IJ.run(imp, "Save", "save=[" + dir + "/" + "E3_20ms_Map.tif" + "]");
-			}
+	public ImagePlus[] exec(Params p) throws IOException {
+		if (p.rawFit || !new File(p.dir + PATHS2 + IM).exists()) {
+			return new ImagePlus[] {this.tensorMaps(p.dir)};
 		}
 
+		// Reads the slope scaled scanner maps with their frame groups
+		Bruker2dseq seq = new Bruker2dseq(p.dir + PATHS2);
+		IJ.log("There are " + seq.getImageCount() + " images");
+		return this.scannerMaps(seq, p.dir);
 	}
 
 	/**
-	 * Grabs the desired DTI 2dseq file and scales the images to the
-	 * corresponding	 slopes found in the ADC visu_par file. 2desq images
-	 * for the low and high B-value separation are also gathered
-	 * in this methods
-	 * @param dir the string directory of the selected DTI root file
-	 */
-	public ImagePlus modifyDTI(String dir) {
-		//Opens 2dseq stack
-		ImagePlus adc2 = this.getImage(dir, PATHS2, 9999);
-
-		return adc2;
-	}
-
-
-	/**
-	 * Input from user to grab the root directory for desired files
-	 * @param folder, folder that contains desired files
-	 * @param fNum, the number that corresponds to the example file folder - 5
-	 * @returns the directory of each folder path in a string
-	 */
-	private String grabDir(String folder) {
-		DirectoryChooser path = new DirectoryChooser("Select " + folder
-						+ " Path");
-		String dir = path.getDirectory();
-		IJ.log("Directory return for the " + folder + " folder is :" + dir);
-		return dir;
-	}
-
-
-	/**
-	 * Provides instructions to Import raw image files
-	 * @param numIm number of images in the original image stack
+	 * Asks whether the maps are fitted from the raw DWI frames or taken
+	 * from the scanner's pdata/2 maps
+	 * @return true if the tensor will be fitted from pdata/1
 	 */
-	private void instructions(int numIm) {
-		IJ.log("Please adjust import settings to:");
-		IJ.log("    Image type: 32-bit signed");
-		IJ.log("    Width: 128 pixels");
-		IJ.log("    Height: 64 pixels");
-		IJ.log("    Number of images: " + numIm + " images");
-		IJ.log("    Check Little-endian byte order");
+	private boolean chooseRawFit() {
+		GenericDialog gd = new GenericDialog("DTI Maps");
+		String[] sources = {"Scanner maps (pdata/2)",
+				"Tensor fit of raw DWI (pdata/1)"};
+		gd.addChoice("Maps from:", sources, sources[0]);
+		gd.showDialog();
+		if (gd.wasCanceled()) {
+			return false;
+		}
+		return gd.getNextChoiceIndex() == 1;
 	}
 
 	/**
-	 * Closes the image that has the associated title
-	 * @param title the image's title or name in the Window Manager
+	 * Saves the IM_INDEX maps of the scanner's 2dseq at 256x128.
+	 * The map type is the first frame group that is not the slices; without
+	 * frame groups each frame is one map type.
+	 * @param seq the slope scaled pdata/2 2dseq
+	 * @param dir the string directory of the selected DTI root file
+	 * @return the maps, contrast enhanced
+	 * @throws IOException if a map cannot be saved
 	 */
-	private void closer(String title) {
-		ImagePlus imp = WindowManager.getImage(title);
-		if (imp != null) {
-			imp.changes = false;
-			imp.close();
+	private ImagePlus[] scannerMaps(Bruker2dseq seq, String dir)
+			throws IOException {
+		Bruker2dseq.FrameGroup[] groups = seq.getFrameGroups();
+		int type = 0;
+		while (type < groups.length - 1
+				&& Bruker2dseq.FG_SLICE.equals(groups[type].type)) {
+			type++;
 		}
+		String[] names = dir.contains("20ms") ? MAP_FILES_20MS : MAP_FILES;
+		java.util.List<ImagePlus> maps = new ArrayList<ImagePlus>();
+		for (int i = 0; i < IM_INDEX.length; i++) {
+			if (IM_INDEX[i] > groups[type].length) {
+				IJ.log("There is no map " + IM_INDEX[i] + " in the 2dseq");
+				continue;
+			}
+			float[][] images = seq.select(type, IM_INDEX[i] - 1);
+			ImagePlus imp = seq.toImagePlus(names[i]);
+			ImageStack stack = new ImageStack(seq.getWidth(), seq.getHeight());
+			for (int z = 0; z < images.length; z++) {
+				stack.addSlice(groups[type].label(IM_INDEX[i] - 1), images[z]);
+			}
+			imp.setStack(stack);
+			imp = MapResampler.upscale(imp, 256, 128, names[i]);
+			new ContrastEnhancer().stretchHistogram(imp, 0.35);
+			MapWriter.writeTiff(imp, dir + "/" + names[i] + ".tif");
+			maps.add(imp);
+		}
+		return maps.toArray(new ImagePlus[maps.size()]);
 	}
 
 	/**
-	 * Retrieves image and scales to correct size
-	 * @param dir directory that the images files are located at
-	 * @param pathChoice 1 or 2 from pdata folder
-	 * @param numIm number of images in this image stack
-	 * @return ImagePlus of the scaled image stack
+	 * Fits the diffusion tensor in every voxel of the raw DWI 2dseq with the
+	 * b-matrices of the method file, then saves the FA, MD, AD, RD,
+	 * eigenvalue and principal eigenvector maps as one hyperstack
+	 * @param dir the string directory of the selected DTI root file
+	 * @return the upscaled maps
+	 * @throws IOException if the data cannot be read or the maps saved
 	 */
-	private ImagePlus getImage(String dir, String pathChoice, int numIm) {
-		// Import Instructions to user
-		this.instructions(numIm);
-		IJ.openImage(dir + pathChoice+ IM);
-		ImagePlus curr = WindowManager.getImage(IM.substring(1));
-		return curr;
+	private ImagePlus tensorMaps(String dir) throws IOException {
+		ImagePlus maps = this.tensorFit(dir);
+		String title = dir.contains("20ms") ? "DTI_20ms_Maps" : "DTI_Maps";
+		maps = MapResampler.upscale(maps, OUTPUT_SCALE * maps.getWidth(),
+				OUTPUT_SCALE * maps.getHeight(), title);
+		MapWriter.writeTiff(maps, dir + "/" + title + ".tif");
+		return maps;
 	}
 
 	/**
-	 * Grabs the VisuCoreDataSlope data from the visu_par file.
-	 * Assumes the file structure in the visu_pars file will be consistent
-	 * with desiring the DESIRED_IMAGE index of each image grouping
-	 * @param vp the name of the file that contains an image's parameters
-	 * @param find item that needs to be found within the visu_par file
-	 * @return slope the slope that multiplies the image data
-	 * @throws FileNotFoundException
+	 * Fits the tensor maps at the acquired matrix, or loads them from the
+	 * ResultCache if the DWI data, method file and mask did not change
+	 * @param dir the string directory of the selected DTI root file
+	 * @return the (map x slice) hyperstack
+	 * @throws IOException if the DWI data or method file cannot be read
 	 */
-	private double[] getSlope(String dir, String find)
-			throws FileNotFoundException {
-
-		File vp = new File(dir + VIS_PAR);
-		if (!vp.exists()) {
-			throw new FileNotFoundException();
-		}
-		double[] pars = null;
-		Scanner scanner = new Scanner(vp);
-		while (scanner.hasNext()) {
-			String currItem = scanner.next();
-			if (currItem.equalsIgnoreCase(find)) {
-				pars = this.getCertainSlopes(scanner, pars);
+	private ImagePlus tensorFit(String dir) throws IOException {
+		ResultCache cache = ResultCache.shared();
+		String key = null;
+		if (cache != null) {
+			try {
+				key = cache.key("dti", new File[] {
+						new File(dir + PATHS1 + IM),
+						new File(dir + PATHS1 + VIS_PAR),
+						new File(dir, METHOD)}, MASK_FRACTION,
+						DtiEngine.settings());
+				ImagePlus cached = cache.get(key);
+				if (cached != null) {
+					IJ.log("Tensor maps loaded from the cache");
+					return cached;
+				}
+			} catch (IOException e) {
+				key = null;
 			}
 		}
-		// IJ.error("The visu_par file did not read any slope data.");
-		return pars;
+		Bruker2dseq dwi = new Bruker2dseq(dir + PATHS1);
+		DtiEngine engine = new DtiEngine(DtiEngine.readBMatrix(
+				JcampParams.read(dir, METHOD)));
+		IJ.log("Fitting " + engine.getNumDiffusions() + " diffusion "
+				+ "directions to " + dwi.getImageCount() + " images");
+		long start = System.currentTimeMillis();
+		ImagePlus maps = engine.fit(dwi, MASK_FRACTION);
+		IJ.log("Tensor fit took " + (System.currentTimeMillis() - start)
+				+ " ms");
+		if (key != null) {
+			cache.put(key, maps);
+		}
+		return maps;
 	}
 
 	/**
-	 * Retrieves all of the slopes in the VisuCoreDataSlope
-	 * @param scanner that is attached to the visu_par data file
-	 * @param pars the array that holds the slope values
-	 * @return the slopes in the array, or leaves pars unchanged if the
-	 * slope data did not exist
+	 * Input from user to grab the root directory for desired files
+	 * @param folder, folder that contains desired files
+	 * @param fNum, the number that corresponds to the example file folder - 5
+	 * @returns the directory of each folder path in a string
 	 */
-	private double[] getCertainSlopes(Scanner scanner, double[] pars) {
-		if (scanner.hasNext()) {
-			int numIm = scanner.nextInt(); // Number of Images
-			scanner.next(); // Discard ')'
-			pars = new double[numIm]; // Holds all slopes
-			double currSlope;
-			// Search for particular slopes
-			int i = 0;
-			while (i < numIm) {
-				currSlope = scanner.nextDouble();
-				pars[i] = currSlope;
-				IJ.log("Slope for " + (i+1) + " is " + currSlope);
-				i++;
-			}
-		}
-		return pars;
+	private String grabDir(String folder) {
+		DirectoryChooser path = new DirectoryChooser("Select " + folder
+						+ " Path");
+		String dir = path.getDirectory();
+		IJ.log("Directory return for the " + folder + " folder is :" + dir);
+		return dir;
 	}
 
-	/**
-	 * Takes in an ImagePlus file and does basic 32-bit, gray, and 256x128
-	 * scaling and returns the modified ImagePlus file
-	 * @param curr the ImagePlus that needs to be modified
-	 * @param title is the name of the new image produced
-	 * @return the modified the ImagePlus file
-	 */
-	private ImagePlus basicModify(ImagePlus curr, String title) {
-		int depth = curr.getNSlices();
-		//IJ.run(curr, "Grays", "");
-		//IJ.run("32-bit", "");
-		IJ.run(curr, "Scale...", "x=- y=- z=1.0 width=256 height=128 " +
-				"depth=" + depth + " interpolation=Bilinear average " +
-				"process create" + " title=" + title);
 
-		return curr;
-	}
 }
\ No newline at end of file
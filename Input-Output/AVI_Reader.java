@@ -7,10 +7,26 @@ import ij.plugin.Animator;
 import java.awt.*;
 import java.awt.image.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
-
+import java.util.concurrent.*;
+
+/*
+ * 10.19.26 - The frames are found from the OpenDML (indx/ix##) or idx1 index,
+ *            or by walking the movi chunks without reading them, and only the
+ *            chosen frames (first, last, every Nth) are decoded.
+ *            "Use virtual stack" reads the frames when they are displayed.
+ * 10.19.26 - Frames are read into reusable direct buffers with positional
+ *            reads and decoded on Prefs.getThreads() threads; rows are
+ *            copied in bulk and BGR is packed in a loop per bit depth.
+ * 10.19.26 - A frame without data (a dropped frame) repeats the frame before
+ *            it. The virtual stack keeps the file open until it is closed.
+ */
 public class AVI_Reader implements PlugIn {
 
+	private static boolean openAsVirtualStack;
+
 	private  long              startTime;
 	private  RandomAccessFile  raFile;
 	private  int               bytesPerPixel;
@@ -94,9 +110,6 @@ public class AVI_Reader implements PlugIn {
 	private  int               BMPscanLineSize;
 	private  int               BMPactualColorsUsed;
 
-	private  int[]             intData;
-	private  byte[]          byteData;
-	private  byte[]          rawData;
 
 	//palette
 	private  byte[]            r;
@@ -119,6 +132,12 @@ public class AVI_Reader implements PlugIn {
 	private  long              lastTime = 0;
 	private  int                 lastLine = 0;
 
+	// Frame index: offsets of the frame data and their sizes
+	private  long[]            superIndex;
+	private  long[]            frameOffsets;
+	private  int[]             frameSizes;
+	private  int               nFrames;
+
 
 	public void run(String arg) {
 		try {
@@ -218,8 +237,25 @@ public class AVI_Reader implements PlugIn {
 
 				} else if (fcc.equals("movi")) {
 
+					showTime("Indexing Movie Data");
+					long  moviPos  = raFile.getFilePointer() + 8;
+					long  moviEnd  = moviPos + (size & 0xffffffffL);
+					findFrames(moviPos, moviEnd);
+					if (nFrames == 0)
+						throw new Exception("No video frames found.");
+
+					int[]  frames  = chooseFrames();
+					if (frames == null)
+						return;
+					if (openAsVirtualStack) {
+						AviVirtualStack  vstack  = new AviVirtualStack(this, frames);
+						ImagePlus        imp     = new ImagePlus(fileName, vstack);
+						vstack.closeWith(imp);
+						imp.show();
+						return;
+					}
 					showTime("Reading Movie Data");
-					readMovieData();
+					readFrames(frames);
 
 					showTime("Creating ImagePlus to display stack");
 					if (stack != null && stack.getSize() > 0) {
@@ -383,6 +419,7 @@ public class AVI_Reader implements PlugIn {
 
 	void readVideoStream() throws Exception, IOException {
 		readTypeAndSizeAndFcc();
+		long  strlEnd  = raFile.getFilePointer() - 4 + size;
 
 		if (type.equals("LIST")) {
 			if (fcc.equals("strl")) {
@@ -470,6 +507,18 @@ public class AVI_Reader implements PlugIn {
 				raFile.seek(raFile.getFilePointer() - 8);
 			}
 
+			// OpenDML super index of the video stream
+			while (raFile.getFilePointer() + 8 <= strlEnd) {
+				readTypeAndSize();
+				long  chunkEnd  = raFile.getFilePointer() + (size & 0xffffffffL);
+				if (type.equals("indx")) {
+					if (verbose)
+						IJ.log("   OpenDML index 'indx' detected");
+					readSuperIndex();
+				}
+				raFile.seek(chunkEnd + (chunkEnd & 1));
+			}
+
 		} else {
 			IJ.log("**Unexpected '" + type + "'");
 			IJ.log("**Expected 'LIST' not found");
@@ -482,6 +531,314 @@ public class AVI_Reader implements PlugIn {
 	}
 
 
+	void readSuperIndex() throws IOException {
+		int  longsPerEntry  = readShort();
+		raFile.readByte(); // bIndexSubType
+		int  indexType      = raFile.readByte();
+		int  entries        = readInt();
+		readStringBytes(); // dwChunkId
+		if (indexType == 1) {
+			// An index of chunks right in the stream header
+			superIndex = new long[] {raFile.getFilePointer() - 12 - 8};
+			return;
+		}
+		raFile.skipBytes(12);
+		superIndex = new long[entries];
+		for (int i = 0; i < entries; i++) {
+			superIndex[i] = readLong();
+			raFile.skipBytes(longsPerEntry * 4 - 8);
+		}
+	}
+
+
+	/**
+	 * Finds the offsets and sizes of the video frames: from the OpenDML
+	 * index, else from idx1, else by walking the movi list
+	 */
+	void findFrames(long moviPos, long moviEnd) throws IOException {
+		frameOffsets = new long[Math.max(16, dwTotalFrames)];
+		frameSizes = new int[frameOffsets.length];
+		nFrames = 0;
+		if (superIndex != null) {
+			for (int i = 0; i < superIndex.length; i++)
+				readStandardIndex(superIndex[i]);
+			if (verbose)
+				IJ.log(nFrames + " frames from the OpenDML index");
+			if (nFrames > 0)
+				return;
+		}
+		long  end  = Math.min(raFile.length(), bigChunkSize + 8);
+		long  p    = moviEnd + (moviEnd & 1);
+		while (p + 8 <= end) {
+			raFile.seek(p);
+			readTypeAndSize();
+			if (type.equals("idx1")) {
+				readIdx1(moviPos, size & 0xffffffffL);
+				if (verbose)
+					IJ.log(nFrames + " frames from the idx1 index");
+				if (nFrames > 0)
+					return;
+				break;
+			}
+			p += 8 + (size & 0xffffffffL);
+			p += p & 1;
+		}
+		walkMovi(moviPos + 4, Math.min(moviEnd, raFile.length()));
+		if (verbose)
+			IJ.log(nFrames + " frames found in the movi list");
+	}
+
+
+	void readStandardIndex(long indexPos) throws IOException {
+		raFile.seek(indexPos);
+		readTypeAndSize();
+		int  longsPerEntry  = readShort();
+		raFile.readByte(); // bIndexSubType
+		raFile.readByte(); // bIndexType
+		int   entries     = readInt();
+		readStringBytes(); // dwChunkId
+		long  baseOffset  = readLong();
+		readInt(); // dwReserved
+		for (int i = 0; i < entries; i++) {
+			long  offset  = readInt() & 0xffffffffL;
+			int   size    = readInt() & 0x7fffffff; // bit 31: not a key frame
+			raFile.skipBytes(longsPerEntry * 4 - 8);
+			addFrame(baseOffset + offset, size);
+		}
+	}
+
+
+	void readIdx1(long moviPos, long idxSize) throws IOException {
+		int     entries  = (int) (idxSize / 16);
+		byte[]  idx      = new byte[entries * 16];
+		raFile.readFully(idx);
+		long    base     = -1;
+		for (int i = 0; i < entries; i++) {
+			String  ckid    = new String(idx, i * 16, 4);
+			long    offset  = getInt(idx, i * 16 + 8) & 0xffffffffL;
+			int     len     = getInt(idx, i * 16 + 12);
+			if (!isVideoChunk(ckid))
+				continue;
+			if (base < 0) {
+				// Offsets are from the 'movi' fcc, in a few writers from the file start
+				base = moviPos;
+				raFile.seek(moviPos + offset);
+				if (!readStringBytes().equals(ckid))
+					base = 0;
+			}
+			addFrame(base + offset + 8, len);
+		}
+	}
+
+
+	void walkMovi(long p, long end) throws IOException {
+		while (p + 8 <= end) {
+			raFile.seek(p);
+			readTypeAndSize();
+			long  len  = size & 0xffffffffL;
+			if (type.equals("LIST")) {
+				p += 12; // rec lists hold the chunks of one frame
+				continue;
+			}
+			if (isVideoChunk(type))
+				addFrame(p + 8, (int) len);
+			p += 8 + len + (len & 1);
+		}
+	}
+
+
+	boolean isVideoChunk(String ckid) {
+		String  t  = ckid.substring(2);
+		return t.equals("db") || t.equals("dc");
+	}
+
+
+	void addFrame(long offset, int size) {
+		if (nFrames == frameOffsets.length) {
+			frameOffsets = Arrays.copyOf(frameOffsets, nFrames * 2);
+			frameSizes = Arrays.copyOf(frameSizes, nFrames * 2);
+		}
+		frameOffsets[nFrames] = offset;
+		frameSizes[nFrames] = size;
+		nFrames++;
+	}
+
+
+	/**
+	 * Asks for the frames to open
+	 * @return the 0-based frame numbers, or null if canceled
+	 */
+	int[] chooseFrames() {
+		GenericDialog  gd  = new GenericDialog("AVI Reader");
+		gd.addNumericField("First frame:", 1, 0);
+		gd.addNumericField("Last frame:", nFrames, 0);
+		gd.addNumericField("Step:", 1, 0);
+		gd.addCheckbox("Use virtual stack", openAsVirtualStack);
+		gd.addMessage(dwWidth + " x " + BMPheight + " x " + nFrames + " frames");
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return null;
+		int  first  = Math.max(1, (int) gd.getNextNumber());
+		int  last   = Math.min(nFrames, (int) gd.getNextNumber());
+		int  step   = Math.max(1, (int) gd.getNextNumber());
+		openAsVirtualStack = gd.getNextBoolean();
+		if (last < first)
+			last = first = Math.min(first, nFrames);
+		int[]  frames  = new int[(last - first) / step + 1];
+		for (int i = 0; i < frames.length; i++)
+			frames[i] = first - 1 + i * step;
+		return frames;
+	}
+
+
+	void readFrames(int[] frames) throws Exception, IOException {
+		final FileChannel     channel   = raFile.getChannel();
+		final int[]           list      = frames;
+		final ImageProcessor[] ips      = new ImageProcessor[frames.length];
+		final int             nThreads  = Math.max(1, Math.min(Prefs.getThreads(), frames.length));
+		final int[]           done      = new int[1];
+		ExecutorService  exe  = Executors.newFixedThreadPool(nThreads);
+		try {
+			// Thread t decodes frames t, t+nThreads, ... so all threads read
+			// the same part of the file at a time
+			java.util.List<Future<Void>>  tasks  = new ArrayList<Future<Void>>();
+			for (int t = 0; t < nThreads; t++) {
+				final int  first  = t;
+				tasks.add(exe.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						FrameDecoder  decoder  = new FrameDecoder();
+						for (int i = first; i < list.length; i += nThreads) {
+							ips[i] = decoder.read(channel, list[i]);
+							synchronized (done) {
+								IJ.showProgress(++done[0], list.length);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : tasks)
+				get(f);
+		} finally {
+			exe.shutdownNow();
+			// Keep the frames read before an error, i.e. out of memory
+			for (int i = 0; i < ips.length && ips[i] != null; i++)
+				stack.addSlice("", ips[i]);
+		}
+	}
+
+
+	static void get(Future<?> f) throws Exception {
+		try {
+			f.get();
+		} catch (ExecutionException e) {
+			Throwable  cause  = e.getCause();
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Reads and decodes frames into buffers it keeps, one per thread. The frame
+	 * is read in one call into a direct buffer and copied out in bulk.
+	 */
+	class FrameDecoder {
+
+		private  ByteBuffer  buf;
+		private  byte[]      raw;
+
+		ImageProcessor read(FileChannel channel, int frame) throws Exception, IOException {
+			int  frameSize  = BMPscanLineSize * BMPheight;
+			// Index entries of size 0 are dropped frames, shown as the last real one
+			int  shown  = frame;
+			while (shown > 0 && frameSizes[shown] == 0)
+				shown--;
+			if (frameSizes[shown] == 0)
+				throw new Exception("Frame " + (frame + 1) + " has no data");
+			frame = shown;
+			if (frameSizes[frame] < frameSize)
+				throw new Exception("Frame " + (frame + 1) + " is only " + frameSizes[frame] + " bytes");
+			if (buf == null || buf.capacity() < frameSize) {
+				buf = ByteBuffer.allocateDirect(frameSize);
+				raw = new byte[frameSize];
+			}
+			buf.clear();
+			buf.limit(frameSize);
+			long  offset  = frameOffsets[frame];
+			while (buf.hasRemaining()) {
+				// Positional reads, the threads share the channel
+				if (channel.read(buf, offset + buf.position()) < 0)
+					throw new EOFException("Frame " + (frame + 1) + " is past the end of the file");
+			}
+			buf.flip();
+			return decode(buf);
+		}
+
+		ImageProcessor decode(ByteBuffer buf) {
+			int  w       = dwWidth;
+			int  height  = BMPheight;
+			int  len     = BMPscanLineSize;
+			if (BMPbitsPerPixel == 8) {
+				byte[]  pixels  = new byte[w * height];
+				if (len == w && BMPtopDown) {
+					buf.get(pixels);
+				} else {
+					// Bottom-up unless the height is negative, a row at a time
+					for (int y = 0; y < height; y++) {
+						buf.position(y * len);
+						buf.get(pixels, (BMPtopDown ? y : height - 1 - y) * w, w);
+					}
+				}
+				return new ByteProcessor(w, height, pixels, colorModel());
+			}
+			buf.get(raw, 0, len * height);
+			int[]  pixels  = new int[w * height];
+			for (int y = 0; y < height; y++) {
+				int  row  = BMPtopDown ? y : height - 1 - y;
+				if (BMPbitsPerPixel == 32)
+					unpack32(raw, y * len, pixels, row * w, w);
+				else
+					unpack24(raw, y * len, pixels, row * w, w);
+			}
+			return new ColorProcessor(w, height, pixels);
+		}
+	}
+
+
+	int stackWidth() {
+		return dwWidth;
+	}
+
+
+	int stackHeight() {
+		return BMPheight;
+	}
+
+
+	int bitsPerPixel() {
+		return BMPbitsPerPixel;
+	}
+
+
+	ColorModel colorModel() {
+		return BMPactualColorsUsed != 0 ? cm : null;
+	}
+
+
+	File file() {
+		return file;
+	}
+
+
+	String fileDir() {
+		return file.getParent() + File.separator;
+	}
+
+
 	void readStrh() throws IOException {
 		fccStreamHandler = readStringBytes();
 		dwStreamFlags = readInt();
@@ -527,6 +884,9 @@ public class AVI_Reader implements PlugIn {
 		BMPcolorsImportant = readInt();
 
 		BMPtopDown = (BMPheight < 0);
+		if (BMPtopDown) {
+			BMPheight = -BMPheight;
+		}
 		BMPnoOfPixels = BMPwidth * BMPheight;
 
 		// Scan line is padded with zeroes to be a multiple of four bytes
@@ -645,124 +1005,16 @@ public class AVI_Reader implements PlugIn {
 	}
 
 
-	void readMovieData() throws Exception, IOException {
-		readTypeAndSizeAndFcc();
-
-		if (type.equals("LIST")) {
-			if (verbose)
-				IJ.log("Type 'LIST' detected of fcc '" + fcc + "'...");
-			if (fcc.equals("movi")) {
-				if (verbose)
-					IJ.log("Movie data detected...");
-				readTypeAndSizeAndFcc();
-				if (type.equals("LIST") && fcc.equals("rec ")) {
-					if (verbose)
-						IJ.log("   Movie record detected and skipped");
-				} else {
-					if (verbose)
-						IJ.log("   Type '" + type + "' and fcc '" + fcc + "' detected.  Backing up.");
-					raFile.seek(raFile.getFilePointer() - 12);
-				}
-				readTypeAndSize();
-				long  startPos  = raFile.getFilePointer();
-				if (BMPbitsPerPixel <= 8)
-					ip = new ByteProcessor(dwWidth, BMPheight);
-				else
-					ip = new ColorProcessor(dwWidth, BMPheight);
-
-				showTime(">>Entering while-loop to read chunks");
-				while (type.substring(2).equals("db") || type.substring(2).equals("dc") || type.substring(2).equals("wb")) {
-					updateProgress();
-					pos = raFile.getFilePointer();
-					if (type.substring(2).equals("db") || type.substring(2).equals("dc")) {
-						if (verbose) {
-							IJ.log("   Video data chunk (" + type + ") detected...");
-							IJ.log("      size=" + size);
-						}
-						readFrame();
-						if (BMPbitsPerPixel <= 8)
-							ip.setPixels(byteData);
-						else
-							ip.setPixels(intData);
-						if (BMPactualColorsUsed != 0) {
-							ip.setColorModel(cm);
-							if (verbose)
-								IJ.log("      Color model set");
-						}
-						stack.addSlice("", ip);
-
-					} else {
-						if (verbose) {
-							IJ.log("   Unknown data chunk (" + type + ") detected.  Skipping...");
-							IJ.log("      size=" + size);
-						}
-					}
-
-					//raFile.seek(pos + size);// +1);  // <= quicktime seems to need this for rgb files
-					//this is hackish, but I don't see a better way at the moment
-					//if (raFile.readByte() == 48) {
-					//	if (verbose)
-					//		IJ.log("     Skipping last byte");
-					//	raFile.seek(raFile.getFilePointer() - 1);
-					//}
-					readTypeAndSize();
-					if (type.equals("JUNK")) {
- 						raFile.seek(raFile.getFilePointer() + size);
-						readTypeAndSize();
-					}
-				}
-
-				showTime(">>Exiting while-loop to read chunks");
-				if (verbose)
-					IJ.log("End of video data reached with type '" + type + "'.  Backing up.");
-				raFile.seek(raFile.getFilePointer() - 8);
-			} else 
-				IJ.log("**Expected fcc 'movi', but found fcc '" + fcc + "'");
-		} else
-			IJ.log("**Expected 'LIST', but found '" + type + "'");
-		if (verbose) 
-			IJ.log("");
-	}
-
-	void unpack(byte[] rawData, int rawOffset, int bpp, byte[] byteData, int byteOffset, int w) throws Exception {
-		for (int i = 0; i < w; i++)
-			byteData[byteOffset + i] = rawData[rawOffset + i];
-	}
-
-	void unpack(byte[] rawData, int rawOffset, int[] intData, int intOffset, int w) {
-		int  j     = intOffset;
-		int  k     = rawOffset;
-		int  mask  = 0xff;
-		for (int i = 0; i < w; i++) {
-			int  b0  = (((int) (rawData[k++])) & mask);
-			int  b1  = (((int) (rawData[k++])) & mask) << 8;
-			int  b2  = (((int) (rawData[k++])) & mask) << 16;
-			if (BMPbitsPerPixel==32) k++; // ignore 4th byte (alpha value) 
-			intData[j] = 0xff000000 | b0 | b1 | b2;
-			j++;
-		}
+	/** BGR to packed RGB */
+	static void unpack24(byte[] rawData, int rawOffset, int[] intData, int intOffset, int w) {
+		for (int i = 0, k = rawOffset; i < w; i++, k += 3)
+			intData[intOffset + i] = 0xff000000 | (rawData[k + 2] & 0xff) << 16 | (rawData[k + 1] & 0xff) << 8 | (rawData[k] & 0xff);
 	}
 
-	void readFrame() throws Exception, IOException {
-		int  len = BMPscanLineSize;
-		if (BMPbitsPerPixel > 8)
-			intData = new int[dwWidth * BMPheight];
-		else
-			byteData = new byte[dwWidth * BMPheight];
-		rawData = new byte[BMPactualSizeOfBitmap];
-		int  rawOffset  = 0;
-		int  offset     = (BMPheight - 1) * dwWidth;
-		for (int i = BMPheight - 1; i >= 0; i--) {
-			int  n  = raFile.read(rawData, rawOffset, len);
-			if (n < len) 
-				throw new Exception("Scan line ended prematurely after " + n + " bytes");
-			if (BMPbitsPerPixel > 8)
-				unpack(rawData, rawOffset, intData, offset, dwWidth);
-			else
-				unpack(rawData, rawOffset, BMPbitsPerPixel, byteData, offset, dwWidth);
-			rawOffset += len;
-			offset -= dwWidth;
-		}
+	/** BGRA to packed RGB, the 4th byte (alpha value) is ignored */
+	static void unpack32(byte[] rawData, int rawOffset, int[] intData, int intOffset, int w) {
+		for (int i = 0, k = rawOffset; i < w; i++, k += 4)
+			intData[intOffset + i] = 0xff000000 | (rawData[k + 2] & 0xff) << 16 | (rawData[k + 1] & 0xff) << 8 | (rawData[k] & 0xff);
 	}
 
 	void getPalette() throws IOException {
@@ -806,6 +1058,19 @@ public class AVI_Reader implements PlugIn {
 	}
 
 
+	long readLong() throws IOException {
+		// 8 bytes
+		long  low   = readInt() & 0xffffffffL;
+		long  high  = readInt() & 0xffffffffL;
+		return high << 32 | low;
+	}
+
+
+	static int getInt(byte[] b, int i) {
+		return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+	}
+
+
 	short readShort() throws IOException {
 		// 2 bytes
 		int  low   = raFile.readByte() & 0xff;
@@ -848,3 +1113,76 @@ public class AVI_Reader implements PlugIn {
 	}
 
 }
+
+
+/**
+ * Reads the frames of an AVI file when they are displayed. The file is opened
+ * on the first read and stays open until the image is closed (closeWith).
+ */
+class AviVirtualStack extends VirtualStack implements ImageListener {
+
+	private  AVI_Reader  reader;
+	private  int[]       frames;
+	private  AVI_Reader.FrameDecoder  decoder;
+	private  RandomAccessFile  in;
+	private  ImagePlus   owner;
+
+	AviVirtualStack(AVI_Reader reader, int[] frames) {
+		super(reader.stackWidth(), reader.stackHeight(), reader.colorModel(), reader.fileDir());
+		this.reader = reader;
+		this.frames = frames;
+		this.decoder = reader.new FrameDecoder();
+	}
+
+	public int getSize() {
+		return frames.length;
+	}
+
+	public String getSliceLabel(int n) {
+		return "" + (frames[n - 1] + 1);
+	}
+
+	public synchronized ImageProcessor getProcessor(int n) {
+		try {
+			if (in == null)
+				in = new RandomAccessFile(reader.file(), "r");
+			return decoder.read(in.getChannel(), frames[n - 1]);
+		} catch (Exception e) {
+			IJ.log("AVI Reader: frame " + (frames[n - 1] + 1) + ": " + e.getMessage());
+			return reader.stackWidth() > 0 && reader.bitsPerPixel() > 8
+				? (ImageProcessor) new ColorProcessor(reader.stackWidth(), reader.stackHeight())
+				: new ByteProcessor(reader.stackWidth(), reader.stackHeight());
+		}
+	}
+
+	/** Closes the file when the given image, which shows this stack, is closed */
+	void closeWith(ImagePlus imp) {
+		owner = imp;
+		ImagePlus.addImageListener(this);
+	}
+
+	public void imageOpened(ImagePlus imp) {
+	}
+
+	public void imageUpdated(ImagePlus imp) {
+	}
+
+	public void imageClosed(ImagePlus imp) {
+		if (imp == owner) {
+			ImagePlus.removeImageListener(this);
+			owner = null;
+			close();
+		}
+	}
+
+	/** Closes the file, the next read opens it again */
+	synchronized void close() {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+			in = null;
+		}
+	}
+}
@@ -2,7 +2,12 @@ import ij.*;
 import ij.io.*;
 import ij.util.Tools;
 import ij.plugin.*;
+import ij.gui.*;
+import ij.process.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
 import java.util.zip.GZIPInputStream;
 
 import ij.measure.*;
@@ -17,6 +22,17 @@ import java.awt.image.*;
     for modifications by "Greg Joss" <gjoss@bio.mq.edu.au>
     to open 16-bit little-endian (Intel) Biorad files from "Winnok De Vos (ir.)" <winnok.devos@ugent.be>
     some if (IJ.debugMode)IJ.log(statements were also added.
+
+    10.19.26 - The notes are read into the calibration (pixel size, z-step
+    or frame interval, lens from the header) before any pixels. Files
+    numbered like cell01.pic, cell02.pic ... can be opened as one
+    hyperstack with a time point per file, and "Use virtual stack" maps
+    the pixel data of the files and reads the planes when they are
+    displayed.
+    10.19.26 - "Use virtual stack" is offered for single files too; files
+    passed by other plugins (i.e. File>Open) take it from the macro
+    options. A series has no FileInfo, so Revert does not reload only
+    its first file.
 */
 
 public class Biorad_Reader extends ImagePlus implements PlugIn {
@@ -27,6 +43,10 @@ public class Biorad_Reader extends ImagePlus implements PlugIn {
     private String fileName;
     private String notes = "";	
     private int lutOffset = -1;
+    private int lens;
+    private float magFactor;
+    private static boolean openAsVirtualStack;
+    private static boolean openSeries = true;
 
     public void run(String arg) {
 	OpenDialog od = new OpenDialog("Open Biorad...", arg);
@@ -48,24 +68,18 @@ public class Biorad_Reader extends ImagePlus implements PlugIn {
 			IJ.error("ImageJ 1.38s or later required to open gzipped Biorad PIC files");
 			return;
 		}
+		boolean gzipped = fileName.toLowerCase().endsWith(".gz");
 
-		FileOpener fo = new FileOpener(fi);
-		ImagePlus imp = fo.open(false);
-		if(IJ.debugMode)IJ.log("imp="+imp);
-		if (imp==null)
-			return;
-	    
-		setStack(fileName, imp.getStack());
-		setFileInfo(fi);
-		if(IJ.debugMode) IJ.log("FileInfo="+fi);
+		// The calibration comes from the notes after the pixels,
+		// which are skipped, not read
+		Calibration BioRadCal = null;
 		try {
 			int pixelLength=1;
-			switch (fi.fileType) {	// ghj 4/3/06
+			switch (fi.fileType) {  // ghj 4/3/06
 				case FileInfo.GRAY8: pixelLength=1; break;
 				case FileInfo.GRAY16_UNSIGNED:pixelLength=2; break;
 			}
-			Calibration BioRadCal = getBioRadCalibration(fi.width, fi.height, fi.nImages, pixelLength);			// ghj 4/3/0
-			setCalibration(BioRadCal);
+			BioRadCal = getBioRadCalibration(fi.width, fi.height, fi.nImages, pixelLength);                 // ghj 4/3/0
 		} catch (Exception e) {
 			IJ.showStatus("");
 			String msg = e.getMessage();
@@ -74,7 +88,67 @@ public class Biorad_Reader extends ImagePlus implements PlugIn {
 				IJ.showMessage("BioradReader", msg);
 			return;
 		}
-	    
+
+		// Other files of a numbered series, unless another plugin
+		// passed the file
+		File[] series = null;
+		if (arg.equals("") && !gzipped)
+			series = findSeries(fi);
+		if (series==null)
+			series = new File[] {new File(directory, fileName)};
+
+		// How to open them, gzipped files are read whole. A file passed
+		// by another plugin only gets the settings of a macro.
+		boolean virtual = false;
+		if (!gzipped && (arg.equals("") || Macro.getOptions()!=null)) {
+			GenericDialog gd = new GenericDialog("Biorad Reader");
+			gd.addMessage(fi.width+" x "+fi.height+" x "+fi.nImages+", lens "+lens);
+			if (series.length>1)
+				gd.addCheckbox("Open all "+series.length+" files of the series", openSeries);
+			gd.addCheckbox("Use virtual stack", openAsVirtualStack);
+			gd.showDialog();
+			if (gd.wasCanceled())
+				return;
+			if (series.length>1) {
+				openSeries = gd.getNextBoolean();
+				if (!openSeries)
+					series = new File[] {new File(directory, fileName)};
+			}
+			virtual = gd.getNextBoolean();
+			if (Macro.getOptions()==null)
+				openAsVirtualStack = virtual;
+		}
+
+		ImageStack stack;
+		if (virtual || series.length>1) {
+			BioradVirtualStack vs = new BioradVirtualStack(fi, series);
+			if (virtual)
+				stack = vs;
+			else {
+				try {stack = vs.load();}
+				catch (IOException e) {
+					IJ.showStatus("");
+					IJ.showMessage("BioradReader", ""+e);
+					return;
+				}
+			}
+		} else {
+			FileOpener fo = new FileOpener(fi);
+			ImagePlus imp = fo.open(false);
+			if(IJ.debugMode)IJ.log("imp="+imp);
+			if (imp==null)
+				return;
+			stack = imp.getStack();
+		}
+
+		setStack(fileName, stack);
+		if (series.length==1)
+			setFileInfo(fi);
+		if(IJ.debugMode) IJ.log("FileInfo="+fi);
+		if (series.length>1)
+			setDimensions(1, fi.nImages, series.length);
+		setCalibration(BioRadCal);
+
 	    boolean hasLut = false;
 	    
 	    if (lutOffset!=-1) {
@@ -93,7 +167,9 @@ public class Biorad_Reader extends ImagePlus implements PlugIn {
 		getProcessor().setColorModel(cm);
 		getStack().setColorModel(cm);
 	    }
-	    
+
+	    if (lens!=0)
+		notes = "Lens = "+lens+"\nMag factor = "+magFactor+"\n"+notes;
 	    if (!notes.equals(""))
 		setProperty("Info", notes);
 	    if(IJ.debugMode)IJ.log("arg=|"+arg+"|");
@@ -102,6 +178,63 @@ public class Biorad_Reader extends ImagePlus implements PlugIn {
 	if(IJ.debugMode)IJ.log("done");
     }
 
+    /** The files in the directory named like this one with another
+	number, i.e. cell01.pic, cell02.pic, ..., in number order, that
+	have the same size and type. */
+    File[] findSeries(FileInfo fi) {
+	File self = new File(directory, fileName);
+	String name = fileName;
+	int dot = name.lastIndexOf('.');
+	String ext = dot<0 ? "" : name.substring(dot);
+	int end = dot<0 ? name.length() : dot;
+	int start = end;
+	while (start>0 && Character.isDigit(name.charAt(start-1)))
+	    start--;
+	if (start==end)
+	    return new File[] {self};
+	String prefix = name.substring(0, start);
+	String[] list = new File(directory).list();
+	TreeMap<Long, File> files = new TreeMap<Long, File>();
+	for (int i=0; list!=null && i<list.length; i++) {
+	    String other = list[i];
+	    if (!other.startsWith(prefix) || !other.toLowerCase().endsWith(ext.toLowerCase())
+		|| other.length()<=prefix.length()+ext.length())
+		continue;
+	    String number = other.substring(prefix.length(), other.length()-ext.length());
+	    boolean digits = number.length()<=18;
+	    for (int k=0; k<number.length() && digits; k++)
+		digits = Character.isDigit(number.charAt(k));
+	    if (!digits)
+		continue;
+	    File f = new File(directory, other);
+	    try {
+		int[] h = readHeader(f);
+		if (h[0]!=fi.width || h[1]!=fi.height || h[2]!=fi.nImages || h[3]!=fi.fileType)
+		    continue;
+	    } catch (IOException e) {
+		continue;
+	    }
+	    files.put(Long.valueOf(number), f);
+	}
+	if (files.size()<2)
+	    return new File[] {self};
+	return files.values().toArray(new File[files.size()]);
+    }
+
+    /** Width, height, number of images and FileInfo type of an
+	uncompressed PIC file */
+    static int[] readHeader(File file) throws IOException {
+	byte[] h = new byte[76];
+	RandomAccessFile in = new RandomAccessFile(file, "r");
+	try {in.readFully(h);}
+	finally {in.close();}
+	ByteBuffer b = ByteBuffer.wrap(h).order(ByteOrder.LITTLE_ENDIAN);
+	if ((b.getShort(54)&0xffff)!=12345)
+	    throw new IOException(file.getName()+" does not seem to be a Biorad Pic File");
+	int type = b.getShort(14)==1 ? FileInfo.GRAY8 : FileInfo.GRAY16_UNSIGNED;
+	return new int[] {b.getShort(0)&0xffff, b.getShort(2)&0xffff, b.getShort(4)&0xffff, type};
+    }
+
     int getByte() throws IOException {
 	int b = f.read();
 	if (b ==-1) throw new IOException("unexpected EOF");
@@ -140,6 +273,9 @@ public class Biorad_Reader extends ImagePlus implements PlugIn {
 	int byte_format = getShort(); //14-15
 	f.skip(38);
 	int magicNumber = getShort(); // 54-55
+	f.skip(8);
+	lens = getShort(); // 64-65
+	magFactor = Float.intBitsToFloat(getInt()); // 66-69
 	f.close();
 	
 	// A Biorad .PIC file should have 12345 in bytes 54-55
@@ -325,6 +461,96 @@ public class Biorad_Reader extends ImagePlus implements PlugIn {
     }
 }
 
+
+/** The planes of one or more PIC files of the same size and type, read
+    from a memory map of each file's pixel data when they are needed. */
+class BioradVirtualStack extends VirtualStack {
+
+    private static final int HEADER_SIZE = 76;
+
+    private File[] files;
+    private int nImages, planeBytes, fileType;
+    private ByteBuffer[] maps;
+
+    BioradVirtualStack(FileInfo fi, File[] files) {
+	super(fi.width, fi.height, null, fi.directory);
+	this.files = files;
+	this.nImages = fi.nImages;
+	this.fileType = fi.fileType;
+	this.planeBytes = fi.width*fi.height*(fi.fileType==FileInfo.GRAY8 ? 1 : 2);
+	this.maps = new ByteBuffer[files.length];
+    }
+
+    public int getSize() {
+	return files.length*nImages;
+    }
+
+    public String getSliceLabel(int n) {
+	return files.length>1 ? files[(n-1)/nImages].getName() : null;
+    }
+
+    public ImageProcessor getProcessor(int n) {
+	try {
+	    return read(n);
+	} catch (IOException e) {
+	    IJ.log("Biorad Reader: "+files[(n-1)/nImages].getName()+": "+e);
+	    return fileType==FileInfo.GRAY8 ? (ImageProcessor)new ByteProcessor(getWidth(), getHeight())
+		: new ShortProcessor(getWidth(), getHeight());
+	}
+    }
+
+    /** Reads every plane into an ordinary stack */
+    ImageStack load() throws IOException {
+	ImageStack stack = new ImageStack(getWidth(), getHeight());
+	for (int n=1; n<=getSize(); n++) {
+	    IJ.showProgress(n, getSize());
+	    stack.addSlice(getSliceLabel(n), read(n));
+	    // Let the maps of the files that are done go
+	    if (n%nImages==0)
+		maps[(n-1)/nImages] = null;
+	}
+	return stack;
+    }
+
+    private ImageProcessor read(int n) throws IOException {
+	int file = (n-1)/nImages;
+	long offset = (long)((n-1)%nImages)*planeBytes;
+	ByteBuffer buf;
+	synchronized (this) {
+	    if (maps[file]==null && (long)nImages*planeBytes<=Integer.MAX_VALUE)
+		maps[file] = map(files[file], HEADER_SIZE, (long)nImages*planeBytes);
+	    buf = maps[file];
+	}
+	if (buf==null) {
+	    // Pixel data over 2 GB: a map per plane
+	    buf = map(files[file], HEADER_SIZE+offset, planeBytes);
+	    offset = 0;
+	}
+	buf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	buf.position((int)offset);
+	if (fileType==FileInfo.GRAY8) {
+	    byte[] pixels = new byte[planeBytes];
+	    buf.get(pixels);
+	    return new ByteProcessor(getWidth(), getHeight(), pixels, null);
+	}
+	short[] pixels = new short[planeBytes/2];
+	buf.asShortBuffer().get(pixels);
+	return new ShortProcessor(getWidth(), getHeight(), pixels, null);
+    }
+
+    private static ByteBuffer map(File file, long offset, long size) throws IOException {
+	RandomAccessFile in = new RandomAccessFile(file, "r");
+	try {
+	    if (in.length()<offset+size)
+		throw new EOFException(file.getName()+" is shorter than its header says");
+	    // The map stays valid after the file is closed
+	    return in.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, size);
+	} finally {
+	    in.close();
+	}
+    }
+}
+
 /*
   Bio-Rad(TM) .PIC Image File Information
   (taken from: "Introductory Edited Version 1.0", issue 1/12/93.)
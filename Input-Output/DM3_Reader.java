@@ -1,5 +1,7 @@
 import java.io.*; 
-import java.util.*;  // for the Vector and Hashtable classes
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
 import java.awt.*; 
 import ij.*; 
 import ij.plugin.*;
@@ -129,8 +131,19 @@ import ij.measure.*;
 // - Fixed a bug in which tag hashes were not cleared when reading a new file
 // - Small speed improvement by converting tags to String via StringBuffer
 // - Both thanks to report by Eric Olson at UIUC
-     
-public class DM3_Reader extends ImagePlus implements PlugIn 
+// ------------------------------------
+// v 1.4.0 261019
+// - The tag tree is parsed from a memory map of the file instead of
+//   many small reads, and only the position of each tag is indexed.
+//   Values are decoded when they are asked for (getTag), so reading the
+//   dimensions, calibration and data offset of a file (readHeader) does
+//   not decode the other tags at all.
+// - Reads DM4 files (64-bit tag sizes and counts) as well as DM3
+// - Common pixel types are decoded with bulk gets from a map of the
+//   image data rather than through FileOpener
+// - Opens 3D image data as a stack
+
+public class DM3_Reader extends ImagePlus implements PlugIn
 {
 	// Decide whether to use Gatan's information for determining the min
 	// and maximum brightness thresholds for display or leave to ImageJ
@@ -138,37 +151,38 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 	public boolean useGatanMinMax = true;
 
 	private boolean littleEndian = true;  // default for .dm3 files
-	// nb all tags are written big-endian, it is only the actual data 
+	// nb all tags are written big-endian, it is only the actual data
 	// attached to each tag that may be little-endian (and will be for PC files)
-	//private String directory;
-	//private String fileName;
-	private RandomAccessFile f;  // This stream will be used for reading by parseDM3()
+	private RandomAccessFile f;  // Kept open while tags may still be decoded
+	private boolean dm4;  // DM4 has 8 byte sizes and counts where DM3 has 4
+
+	// The part of the file that is mapped - all of a normal file, a window
+	// of big DM4 files since a map can't be larger than 2 GB
+	private static final long WINDOW = 256L*1024*1024;
+	private MappedByteBuffer window;
+	private long windowStart;
 
 	private FileInfo fi;
 
-	private String notes = "";  // I will store interesting file info in here 
-	
+	private String notes = "";  // I will store interesting file info in here
+
 	//  0=none, 1-3=basic, 4-5=simple, 6-10 verbose
-	private static final int debugLevel = IJ.debugMode?10:0; 
+	private static final int debugLevel = IJ.debugMode?10:0;
 
 	// the number of the chosen image in the DM3 file
 	// since there apparently may be several - usually at least a thumbnail
 	// I will select the largest image.  If there are multiple images
 	// of the same size, the first will be chosen.
 	private int chosenImage = 1;
-	
-	private int curGroupLevel=-1;  // Track how deep is the group we are currently reading
+
 	private static final int MAXDEPTH = 64; // Maximum number of levels of tags
-	private int[] curGroupAtLevelX=new int[MAXDEPTH];  // To track group at current level
-	private String[] curGroupNameAtLevelX=new String[MAXDEPTH];  // To track group name at current level
 
-	private int[] curTagAtLevelX=new int[MAXDEPTH];  // To track tag number at current level
-	private String curTagName = "";  // the name of the current tag data item
+	// The tag index: full tag names in file order and the position of
+	// the %%%% which starts the type info of each.  Nothing else is kept.
+	private ArrayList<String> tagNames = new ArrayList<String>();
+	private HashMap<String,Integer> tagIndex = new HashMap<String,Integer>();
+	private long[] tagOffsets = new long[256];
 
-	// Will use these to store tags
-	private Vector storedTags = new Vector();
-	private Hashtable tagHash = new Hashtable();
-	
 	// Set up constants for the different encoded data types used in DM3 files
 	private static final int SHORT   = 2;
 	private static final int LONG    = 3;
@@ -179,10 +193,12 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 	private static final int BOOLEAN = 8;
 	private static final int CHAR    = 9;
 	private static final int OCTET   = 10;
+	private static final int LONG8   = 11;  // DM4 only
+	private static final int ULONG8  = 12;  // DM4 only
 	private static final int STRUCT  = 15;
 	private static final int STRING  = 18;
 	private static final int ARRAY   = 20;
-		
+
 	// This the lhs of Image list tags
 	private static final String IMGLIST = "root.ImageList.";
 	// This is the lhs for Document Object List Tags
@@ -192,39 +208,39 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 	public void run(String arg)  {
 		String directory = "";
 		String fileName = arg;
-		//if (debugLevel>5);
-	
-		if (debugLevel>5) IJ.write("IN:dir = "+directory+", file="+fileName);
-		if ((arg==null) || (arg==""))
+
+		if (debugLevel>5) IJ.log("IN:dir = "+directory+", file="+fileName);
+		if ((arg==null) || (arg.equals("")))
 		{	// Choose a file since none specified
 			OpenDialog od = new OpenDialog("Load DM3 File...", arg);
 			fileName = od.getFileName();
 			if (fileName==null)
 			  return;
 			directory = od.getDirectory();
-			if (debugLevel>5) IJ.write("IF:dir = "+directory+", file="+fileName);
+			if (debugLevel>5) IJ.log("IF:dir = "+directory+", file="+fileName);
 		}
 		else
 		{	// we were sent a filename to open
 			File dest = new File(arg);
 			directory = dest.getParent();
 			fileName = dest.getName();
-			if (debugLevel>5) IJ.write("ELSE:dir = "+directory+", file="+fileName);			
+			if (debugLevel>5) IJ.log("ELSE:dir = "+directory+", file="+fileName);
 		}
 
 		// Load in the image
 		ImagePlus imp = load(directory, fileName);
 		if (imp==null) return;
-		
-		// Attach the Image Processor
-		setProcessor(fileName, imp.getProcessor());
+
+		// Attach the stack (a single image is a stack of one)
+		setStack(fileName, imp.getStack());
 		// Copy the scale info over
 		copyScale(imp);
 		// Copy the Show Info field over
 		setProperty("Info",imp.getProperty("Info"));
 		// and the FHT property (to handle diffraction mode images)
 		if(imp.getProperty("FHT")!=null) setProperty("FHT", imp.getProperty("FHT"));
-		
+		getProcessor().setMinAndMax(imp.getProcessor().getMin(), imp.getProcessor().getMax());
+
 		// Show the image if it was selected by the file
 		// chooser, don't if an argument was passed ie
 		// some other ImageJ process called the plugin
@@ -232,130 +248,175 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 	}
 
 	public ImagePlus load(String directory, String fileName) /*throws IOException*/ {
-    
-		if ((fileName == null) || (fileName == "")) return null;
+
+		if ((fileName == null) || (fileName.equals(""))) return null;
 
 		if (!directory.endsWith(File.separator)) directory += File.separator;
 
 		IJ.showStatus("Loading DM3 File: " + directory + fileName);
 
-		// Clear the lists of tags in which additional info will be stored
-		tagHash.clear();
-		storedTags.clear();
-		// Try calling the parse routine
-		try{ parseDM3(directory, fileName);}
-		catch (Exception e) {
-			IJ.showStatus("parseDM3() error");
-			IJ.showMessage("DM3_Reader", ""+e);
-			return null;
-		}
-		
-		// Make a blank file information object
-		fi = new FileInfo();
-		
-		// Go and fetch the DM3 specific file Information
-		try {fi=getDM3FileInfo(directory, fileName);}
-		// This is in case of trouble parsing the tag table
-		catch (Exception e) {
-			IJ.showStatus("");
-			IJ.showMessage("DM3_Reader", "gDM3:"+e);
-			return null;
-		}
-		
-		// Write out Calculated Offset if reqd
-		if(debugLevel>1) IJ.write("Calculated offset = "+fi.offset);
-		if(debugLevel>1) IJ.write("Chosen image = "+chosenImage);
-
-		// Open the image!
-		FileOpener fo = new FileOpener(fi);  
-		ImagePlus imp = fo.open(false);
-		//if(debugLevel>5) if(imp==null) IJ.write("Image load failed!");
-		
-		// Write out the contents of the storedTags list
-		// and set the value of notes
-		StringBuffer notesBuffer=new StringBuffer();
-		for (int i = 0; i<storedTags.size();i++){
-			// Can decide whether I want to do this
-			//IJ.log((String) storedTags.elementAt(i));
-			notesBuffer.append( (String) storedTags.elementAt(i) + "\n");
-		}
-		notes=notesBuffer.toString();
-		if (!notes.equals("")) imp.setProperty("Info", notes);
-		
-		// Set (spatial) calibration
-		// nb pass the current calibration in case that contains useful info 
-		// already (such as a brightness calibration)
 		try {
-			imp.setCalibration(getDM3CalibrationInfo(imp.getCalibration()));
-		}
-		catch (Exception e) {
-			IJ.showStatus("No Calibration info in "+fileName);
-		}
-		// If this is a diffraction (ie reciprocal space) image then set the
-		// FHT property so that ImageJ displays inverse scale
-		String imagingMode = (String) tagHash.get(IMGLIST+chosenImage+".ImageTags.Microscope Info.Imaging Mode");
-		if (imagingMode!=null && imagingMode.toUpperCase().equals("DIFFRACTION")){
-				imp.setProperty("FHT", "Dummy FHT");
-		}
-		
-		
-		// Set the min and max brightness for display purposes 
-		// from DM3 header info if required - ImageJ can do this
-		// but is less robust
-		if(useGatanMinMax) {
-			// now searches through all tags 
-			// after bug report by <Charles.P.Daghlian@Dartmouth.EDU>
-			double hiVal=0.0, loVal=0.0;
-			// Iterate over components of the taglist
-			// looking for the image brightness tag
-			// all this because I don't know how to partially match a hash key
-			for (Enumeration e = tagHash.keys() ; e.hasMoreElements() ;) {
-				String thisElementString = (String) e.nextElement();
-				
-				if( (thisElementString).endsWith("ImageDisplayInfo.HighLimit"))
-					hiVal = ((Float) tagHash.get(thisElementString)).doubleValue();
-				if( (thisElementString).endsWith("ImageDisplayInfo.LowLimit"))
-					loVal = ((Float) tagHash.get(thisElementString)).doubleValue();
+			// Try calling the parse routine
+			try{ parseDM3(directory, fileName);}
+			catch (Exception e) {
+				IJ.showStatus("parseDM3() error");
+				IJ.showMessage("DM3_Reader", ""+e);
+				return null;
+			}
+
+			// Go and fetch the DM3 specific file Information
+			try {fi=getDM3FileInfo(directory, fileName);}
+			// This is in case of trouble parsing the tag table
+			catch (Exception e) {
+				IJ.showStatus("");
+				IJ.showMessage("DM3_Reader", "gDM3:"+e);
+				return null;
 			}
 
-			// If we found at least one, then set the min max brightness
-			if (hiVal!=0.0 || loVal!=0.0) {
-				// min,max are set through the image processor, so get it
-				ImageProcessor ip = imp.getProcessor();
-				// set them - nb setMinMax expects raw pixel values
-				// if a brightness calibration is in force then getRawValue()
-				// does the appropriate conversion
-				ip.setMinAndMax(imp.getCalibration().getRawValue(loVal),imp.getCalibration().getRawValue(hiVal));
+			// Write out Calculated Offset if reqd
+			if(debugLevel>1) IJ.log("Calculated offset = "+fi.longOffset);
+			if(debugLevel>1) IJ.log("Chosen image = "+chosenImage);
+
+			// Open the image!
+			ImagePlus imp;
+			try {
+				imp = openView(fi);
+			} catch (IOException e) {
+				IJ.showStatus("");
+				IJ.showMessage("DM3_Reader", ""+e);
+				return null;
 			}
+			if (imp==null) {
+				// Types I don't decode myself
+				FileOpener fo = new FileOpener(fi);
+				imp = fo.open(false);
+				if (imp==null) return null;
+			}
+
+			// Write out every tag and set the value of notes
+			// This is the only place where all tags are decoded
+			StringBuffer notesBuffer=new StringBuffer();
+			for (int i = 0; i<tagNames.size();i++){
+				String name = tagNames.get(i);
+				Object val;
+				try {
+					val = decodeTag(name, tagOffsets[i]);
+				} catch (IOException e) {
+					val = "couldn't read "+name;
+				}
+				if (val instanceof long[]) {
+					// binary data - note where it is rather than what it is
+					notesBuffer.append(name+".Size = "+((long[]) val)[1]+"\n");
+					notesBuffer.append(name+".Offset = "+((long[]) val)[0]+"\n");
+				} else {
+					notesBuffer.append(name+" = "+val+"\n");
+				}
+			}
+			notes=notesBuffer.toString();
+			if (!notes.equals("")) imp.setProperty("Info", notes);
+
+			// Set (spatial) calibration
+			// nb pass the current calibration in case that contains useful info
+			// already (such as a brightness calibration)
+			try {
+				imp.setCalibration(getDM3CalibrationInfo(imp.getCalibration()));
+			}
+			catch (Exception e) {
+				IJ.showStatus("No Calibration info in "+fileName);
+			}
+			// If this is a diffraction (ie reciprocal space) image then set the
+			// FHT property so that ImageJ displays inverse scale
+			Object imagingMode = getTag(IMGLIST+chosenImage+".ImageTags.Microscope Info.Imaging Mode");
+			if (imagingMode instanceof String && ((String) imagingMode).toUpperCase().equals("DIFFRACTION")){
+					imp.setProperty("FHT", "Dummy FHT");
+			}
+
+
+			// Set the min and max brightness for display purposes
+			// from DM3 header info if required - ImageJ can do this
+			// but is less robust
+			if(useGatanMinMax) {
+				// now searches through all tags
+				// after bug report by <Charles.P.Daghlian@Dartmouth.EDU>
+				double hiVal=0.0, loVal=0.0;
+				// Only the names are searched, just the two matching
+				// tags are decoded
+				for (int i = 0; i<tagNames.size();i++) {
+					String thisElementString = tagNames.get(i);
+
+					if( (thisElementString).endsWith("ImageDisplayInfo.HighLimit"))
+						hiVal = ((Number) decodeTag(thisElementString, tagOffsets[i])).doubleValue();
+					if( (thisElementString).endsWith("ImageDisplayInfo.LowLimit"))
+						loVal = ((Number) decodeTag(thisElementString, tagOffsets[i])).doubleValue();
+				}
+
+				// If we found at least one, then set the min max brightness
+				if (hiVal!=0.0 || loVal!=0.0) {
+					// min,max are set through the image processor, so get it
+					ImageProcessor ip = imp.getProcessor();
+					// set them - nb setMinMax expects raw pixel values
+					// if a brightness calibration is in force then getRawValue()
+					// does the appropriate conversion
+					ip.setMinAndMax(imp.getCalibration().getRawValue(loVal),imp.getCalibration().getRawValue(hiVal));
+				}
+			}
+
+			return imp;
+		} catch (IOException e) {
+			IJ.showMessage("DM3_Reader", ""+e);
+			return null;
+		} finally {
+			closeFile();
 		}
-		
-		return imp; 		
     }
 
+	/**
+	 * Reads just what is needed to open a file - dimensions, data type and
+	 * offset of the largest image, and its spatial calibration - without
+	 * decoding any other tag or the pixels.  Meant for scanning folders of
+	 * files.
+	 */
+	public FileInfo readHeader(String directory, String fileName) throws IOException {
+		if (!directory.endsWith(File.separator)) directory += File.separator;
+		try {
+			parseDM3(directory, fileName);
+			FileInfo info = getDM3FileInfo(directory, fileName);
+			try {
+				Calibration cal = getDM3CalibrationInfo(new Calibration());
+				info.pixelWidth = cal.pixelWidth;
+				info.pixelHeight = cal.pixelHeight;
+				info.unit = cal.getUnit();
+			} catch (Exception e) {
+				// No calibration - leave pixels as pixels
+			}
+			return info;
+		} finally {
+			closeFile();
+		}
+	}
+
 	void parseDM3(String directory, String fileName) throws IOException {
-		// This reads through the DM3 file, extracting useful tags
-		// which allow one to determine the data offset etc.
-		
-		// alternative way to read from file - allows seeks!
-		// and therefore keeps track of position (use long getFilePointer())
-		// also has DataInput Interface allowing
-		// reading of specific types
+		// This reads through the DM3 file, building the tag index
+		// which allows one to determine the data offset etc.
+		tagNames.clear();
+		tagIndex.clear();
+		window = null;
 		f = new RandomAccessFile(directory+fileName,"r");
-		if(debugLevel>0) IJ.write("Directory = "+directory);
-		if(debugLevel>0) IJ.write("File = "+fileName);
+		if(debugLevel>0) IJ.log("Directory = "+directory);
+		if(debugLevel>0) IJ.log("File = "+fileName);
+
+		// Get the header to find out the FileVersion (3 or 4), the size
+		// of the tags and whether the data was written little endian
+		int fileVersion = at(0,4).getInt();
+		if (fileVersion!=3 && fileVersion!=4)
+			throw new IOException("This does not seem to be a DM3 or DM4 file");
+		dm4 = fileVersion==4;
 
-		// Get the first 3 4byte ints from Header to find out
-		// FileVersion (which must be 3)
-		int fileVersion = f.readInt();
-		if (fileVersion!=3) throw new IOException("This does not seem to be a DM3 file");
-		
-		if(debugLevel>5) IJ.write("File Version"+fileVersion);
+		if(debugLevel>5) IJ.log("File Version "+fileVersion);
 
-		// ... file size 
-		int FileSize=f.readInt();
-		int lE=f.readInt();
+		int lE = dm4 ? at(12,4).getInt() : at(8,4).getInt();
 
-		if(debugLevel>5) IJ.write("lE "+lE);
+		if(debugLevel>5) IJ.log("lE "+lE);
 
 		// ... and whether it was written in little endian (PC) format or not
 		// (Mac and Java output are big endian)
@@ -368,27 +429,62 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 				throw new IOException("This does not seem to be a DM3 file");
 			}
 		}
-					
+
 		// The DM3 file has an unnamed root group which contains everything in the file
-		curGroupNameAtLevelX[0] = "root";  // Set the name of the root group
+		// Now go read it (and all of its sub groups).
+		readTagGroup(dm4 ? 16 : 12, "root", 0);
+	}
+
+	void closeFile() {
+		window = null;
+		if (f!=null) {
+			try { f.close(); } catch (IOException e) {}
+			f = null;
+		}
+	}
+
+	/**
+	 * Returns the mapped buffer, big endian, positioned at pos with at
+	 * least n bytes left.  Maps a new window when pos is outside the
+	 * current one.
+	 */
+	ByteBuffer at(long pos, int n) throws IOException {
+		if (window==null || pos<windowStart || pos+n>windowStart+window.limit()) {
+			long size = Math.min(f.length()-pos, Math.max(WINDOW, n));
+			if (pos<0 || size<n)
+				throw new EOFException("Unexpected end of file at 0x"+Long.toHexString(pos));
+			window = f.getChannel().map(FileChannel.MapMode.READ_ONLY, pos, size);
+			windowStart = pos;
+		}
+		window.order(ByteOrder.BIG_ENDIAN);
+		window.position((int) (pos-windowStart));
+		return window;
+	}
 
-		// Now go read it (and all of its sub groups.
-		readTagGroup();
-		
-		// Close the input stream
-    	f.close();
+	/** The data attached to tags is in the byte order of the file */
+	ByteBuffer data(long pos, int n) throws IOException {
+		return at(pos,n).order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+	}
+
+	/** Reads a size or count - 4 bytes in DM3, 8 in DM4 */
+	long readCount(long pos) throws IOException {
+		return dm4 ? at(pos,8).getLong() : at(pos,4).getInt();
+	}
+
+	int countSize() {
+		return dm4 ? 8 : 4;
 	}
 
 	FileInfo getDM3FileInfo(String directory, String fileName) throws IOException {
-		// this gets the basic file information using the contents of the tag
-		// tables created by parseDM3()
+		// this gets the basic file information using the tag index
+		// created by parseDM3()
 
 		// Set the basic file information
 		FileInfo fi = new FileInfo();
-		fi.fileFormat = fi.RAW;
+		fi.fileFormat = FileInfo.RAW;
 		fi.fileName = fileName;
 		fi.directory = directory;
-		// Originally forgot to do this - tells ImageJ what endian form the actual 
+		// Originally forgot to do this - tells ImageJ what endian form the actual
 		// image data is in
 		fi.intelByteOrder=littleEndian;
 
@@ -396,35 +492,36 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 		// Look for largest Image and assume that is the one we want
 		int i=0;  // nb the first image is image = 0
 		long largestDataSizeSoFar=0;
-		
+
 		// Iterate over images keeping a note of the largest image so far
 		while (true) {
 			// The specific part of the key we are looking for
-			String rString=".ImageData.Data.Size";
-			if(debugLevel>1) IJ.write("Looking for:"+IMGLIST+i+rString);
-			
+			String rString=".ImageData.Data";
+			if(debugLevel>1) IJ.log("Looking for:"+IMGLIST+i+rString);
+
  			// Can we find information for image i
-			if(tagHash.containsKey(IMGLIST+i+rString)) {
-				if(debugLevel>1) IJ.write("Found:"+IMGLIST+i+rString);
+			long[] array = getArray(IMGLIST+i+rString);
+			if(array!=null) {
+				if(debugLevel>1) IJ.log("Found:"+IMGLIST+i+rString);
 				// how big is this image?
-				long dataSize = ((Long) tagHash.get(IMGLIST+i+rString)).longValue();
-				if(debugLevel>1) IJ.write("Current Data Size"+dataSize);
-				
+				long dataSize = array[1];
+				if(debugLevel>1) IJ.log("Current Data Size"+dataSize);
+
 				// Is it the largest so far?
 				if(dataSize>largestDataSizeSoFar) {
 					// Choose this image
 					largestDataSizeSoFar=dataSize;
-					if(debugLevel>1) IJ.write("New Largest Data Size:"+largestDataSizeSoFar);
+					if(debugLevel>1) IJ.log("New Largest Data Size:"+largestDataSizeSoFar);
 					chosenImage=i;
-					if(debugLevel>1) IJ.write("New Chosen Image:"+chosenImage);
+					if(debugLevel>1) IJ.log("New Chosen Image:"+chosenImage);
 				}
-				
+
 				i++; // move on to the next image
 			} else {
 				break;  // we ran out of images
 			}
 		}
-	
+
 		/* Here are the ImageData.DataType definitions from GatanDM3.h
 				class DataType {
 		public:
@@ -468,27 +565,30 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 						UNSIGNED_INT64_DATA,
 						LAST_DATA
 					};
-		
+
 				};
-		*/		
+		*/
 		// OK pick the DataType
-		int dataType = ((Integer) tagHash.get(IMGLIST+chosenImage+".ImageData.DataType")).intValue();
+		Object dataTypeTag = getTag(IMGLIST+chosenImage+".ImageData.DataType");
+		if (!(dataTypeTag instanceof Number))
+			throw new IOException("No image data in this file");
+		int dataType = ((Number) dataTypeTag).intValue();
 
 		// I have made my best guess for types 1-14
 		// ie SIGNED_INT16_DATA to BINARY_DATA
-		// but I don't know how to implement the remainder 
+		// but I don't know how to implement the remainder
 		switch(dataType){
-			case 1: //	SIGNED_INT16_DATA 
+			case 1: //	SIGNED_INT16_DATA
 				fi.fileType=FileInfo.GRAY16_SIGNED;
 				break;
-			case 10: //	UNSIGNED_INT16_DATA 
+			case 10: //	UNSIGNED_INT16_DATA
 				fi.fileType=FileInfo.GRAY16_UNSIGNED;
 				break;
-			
+
 			case 2: // REAL4_DATA
 				fi.fileType=FileInfo.GRAY32_FLOAT;
 				break;
-				
+
 			//case 9:	// or SIGNED_INT8_DATA
 			// NB ImageJ only handles unsigned ints - initially was treating
 			// these as unsigned, but in the end decided to remove for safety
@@ -496,18 +596,18 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 			case 6: // UNSIGNED_INT8_DATA
 				fi.fileType=FileInfo.GRAY8;
 				break;
-			
+
 			case 7: // SIGNED_INT32_DATA
 				fi.fileType=FileInfo.GRAY32_INT;
 				break;
 			case 11: // UNSIGNED_INT32_DATA
 				fi.fileType=FileInfo.GRAY32_UNSIGNED;
 				break;
-			
+
 			case 8: // RGB_DATA
 				fi.fileType=FileInfo.RGB;
 				break;
-			
+
 			case 14: // BINARY_DATA
 				fi.fileType=FileInfo.BITMAP;
 				break;
@@ -517,35 +617,102 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 				// (since they were all equal on my test image)
 				fi.fileType=FileInfo.ARGB;
 				break;
-			
+
 			default:
 				throw new IOException("Unimplemented ImageData dataType="+dataType+" in DM3 file.  See getDM3FileInfo() for details");
 		}
 
 		// Get the dimensions of the image for the chosen image
-		// I'm assuming they are ordered width then height
-		fi.width = ((Integer) tagHash.get(IMGLIST+chosenImage+".ImageData.Dimensions.0")).intValue();
-		fi.height = ((Integer) tagHash.get(IMGLIST+chosenImage+".ImageData.Dimensions.1")).intValue();
-		
+		// I'm assuming they are ordered width then height (then depth)
+		fi.width = ((Number) getTag(IMGLIST+chosenImage+".ImageData.Dimensions.0")).intValue();
+		fi.height = ((Number) getTag(IMGLIST+chosenImage+".ImageData.Dimensions.1")).intValue();
+		Object depth = getTag(IMGLIST+chosenImage+".ImageData.Dimensions.2");
+		if (depth instanceof Number) fi.nImages = ((Number) depth).intValue();
+
 		// Get the offset of the Image Data for chosen image
-		fi.offset = ((Long) tagHash.get(IMGLIST+chosenImage+".ImageData.Data.Offset")).intValue();
+		// (a long since DM4 files may be larger than 2 GB)
+		fi.longOffset = getArray(IMGLIST+chosenImage+".ImageData.Data")[0];
 
 		return fi;
-	}		
+	}
+
+	/**
+	 * Decodes the common pixel types straight from a map of the image data
+	 * with bulk gets.  Returns null for the types left to FileOpener.
+	 */
+	ImagePlus openView(FileInfo fi) throws IOException {
+		int n = fi.width*fi.height;
+		int bytes;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: bytes = 1; break;
+			case FileInfo.GRAY16_SIGNED:
+			case FileInfo.GRAY16_UNSIGNED: bytes = 2; break;
+			case FileInfo.GRAY32_FLOAT:
+			case FileInfo.GRAY32_INT:
+			case FileInfo.GRAY32_UNSIGNED: bytes = 4; break;
+			default: return null;
+		}
+		ImageStack stack = new ImageStack(fi.width, fi.height);
+		for (int z = 0; z<fi.nImages; z++) {
+			// One map per plane - the planes of a big stack won't fit in one
+			ByteBuffer buf = f.getChannel().map(FileChannel.MapMode.READ_ONLY,
+				fi.longOffset+(long)z*n*bytes, (long)n*bytes);
+			buf.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+			Object pixels;
+			switch (fi.fileType) {
+				case FileInfo.GRAY8:
+					byte[] b = new byte[n];
+					buf.get(b);
+					pixels = b;
+					break;
+				case FileInfo.GRAY16_SIGNED:
+				case FileInfo.GRAY16_UNSIGNED:
+					short[] s = new short[n];
+					buf.asShortBuffer().get(s);
+					if (fi.fileType==FileInfo.GRAY16_SIGNED) {
+						// As FileOpener does - shift by 32768, calibrated below
+						for (int i = 0; i<n; i++) s[i] ^= 0x8000;
+					}
+					pixels = s;
+					break;
+				case FileInfo.GRAY32_FLOAT:
+					float[] fl = new float[n];
+					buf.asFloatBuffer().get(fl);
+					pixels = fl;
+					break;
+				default:
+					int[] v = new int[n];
+					buf.asIntBuffer().get(v);
+					float[] fv = new float[n];
+					if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
+						for (int i = 0; i<n; i++) fv[i] = v[i] & 0xffffffffL;
+					else
+						for (int i = 0; i<n; i++) fv[i] = v[i];
+					pixels = fv;
+			}
+			stack.addSlice(null, pixels);
+		}
+		ImagePlus imp = new ImagePlus(fi.fileName, stack);
+		imp.setFileInfo(fi);
+		if (fi.fileType==FileInfo.GRAY16_SIGNED)
+			imp.getCalibration().setSigned16BitCalibration();
+		imp.getProcessor().resetMinAndMax();
+		return imp;
+	}
 
 	Calibration getDM3CalibrationInfo(Calibration cal){
 		// get the spatial calibration information
-		// could also do brightness 
+		// could also do brightness
 		// (actually a calibration fn is applied by ImageJ according
 		// to the image Type - GRAY16_SIGNED has 32768 removed in calibration
 
 		// Figure out what the units are - need to check if nm is correct and
 		// if other units are likely
 		// also will m get corrupted? may be necessary to do a unicode comparison
-		String unit = (String) tagHash.get(IMGLIST+chosenImage+".ImageData.Calibrations.Dimension.0.Units");
+		String unit = (String) getTag(IMGLIST+chosenImage+".ImageData.Calibrations.Dimension.0.Units");
 
 		// Reciprocal space images - return the original unit - reciprocal
-		// space will be handled by setting the FHT image property		
+		// space will be handled by setting the FHT image property
 		if (unit.startsWith("1/")) unit=unit.substring(2);
 
 		if (unit.equals("m")){
@@ -553,394 +720,255 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 		} else {
 			cal.setUnit(unit);
 		}
-		if(debugLevel>0) IJ.write("Calibration unit: "+unit);
-		
-		cal.pixelWidth = ((Float) tagHash.get(IMGLIST+chosenImage+".ImageData.Calibrations.Dimension.0.Scale")).doubleValue();
-		cal.pixelHeight = ((Float) tagHash.get(IMGLIST+chosenImage+".ImageData.Calibrations.Dimension.1.Scale")).doubleValue();
-		// not yet implemented stacks - if they exist
-		//cal.pixelDepth = 
+		if(debugLevel>0) IJ.log("Calibration unit: "+unit);
+
+		cal.pixelWidth = ((Number) getTag(IMGLIST+chosenImage+".ImageData.Calibrations.Dimension.0.Scale")).doubleValue();
+		cal.pixelHeight = ((Number) getTag(IMGLIST+chosenImage+".ImageData.Calibrations.Dimension.1.Scale")).doubleValue();
+		Object depth = getTag(IMGLIST+chosenImage+".ImageData.Calibrations.Dimension.2.Scale");
+		if (depth instanceof Number) cal.pixelDepth = ((Number) depth).doubleValue();
 		return cal;
 	}
-	
-	int readTagGroup()  throws IOException {
-		curGroupLevel+=1;  // Go down a level since this is a new group
-		curGroupAtLevelX[curGroupLevel]++;  // Increment the group counter at this level
-		// Set the number of current tag at this level to -1
-		// since the readTagEntry routine pre-increments
-		// ie the first tag will be labelled tag 0
-		curTagAtLevelX[curGroupLevel]=-1;  
-		
-		if(debugLevel>5) IJ.write("rTG: Current Group Level: "+curGroupLevel);
-		
-		int isSorted=f.readByte();
-		int isOpen=f.readByte();
-		int nTags=f.readInt();
-
-		if(debugLevel>5) IJ.write("rTG: Iterating over the "+nTags+" tag entries in this group");
-		// Iterate over the number of Tag Entries in this group
-		for( int i = 0; i<nTags;i++) {
-			readTagEntry();
-		}
-
-		// Go back up a level now that we've finished reading this group
-		curGroupLevel-=1;
-		
-		return 1;
-	};
-
-	String makeGroupString() {
-		// Produces a string which is the concatenation of the current group levels
-		String tString = new String(""+curGroupAtLevelX[0]);
 
-		for (int i=1; i<=curGroupLevel;i++){
-			tString += "."+curGroupAtLevelX[i];		
+	/**
+	 * Indexes the tags of a group and its sub groups
+	 * @param pos position of the group header
+	 * @param groupName full name of the group, i.e. "root.ImageList.0"
+	 * @param level depth of the group
+	 * @return the position after the group
+	 */
+	long readTagGroup(long pos, String groupName, int level) throws IOException {
+		if (level>=MAXDEPTH) throw new IOException("Tags nested too deep at 0x"+Long.toHexString(pos));
+
+		// isSorted and isOpen bytes, then the number of tags
+		long nTags = readCount(pos+2);
+		pos += 2+countSize();
+
+		if(debugLevel>5) IJ.log("rTG: "+groupName+": Iterating over the "+nTags+" tag entries in this group");
+		// Iterate over the number of Tag Entries in this group
+		// Unnamed tags are labelled by their number in the group
+		for( long i = 0; i<nTags;i++) {
+			pos = readTagEntry(pos, groupName, i, level);
 		}
-		
-		return tString;
+		return pos;
 	}
-	
-	int readTagEntry() throws IOException {
-		int isData=f.readByte();
 
-		// Record that we've found a new tag at this level
-		curTagAtLevelX[curGroupLevel]++;
+	long readTagEntry(long pos, String groupName, long number, int level) throws IOException {
+		ByteBuffer b = at(pos,3);
+		int isData=b.get();
 
 		//Get the tag label if one exists
-		int lenTagLabel=f.readShort();
+		int lenTagLabel=b.getShort() & 0xffff;
+		pos += 3;
 		String tagLabel;
 		if(lenTagLabel!=0){
-			tagLabel=readString(lenTagLabel);
+			tagLabel=readString(pos,lenTagLabel);
+			pos += lenTagLabel;
 		} else {
-			tagLabel=new String(""+curTagAtLevelX[curGroupLevel]);
+			tagLabel=""+number;
 		}
-		
+		String tagName = groupName+"."+tagLabel;
+
 		// For debugging
-		if(debugLevel>5) {
-			IJ.write(curGroupLevel+"|"+makeGroupString()+": Tag label = "+tagLabel);
-		} else if (debugLevel>0){
-			IJ.write(curGroupLevel+": Tag label = "+tagLabel);
+		if(debugLevel>5) IJ.log(level+"|"+tagName);
+
+		// DM4 gives the size of the tag, so data can be skipped without
+		// looking at its type
+		long tagSize = -1;
+		if (dm4) {
+			tagSize = at(pos,8).getLong();
+			pos += 8;
 		}
-				
+
 		//  Figure out if the tag was data or a new group
 		if (isData==21) {
-			// this tag entry is data
-
-			// OK settle what this piece of data will be called
-			curTagName = new String(makeGroupNameString()+"."+tagLabel);
-
-			// now get it
-			readTagType();
+			// this tag entry is data - index it, don't read it
+			addTag(tagName, pos);
+			return dm4 ? pos+tagSize : pos+tagTypeSize(pos, tagName);
 		} else {
 			//this tag entry is a tag group
-
-			// Slightly ugly that this can't be done in readTagGroup
-			curGroupNameAtLevelX[curGroupLevel+1]=tagLabel;  // Store the name of the group at the new level
-			readTagGroup();  // which will actually increment curGroupLevel
+			return readTagGroup(pos, tagName, level+1);
 		}
-		return 1;
-	};
+	}
 
-	String makeGroupNameString() {
-		// A utility function: 
-		// Produces a string which is the concatenation of the current group names
-		String tString = new String(curGroupNameAtLevelX[0]);
+	void addTag(String tagName, long pos) {
+		int i = tagNames.size();
+		if (i==tagOffsets.length) tagOffsets = Arrays.copyOf(tagOffsets, 2*i);
+		tagOffsets[i] = pos;
+		tagNames.add(tagName);
+		tagIndex.put(tagName, Integer.valueOf(i));
+	}
+
+	/**
+	 * Reads the type info of a data tag, the %%%% delimiter, the number of
+	 * info items and the items
+	 */
+	long[] readTagType(long pos, String tagName) throws IOException {
+		int Delim=at(pos,4).getInt();
+		// Should always start with %%%%
+		if (Delim!=0x25252525) throw new IOException(tagName+", 0x"+Long.toHexString(pos)+": Tag Type delimiter not %%%%");
+		long nInfo = readCount(pos+4);
+		if (nInfo<1 || nInfo>1000) throw new IOException(tagName+", 0x"+Long.toHexString(pos)+": Can't understand encoded type");
+		long[] info = new long[(int) nInfo];
+		for (int i = 0; i<info.length; i++)
+			info[i] = readCount(pos+4+countSize()*(i+1));
+		return info;
+	}
+
+	/** Size of the type info and data of a tag, so it can be skipped */
+	long tagTypeSize(long pos, String tagName) throws IOException {
+		long[] info = readTagType(pos, tagName);
+		return 4+countSize()*(info.length+1)+dataSize(info, tagName);
+	}
+
+	/**
+	 * Size of the data of a tag from its type info
+	 * info[0] is the encoded type, then
+	 *  string: length
+	 *  struct: name length, number of fields, (name length, type) of each field
+	 *  array: item type, struct info if the items are structs, length
+	 */
+	long dataSize(long[] info, String tagName) throws IOException {
+		int encodedType = (int) info[0];
+		int etSize = encodedTypeSize(encodedType);
+		if (etSize>=0) return etSize;
+		if (encodedType==STRING && info.length>1) return 2*info[1];
+		if (encodedType==STRUCT) return structSize(info, 1, tagName);
+		if (encodedType==ARRAY && info.length>2) {
+			int itemType = (int) info[1];
+			long itemSize = itemType==STRUCT ? structSize(info, 2, tagName) : encodedTypeSize(itemType);
+			if (itemSize<0) throw new IOException(tagName+": Can't understand array of encoded type "+itemType);
+			return info[info.length-1]*itemSize;
+		}
+		throw new IOException(tagName+": Can't understand encoded type "+encodedType);
+	}
+
+	long structSize(long[] info, int first, String tagName) throws IOException {
+		long nFields = info[first+1];
+		if (nFields>100 || first+2+2*nFields>info.length) throw new IOException(tagName+": Too many fields");
+		long size = 0;
+		for (int i = 0; i<nFields; i++) {
+			int etSize = encodedTypeSize((int) info[first+3+2*i]);
+			if (etSize<0) throw new IOException(tagName+": Can't understand struct field type");
+			size += etSize;
+		}
+		return size;
+	}
 
-		for (int i=1; i<=curGroupLevel;i++){
-			tString += "."+curGroupNameAtLevelX[i];
+	/** The decoded value of a tag, or null if there is no such tag */
+	Object getTag(String tagName) {
+		Integer i = tagIndex.get(tagName);
+		if (i==null) return null;
+		try {
+			return decodeTag(tagName, tagOffsets[i.intValue()]);
+		} catch (IOException e) {
+			if(debugLevel>0) IJ.log(""+e);
+			return null;
 		}
+	}
 
-		return tString;
+	/** Offset and size in bytes of a binary array tag, or null */
+	long[] getArray(String tagName) {
+		Object val = getTag(tagName);
+		return val instanceof long[] ? (long[]) val : null;
 	}
 
-	int readTagType() throws IOException {
-		int Delim=f.readInt();
-		// Should always start with %%%%
-		if (Delim!=0x25252525) throw new IOException("Tag Type delimiter not %%%%");
-		
-		// This is redundant info, so just ignore it.
-		int nInTag=f.readInt();
-
-		readAnyData();
-		
-		return 1;
-	};
-	
-	int readAnyData() throws IOException {
-	// Higher level function which dispatches to functions
-	// handling specific data types
-		
-		// This specifies what kind of type we are dealing with
-		// eg short, long, struct, array etc.
-		int encodedType = f.readInt();
-
-		// Figure out the size of the encodedType
+	/**
+	 * Decodes the value of a tag.  Simple types are returned as Short,
+	 * Integer, Long, Float, Double, Boolean, Character or Byte, strings and
+	 * short unsigned short arrays as String, structs as "{a,b,c}" and other
+	 * arrays as {offset, size} of the data
+	 */
+	Object decodeTag(String tagName, long pos) throws IOException {
+		long[] info = readTagType(pos, tagName);
+		long dataPos = pos+4+countSize()*(info.length+1);
+		int encodedType = (int) info[0];
 		int etSize = encodedTypeSize(encodedType);
-		if(debugLevel>5) IJ.write("rAnD, "+hexPosition()+": Tag Type = "+encodedType+", Tag Size = "+etSize);
 
 		if(etSize>0){
-			// must be a regular data type, so read it and store a tag for ir
-			storeTag( curTagName,readNativeData(encodedType,etSize) );
+			// must be a regular data type
+			return readNativeData(encodedType, dataPos);
 		}
 		// OK then, perhaps it's an array, struct or string.
 		else if (encodedType==STRING) // String
 		{
-			// nb readStringData will also store tags internally
-			int stringSize = f.readInt();
-			readStringData(stringSize);
+			return readStringData(dataPos, (int) (2*info[1]));
 		}
 		else if (encodedType==STRUCT) // Struct
 		{
-			// This now stores fields (in curly braces) but does not store 
-			// field names.  In fact the code will be break for non-zero
-			// field names.
-			Vector structTypes = readStructTypes();
-			readStructData(structTypes);
+			// This stores fields (in curly braces) but not field names.
+			StringBuffer structAsString=new StringBuffer("{");
+			long nFields = info[2];
+			for (int i = 0; i < nFields; i++) {
+				int fieldType = (int) info[4+2*i];
+				structAsString.append(readNativeData(fieldType, dataPos));
+				dataPos += encodedTypeSize(fieldType);
+				// Add a comma to separate values unless this is the last entry
+				if(i+1!=nFields) structAsString.append(",");
+			}
+			return structAsString.append("}").toString();
 		}
 		else if (encodedType==ARRAY) // Array
 		{
-			// This only stores a tag which I defined myself
-			// to indicate the size of data chunks that are skipped
-			Vector arrayTypes=readArrayTypes();
-			readArrayData(arrayTypes);
-		}
-		else {
-			throw new IOException("rAnD, 0x"+hexPosition()+": Can't understand encoded type");
+			long arraySize = info[info.length-1];
+			long bufSize = dataSize(info, tagName);
+			// If this isn't image data but is an unsigned short array
+			// of less than 256 bytes then it is probably a string
+			if(!tagName.endsWith("ImageData.Data") && info.length==3
+			   && info[1] == USHORT &&  arraySize <256) {
+				return readStringData(dataPos, (int) bufSize);
+			}
+			// treat as binary data - where it is and how big
+			// nb for a while I had offset + 1 but this was wrong!
+			return new long[] {dataPos, bufSize};
 		}
-		return 1;
+		throw new IOException(tagName+", 0x"+Long.toHexString(pos)+": Can't understand encoded type");
 	}
-	
-	Object readNativeData(int encodedType,int etSize) throws IOException {
+
+	Object readNativeData(int encodedType, long pos) throws IOException {
 	// Does the actual reading of ordinary data types
 
 		// since it starts as an object, it is not tied to a particular
 		// data type
-		Object val=null;
-
-		if(encodedType==SHORT){ //short
-			val = new Short(blreadShort());
-		}
-		else if(encodedType==LONG){ //long
-			val = new Integer(blreadInt());
-		}
-		else if(encodedType==USHORT){ //u short
-			val = new Short(blreadUShort());
-		}
-		else if(encodedType==ULONG){ //u long
-			val = new Integer(blreadInt());
-		}
-		else if(encodedType==FLOAT){ //float
-			val = new Float(blreadFloat());
-		}
-		else if(encodedType==DOUBLE){ //double
-			val = new Double(blreadDouble());
-		}
-		else if(encodedType==BOOLEAN){ //boolean
-			if (f.readByte()==0){
-				val = new Boolean(false);
-			} else {
-				val = new Boolean(true);
-			}
-		}
-		else if(encodedType==CHAR){ //char
-			val = new Character( (char) f.readByte() );
-		}
-		else if(encodedType==OCTET){ //octet
-			// what's the difference?
-			val = new Byte( f.readByte() );
-		} else {
-			// Not a known data type
-			throw new IOException("rND, 0x"+hexPosition()+": Unknown data type "+encodedType);
-		}
-
-		// Print out the value if necessary
-		if(debugLevel>3){
-			IJ.write("rND, 0x"+hexPosition()+": "+val);
-		} else if(debugLevel>0) {
-			IJ.write(""+val);
-		}
-
-		return val;
+		int etSize = encodedTypeSize(encodedType);
+		if (etSize<=0) throw new IOException("rND, 0x"+Long.toHexString(pos)+": Unknown data type "+encodedType);
+		ByteBuffer b = data(pos, etSize);
+		switch (encodedType) {
+			case SHORT:
+			case USHORT:
+				// java uses signed shorts, unsigned ones are not converted
+				return Short.valueOf(b.getShort());
+			case LONG:
+			case ULONG:
+				return Integer.valueOf(b.getInt());
+			case LONG8:
+			case ULONG8:
+				return Long.valueOf(b.getLong());
+			case FLOAT:
+				return Float.valueOf(b.getFloat());
+			case DOUBLE:
+				return Double.valueOf(b.getDouble());
+			case BOOLEAN:
+				return Boolean.valueOf(b.get()!=0);
+			case CHAR:
+				return Character.valueOf((char) b.get());
+			case OCTET:
+				return Byte.valueOf(b.get());
+		}
+		// Not a known data type
+		throw new IOException("rND, 0x"+Long.toHexString(pos)+": Unknown data type "+encodedType);
 	}
-	String readStringData(int stringSize) throws IOException {
+
+	String readStringData(long pos, int stringSize) throws IOException {
 	// Does the actual reading of string data types
 	// These should be written as Unicode which can be directly
 	// converted by the String constructor
-		if(stringSize<=0) return new String("");
+		if(stringSize<=0) return "";
 
-		// Read the string data into a temporary byte buffer.
 		byte[] temp = new byte[stringSize];
-		f.read(temp,0,stringSize);
-
-		// Now convert these unicode bytes into a real string
-		String rString;
-		
-		// Note that I can't get UTF encoding to work on MRJ 2.2.5 =
-		// JDK 1.1.7 even though I think it should
-		// so I have put together a kludge 
-		if(littleEndian){
-			// Use UTF-16LE encoding (this seems to fail with MacOS 9 Java 1.1.7)
-			try {
-				rString=new String(temp,"UTF-16LE");
-			}
-			catch (Exception e) {
-				// Manual conversion of the string if the above fails
-				rString="";
-				for(int i=0;i<stringSize;i+=2) {
-					rString+=new Character((char)((temp[i+1]&0xFF) <<8 | (temp[i] & 0xFF)));
-				}
-			}
-			
-		}else{
-			// use UTF-16BE encoding (this seems to fail with MacOS 9 Java 1.1.7)
-			try {
-				rString=new String(temp,"UTF-16BE");
-			}
-			catch (Exception e) {
-				// Manual conversion of the string if the above fails
-				rString="";
-				for(int i=0;i<stringSize;i+=2) {
-					rString+=new Character((char)((temp[i]&0xFF) <<8 | (temp[i+1] & 0xFF)));
-				}
-			}
-			
-		}
-
-		if(debugLevel>0) IJ.write("StringVal: "+rString);
-
-		// Store the value of this tag
-		storeTag(curTagName,rString);
-		
-		return rString;
+		at(pos,stringSize).get(temp);
+		return new String(temp, littleEndian ? "UTF-16LE" : "UTF-16BE");
 	}
-	
-	Vector readArrayTypes() throws IOException {
-		// Figures out the data types in an array data type
-		// complicated by the fact that the array type could be a struct!
 
-		// Don't know if this will behave for arrays of strings or arrays
-
-
-		int arrayType=f.readInt();
-
-		Vector itemTypes = new Vector();
-		if (arrayType==STRUCT) {  // ie a Struct
-			itemTypes = readStructTypes();
-		}
-		else if (arrayType==ARRAY) { // ie a sub array
-			itemTypes = readArrayTypes();
-			// not sure if this will work!
-		}
-		else {
-			// assume its an array of simple types
-			// add changed to addElement for Java 1.1.7 compatibility
-			itemTypes.addElement(new Integer(arrayType));
-		}
-
-		return itemTypes;
-	}
-	int readArrayData(Vector arrayTypes) throws IOException {
-		// Reads in array data
-
-		// First thing to do is get number of array elements
-		int arraySize=f.readInt();
-		if(debugLevel>3) IJ.write("rArD, 0x"+hexPosition()+": Reading array of size = "+arraySize);
-
-		// Now figure out the total width of each element in the array
-		// nb these elements can have subelements if the array is an array
-		// of STRUCTS etc.
-		int itemSize=0;
-		
-		// Iterate over every type in arrayTypes - there may be more than
-		// one type if this is an array of structs or arrays.
-		int encodedType=0;
-		for (int i = 0; i < arrayTypes.size(); i++) {
-			// cast the ith Vector element to Integer and then get a regular int
-			encodedType = ((Integer) arrayTypes.elementAt(i)).intValue();
-			int etSize=encodedTypeSize(encodedType);
-			// Now add that size to our running total
-			itemSize+=etSize;
-			// For debugging
-			if(debugLevel>5) IJ.write("rArD: Tag Type = "+encodedType+", Tag Size = "+etSize);
-			//readNativeData(encodedType,etSize);
-		}
-		if(debugLevel>5) IJ.write("rArD: Array Item Size = "+itemSize);
-
-		// OK now figure out what to do with this array
-		// this would be the buffer size needed to accommodate ot
-		long bufSize = (long) arraySize * (long) itemSize;
-
-		// If this isn't image data but is an unsigned short array 
-		// of less than 256 bytes then it is probably a string
-		if(!curTagName.endsWith("ImageData.Data") && arrayTypes.size() == 1 
-		   && encodedType == USHORT &&  arraySize <256) {
-			// read in as string
-			String val = readStringData((int) bufSize);
-		}
-		else {  // treat as binary data
-			// Make up my own tags to indicate data size
-			storeTag(curTagName+".Size",new Long(bufSize));
-			// and current offset 
-			// nb for a while I had offset + 1but this was wrong!
-			// and gave a peculiar staircase histogram because what I had
-			// ended up doing was reading one byte each from a pair of pixels 
-			// rather than 2 bytes from a single pixel.  Ugh!
-			storeTag(curTagName+".Offset",new Long(f.getFilePointer()));
-				
-			// then go ahead and skip bufSize bytes from current position
-			// without trying to read this data
-			f.seek( f.getFilePointer()+bufSize);
-		}
-		return 1;
-	}
-	
-	Vector readStructTypes() throws IOException {
-	// Figures out the data types in a struct
-		if(debugLevel>3) IJ.write("Reading Struct Types at Pos = "+f.getFilePointer()+", 0x"+hexPosition());		
-		
-		// nb GatanDM3 has longs - I think C++ long = 4 bytes, so use Java int
-		int structNameLength=f.readInt();
-		int nFields=f.readInt();
-
-		if(debugLevel>5) IJ.write("nFields = "+nFields);
-
-		if (nFields>100) throw new IOException("Too many fields");
-		
-		Vector fieldTypes = new Vector();
-		int nameLength = 0;
-		for (int i = 0; i<nFields; i++) {
-			nameLength=f.readInt();
-			if(debugLevel>10) IJ.write(i+"th namelength = "+nameLength);
-			int fieldType=f.readInt();
-			
-			// add changed to addElement for Java 1.1.7 compatibility
-		    fieldTypes.addElement(new Integer(fieldType));
-		}
-		
-		return fieldTypes;
-	}
-	
-	int readStructData(Vector structTypes) throws IOException {
-	// Reads in struct data based on the type info in structTypes
-		String structAsString="";
-		
-		for (int i = 0; i < structTypes.size(); i++) {
-			Integer iTagType = (Integer) structTypes.elementAt(i);
-			
-			int encodedType = iTagType.intValue();
-			int etSize=encodedTypeSize(encodedType);
-			// For debugging
-			if(debugLevel>5) IJ.write("Tag Type = "+encodedType+", Tag Size = "+etSize);
-
-			// OK now get the data
-			structAsString+=readNativeData(encodedType,etSize);
-			// Add a comma to separate values unless this is the last entry
-			if(i+1!=structTypes.size()) structAsString+=",";
-		}
-		storeTag(curTagName,"{"+structAsString+"}");
-		return 1;
-	}
-	
-	
 	int encodedTypeSize(int encodedType){
 	// returns the size in bytes of the data type
 	// 030614 Replaced type numbers based on GatanDM3.h
@@ -948,124 +976,38 @@ public class DM3_Reader extends ImagePlus implements PlugIn
 		// so -1 will be the value returned for an unrecognised type
 		// (which could include ARRAYs, STRUCTs, STRINGs)
 		int width=-1;
-		
+
 		switch(encodedType){
 			case 0: // blank field? Do I need this?
 			width = 0; break;
-			
-			case BOOLEAN: //	boolean: data size = 1 
-			case CHAR: //	char: data size = 1 
-			case OCTET: // 	octet: data size = 1 
+
+			case BOOLEAN: //	boolean: data size = 1
+			case CHAR: //	char: data size = 1
+			case OCTET: // 	octet: data size = 1
 			width=1;		break;
-			
-			case SHORT: // 		1.	short: data size = 2 
-			case USHORT: //		3.	unsigned short: data size = 2 
+
+			case SHORT: // 		1.	short: data size = 2
+			case USHORT: //		3.	unsigned short: data size = 2
 			width=2;		break;
-			
-			case LONG: // 2.	long: data size = 4 
-			case ULONG: // 4.	unsigned long: data size = 4 
-			case FLOAT: // 5.	float: data size = 4 
+
+			case LONG: // 2.	long: data size = 4
+			case ULONG: // 4.	unsigned long: data size = 4
+			case FLOAT: // 5.	float: data size = 4
 			width=4;		break;
-				
-			case DOUBLE: //	double: data size = 8 
+
+			case DOUBLE: //	double: data size = 8
+			case LONG8: //	DM4 long long: data size = 8
+			case ULONG8: //	DM4 unsigned long long: data size = 8
 			width=8; break;
 		}
 		return(width);
 	}
 
-	// Store the value and key of the tag that we have just
-	// read in a table
-	void storeTag( String tagName, Object tagValue){
-		// add changed to addElement for Java 1.1.7 compatibility
-		storedTags.addElement(new String(tagName+" = "+tagValue));
-		tagHash.put(tagName,tagValue);
-	}
-
-	
-	// ********************************************************	
-	// the bl methods will check value of littleEndian and read
-	// from the RandomAccessFile f accordingly.
-	// (bl for big/little - ie can cope with either endian format)
-	// ********************************************************	
-  
-	short blreadShort() throws IOException
-	{
-		if (!littleEndian) return f.readShort(); 
-		byte b1 = f.readByte();
-		byte b2 = f.readByte();
-		return ( (short) (((b2 & 0xff) << 8) | (b1 & 0xff)) );
-	}
-	short blreadUShort() throws IOException
-	// Identical to blreadShort - is this correct?
-	// not really - java uses signed shorts, but I think it's
-	// too complicated to try and implement unsigned
-	// In principle, one should add 65536 to negative values
-	// to convert, but then they would have to be stored as 4 byte ints
-	// or something.
-	{
-		if (!littleEndian) return (short) f.readUnsignedShort(); 
-		byte b1 = f.readByte();
-		byte b2 = f.readByte();
-		return ( (short) (((b2 & 0xff) << 8) | (b1 & 0xff)) );
-	}
-
-	int blreadInt() throws IOException 
-	{
-		if (!littleEndian) return f.readInt(); 
-		byte b1 = f.readByte();
-		byte b2 = f.readByte();
-		byte b3 = f.readByte();
-		byte b4 = f.readByte();
-		return ( (((b4 & 0xff) << 24) | ((b3 & 0xff) << 16) | ((b2 & 0xff) << 8) | (b1 & 0xff)) );
-	}
-
-
-	long blreadLong() throws IOException
-	// New fn, not quite sure if the little endian version is correct
-	// OK Corrected now as far as I can tell
-	{
-		if (!littleEndian) return f.readLong(); 
-		int i1=blreadInt();
-		int i2=blreadInt();
-
-		// need to convert intermediates to long explicitly since the standard
-		// is presumably just to work with them as int
-		return ( ((long) (i2 & 0xffffffff) << 32) | (long) (i1 & 0xffffffff) );
-		
-	}
-	
-	double blreadDouble() throws IOException 
-	// new fn to read 8 byte doubles using blreadLong as a base
-	{
-		if (!littleEndian) return f.readDouble();  
-		
-		long orig = blreadLong();
-		return (Double.longBitsToDouble(orig));
-	}
-	
-	float blreadFloat() throws IOException 
-	{
-		if (!littleEndian) return f.readFloat();  
-
-		int orig = blreadInt();
-		return (Float.intBitsToFloat(orig));
-	}
-
 	// used to read in field labels
-	String readString(int n) throws IOException{
-		// not sure if this readString limit is sensible or necessary
-		if(n>2000) throw new IOException("Can't handle strings longer than 2000 chars, n = "+n+" at pos = "+f.getFilePointer());
-		
+	String readString(long pos, int n) throws IOException{
 		byte[] temp = new byte[n];
-		f.read(temp,0,n);
-
-		return new String(temp);
-		
-	}
-
-	String hexPosition() throws IOException {
-	//  Utility fn to return current file position in hex
-		return (  Long.toHexString( f.getFilePointer() )  );	
+		at(pos,n).get(temp);
+		return new String(temp, "ISO-8859-1");
 	}
 
 }
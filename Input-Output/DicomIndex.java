@@ -0,0 +1,586 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import ij.*;
+import ij.io.*;
+import ij.measure.Calibration;
+import ij.process.*;
+
+/*
+    Index of a folder of DICOM files, written next to the series as
+    dicom_index.txt (Import_Dicom_Sequence skips .txt files). For every file
+    it records the size and modification time, the series UID, instance
+    number, image position and orientation, acquisition time, pixel spacing
+    and slice thickness, the number of frames and the layout and offset of
+    the pixel data.
+    Reopening the folder reads only the index: the files are sorted by their
+    geometry and uncompressed pixels are read straight from the recorded
+    offset, without decoding the files again. The index is rebuilt when a
+    file was added, removed or modified.
+
+    Only the header is scanned (up to the pixel data element), for implicit
+    and explicit VR little endian and explicit VR big endian files. Files
+    without pixel data (i.e. DICOMDIR) are kept in the index as non-images
+    and sorted after the images.
+
+    10.19.26 - Created
+    10.19.26 - Records the pixel spacing and slice thickness, so images read
+               from the offset are calibrated; non-image files no longer
+               prevent the index
+    10.19.26 - Records the number of frames, multi-frame files are opened
+               by the DICOM decoder instead of as their first frame
+ */
+
+public class DicomIndex {
+
+    public static final String INDEX_FILE = "dicom_index.txt";
+    static final String VERSION = "# Import_Dicom_Sequence index 3";
+    static final String COLUMNS = "# name\tlength\tmodified\tseries\tinstance\tposition\torientation\t"
+        + "time\toffset\twidth\theight\tbits\tsigned\tsamples\tsyntax\tslope\tintercept\t"
+        + "spacing\tthickness\tframes";
+
+    static final String IMPLICIT_LITTLE = "1.2.840.10008.1.2";
+    static final String EXPLICIT_LITTLE = "1.2.840.10008.1.2.1";
+    static final String EXPLICIT_BIG = "1.2.840.10008.1.2.2";
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /** One file of the folder */
+    public static class Entry {
+        String name, series = "", time = "", syntax = "";
+        long length, modified, offset = -1;
+        int instance = Integer.MIN_VALUE, width, height, bits, samples = 1;
+        boolean signed;
+        double[] position, orientation;
+        double slope = 1, intercept = 0;
+        double[] spacing; // row, column (mm)
+        double thickness;
+        int frames = 1;
+
+        /** True if the file has pixel data, false for i.e. a DICOMDIR */
+        public boolean isImage() {
+            return width>0 && height>0 && offset>0;
+        }
+
+        /**
+         * True if the pixels can be read straight from the offset and give
+         * the same values as the DICOM decoder (uncompressed, unsigned
+         * grayscale single frame without rescaling)
+         */
+        public boolean isRaw() {
+            return isImage() && !signed && samples==1 && (bits==8 || bits==16) && frames<=1
+                && slope==1 && intercept==0 && !Prefs.openDicomsAsFloat
+                && (syntax.equals(IMPLICIT_LITTLE) || syntax.equals(EXPLICIT_LITTLE)
+                    || syntax.equals(EXPLICIT_BIG));
+        }
+
+        /** The position along the slice normal (mm), NaN if unknown */
+        public double slicePosition() {
+            return DicomTags.slicePosition(position, orientation);
+        }
+
+        /** The pixels as a FileInfo for ImageReader/FileOpener */
+        public FileInfo toFileInfo(String directory) {
+            FileInfo fi = new FileInfo();
+            fi.fileName = name;
+            fi.directory = directory;
+            fi.fileFormat = FileInfo.RAW;
+            fi.fileType = bits==8 ? FileInfo.GRAY8 : FileInfo.GRAY16_UNSIGNED;
+            fi.width = width;
+            fi.height = height;
+            fi.nImages = 1;
+            fi.longOffset = offset;
+            fi.intelByteOrder = !syntax.equals(EXPLICIT_BIG);
+            // The calibration the DICOM decoder gives
+            if (spacing!=null && spacing.length>=2 && spacing[0]!=0 && spacing[1]!=0) {
+                fi.pixelWidth = spacing[1];
+                fi.pixelHeight = spacing[0];
+                fi.unit = "mm";
+            }
+            if (thickness!=0)
+                fi.pixelDepth = thickness;
+            return fi;
+        }
+
+        String toLine() {
+            return name+"\t"+length+"\t"+modified+"\t"+series+"\t"
+                + (instance==Integer.MIN_VALUE ? "" : ""+instance)+"\t"+join(position)+"\t"
+                + join(orientation)+"\t"+time+"\t"+offset+"\t"+width+"\t"+height+"\t"
+                + bits+"\t"+(signed ? 1 : 0)+"\t"+samples+"\t"+syntax+"\t"+slope+"\t"+intercept+"\t"
+                + join(spacing)+"\t"+thickness+"\t"+frames;
+        }
+
+        static Entry fromLine(String line) {
+            String[] v = line.split("\t", -1);
+            if (v.length<20)
+                return null;
+            try {
+                Entry e = new Entry();
+                e.name = v[0];
+                e.length = Long.parseLong(v[1]);
+                e.modified = Long.parseLong(v[2]);
+                e.series = v[3];
+                if (v[4].length()>0) e.instance = Integer.parseInt(v[4]);
+                e.position = split(v[5]);
+                e.orientation = split(v[6]);
+                e.time = v[7];
+                e.offset = Long.parseLong(v[8]);
+                e.width = Integer.parseInt(v[9]);
+                e.height = Integer.parseInt(v[10]);
+                e.bits = Integer.parseInt(v[11]);
+                e.signed = v[12].equals("1");
+                e.samples = Integer.parseInt(v[13]);
+                e.syntax = v[14];
+                e.slope = Double.parseDouble(v[15]);
+                e.intercept = Double.parseDouble(v[16]);
+                e.spacing = split(v[17]);
+                e.thickness = Double.parseDouble(v[18]);
+                e.frames = Integer.parseInt(v[19]);
+                return e;
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The index of a folder: read from INDEX_FILE when it is up to date,
+     * otherwise built from the headers and written
+     * @param directory the folder, ending with a separator
+     * @param list the file names of the folder
+     * @return the index, or null if none of the files is a DICOM image
+     */
+    public static DicomIndex open(String directory, String[] list) {
+        String[] names = images(list);
+        if (names.length==0)
+            return null;
+        DicomIndex index = load(directory, names);
+        if (index!=null) {
+            if (IJ.debugMode) IJ.log("DicomIndex: "+names.length+" files from "+INDEX_FILE);
+            return index;
+        }
+        index = build(directory, names);
+        if (index!=null) {
+            try {
+                index.write(directory);
+            } catch (IOException e) {
+                if (IJ.debugMode) IJ.log("DicomIndex: "+e.getMessage());
+            }
+        }
+        return index;
+    }
+
+    /** The image files of a folder listing (no .txt or hidden files) */
+    static String[] images(String[] list) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (int i=0; i<list.length; i++) {
+            if (list[i]!=null && !list[i].endsWith(".txt") && !list[i].startsWith("."))
+                names.add(list[i]);
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /** The index file, or null if it is missing or does not match the files */
+    static DicomIndex load(String directory, String[] names) {
+        File file = new File(directory, INDEX_FILE);
+        if (!file.isFile())
+            return null;
+        DicomIndex index = new DicomIndex();
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            try {
+                String line = in.readLine();
+                if (!VERSION.equals(line))
+                    return null;
+                while ((line = in.readLine())!=null) {
+                    if (line.startsWith("#") || line.length()==0)
+                        continue;
+                    Entry e = Entry.fromLine(line);
+                    if (e==null)
+                        return null;
+                    index.entries.put(e.name, e);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        if (index.entries.size()!=names.length)
+            return null;
+        for (int i=0; i<names.length; i++) {
+            Entry e = index.entries.get(names[i]);
+            File f = new File(directory, names[i]);
+            if (e==null || e.length!=f.length() || e.modified!=f.lastModified())
+                return null;
+        }
+        return index;
+    }
+
+    /** Scans the headers on a pool of threads, null if no file is a DICOM image */
+    static DicomIndex build(final String directory, String[] names) {
+        int threads = Math.max(1, Math.min(Prefs.getThreads(), names.length));
+        ExecutorService exe = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<Entry>> futures = new ArrayList<Future<Entry>>();
+        try {
+            for (int i=0; i<names.length; i++) {
+                final String name = names[i];
+                futures.add(exe.submit(new Callable<Entry>() {
+                    public Entry call() {
+                        return scan(new File(directory, name));
+                    }
+                }));
+            }
+            DicomIndex index = new DicomIndex();
+            int images = 0;
+            for (int i=0; i<names.length; i++) {
+                Entry e = futures.get(i).get();
+                if (e.isImage())
+                    images++;
+                index.entries.put(e.name, e);
+            }
+            return images>0 ? index : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (IJ.debugMode) IJ.log("DicomIndex: "+e.getCause());
+            return null;
+        } finally {
+            exe.shutdownNow();
+        }
+    }
+
+    /** Writes the index next to the files */
+    public void write(String directory) throws IOException {
+        File file = new File(directory, INDEX_FILE);
+        File tmp = new File(directory, INDEX_FILE+".tmp");
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(tmp)));
+        try {
+            out.println(VERSION);
+            out.println(COLUMNS);
+            for (Entry e : entries.values())
+                out.println(e.toLine());
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            tmp.delete();
+            throw new IOException("Could not write "+file);
+        }
+        file.delete();
+        if (!tmp.renameTo(file))
+            throw new IOException("Could not write "+file);
+    }
+
+    /** The entry of a file, or null */
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Geometric order: by series, then by time point and then by the
+     * position along the slice normal, so the slices of a volume are
+     * together. The time point of a file is its rank, by acquisition time
+     * and instance number, among the files at the same position. Without
+     * positions the files are in instance number order. Non-image files
+     * come last.
+     * @param names file names of this index
+     * @return the names in stack order
+     */
+    public String[] sort(String[] names) {
+        final HashMap<String, Integer> frames = new HashMap<String, Integer>();
+        HashMap<String, ArrayList<Entry>> atPosition = new HashMap<String, ArrayList<Entry>>();
+        for (int i=0; i<names.length; i++) {
+            Entry e = entries.get(names[i]);
+            String key = e.series+"@"+Math.round(e.slicePosition()*1000);
+            ArrayList<Entry> l = atPosition.get(key);
+            if (l==null)
+                atPosition.put(key, l = new ArrayList<Entry>());
+            l.add(e);
+        }
+        for (ArrayList<Entry> l : atPosition.values()) {
+            Collections.sort(l, new Comparator<Entry>() {
+                public int compare(Entry a, Entry b) {
+                    int c = a.time.compareTo(b.time);
+                    return c!=0 ? c : compareInstance(a, b);
+                }
+            });
+            for (int i=0; i<l.size(); i++)
+                frames.put(l.get(i).name, Integer.valueOf(i));
+        }
+        Entry[] sorted = new Entry[names.length];
+        for (int i=0; i<names.length; i++)
+            sorted[i] = entries.get(names[i]);
+        Arrays.sort(sorted, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                if (a.isImage()!=b.isImage())
+                    return a.isImage() ? -1 : 1;
+                int c = a.series.compareTo(b.series);
+                if (c!=0) return c;
+                c = frames.get(a.name).compareTo(frames.get(b.name));
+                if (c!=0) return c;
+                c = Double.compare(a.slicePosition(), b.slicePosition());
+                if (c!=0) return c;
+                c = compareInstance(a, b);
+                return c!=0 ? c : a.name.compareTo(b.name);
+            }
+        });
+        String[] out = new String[sorted.length];
+        for (int i=0; i<sorted.length; i++)
+            out[i] = sorted[i].name;
+        return out;
+    }
+
+    static int compareInstance(Entry a, Entry b) {
+        return a.instance<b.instance ? -1 : (a.instance==b.instance ? 0 : 1);
+    }
+
+    /**
+     * Reads the pixels of a raw entry from its offset
+     * @return the calibrated image, without the DICOM info
+     */
+    public ImagePlus open(String directory, String name) throws IOException {
+        Entry e = entries.get(name);
+        FileInfo fi = e.toFileInfo(directory);
+        InputStream in = new BufferedInputStream(new FileInputStream(new File(directory, name)));
+        try {
+            // ImageReader skips to the offset
+            Object pixels = new ImageReader(fi).readPixels(in);
+            if (pixels==null)
+                throw new IOException("Could not read "+name);
+            ImagePlus imp = new ImagePlus(name, processor(fi, pixels));
+            imp.setFileInfo(fi);
+            if (fi.unit!=null) {
+                Calibration cal = imp.getCalibration();
+                cal.setUnit(fi.unit);
+                cal.pixelWidth = fi.pixelWidth;
+                cal.pixelHeight = fi.pixelHeight;
+                cal.pixelDepth = fi.pixelDepth;
+            }
+            return imp;
+        } finally {
+            in.close();
+        }
+    }
+
+    static ImageProcessor processor(FileInfo fi, Object pixels) {
+        if (pixels instanceof byte[])
+            return new ByteProcessor(fi.width, fi.height, (byte[])pixels, null);
+        return new ShortProcessor(fi.width, fi.height, (short[])pixels, null);
+    }
+
+    // ================= header scanner ====================
+
+    /**
+     * Scans the header of a file up to the pixel data
+     * @return the entry, a non-image one if the file is not a DICOM image
+     */
+    static Entry scan(File file) {
+        Entry e = new Entry();
+        e.name = file.getName();
+        e.length = file.length();
+        e.modified = file.lastModified();
+        try {
+            HeaderScanner s = new HeaderScanner(file);
+            try {
+                if (!s.parse(e))
+                    e.offset = -1;
+            } finally {
+                s.close();
+            }
+        } catch (IOException ex) {
+            if (IJ.debugMode) IJ.log("DicomIndex: "+file.getName()+": "+ex);
+            e.offset = -1;
+        }
+        return e;
+    }
+
+    static class HeaderScanner {
+        private final DataInputStream in;
+        private long pos;
+        private boolean little = true, explicit = true;
+
+        HeaderScanner(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+
+        int u8() throws IOException {
+            pos++;
+            return in.readUnsignedByte();
+        }
+
+        int u16() throws IOException {
+            int a = u8(), b = u8();
+            return little ? a|(b<<8) : (a<<8)|b;
+        }
+
+        long u32() throws IOException {
+            long a = u16(), b = u16();
+            return little ? a|(b<<16) : (a<<16)|b;
+        }
+
+        void skip(long n) throws IOException {
+            while (n>0) {
+                int k = in.skipBytes((int)Math.min(n, Integer.MAX_VALUE));
+                if (k<=0)
+                    throw new EOFException();
+                n -= k;
+                pos += k;
+            }
+        }
+
+        String string(long len) throws IOException {
+            byte[] b = new byte[(int)len];
+            in.readFully(b);
+            pos += len;
+            return new String(b, "ISO-8859-1").replace('\0', ' ').trim();
+        }
+
+        boolean parse(Entry e) throws IOException {
+            in.mark(132);
+            byte[] pre = new byte[132];
+            try {
+                in.readFully(pre);
+            } catch (EOFException ex) {
+                return false;
+            }
+            if (pre[128]=='D' && pre[129]=='I' && pre[130]=='C' && pre[131]=='M') {
+                pos = 132;
+            } else {
+                // No preamble: guess from the first element
+                in.reset();
+                explicit = Character.isUpperCase((char)pre[4]) && Character.isUpperCase((char)pre[5]);
+                if (pre[0]!=8 && pre[0]!=2 || pre[1]!=0)
+                    return false;
+                e.syntax = explicit ? EXPLICIT_LITTLE : IMPLICIT_LITTLE;
+            }
+            long metaEnd = -1;
+            while (true) {
+                if (pos==metaEnd) {
+                    // Dataset after the group 2 meta information
+                    explicit = !e.syntax.equals(IMPLICIT_LITTLE);
+                    little = !e.syntax.equals(EXPLICIT_BIG);
+                }
+                int group, element;
+                try {
+                    group = u16();
+                } catch (EOFException ex) {
+                    return false;
+                }
+                element = u16();
+                long len = length(group);
+                int tag = (group<<16)|element;
+                if (tag==0x7FE00010) {
+                    e.offset = pos;
+                    // Encapsulated pixels are compressed, their syntax is not raw
+                    return true;
+                }
+                if (len==0xFFFFFFFFL) {
+                    skipUndefined();
+                    continue;
+                }
+                switch (tag) {
+                    case 0x00020000: metaEnd = pos+4; metaEnd += u32(); break;
+                    case 0x00020010: e.syntax = string(len); break;
+                    case 0x0020000E: e.series = string(len); break;
+                    case 0x00200013: e.instance = parseInt(string(len)); break;
+                    case 0x00200032: e.position = split(string(len)); break;
+                    case 0x00200037: e.orientation = split(string(len)); break;
+                    case 0x00080032: e.time = string(len); break;
+                    case 0x00280002: e.samples = u16(); skip(len-2); break;
+                    case 0x00280010: e.height = u16(); skip(len-2); break;
+                    case 0x00280011: e.width = u16(); skip(len-2); break;
+                    case 0x00280100: e.bits = u16(); skip(len-2); break;
+                    case 0x00280103: e.signed = u16()==1; skip(len-2); break;
+                    case 0x00281052: e.intercept = parseDouble(string(len), 0); break;
+                    case 0x00281053: e.slope = parseDouble(string(len), 1); break;
+                    case 0x00280030: e.spacing = split(string(len)); break;
+                    case 0x00180050: e.thickness = parseDouble(string(len), 0); break;
+                    case 0x00280008: e.frames = Math.max(1, parseInt(string(len))); break;
+                    default: skip(len);
+                }
+            }
+        }
+
+        /** Reads the VR (if explicit) and the value length of an element */
+        long length(int group) throws IOException {
+            if (group==0xFFFE)
+                return u32(); // item and delimiters have no VR
+            if (!explicit && group!=2)
+                return u32();
+            String vr = ""+(char)u8()+(char)u8();
+            if (vr.equals("OB") || vr.equals("OW") || vr.equals("OF") || vr.equals("OL")
+                    || vr.equals("OD") || vr.equals("SQ") || vr.equals("UT") || vr.equals("UN")
+                    || vr.equals("UC") || vr.equals("UR")) {
+                skip(2);
+                return u32();
+            }
+            return u16();
+        }
+
+        /** Skips a sequence of undefined length, with nested items */
+        void skipUndefined() throws IOException {
+            while (true) {
+                int group = u16(), element = u16();
+                long len = length(group);
+                if (group==0xFFFE && element==0xE0DD)
+                    return; // sequence delimiter
+                if (group==0xFFFE && element==0xE00D)
+                    continue; // item delimiter
+                if (group==0xFFFE && element==0xE000) {
+                    if (len!=0xFFFFFFFFL)
+                        skip(len);
+                    continue; // undefined length items hold elements
+                }
+                if (len==0xFFFFFFFFL)
+                    skipUndefined();
+                else
+                    skip(len);
+            }
+        }
+    }
+
+    static int parseInt(String s) {
+        try {
+            return (int)Math.round(Double.parseDouble(s.trim()));
+        } catch (NumberFormatException e) {
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    static double parseDouble(String s, double def) {
+        try {
+            return Double.parseDouble(s.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    static double[] split(String s) {
+        if (s==null || s.length()==0)
+            return null;
+        String[] items = s.split("\\\\");
+        double[] d = new double[items.length];
+        try {
+            for (int i=0; i<items.length; i++)
+                d[i] = Double.parseDouble(items[i].trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return d;
+    }
+
+    static String join(double[] d) {
+        if (d==null)
+            return "";
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<d.length; i++)
+            sb.append(i>0 ? "\\" : "").append(d[i]);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.*;
+
+/*
+    Reads the values of DICOM tags from the "Info" property that the ImageJ
+    DICOM decoder attaches to an image, i.e.
+
+        0020,0013  Image Number: 12
+        0020,0032  Image Position (Patient): -120.5\-98.2\31.0
+
+    Used by Import_Dicom_Sequence to put the files of a series in instance
+    number or slice position order.
+
+    10.19.26 - Created
+ */
+
+public class DicomTags {
+
+    public static final String INSTANCE_NUMBER = "0020,0013";
+    public static final String IMAGE_POSITION = "0020,0032";
+    public static final String IMAGE_ORIENTATION = "0020,0037";
+
+    /** The value of a tag, or null if it is not in the info */
+    public static String getString(String info, String tag) {
+        if (info==null)
+            return null;
+        int index = info.startsWith(tag) ? 0 : info.indexOf("\n"+tag);
+        if (index<0)
+            return null;
+        int end = info.indexOf('\n', index+1);
+        String line = end<0 ? info.substring(index) : info.substring(index, end);
+        int colon = line.indexOf(':');
+        return colon<0 ? null : line.substring(colon+1).trim();
+    }
+
+    /** The integer value of a tag, or Integer.MIN_VALUE if it is missing */
+    public static int getInt(String info, String tag) {
+        String value = getString(info, tag);
+        if (value==null)
+            return Integer.MIN_VALUE;
+        try {
+            return (int)Math.round(Double.parseDouble(value));
+        } catch (NumberFormatException e) {
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    /** The backslash separated numbers of a tag, or null if it is missing */
+    public static double[] getDoubles(String info, String tag) {
+        String value = getString(info, tag);
+        if (value==null)
+            return null;
+        String[] items = value.split("\\\\");
+        double[] d = new double[items.length];
+        try {
+            for (int i=0; i<items.length; i++)
+                d[i] = Double.parseDouble(items[i].trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return d;
+    }
+
+    /**
+     * The position of the slice along its normal (mm), from the image
+     * position and orientation; z if there is no orientation, NaN if there
+     * is no position
+     */
+    public static double slicePosition(String info) {
+        return slicePosition(getDoubles(info, IMAGE_POSITION),
+            getDoubles(info, IMAGE_ORIENTATION));
+    }
+
+    /** The position along the normal of the row and column cosines */
+    public static double slicePosition(double[] pos, double[] orient) {
+        if (pos==null || pos.length<3)
+            return Double.NaN;
+        if (orient==null || orient.length<6)
+            return pos[2];
+        double nx = orient[1]*orient[5] - orient[2]*orient[4];
+        double ny = orient[2]*orient[3] - orient[0]*orient[5];
+        double nz = orient[0]*orient[4] - orient[1]*orient[3];
+        return pos[0]*nx + pos[1]*ny + pos[2]*nz;
+    }
+}
@@ -0,0 +1,251 @@
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import ij.*;
+import ij.io.*;
+import ij.process.*;
+
+/*
+    Virtual stack of a DICOM series that decodes the slices when they are
+    displayed or measured, for series too large to hold in memory. The
+    decoded slices are kept in an LRU cache bounded by a memory budget, and
+    a background thread reads ahead a few slices in the direction the user
+    is scrolling, so browsing a StackWindow stays smooth. Uncompressed files
+    are read from the offsets of the DicomIndex when there is one. The
+    read-ahead thread stops when the image is closed (closeWith).
+
+    10.19.26 - Created
+ */
+
+public class DicomVirtualStack extends VirtualStack implements ImageListener {
+
+    // Part of the memory ImageJ may use that the cache may fill
+    public static final double MEMORY_FRACTION = 0.25;
+    public static final int READ_AHEAD = 8;
+
+    private final String directory;
+    private final String[] names;
+    private final DicomIndex index;
+    private final boolean eightBits, rgb;
+    private final int scaledWidth, scaledHeight;
+    private final long budget;
+
+    // Decoded processors, least recently used first
+    private final LinkedHashMap<Integer, ImageProcessor> cache =
+        new LinkedHashMap<Integer, ImageProcessor>(16, 0.75f, true);
+    private final HashMap<Integer, Future<ImageProcessor>> pending =
+        new HashMap<Integer, Future<ImageProcessor>>();
+    private long cachedBytes;
+    private int last = -1;
+    private ImagePlus owner;
+    private final ExecutorService readAhead = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "DICOM read-ahead");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    /**
+     * @param width width of the files
+     * @param height height of the files
+     * @param cm color model of the first file
+     * @param directory folder of the files, ending with a separator
+     * @param names the files in stack order, one slice each
+     * @param index index of the folder, or null
+     * @param eightBits convert to 8-bit grayscale
+     * @param rgb convert to RGB
+     * @param scale size of the slices in %
+     */
+    public DicomVirtualStack(int width, int height, ColorModel cm, String directory, String[] names,
+            DicomIndex index, boolean eightBits, boolean rgb, double scale) {
+        super(scale<100.0 ? (int)(width*scale/100.0) : width,
+            scale<100.0 ? (int)(height*scale/100.0) : height, cm, directory);
+        this.directory = directory;
+        this.names = names;
+        this.index = index;
+        this.eightBits = eightBits;
+        this.rgb = rgb;
+        this.scaledWidth = getWidth();
+        this.scaledHeight = getHeight();
+        this.budget = (long)(IJ.maxMemory()*MEMORY_FRACTION);
+    }
+
+    public int getSize() {
+        return names.length;
+    }
+
+    public String getSliceLabel(int n) {
+        return names[n-1];
+    }
+
+    public String getFileName(int n) {
+        return names[n-1];
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    /** Returns a copy of the cached slice, so edits do not stick to the cache */
+    public ImageProcessor getProcessor(int n) {
+        ImageProcessor ip = slice(n);
+        if (ip==null) {
+            return eightBits ? new ByteProcessor(scaledWidth, scaledHeight)
+                : (rgb ? new ColorProcessor(scaledWidth, scaledHeight)
+                    : new ShortProcessor(scaledWidth, scaledHeight));
+        }
+        scheduleReadAhead(n);
+        return ip.duplicate();
+    }
+
+    /** The decoded slice from the cache, the read-ahead or the file */
+    private ImageProcessor slice(int n) {
+        Integer key = Integer.valueOf(n);
+        Future<ImageProcessor> f;
+        synchronized (this) {
+            ImageProcessor ip = cache.get(key);
+            if (ip!=null)
+                return ip;
+            f = pending.get(key);
+        }
+        ImageProcessor ip = null;
+        if (f!=null) {
+            try {
+                ip = f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                ip = null;
+            } catch (CancellationException e) {
+                ip = null;
+            }
+        }
+        if (ip==null)
+            ip = decode(n);
+        if (ip!=null)
+            put(key, ip);
+        return ip;
+    }
+
+    /** Reads and converts one file */
+    private ImageProcessor decode(int n) {
+        String name = names[n-1];
+        ImagePlus imp = null;
+        DicomIndex.Entry e = index!=null ? index.get(name) : null;
+        if (e!=null && e.isRaw()) {
+            try {
+                imp = index.open(directory, name);
+            } catch (IOException ex) {
+                imp = null;
+            }
+        }
+        if (imp==null) {
+            Opener opener = new Opener();
+            opener.setSilentMode(true);
+            imp = opener.openImage(directory, name);
+        }
+        if (imp==null) {
+            IJ.log(name + ": unable to open");
+            return null;
+        }
+        ImageProcessor ip = imp.getProcessor();
+        if (rgb)
+            ip = ip.convertToRGB();
+        else if (eightBits)
+            ip = ip.convertToByte(true);
+        if (ip.getWidth()!=scaledWidth || ip.getHeight()!=scaledHeight)
+            ip = ip.resize(scaledWidth, scaledHeight);
+        return ip;
+    }
+
+    /** Adds a slice to the cache and drops the least recently used ones */
+    private synchronized void put(Integer key, ImageProcessor ip) {
+        if (cache.containsKey(key))
+            return;
+        cache.put(key, ip);
+        cachedBytes += bytes(ip);
+        Iterator<Map.Entry<Integer, ImageProcessor>> it = cache.entrySet().iterator();
+        while (cachedBytes>budget && cache.size()>1 && it.hasNext()) {
+            Map.Entry<Integer, ImageProcessor> oldest = it.next();
+            if (oldest.getKey().equals(key))
+                continue;
+            cachedBytes -= bytes(oldest.getValue());
+            it.remove();
+        }
+    }
+
+    private static long bytes(ImageProcessor ip) {
+        return (long)ip.getPixelCount()*(ip.getBitDepth()==24 ? 4 : ip.getBitDepth()/8);
+    }
+
+    /** Queues the next slices in the direction of the last move */
+    private synchronized void scheduleReadAhead(int n) {
+        if (readAhead.isShutdown())
+            return;
+        int step = last<0 || n>=last ? 1 : -1;
+        last = n;
+        for (int k=1; k<=READ_AHEAD; k++) {
+            final int s = n+k*step;
+            if (s<1 || s>names.length)
+                break;
+            final Integer key = Integer.valueOf(s);
+            if (cache.containsKey(key) || pending.containsKey(key))
+                continue;
+            pending.put(key, readAhead.submit(new Callable<ImageProcessor>() {
+                public ImageProcessor call() {
+                    try {
+                        ImageProcessor ip = decode(s);
+                        if (ip!=null)
+                            put(key, ip);
+                        return ip;
+                    } finally {
+                        synchronized (DicomVirtualStack.this) {
+                            pending.remove(key);
+                        }
+                    }
+                }
+            }));
+        }
+        // Drop queued slices the user has scrolled away from
+        Iterator<Map.Entry<Integer, Future<ImageProcessor>>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Future<ImageProcessor>> p = it.next();
+            int d = (p.getKey().intValue()-n)*step;
+            if (d<=0 || d>READ_AHEAD) {
+                p.getValue().cancel(false);
+                it.remove();
+            }
+        }
+    }
+
+    /** Closes this stack when the given image, which shows it, is closed */
+    public void closeWith(ImagePlus imp) {
+        owner = imp;
+        ImagePlus.addImageListener(this);
+    }
+
+    public void imageOpened(ImagePlus imp) {
+    }
+
+    public void imageUpdated(ImagePlus imp) {
+    }
+
+    public void imageClosed(ImagePlus imp) {
+        if (imp==owner) {
+            ImagePlus.removeImageListener(this);
+            owner = null;
+            close();
+        }
+    }
+
+    /** Stops the read-ahead thread and empties the cache */
+    public synchronized void close() {
+        readAhead.shutdownNow();
+        pending.clear();
+        cache.clear();
+        cachedBytes = 0;
+    }
+}
@@ -0,0 +1,402 @@
+// ===============================================================================
+//
+// FdfHeader.java
+//
+// Header of a Varian FDF (Flexible Data Format) image file. The header is the
+// text in front of the pixel data, one C-like declaration per line, i.e.
+//
+//     float  matrix[] = {256, 256};
+//     char  *spatial_rank = "2dfov";
+//     int    slice_no = 3;
+//
+// and ends with a NUL byte. Every declaration is kept, so the openers can sort
+// a series of files by slice position, echo and array index and calibrate it.
+// The pixels (integer or float storage, either byte order) are decoded from a
+// memory-mapped buffer with bulk gets.
+//
+// Updates:
+// 10.19.26 - Created for the parallel Multi_FDF_Opener
+// 10.19.26 - storage, bits and bigendian are used instead of assuming 32-bit
+//            big-endian floats; TE, TR and orientation are exposed
+//
+// ================================================================================
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import ij.io.*;
+
+public class FdfHeader {
+
+	// Headers are a few kB, the pixel data follows the NUL byte
+	public static final int MAX_HEADER = 64 * 1024;
+
+	private final File file;
+	private final Map<String, String[]> values = new LinkedHashMap<String, String[]>();
+	private final List<String> lines = new ArrayList<String>();
+
+	/**
+	 * Reads the header of an fdf file
+	 * @param file the fdf file
+	 * @throws IOException if the file cannot be read or has no matrix
+	 */
+	public FdfHeader(File file) throws IOException {
+		this.file = file;
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+			for (int n = 0, b; (b = in.read()) > 0 && n < MAX_HEADER; n++) {
+				if (b == '\n') {
+					this.addLine(line.toString("ISO-8859-1"));
+					line.reset();
+				} else {
+					line.write(b);
+				}
+			}
+			this.addLine(line.toString("ISO-8859-1"));
+		} finally {
+			in.close();
+		}
+		if (this.getInts("matrix") == null) {
+			throw new IOException(file + " is not an fdf file (no matrix)");
+		}
+	}
+
+	/**
+	 * Splits a declaration into its name and values
+	 * @param line one header line
+	 */
+	private void addLine(String line) {
+		line = line.trim();
+		if (line.length() == 0) {
+			return;
+		}
+		lines.add(line);
+		int eq = line.indexOf('=');
+		if (eq < 0 || line.startsWith("#")) {
+			return;
+		}
+		// "float  matrix[]" -> matrix, "char  *file" -> file
+		String[] decl = line.substring(0, eq).trim().split("\\s+");
+		String name = decl[decl.length - 1].replace("*", "").replace("[]", "");
+		String value = line.substring(eq + 1).trim();
+		if (value.endsWith(";")) {
+			value = value.substring(0, value.length() - 1);
+		}
+		value = value.replace("{", "").replace("}", "");
+		String[] items = value.split(",");
+		for (int i = 0; i < items.length; i++) {
+			items[i] = items[i].trim().replace("\"", "");
+		}
+		values.put(name, items);
+	}
+
+	/**
+	 * @return the fdf file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the header lines as they are in the file
+	 */
+	public List<String> getLines() {
+		return lines;
+	}
+
+	/**
+	 * @param name declaration name, i.e. "spatial_rank"
+	 * @return the first value, or null if it is missing
+	 */
+	public String getString(String name) {
+		String[] v = values.get(name);
+		return v == null || v.length == 0 ? null : v[0];
+	}
+
+	/**
+	 * @param name declaration name, i.e. "span"
+	 * @return the values, or null if they are missing or not numbers
+	 */
+	public double[] getDoubles(String name) {
+		String[] v = values.get(name);
+		if (v == null) {
+			return null;
+		}
+		double[] out = new double[v.length];
+		try {
+			for (int i = 0; i < v.length; i++) {
+				out[i] = Double.parseDouble(v[i]);
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return out;
+	}
+
+	/**
+	 * @param name declaration name, i.e. "matrix"
+	 * @return the values rounded to integers, or null if they are missing
+	 */
+	public int[] getInts(String name) {
+		double[] d = this.getDoubles(name);
+		if (d == null) {
+			return null;
+		}
+		int[] out = new int[d.length];
+		for (int i = 0; i < d.length; i++) {
+			out[i] = (int) Math.round(d[i]);
+		}
+		return out;
+	}
+
+	/**
+	 * @param name declaration name, i.e. "echo_no"
+	 * @param def value if it is missing
+	 * @return the first value
+	 */
+	public double getDouble(String name, double def) {
+		double[] d = this.getDoubles(name);
+		return d == null || d.length == 0 ? def : d[0];
+	}
+
+	/**
+	 * @return the image width
+	 */
+	public int getWidth() {
+		return this.getInts("matrix")[0];
+	}
+
+	/**
+	 * @return the image height
+	 */
+	public int getHeight() {
+		int[] m = this.getInts("matrix");
+		return m.length > 1 ? m[1] : 1;
+	}
+
+	/**
+	 * @return the number of slices in the file (1 for 2dfov)
+	 */
+	public int getDepth() {
+		int[] m = this.getInts("matrix");
+		return m.length > 2 ? m[2] : 1;
+	}
+
+	/**
+	 * @return the size of a voxel in mm (span is in cm), 0 if unknown
+	 */
+	public double[] getVoxelSize() {
+		int[] m = this.getInts("matrix");
+		double[] span = this.getDoubles("span");
+		double[] size = new double[3];
+		for (int i = 0; i < m.length && i < 3; i++) {
+			if (span != null && i < span.length && m[i] > 0) {
+				size[i] = 10 * span[i] / m[i];
+			}
+		}
+		if (m.length < 3) {
+			// 2D slices: the slice thickness
+			double[] roi = this.getDoubles("roi");
+			if (roi != null && roi.length > 2) {
+				size[2] = 10 * roi[2];
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the position of the slice along the slice axis in cm, the
+	 * slice number if the header has no location
+	 */
+	public double getSlicePosition() {
+		double[] loc = this.getDoubles("location");
+		if (loc != null && loc.length > 2) {
+			return loc[2];
+		}
+		return this.getDouble("slice_no", 0);
+	}
+
+	/**
+	 * @return the echo number (1 if there is only one echo)
+	 */
+	public int getEcho() {
+		return (int) this.getDouble("echo_no", 1);
+	}
+
+	/**
+	 * @return the index in the arrayed parameter, i.e. the time point
+	 */
+	public int getArrayIndex() {
+		return (int) this.getDouble("array_index", 1);
+	}
+
+	/**
+	 * @return "float" or "integer"
+	 */
+	public String getStorage() {
+		String storage = this.getString("storage");
+		return storage == null ? "float" : storage;
+	}
+
+	/**
+	 * @return bits per pixel
+	 */
+	public int getBits() {
+		return (int) this.getDouble("bits", 32);
+	}
+
+	/**
+	 * @return true if the pixels are big-endian (the default of the Sun
+	 * consoles; VnmrJ on Linux writes bigendian = 0)
+	 */
+	public boolean isBigEndian() {
+		return this.getDouble("bigendian", 1) != 0;
+	}
+
+	/**
+	 * @return the echo time in ms, or NaN if it is not in the header
+	 */
+	public double getEchoTime() {
+		return this.getDouble("TE", Double.NaN);
+	}
+
+	/**
+	 * @return the repetition time in ms, or NaN if it is not in the header
+	 */
+	public double getRepetitionTime() {
+		return this.getDouble("TR", Double.NaN);
+	}
+
+	/**
+	 * @return the 3x3 direction cosines (row, column and slice axes), or
+	 * null if they are not in the header
+	 */
+	public double[] getOrientation() {
+		double[] o = this.getDoubles("orientation");
+		return o != null && o.length == 9 ? o : null;
+	}
+
+	/**
+	 * @return the FileInfo type of the pixels
+	 * @throws IOException if the storage is not supported
+	 */
+	public int getFileType() throws IOException {
+		String storage = this.getStorage();
+		int bits = this.getBits();
+		if (storage.equals("float") && bits == 32) {
+			return FileInfo.GRAY32_FLOAT;
+		} else if (storage.equals("float") && bits == 64) {
+			return FileInfo.GRAY64_FLOAT;
+		} else if (storage.equals("integer") && bits == 8) {
+			return FileInfo.GRAY8;
+		} else if (storage.equals("integer") && bits == 16) {
+			return FileInfo.GRAY16_SIGNED;
+		} else if (storage.equals("integer") && bits == 32) {
+			return FileInfo.GRAY32_INT;
+		}
+		throw new IOException("Unsupported fdf storage in " + file.getName()
+				+ ": " + bits + "-bit " + storage);
+	}
+
+	/**
+	 * @return the offset of the pixel data, which fills the end of the file
+	 */
+	public long getOffset() {
+		return file.length() - (long) (this.getBits() / 8) * this.getWidth()
+				* this.getHeight() * this.getDepth();
+	}
+
+	/**
+	 * @return the header as a FileInfo for FileOpener
+	 * @throws IOException if the storage is not supported
+	 */
+	public FileInfo toFileInfo() throws IOException {
+		double[] size = this.getVoxelSize();
+		FileInfo fi = new FileInfo();
+		fi.fileName = file.getName();
+		fi.directory = file.getParent() + File.separator;
+		fi.fileFormat = FileInfo.RAW;
+		fi.fileType = this.getFileType();
+		fi.width = this.getWidth();
+		fi.height = this.getHeight();
+		fi.nImages = this.getDepth();
+		fi.pixelWidth = size[0];
+		fi.pixelHeight = size[1];
+		fi.pixelDepth = size[2];
+		fi.intelByteOrder = !this.isBigEndian();
+		fi.unit = "mm";
+		fi.longOffset = this.getOffset();
+		return fi;
+	}
+
+	/**
+	 * Decodes the planes of the file to 32-bit floats
+	 * @param planes the stack planes
+	 * @param first index of the file's first plane in planes
+	 * @param stride distance between the file's planes in planes (the
+	 * number of channels of a hyperstack)
+	 * @throws IOException if the file cannot be read or is too short
+	 */
+	public void readPixels(float[][] planes, int first, int stride)
+			throws IOException {
+		int type = this.getFileType();
+		int n = this.getWidth() * this.getHeight();
+		int depth = this.getDepth();
+		long offset = this.getOffset();
+		if (offset < 0) {
+			throw new IOException(file.getName() + " is too short for a "
+					+ this.getWidth() + "x" + this.getHeight() + "x" + depth
+					+ " image");
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+					offset, file.length() - offset);
+			buf.order(this.isBigEndian() ? ByteOrder.BIG_ENDIAN
+					: ByteOrder.LITTLE_ENDIAN);
+			for (int z = 0; z < depth; z++) {
+				float[] plane = new float[n];
+				switch (type) {
+				case FileInfo.GRAY32_FLOAT:
+					buf.asFloatBuffer().get(plane);
+					break;
+				case FileInfo.GRAY64_FLOAT:
+					double[] d = new double[n];
+					buf.asDoubleBuffer().get(d);
+					for (int i = 0; i < n; i++) {
+						plane[i] = (float) d[i];
+					}
+					break;
+				case FileInfo.GRAY8:
+					byte[] b = new byte[n];
+					buf.duplicate().get(b);
+					for (int i = 0; i < n; i++) {
+						plane[i] = b[i] & 0xff;
+					}
+					break;
+				case FileInfo.GRAY16_SIGNED:
+					short[] s = new short[n];
+					buf.asShortBuffer().get(s);
+					for (int i = 0; i < n; i++) {
+						plane[i] = s[i];
+					}
+					break;
+				default:
+					int[] v = new int[n];
+					buf.asIntBuffer().get(v);
+					for (int i = 0; i < n; i++) {
+						plane[i] = v[i];
+					}
+				}
+				// The views do not move buf, the next plane follows
+				buf.position(buf.position() + n * (this.getBits() / 8));
+				planes[first + z * stride] = plane;
+			}
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -3,6 +3,8 @@ import java.awt.*;
 import java.awt.image.*;
 import java.io.*;
 import java.awt.event.*;
+import java.util.*;
+import java.util.concurrent.*;
 import ij.*;
 import ij.io.*;
 import ij.gui.*;
@@ -31,16 +33,35 @@ import ij.measure.Calibration;
     This latest version mimics the FolderOpener class, which implements the 
     File/Import/Image Sequence command, which opens a folder of images as a stack.
 
+    10.19.26 - The files are decoded on a bounded pool of worker threads into
+               one slot per file and the stack is assembled in instance number
+               (or slice position) order. At most two files per thread are
+               decoded at a time, so the memory stays bounded by the output
+               stack.
+    10.19.26 - DICOM folders get an index (DicomIndex, dicom_index.txt) that
+               is reused until a file changes: the files are sorted by their
+               geometry and uncompressed pixels are read from the recorded
+               offset without parsing the headers again.
+    10.19.26 - Files read from the index keep their calibration; their
+               headers are not parsed again, the file name is the slice
+               label.
+    10.19.26 - "Use virtual stack" opens the series as a DicomVirtualStack
+               that decodes the slices on demand, with an LRU cache and
+               read-ahead, for series too large to hold in memory.
+    10.19.26 - Virtual stacks without an index are in instance number order
+               (from the headers) and stop reading ahead when closed.
+
  */
 
 public class Import_Dicom_Sequence implements PlugIn {
     
-    private static boolean convertToGrayscale, convertToRGB;
+    private static boolean convertToGrayscale, convertToRGB, openAsVirtualStack;
     private static double scale = 100.0;
     private int n, start, increment;
     private String filter;
     private FileInfo fi;
     private String info1;
+    private DicomIndex dicomIndex;
     
     public void run(String arg) {
         OpenDialog od = new OpenDialog("Open Image Sequence...", arg);
@@ -61,6 +82,9 @@ public class Import_Dicom_Sequence implements PlugIn {
         
         IJ.register(Import_Dicom_Sequence.class);
         list = sortFileList(list);
+        dicomIndex = DicomIndex.open(directory, list);
+        if (dicomIndex!=null)
+            list = dicomIndex.sort(DicomIndex.images(list));
         if (IJ.debugMode) IJ.log("Import_Dicom_Sequence: "+directory+" ("+list.length+" files)");
         int width=0,height=0,depth=0,bitDepth=0;
         ImageStack stack = null;
@@ -120,97 +144,76 @@ public class Import_Dicom_Sequence implements PlugIn {
                 start = 1;
             if (start+n-1>list.length)
                 n = list.length-start+1;
-            int count = 0;
-            int counter = 0;
-            for (int i=start-1; i<list.length; i++) {
-                if (list[i].endsWith(".txt"))
-                    continue;
-                if ((counter++%increment)!=0)
-                    continue;
+            String[] selected = select(list);
+            n = selected.length;
+
+            // The first file that opens sets the size, type and calibration
+            Slot[] slots = new Slot[n];
+            int first = 0;
+            for (; first<n && stack==null; first++) {
                 Opener opener = new Opener();
                 opener.setSilentMode(true);
                 IJ.redirectErrorMessages();
-                ImagePlus imp = opener.openImage(directory, list[i]);
-                if (imp!=null && stack==null) {
-                    width = imp.getWidth();
-                    height = imp.getHeight();
-                    depth = imp.getStackSize();
-                    bitDepth = imp.getBitDepth();
-                    cal = imp.getCalibration();
-                    if (convertToRGB) bitDepth = 24;
-                    if (convertToGrayscale) bitDepth = 8;
-                    ColorModel cm = imp.getProcessor().getColorModel();
-                    if (scale<100.0)
-                        stack = new ImageStack((int)(width*scale/100.0), (int)(height*scale/100.0), cm);
-                    else
-                        stack = new ImageStack(width, height, cm);
-                    info1 = (String)imp.getProperty("Info");
-                }
+                ImagePlus imp = opener.openImage(directory, selected[first]);
                 if (imp==null) {
-                    if (!list[i].startsWith("."))
-                        IJ.log(list[i] + ": unable to open");
+                    if (!selected[first].startsWith("."))
+                        IJ.log(selected[first] + ": unable to open");
                     continue;
                 }
-                if (imp.getWidth()!=width || imp.getHeight()!=height) {
-                    IJ.log(list[i] + ": wrong size; "+width+"x"+height+" expected, "+imp.getWidth()+"x"+imp.getHeight()+" found");
+                width = imp.getWidth();
+                height = imp.getHeight();
+                depth = imp.getStackSize();
+                bitDepth = imp.getBitDepth();
+                cal = imp.getCalibration();
+                if (convertToRGB) bitDepth = 24;
+                if (convertToGrayscale) bitDepth = 8;
+                ColorModel cm = imp.getProcessor().getColorModel();
+                if (scale<100.0)
+                    stack = new ImageStack((int)(width*scale/100.0), (int)(height*scale/100.0), cm);
+                else
+                    stack = new ImageStack(width, height, cm);
+                info1 = (String)imp.getProperty("Info");
+                slots[first] = convert(selected[first], imp, width, height, depth, bitDepth);
+            }
+            if (openAsVirtualStack && depth==1 && stack!=null) {
+                // The index has already sorted the files, else the headers give the order
+                String[] files = dicomIndex!=null ? selected : sortByHeader(directory, selected);
+                DicomVirtualStack vstack = new DicomVirtualStack(width, height, stack.getColorModel(),
+                    directory, files, dicomIndex, convertToGrayscale, convertToRGB, scale);
+                ImagePlus imp2 = new ImagePlus(title, vstack);
+                vstack.closeWith(imp2);
+                imp2.setFileInfo(fi);
+                imp2.setCalibration(cal);
+                if (selected.length==1 && info1!=null)
+                    imp2.setProperty("Info", info1);
+                imp2.show();
+                return;
+            }
+            decodeAll(directory, selected, slots, first, width, height, depth, bitDepth);
+
+            // Ordered assembly, the index has already sorted the files
+            Integer[] order = order(dicomIndex!=null ? new Slot[slots.length] : slots);
+            for (int k=0; k<order.length; k++) {
+                Slot slot = slots[order[k]];
+                if (slot==null)
+                    continue;
+                if (slot.error!=null) {
+                    IJ.log(slot.error);
                     continue;
                 }
-                String label = imp.getTitle();
-                if (depth==1) {
-                    String info = (String)imp.getProperty("Info");
-                    if (info!=null)
-                        label += "\n" + info;
-                }
-                if (imp.getCalibration().pixelWidth!=cal.pixelWidth)
+                if (slot.pixelWidth!=cal.pixelWidth)
                     allSameCalibration = false;
-                ImageStack inputStack = imp.getStack();
-                for (int slice=1; slice<=inputStack.getSize(); slice++) {
-                    ImageProcessor ip = inputStack.getProcessor(slice);
-                    int bitDepth2 = imp.getBitDepth();
-                    if (convertToRGB) {
-                        ip = ip.convertToRGB();
-                        bitDepth2 = 24;
-                    } else if(convertToGrayscale) {
-                        ip = ip.convertToByte(true);
-                        bitDepth2 = 8;
-                    }
-                    if (bitDepth2!=bitDepth) {
-                        if (bitDepth==8) {
-                            ip = ip.convertToByte(true);
-                            bitDepth2 = 8;
-                        } else if (bitDepth==24) {
-                            ip = ip.convertToRGB();
-                            bitDepth2 = 24;
-                        }
-                    }
-                    if (bitDepth2!=bitDepth) {
-                        IJ.log(list[i] + ": wrong bit depth; "+bitDepth+" expected, "+bitDepth2+" found");
-                        break;
-                    }
-                    if (slice==1) count++;
-                    IJ.showStatus(count+"/"+n);
-                    IJ.showProgress(count, n);
-                    if (scale<100.0)
-                        ip = ip.resize((int)(width*scale/100.0), (int)(height*scale/100.0));
-                    if (ip.getMin()<min) min = ip.getMin();
-                    if (ip.getMax()>max) max = ip.getMax();
-                    String label2 = label;
-                    if (depth>1) label2 = ""+slice;
-                    stack.addSlice(label2, ip);
-                }
-                if (count>=n)
-                    break;
-                if (IJ.escapePressed())
-                {IJ.beep(); break;}
-                //System.gc();
+                if (slot.min<min) min = slot.min;
+                if (slot.max>max) max = slot.max;
+                for (int slice=0; slice<slot.ips.length; slice++)
+                    stack.addSlice(slot.labels[slice], slot.ips[slice]);
+                slots[order[k]] = null;
             }
         } catch(OutOfMemoryError e) {
             IJ.outOfMemory("Import_Dicom_Sequence");
             if (stack!=null) stack.trim();
         }
         if (stack!=null && stack.getSize()>0) {
-            if (info1!=null && info1.lastIndexOf("7FE0,0010")>0)
-                stack = (new DICOM_Sorter()).sort(stack);
             ImagePlus imp2 = new ImagePlus(title, stack);
             if (imp2.getType()==ImagePlus.GRAY16 || imp2.getType()==ImagePlus.GRAY32)
                 imp2.getProcessor().setMinAndMax(min, max);
@@ -224,6 +227,231 @@ public class Import_Dicom_Sequence implements PlugIn {
         IJ.showProgress(1.0);
     }
     
+    /** The files from start, every increment'th, up to n files */
+    String[] select(String[] list) {
+        ArrayList<String> files = new ArrayList<String>();
+        int counter = 0;
+        for (int i=start-1; i<list.length && files.size()<n; i++) {
+            if (list[i].endsWith(".txt"))
+                continue;
+            if ((counter++%increment)!=0)
+                continue;
+            files.add(list[i]);
+        }
+        return files.toArray(new String[files.size()]);
+    }
+
+    /** Decodes the files from first on in parallel, each into its slot */
+    void decodeAll(final String directory, final String[] files, final Slot[] slots, int first,
+            final int width, final int height, final int depth, final int bitDepth) {
+        if (first>=files.length)
+            return;
+        int threads = Math.max(1, Math.min(Prefs.getThreads(), files.length-first));
+        ExecutorService exe = Executors.newFixedThreadPool(threads);
+        // Two files per thread in flight, the decoded originals are dropped
+        // as soon as they are converted
+        final Semaphore inFlight = new Semaphore(2*threads);
+        final int[] done = new int[1];
+        final int total = files.length;
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            for (int i=first; i<files.length; i++) {
+                if (IJ.escapePressed())
+                    {IJ.beep(); break;}
+                inFlight.acquire();
+                final int slot = i;
+                futures.add(exe.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            Opener opener = new Opener();
+                            opener.setSilentMode(true);
+                            IJ.redirectErrorMessages();
+                            ImagePlus imp = openFile(opener, directory, files[slot]);
+                            if (imp==null)
+                                slots[slot] = files[slot].startsWith(".") ? null
+                                    : new Slot(files[slot] + ": unable to open");
+                            else
+                                slots[slot] = convert(files[slot], imp, width, height, depth, bitDepth);
+                        } finally {
+                            inFlight.release();
+                            synchronized (done) {
+                                done[0]++;
+                                IJ.showStatus(done[0]+"/"+total);
+                                IJ.showProgress(done[0], total);
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> f : futures)
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error)
+                throw (Error)e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            exe.shutdownNow();
+        }
+    }
+
+    /**
+     * The files in the order of order(), from their headers only, for
+     * virtual stacks that are not decoded up front
+     */
+    static String[] sortByHeader(final String directory, final String[] files) {
+        final Slot[] slots = new Slot[files.length];
+        int threads = Math.max(1, Math.min(Prefs.getThreads(), files.length));
+        ExecutorService exe = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            for (int i=0; i<files.length; i++) {
+                final int k = i;
+                futures.add(exe.submit(new Runnable() {
+                    public void run() {
+                        String info = new DICOM().getInfo(directory+files[k]);
+                        Slot slot = new Slot(info==null ? files[k]+": no DICOM header" : null);
+                        slot.instance = DicomTags.getInt(info, DicomTags.INSTANCE_NUMBER);
+                        slot.position = DicomTags.slicePosition(info);
+                        slots[k] = slot;
+                    }
+                }));
+            }
+            for (Future<?> f : futures)
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return files;
+        } catch (ExecutionException e) {
+            if (IJ.debugMode) IJ.log("Import_Dicom_Sequence: "+e.getCause());
+            return files;
+        } finally {
+            exe.shutdownNow();
+        }
+        Integer[] order = order(slots);
+        String[] sorted = new String[files.length];
+        for (int k=0; k<order.length; k++)
+            sorted[k] = files[order[k].intValue()];
+        return sorted;
+    }
+
+    /**
+     * Reads the pixels from the index when it can, else decodes the file.
+     * The index has the order and calibration, so the header is not parsed
+     * again and the slice label is the file name (a single slice gets the
+     * Info of the first file).
+     */
+    ImagePlus openFile(Opener opener, String directory, String name) {
+        DicomIndex.Entry e = dicomIndex!=null ? dicomIndex.get(name) : null;
+        if (e!=null && e.isRaw()) {
+            try {
+                return dicomIndex.open(directory, name);
+            } catch (IOException ex) {
+                if (IJ.debugMode) IJ.log(name+": "+ex.getMessage());
+            }
+        }
+        return opener.openImage(directory, name);
+    }
+
+    /** Converts the slices of one decoded file to the stack type and scale */
+    Slot convert(String name, ImagePlus imp, int width, int height, int depth, int bitDepth) {
+        if (imp.getWidth()!=width || imp.getHeight()!=height)
+            return new Slot(name + ": wrong size; "+width+"x"+height+" expected, "+imp.getWidth()+"x"+imp.getHeight()+" found");
+        String label = imp.getTitle();
+        String info = (String)imp.getProperty("Info");
+        if (depth==1 && info!=null)
+            label += "\n" + info;
+        Slot slot = new Slot(null);
+        slot.pixelWidth = imp.getCalibration().pixelWidth;
+        slot.instance = DicomTags.getInt(info, DicomTags.INSTANCE_NUMBER);
+        slot.position = DicomTags.slicePosition(info);
+        ImageStack inputStack = imp.getStack();
+        slot.ips = new ImageProcessor[inputStack.getSize()];
+        slot.labels = new String[slot.ips.length];
+        for (int slice=1; slice<=inputStack.getSize(); slice++) {
+            ImageProcessor ip = inputStack.getProcessor(slice);
+            int bitDepth2 = imp.getBitDepth();
+            if (convertToRGB) {
+                ip = ip.convertToRGB();
+                bitDepth2 = 24;
+            } else if(convertToGrayscale) {
+                ip = ip.convertToByte(true);
+                bitDepth2 = 8;
+            }
+            if (bitDepth2!=bitDepth) {
+                if (bitDepth==8) {
+                    ip = ip.convertToByte(true);
+                    bitDepth2 = 8;
+                } else if (bitDepth==24) {
+                    ip = ip.convertToRGB();
+                    bitDepth2 = 24;
+                }
+            }
+            if (bitDepth2!=bitDepth)
+                return new Slot(name + ": wrong bit depth; "+bitDepth+" expected, "+bitDepth2+" found");
+            if (scale<100.0)
+                ip = ip.resize((int)(width*scale/100.0), (int)(height*scale/100.0));
+            if (ip.getMin()<slot.min) slot.min = ip.getMin();
+            if (ip.getMax()>slot.max) slot.max = ip.getMax();
+            slot.ips[slice-1] = ip;
+            slot.labels[slice-1] = depth>1 ? ""+slice : label;
+        }
+        return slot;
+    }
+
+    /**
+     * Stack order of the slots: by instance number when every file has a
+     * distinct one, else by slice position when every file has one, else
+     * the file name order
+     */
+    static Integer[] order(final Slot[] slots) {
+        Integer[] order = new Integer[slots.length];
+        boolean instances = true, positions = true;
+        HashSet<Integer> seen = new HashSet<Integer>();
+        for (int i=0; i<slots.length; i++) {
+            order[i] = Integer.valueOf(i);
+            Slot s = slots[i];
+            if (s==null || s.error!=null)
+                continue;
+            if (s.instance==Integer.MIN_VALUE || !seen.add(Integer.valueOf(s.instance)))
+                instances = false;
+            if (Double.isNaN(s.position))
+                positions = false;
+        }
+        if (!instances && !positions)
+            return order;
+        final boolean byInstance = instances;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                Slot sa = slots[a.intValue()], sb = slots[b.intValue()];
+                boolean va = sa!=null && sa.error==null, vb = sb!=null && sb.error==null;
+                if (!va || !vb)
+                    return va==vb ? a.compareTo(b) : (va ? -1 : 1);
+                int c = byInstance ? Integer.compare(sa.instance, sb.instance)
+                    : Double.compare(sa.position, sb.position);
+                return c!=0 ? c : a.compareTo(b);
+            }
+        });
+        return order;
+    }
+
+    /** The converted slices of one file, or why it was skipped */
+    static class Slot {
+        String error;
+        ImageProcessor[] ips;
+        String[] labels;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        double pixelWidth;
+        int instance = Integer.MIN_VALUE;
+        double position = Double.NaN;
+
+        Slot(String error) {
+            this.error = error;
+        }
+    }
+
     boolean showDialog(ImagePlus imp, String[] list) {
         int fileCount = list.length;
         IDSDialog gd = new IDSDialog("Sequence Options", imp, list);
@@ -235,6 +463,7 @@ public class Import_Dicom_Sequence implements PlugIn {
         gd.addNumericField("Scale Images:", scale, 0, 4, "%");
         gd.addCheckbox("Convert to 8-bit Grayscale", convertToGrayscale);
         gd.addCheckbox("Convert_to_RGB", convertToRGB);
+        gd.addCheckbox("Use virtual stack", openAsVirtualStack);
         gd.addMessage("10000 x 10000 x 1000 (100.3MB)");
         gd.showDialog();
         if (gd.wasCanceled())
@@ -250,6 +479,7 @@ public class Import_Dicom_Sequence implements PlugIn {
         filter = gd.getNextString();
         convertToGrayscale = gd.getNextBoolean();
         convertToRGB = gd.getNextBoolean();
+        openAsVirtualStack = gd.getNextBoolean();
         return true;
     }
     
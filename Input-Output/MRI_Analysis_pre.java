@@ -20,6 +20,9 @@ import java.util.*;
  * 
  *    06/05/02 - Diffusion calc is not fully functional, Released as 1.0
  *    06/07/02 - Diffusion calc fixed, basic testing passed
+ *    10/19/26 - The T1, T2 and diffusion dialogs are prefilled with
+ *               the TR, TE or b values of the current stack when it
+ *               came from a scan (ScanValues)
  *
  *
  *
@@ -518,9 +521,11 @@ public class MRI_Analysis_pre implements PlugIn {
 	GenericDialog gd = new GenericDialog(T1_DLG_TITLE);
 	gd.addMessage(T1_FIT_EQ_MSG);
 	gd.addMessage(T1_STACK_SELECT);
-	gd.addChoice(" ", titles, titles[0]);
+	gd.addChoice(" ", titles, ScanValues.currentTitle(titles));
 	gd.addMessage(T1_TR_VAL_MSG);
-	gd.addStringField("   ", T1_TR_DEFAULT_VALUES, 30);
+	// a stack from a scan brings its own values
+	gd.addStringField("   ", ScanValues.prefill(ScanValues.REPETITION_TIME,
+						 T1_TR_DEFAULT_VALUES, T1_ERROR_TITLE), 30);
 	gd.addMessage(T1_ERROR_THRESHOLD);
 	gd.addNumericField("          ", 0.0D, 2);
 	gd.addMessage(T1_CLIP_THRESHOLD);
@@ -584,9 +589,11 @@ public class MRI_Analysis_pre implements PlugIn {
 	GenericDialog gd = new GenericDialog(DIFF_DLG_TITLE);
 	gd.addMessage(DIFF_FIT_EQ_MSG);
 	gd.addMessage(DIFF_STACK_SELECT);
-	gd.addChoice(" ", titles, titles[0]);
+	gd.addChoice(" ", titles, ScanValues.currentTitle(titles));
 	gd.addMessage(DIFF_B_VAL_MSG);
-	gd.addStringField("   ", DIFF_B_DEFAULT_VALUES, 30);
+	// a stack from a scan brings its own values
+	gd.addStringField("   ", ScanValues.prefill(ScanValues.B_VALUE,
+						 DIFF_B_DEFAULT_VALUES, DIFF_ERROR_TITLE), 30);
 	gd.addMessage(DIFF_ERROR_THRESHOLD);
 	gd.addNumericField("          ", 0.0D, 2);
 	gd.addMessage(DIFF_CLIP_THRESHOLD);
@@ -650,9 +657,11 @@ public class MRI_Analysis_pre implements PlugIn {
 	GenericDialog gd = new GenericDialog(T2_DLG_TITLE);
 	gd.addMessage(T2_FIT_EQ_MSG);
 	gd.addMessage(T2_STACK_SELECT);
-	gd.addChoice(" ", titles, titles[0]);
+	gd.addChoice(" ", titles, ScanValues.currentTitle(titles));
 	gd.addMessage(T2_TE_VAL_MSG);
-	gd.addStringField("   ", T2_TE_DEFAULT_VALUES, 30);
+	// a stack from a scan brings its own values
+	gd.addStringField("   ", ScanValues.prefill(ScanValues.ECHO_TIME,
+						 T2_TE_DEFAULT_VALUES, T2_ERROR_TITLE), 30);
 	gd.addMessage(T2_ERROR_THRESHOLD);
 	gd.addNumericField("          ", 0.0000D, 4);
 	gd.addMessage(T2_CLIP_THRESHOLD);
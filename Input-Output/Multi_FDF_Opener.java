@@ -20,14 +20,22 @@
 // Copyright (C) Shanrong Zhang <shanrong.zhang@utsouthwestern.edu>
 // Date: December 23, 2003
 //
+// 10.19.26 - The selected files are opened as one calibrated hyperstack
+//            (slices x echoes x array index) instead of one window per file.
+//            The headers are parsed and the pixels read on a thread pool,
+//            the headers are only logged in debug mode.
+// 10.19.26 - The pixels are decoded by FdfHeader for every storage type and
+//            byte order; the echo and repetition times of the images are kept
+//            for the MRI Analysis fits (ScanValues).
+// 10.19.26 - Stacks of several files have no FileInfo, so Revert no
+//            longer reloads the first file only.
+//
 // ================================================================================
 
 import java.io.*;
 import java.util.*;
-import java.lang.Math.*;
-import java.awt.*;
+import java.util.concurrent.*;
 import javax.swing.*;
-import javax.swing.filechooser.*;
 
 import ij.*; 
 import ij.plugin.*;
@@ -59,137 +67,218 @@ public class Multi_FDF_Opener implements PlugIn {
 			files = new File[1];
 			files[0] = fc.getSelectedFile();
 		}
-		for (int i=0; i<files.length; i++) {
-			String directory = fc.getCurrentDirectory().getPath()+Prefs.getFileSeparator();
-			String name = files[i].getName();
-			if (name == null)
-				return;
-			IJ.showStatus("Opening: " + directory + name);
-			ImagePlus imp = load(directory, name);
-			if (imp != null) {
-				ImageProcessor ip = imp.getProcessor();
-				ip.rotate(0);	// You may modify rotate angle to fit your situation.
-				imp.show();
-			}
+		directory = fc.getCurrentDirectory();
+		IJ.showStatus("Opening " + files.length + " fdf files");
+		long start = System.currentTimeMillis();
+		try {
+			ImagePlus imp = open(files);
+			IJ.showStatus(files.length + " fdf files opened in "
+					+ (System.currentTimeMillis() - start) + " ms");
+			imp.show();
+		} catch (IOException e) {
+			IJ.error("Multi FDF Opener", e.getMessage());
 		}
 	}
-    
+
 	public ImagePlus load(String directory, String name) {
-		FileInfo fi = new FileInfo(); 
-		if ((name == null) || (name == "")) return null;
-		IJ.showStatus("Reading fdf header from " + directory + name);
-		try {fi = readHeader( directory, name );}
-		catch (IOException e) {IJ.write("FileLoader: "+ e.getMessage());}
-		FileOpener fo = new FileOpener(fi);  
- 		ImagePlus imp = fo.open(false);
-		return imp; 
+		if ((name == null) || (name.equals(""))) return null;
+		try {
+			return open(new File[] {new File(directory + name)});
+		} catch (IOException e) {
+			IJ.log("FileLoader: " + e.getMessage());
+			return null;
+		}
 	}
 
-	public FileInfo readHeader(String directory, String fdffile) throws IOException { 
-		FileInfo fi = new FileInfo();
-		File file =  new File( directory + fdffile );
-		FileReader fr = new FileReader ( file );
-		BufferedReader in = new BufferedReader( fr );
-		String line;
-		boolean done = false;
-		int count = 0;
-		String subject = "NA";
-		String spatial_rank = "NA";
-		long xdim = 0;
-		long ydim = 0;
-		long zdim = 1;
-		int rank = 0;
-		long bits = 0;
-		float xspan = 0;
-		float yspan = 0;
-		float zspan = 0;
-		float xsize = 0;
-		float ysize = 0;
-		float zsize = 0;
-		float elementsize = 0;
-		if ( !file.exists() || !file.canRead() ) {
-			IJ.showStatus( "Can't read " + file );
-			return(fi);
-		}
-		if ( file.isDirectory() ) {
-			String [] files = file.list();
-			for (int i=0; i< files.length; i++)
-				IJ.showStatus( files[i] );
-		}
-		else try {
-			IJ.write("Parameters for " + fdffile + " : ");
-			while ( ((line = in.readLine()) != null ) && !done ) {
-				IJ.write( "      FDF header>>> " + line);
-				if ( line.startsWith("char  *spatial_rank") ) {
-					StringTokenizer st = new StringTokenizer(line, " =;,{}\"");
-					st.nextToken();	// 1st token is 'char'
-					st.nextToken();	// 2nd token is '*spatial_rank'
-					spatial_rank = st.nextToken();
-				}
-				if ( line.startsWith("float  matrix") ) {
-					StringTokenizer st = new StringTokenizer(line, " =;,{}");
-					st.nextToken();	// 1st token is 'float'
-					st.nextToken();	// 2nd token is 'matrix'
-					if ( spatial_rank.equals("2dfov") ) {
-						xdim = Long.valueOf(st.nextToken()).longValue();	// 3rd token is xdim
-						ydim = Long.valueOf(st.nextToken()).longValue();	// 4th token is ydim
-					}
-					else if ( spatial_rank.equals("3dfov") ) {
-						xdim = Long.valueOf(st.nextToken()).longValue();	// 3rd token is xdim
-						ydim = Long.valueOf(st.nextToken()).longValue();	// 4th token is ydim
-						zdim = Long.valueOf(st.nextToken()).longValue();	// 5th token is zdim
+	/**
+	 * Opens fdf files as one hyperstack. The files are sorted by array
+	 * index (frames), slice position (slices) and echo (channels); when
+	 * they do not fill a complete grid they are stacked in that order.
+	 * @param files the fdf files, all with the same matrix
+	 * @return the calibrated stack, labelled with the file names
+	 * @throws IOException if a file cannot be read or the matrices differ
+	 */
+	public static ImagePlus open(File[] files) throws IOException {
+		ExecutorService exe = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(Prefs.getThreads(), files.length)));
+		try {
+			// Headers
+			List<Future<FdfHeader>> parsed = new ArrayList<Future<FdfHeader>>();
+			for (final File f : files) {
+				parsed.add(exe.submit(new Callable<FdfHeader>() {
+					public FdfHeader call() throws IOException {
+						return new FdfHeader(f);
 					}
+				}));
+			}
+			final FdfHeader[] headers = new FdfHeader[files.length];
+			for (int i = 0; i < headers.length; i++) {
+				headers[i] = get(parsed.get(i));
+				if (IJ.debugMode) {
+					IJ.log("Parameters for " + files[i].getName() + " : ");
+					for (String line : headers[i].getLines())
+						IJ.log("      FDF header>>> " + line);
 				}
-				if ( line.startsWith("float  span") ) {
-					StringTokenizer st = new StringTokenizer(line, " =;,{}");
-					st.nextToken();	// 1st token is 'float'
-					st.nextToken();	// 2nd token is 'span'
-					if ( spatial_rank.equals("2dfov") ) {
-						xspan = Float.valueOf(st.nextToken()).floatValue();	// 3rd token is xspan
-						yspan = Float.valueOf(st.nextToken()).floatValue();	// 4th token is yspan
-					}
-					else if ( spatial_rank.equals("3dfov") ) {
-			    			xspan = Float.valueOf(st.nextToken()).floatValue();	// 3rd token is xspan
-			    			yspan = Float.valueOf(st.nextToken()).floatValue();	// 4th token is yspan
-			    			zspan = Float.valueOf(st.nextToken()).floatValue();	// 5th token is zspan
-					}
+			}
+			final int width = headers[0].getWidth();
+			final int height = headers[0].getHeight();
+			final int depth = headers[0].getDepth();
+			for (FdfHeader h : headers) {
+				if (h.getWidth() != width || h.getHeight() != height
+						|| h.getDepth() != depth)
+					throw new IOException(h.getFile().getName() + " is "
+							+ h.getWidth() + "x" + h.getHeight() + "x"
+							+ h.getDepth() + ", " + headers[0].getFile().getName()
+							+ " is " + width + "x" + height + "x" + depth);
+			}
+
+			// Order: array index, then slice position, then echo
+			Arrays.sort(headers, new Comparator<FdfHeader>() {
+				public int compare(FdfHeader a, FdfHeader b) {
+					if (a.getArrayIndex() != b.getArrayIndex())
+						return a.getArrayIndex() < b.getArrayIndex() ? -1 : 1;
+					int c = Double.compare(a.getSlicePosition(), b.getSlicePosition());
+					if (c != 0)
+						return c;
+					if (a.getEcho() != b.getEcho())
+						return a.getEcho() < b.getEcho() ? -1 : 1;
+					return a.getFile().getName().compareTo(b.getFile().getName());
+				}
+			});
+			int nFrames = distinct(headers, 0);
+			int nPositions = distinct(headers, 1);
+			int nEchoes = distinct(headers, 2);
+			if (nFrames * nPositions * nEchoes != headers.length) {
+				nFrames = nEchoes = 1;
+				nPositions = headers.length;
+			}
+
+			// Pixels, straight into their place in the stack (channels,
+			// then slices, then frames)
+			final float[][] pixels = new float[headers.length * depth][];
+			final String[] labels = new String[pixels.length];
+			final int nC = nEchoes, nZ = nPositions * depth;
+			List<Future<Void>> reads = new ArrayList<Future<Void>>();
+			for (int i = 0; i < headers.length; i++) {
+				final int first = stackIndex(i, nC, nPositions, depth);
+				final FdfHeader h = headers[i];
+				for (int k = 0; k < depth; k++) {
+					String label = h.getFile().getName();
+					labels[first + k * nC] = depth > 1 ? label + " " + (k + 1) : label;
 				}
-				count = count + 1;
-				if ( count > 32 ) {
-					done = true;
+				reads.add(exe.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						h.readPixels(pixels, first, nC);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : reads)
+				get(f);
+
+			ImageStack stack = new ImageStack(width, height);
+			for (int i = 0; i < pixels.length; i++)
+				stack.addSlice(labels[i], pixels[i]);
+			String title = headers.length == 1 ? headers[0].getFile().getName()
+					: headers[0].getFile().getParentFile().getName();
+			ImagePlus imp = new ImagePlus(title, stack);
+			imp.setDimensions(nEchoes, nPositions * depth, nFrames);
+			if (nEchoes > 1 || nFrames > 1)
+				imp.setOpenAsHyperStack(true);
+
+			double[] size = headers[0].getVoxelSize();
+			Calibration cal = imp.getCalibration();
+			cal.setUnit("mm");
+			cal.pixelWidth = size[0];
+			cal.pixelHeight = size[1];
+			cal.pixelDepth = size[2];
+			if (depth == 1 && nPositions > 1) {
+				// Slice spacing from the locations (cm)
+				double spacing = Math.abs(headers[nEchoes].getSlicePosition()
+						- headers[0].getSlicePosition());
+				if (spacing > 0 && headers[0].getDoubles("location") != null)
+					cal.pixelDepth = 10 * spacing;
+			}
+			// Revert reloads from the FileInfo, which only describes one file
+			if (headers.length == 1)
+				imp.setFileInfo(headers[0].toFileInfo());
+
+			// TE and TR of every image (s), for fits without retyping them
+			double[][] times = new double[2][pixels.length];
+			for (int i = 0; i < headers.length; i++) {
+				int first = stackIndex(i, nC, nPositions, depth);
+				for (int k = 0; k < depth; k++) {
+					times[0][first + k * nC] = headers[i].getEchoTime() / 1000;
+					times[1][first + k * nC] = headers[i].getRepetitionTime() / 1000;
 				}
 			}
+			for (int k = 0; k < times.length; k++) {
+				if (!Double.isNaN(times[k][0]))
+					imp.setProperty(ScanValues.PROPERTIES[k], times[k]);
+			}
+			StringBuilder info = new StringBuilder();
+			for (String line : headers[0].getLines())
+				info.append(line).append('\n');
+			imp.setProperty("Info", info.toString());
+			return imp;
+		} finally {
+			exe.shutdownNow();
+		}
+	}
+
+	/**
+	 * @param file index of the file in the sorted order
+	 * @param nC number of channels (echoes)
+	 * @param nPositions number of slice positions
+	 * @param depth number of slices in each file
+	 * @return stack index of the file's first plane, its next planes are
+	 * nC apart
+	 */
+	private static int stackIndex(int file, int nC, int nPositions, int depth) {
+		int c = file % nC;
+		int z = (file / nC) % nPositions * depth;
+		int t = file / (nC * nPositions);
+		return c + nC * z + nC * nPositions * depth * t;
+	}
+
+	/**
+	 * @param headers headers in the sorted order
+	 * @param key 0 = array index, 1 = slice position, 2 = echo
+	 * @return the number of distinct values of the key
+	 */
+	private static int distinct(FdfHeader[] headers, int key) {
+		Set<Double> seen = new HashSet<Double>();
+		for (FdfHeader h : headers) {
+			seen.add(key == 0 ? h.getArrayIndex()
+					: key == 1 ? h.getSlicePosition() : (double) h.getEcho());
 		}
-		catch ( FileNotFoundException e ) {
-			IJ.showStatus( "File Disappeared" );
+		return seen.size();
+	}
+
+	/**
+	 * Waits for a task, with its I/O error as the exception
+	 */
+	private static <T> T get(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while opening fdf files");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException(cause.toString());
+		}
+	}
+
+	public FileInfo readHeader(String directory, String fdffile) throws IOException { 
+		FdfHeader h = new FdfHeader(new File(directory + fdffile));
+		if (IJ.debugMode) {
+			IJ.log("Parameters for " + fdffile + " : ");
+			for (String line : h.getLines())
+				IJ.log("      FDF header>>> " + line);
 		}
-		xsize = 10 * xspan / xdim;
-		ysize = 10 * yspan / ydim;
-		zsize = 10 * zspan / zdim;
-		IJ.write("      xdim:  " + xdim);
-		IJ.write("      ydim:  " + ydim);
-		IJ.write("      zdim:  " + zdim);
-		IJ.write("      xspan: " + xspan);
-		IJ.write("      yspan: " + yspan);
-		IJ.write("      zspan: " + zspan);
-		IJ.write("      xsize: " + xsize);
-		IJ.write("      ysize: " + ysize);
-		IJ.write("      zsize: " + zsize);
-		fi.fileName = fdffile;
-		fi.directory = directory;
-		fi.fileFormat = fi.RAW;
-		fi.width = (int)xdim;
-		fi.height = (int)ydim;
-		fi.nImages = (int)zdim;
-		fi.pixelWidth = xsize;
-		fi.pixelHeight = ysize;
-		fi.pixelDepth = zsize;
-		fi.intelByteOrder = false;
-		fi.fileType = FileInfo.GRAY32_FLOAT; 
-		fi.unit = "mm";
-		fi.offset = (int)(file.length() - xdim*ydim*zdim*4); 
-		IJ.write("      fi.offset = " + fi.offset);
-		IJ.write("");
-		return (fi);
+		return h.toFileInfo();
 	}
 }
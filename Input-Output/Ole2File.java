@@ -0,0 +1,286 @@
+//
+// Ole2File.java
+//
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Directory of an OLE2 compound document (the container of Zeiss ZVI files).
+ * The header, FAT, mini FAT and directory are read once, and every stream is
+ * resolved to the chain of sectors that holds it, so the readers can read any
+ * part of any stream with positional reads instead of scanning the file.
+ *
+ * Reads take the FileChannel to read from, so they can be shared by several
+ * threads, and a virtual stack can open the file only while it reads.
+ */
+public class Ole2File {
+
+  // -- Constants --
+
+  /** First bytes of every compound document. */
+  public static final byte[] SIGNATURE = {
+    -48, -49, 17, -32, -95, -79, 26, -31
+  };
+
+  private static final int ENDOFCHAIN = -2;
+  private static final int FREESECT = -1;
+  private static final int HEADER_DIFAT = 109;
+  private static final int DIR_ENTRY_SIZE = 128;
+  private static final int MINI_SECTOR_SIZE = 64;
+
+  private static final int STORAGE = 1;
+  private static final int STREAM = 2;
+  private static final int ROOT = 5;
+
+  // -- Fields --
+
+  private File file;
+  private int sectorSize;
+  private long miniCutoff;
+
+  /** Streams by path, i.e. "Image/Item(0)/Contents", in directory order. */
+  private Map<String, Stream> streams = new LinkedHashMap<String, Stream>();
+
+  /** The stream in which the small streams are stored. */
+  private Stream miniStream;
+
+  // -- Constructor --
+
+  /** Reads the FAT and directory of the given file. */
+  public Ole2File(File file) throws IOException {
+    this.file = file;
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      FileChannel ch = in.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(ch, header, 0);
+      for (int i=0; i<SIGNATURE.length; i++) {
+        if (header.get(i) != SIGNATURE[i]) {
+          throw new IOException(file.getName() + " is not an OLE2 file");
+        }
+      }
+      int version = header.getShort(0x1A) & 0xffff;
+      sectorSize = 1 << header.getShort(0x1E);
+      int numFat = header.getInt(0x2C);
+      int firstDir = header.getInt(0x30);
+      miniCutoff = header.getInt(0x38) & 0xffffffffL;
+      int firstMiniFat = header.getInt(0x3C);
+      int firstDifat = header.getInt(0x44);
+
+      // the FAT sectors are listed in the header, then in the DIFAT chain
+      int[] fatSectors = new int[numFat];
+      int n = 0;
+      for (int i=0; i<HEADER_DIFAT && n<numFat; i++) {
+        fatSectors[n++] = header.getInt(0x4C + 4 * i);
+      }
+      int perSector = sectorSize / 4;
+      for (int s=firstDifat; n<numFat && s>=0; ) {
+        int[] difat = readInts(ch, s);
+        for (int i=0; i<perSector-1 && n<numFat; i++) {
+          fatSectors[n++] = difat[i];
+        }
+        s = difat[perSector - 1];
+      }
+      int[] fat = new int[numFat * perSector];
+      for (int i=0; i<numFat; i++) {
+        System.arraycopy(readInts(ch, fatSectors[i]), 0, fat, i * perSector, perSector);
+      }
+
+      // the mini FAT is an ordinary stream of sector numbers
+      int[] miniChain = chain(fat, firstMiniFat);
+      int[] miniFat = new int[miniChain.length * perSector];
+      for (int i=0; i<miniChain.length; i++) {
+        System.arraycopy(readInts(ch, miniChain[i]), 0, miniFat, i * perSector, perSector);
+      }
+
+      // the directory
+      int[] dirChain = chain(fat, firstDir);
+      ByteBuffer dir = ByteBuffer.allocate(dirChain.length * sectorSize).order(ByteOrder.LITTLE_ENDIAN);
+      for (int i=0; i<dirChain.length; i++) {
+        dir.limit((i + 1) * sectorSize);
+        dir.position(i * sectorSize);
+        readFully(ch, dir, sectorOffset(dirChain[i]));
+      }
+      dir.clear();
+      int numEntries = dirChain.length * sectorSize / DIR_ENTRY_SIZE;
+      if (numEntries == 0 || dir.get(0x42) != ROOT) {
+        throw new IOException(file.getName() + ": no root entry");
+      }
+      // sizes are 64-bit in version 4, the high half is undefined in 3
+      long rootSize = dir.getLong(0x78);
+      if (version < 4) rootSize &= 0xffffffffL;
+      miniStream = new Stream(chain(fat, dir.getInt(0x74)), rootSize, false);
+
+      // walk the tree of siblings and children from the root
+      boolean[] seen = new boolean[numEntries];
+      addEntries(dir, dir.getInt(0x4C), "", version, fat, miniFat, seen);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  // -- Ole2File API methods --
+
+  /** Returns true if the file starts with the OLE2 signature. */
+  public static boolean isOle2(File file) throws IOException {
+    byte[] sig = new byte[SIGNATURE.length];
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      if (in.length() < sig.length) return false;
+      in.readFully(sig);
+    }
+    finally {
+      in.close();
+    }
+    return Arrays.equals(sig, SIGNATURE);
+  }
+
+  /** The file this is the directory of. */
+  public File getFile() { return file; }
+
+  /** Paths of all streams, i.e. "Image/Item(0)/Contents". */
+  public List<String> getStreams() { return new ArrayList<String>(streams.keySet()); }
+
+  /** Size of the given stream in bytes, or -1 if there is no such stream. */
+  public long getSize(String path) {
+    Stream s = streams.get(path);
+    return s == null ? -1 : s.size;
+  }
+
+  /**
+   * Reads len bytes from position pos of the given stream. Runs of
+   * consecutive sectors are read with one call.
+   */
+  public void read(FileChannel ch, String path, long pos, byte[] b, int off,
+    int len) throws IOException
+  {
+    Stream s = streams.get(path);
+    if (s == null) throw new FileNotFoundException(path);
+    if (pos < 0 || pos + len > s.size) {
+      throw new EOFException(path + ": " + len + " bytes at " + pos +
+        " is past the end of the stream (" + s.size + " bytes)");
+    }
+    read(ch, s, pos, b, off, len);
+  }
+
+  // -- Helper methods --
+
+  private void read(FileChannel ch, Stream s, long pos, byte[] b, int off,
+    int len) throws IOException
+  {
+    int size = s.mini ? MINI_SECTOR_SIZE : sectorSize;
+    while (len > 0) {
+      int index = (int) (pos / size);
+      int within = (int) (pos % size);
+      int first = s.sectors[index];
+      int count = 1;
+      while (index + count < s.sectors.length &&
+        s.sectors[index + count] == first + count &&
+        (long) count * size - within < len)
+      {
+        count++;
+      }
+      int n = (int) Math.min(len, (long) count * size - within);
+      if (s.mini) {
+        read(ch, miniStream, (long) first * MINI_SECTOR_SIZE + within, b, off, n);
+      }
+      else {
+        readFully(ch, ByteBuffer.wrap(b, off, n), sectorOffset(first) + within);
+      }
+      pos += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  private void addEntries(ByteBuffer dir, int id, String parent, int version,
+    int[] fat, int[] miniFat, boolean[] seen) throws IOException
+  {
+    // siblings are a binary tree; use a list instead of recursing on them
+    LinkedList<Integer> todo = new LinkedList<Integer>();
+    todo.add(Integer.valueOf(id));
+    while (!todo.isEmpty()) {
+      int e = todo.removeFirst().intValue();
+      if (e < 0 || e >= seen.length || seen[e]) continue;
+      seen[e] = true;
+      int base = e * DIR_ENTRY_SIZE;
+      int nameLength = Math.min(dir.getShort(base + 0x40) & 0xffff, 64);
+      char[] name = new char[Math.max(0, nameLength / 2 - 1)];
+      for (int i=0; i<name.length; i++) name[i] = dir.getChar(base + 2 * i);
+      String path = parent + new String(name);
+      int type = dir.get(base + 0x42);
+      todo.add(Integer.valueOf(dir.getInt(base + 0x44)));
+      todo.add(Integer.valueOf(dir.getInt(base + 0x48)));
+      if (type == STORAGE) {
+        addEntries(dir, dir.getInt(base + 0x4C), path + "/", version, fat,
+          miniFat, seen);
+      }
+      else if (type == STREAM) {
+        long size = dir.getLong(base + 0x78);
+        if (version < 4) size &= 0xffffffffL;
+        int start = dir.getInt(base + 0x74);
+        boolean mini = size < miniCutoff;
+        streams.put(path, new Stream(chain(mini ? miniFat : fat, start), size, mini));
+      }
+    }
+  }
+
+  /** Follows a chain of sectors from the given first sector. */
+  private static int[] chain(int[] fat, int first) throws IOException {
+    int[] sectors = new int[16];
+    int n = 0;
+    for (int s=first; s != ENDOFCHAIN && s != FREESECT; s = fat[s]) {
+      if (s < 0 || s >= fat.length || n > fat.length) {
+        throw new IOException("Corrupt sector chain at sector " + s);
+      }
+      if (n == sectors.length) sectors = Arrays.copyOf(sectors, 2 * n);
+      sectors[n++] = s;
+    }
+    return Arrays.copyOf(sectors, n);
+  }
+
+  private long sectorOffset(int sector) {
+    // sector 0 follows the header, which takes a whole sector
+    return (long) (sector + 1) * sectorSize;
+  }
+
+  private int[] readInts(FileChannel ch, int sector) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(sectorSize).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(ch, buf, sectorOffset(sector));
+    buf.flip();
+    int[] ints = new int[sectorSize / 4];
+    buf.asIntBuffer().get(ints);
+    return ints;
+  }
+
+  private static void readFully(FileChannel ch, ByteBuffer buf, long pos)
+    throws IOException
+  {
+    long start = pos - buf.position();
+    while (buf.hasRemaining()) {
+      if (ch.read(buf, start + buf.position()) < 0) {
+        throw new EOFException("Unexpected end of file at " + (start + buf.position()));
+      }
+    }
+  }
+
+  // -- Helper classes --
+
+  /** The sectors of a stream, in order. */
+  private static class Stream {
+    private int[] sectors;
+    private long size;
+    private boolean mini;
+
+    Stream(int[] sectors, long size, boolean mini) {
+      this.sectors = sectors;
+      this.size = size;
+      this.mini = mini;
+    }
+  }
+
+}
@@ -0,0 +1,114 @@
+// ===============================================================================
+//
+// ScanValues.java
+//
+// Acquisition values (echo times, repetition times, b-values) of the images of
+// a stack, for the T1, T2 and diffusion dialogs of the MRI Analysis plugins.
+// Readers attach one value per image as an ImagePlus property (PROPERTIES),
+// i.e. Multi_FDF_Opener. For Bruker 2dseq stacks the values are read from the
+// scan's method file by ScanTiming, when the Bruker plugins are installed; it
+// is looked up by name so the Input-Output plugins compile without them.
+//
+// Updates:
+// 10.19.26 - Created, shared by the MRI_Analysis plugins
+//
+// ================================================================================
+
+import java.lang.reflect.*;
+
+import ij.*;
+
+public class ScanValues {
+
+	// Kinds of values, the same as in ScanTiming
+	public static final int ECHO_TIME = 0;
+	public static final int REPETITION_TIME = 1;
+	public static final int B_VALUE = 2;
+
+	// ImagePlus properties with one value per image (s, s, s/mm^2)
+	public static final String[] PROPERTIES = {"EchoTimes",
+		"RepetitionTimes", "BValues"};
+	private static final String[] NAMES = {"TE", "TR", "b"};
+
+	/**
+	 * @param imp an image stack
+	 * @param kind ECHO_TIME, REPETITION_TIME or B_VALUE
+	 * @return one value per image, or null if the stack has none
+	 * @throws Exception if the values cannot be read or do not match the
+	 * number of images
+	 */
+	public static double[] values(ImagePlus imp, int kind) throws Exception {
+		Object attached = imp.getProperty(PROPERTIES[kind]);
+		if (attached instanceof double[]) {
+			double[] v = (double[]) attached;
+			if (v.length != imp.getStackSize())
+				throw new IllegalArgumentException(v.length + " " + NAMES[kind]
+						+ " values for " + imp.getStackSize() + " images");
+			return v.clone();
+		}
+		Method m;
+		try {
+			Class<?> timing = IJ.getClassLoader().loadClass("ScanTiming");
+			m = timing.getMethod("values", ImagePlus.class, int.class);
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+		try {
+			return (double[]) m.invoke(null, imp, Integer.valueOf(kind));
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			throw e;
+		}
+	}
+
+	/**
+	 * Values to prefill a dialog with: those of the current image when it
+	 * has them, else the typed defaults. A stack whose values cannot be
+	 * used is reported.
+	 * @param kind ECHO_TIME, REPETITION_TIME or B_VALUE
+	 * @param typed the default values of the dialog
+	 * @param title title of the error message
+	 * @return the values, separated by spaces
+	 */
+	public static String prefill(int kind, String typed, String title) {
+		ImagePlus imp = WindowManager.getCurrentImage();
+		if (imp == null)
+			return typed;
+		try {
+			double[] v = values(imp, kind);
+			return v == null ? typed : toString(v);
+		} catch (Exception e) {
+			IJ.showMessage(title, imp.getTitle() + ": " + e.getMessage());
+			return typed;
+		}
+	}
+
+	/**
+	 * @param titles titles of the open images
+	 * @return the title of the current image, the stack the prefilled
+	 * values are from, else the first title
+	 */
+	public static String currentTitle(String[] titles) {
+		ImagePlus imp = WindowManager.getCurrentImage();
+		for (int i = 0; imp != null && i < titles.length; i++) {
+			if (imp.getTitle().equals(titles[i]))
+				return titles[i];
+		}
+		return titles[0];
+	}
+
+	/**
+	 * @param v values
+	 * @return the values separated by spaces, as typed in the dialogs
+	 */
+	public static String toString(double[] v) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < v.length; i++)
+			sb.append(i > 0 ? " " : "").append((float) v[i]);
+		return sb.toString();
+	}
+}
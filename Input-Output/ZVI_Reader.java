@@ -5,8 +5,11 @@
 import ij.*;
 import ij.io.*;
 import ij.plugin.*;
+import ij.gui.*;
 import java.io.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 import ij.process.*;
 
 /**
@@ -21,24 +24,24 @@ import ij.process.*;
  * - improved decoding strategy, more robust against zvi file structure diversity.
  * - new approach to compute the number of channels.
  * - new image stack construction from file image slices.
+ *
+ * 10.19.26
+ * - the planes are found from the OLE2 directory (Image/Item(n)/Contents
+ *   streams, see Ole2File) instead of scanning the whole file for the
+ *   header bytes, and are read through the sectors of their stream.
+ * - planes are decoded in parallel and opened as one (c, z, t) hyperstack,
+ *   or as a virtual stack that reads them when they are displayed.
+ * - 48-bit RGB planes are opened as three 16-bit channels, as ImageJ opens
+ *   RGB48 files, instead of being cut down to 24-bit RGB.
  */
 
 public class ZVI_Reader implements PlugIn {
     boolean littleEndian = true;
-    private int theC, theZ, numC;
-//+ (mb)    
-    //+ new code
-    private Set C_Set = new HashSet(); // to hold C channel index collection
-//- (mb)    
-    private ImageProcessor ip1;
+    private int numZ, numC, numT;
     String fileName ;
+    private static boolean openAsVirtualStack;
   // -- Constants --
 
-  /** First few bytes of every ZVI file. */
-  private static final byte[] ZVI_SIG = {
-    -48, -49, 17, -32, -95, -79, 26, -31
-  };
-
   /** Block identifying start of useful header information. */
   private static final byte[] ZVI_MAGIC_BLOCK_1 = { // 41 00 10
     65, 0, 16
@@ -54,8 +57,8 @@ public class ZVI_Reader implements PlugIn {
     32, 0, 16
   };
 
-  /** Memory buffer size in bytes, for reading from disk. */
-  private static final int BUFFER_SIZE = 8192;
+  /** Bytes at the start of a plane's stream searched for its header. */
+  private static final int HEADER_SIZE = 65536;
 
   /** Debugging flag. */
   private static final boolean DEBUG = false;
@@ -69,94 +72,75 @@ public class ZVI_Reader implements PlugIn {
     String fileName = od.getFileName();
     if (fileName == null) return;
 
+    this.fileName = fileName;
+
     IJ.showStatus("Opening: " + directory + fileName);
-    FileInfo[] fi = null;
-    try { fi = getHeaderInfo(directory, fileName); }
+    File file = new File(directory, fileName);
+    Ole2File ole = null;
+    ZVIBlock[] blocks = null;
+    try {
+      if (!Ole2File.isOle2(file)) {
+        IJ.showMessage("ZVI Reader", fileName + " is not a ZVI file.");
+        return;
+      }
+      ole = new Ole2File(file);
+      blocks = getHeaderInfo(ole);
+    }
     catch (Exception e) {
       IJ.showStatus("");
       IJ.showMessage("ZVI Reader", "" + e);
       return;
     }
-    if (fi == null) {
+    if (blocks == null) {
       IJ.showStatus("");
       IJ.showMessage("ZVI Reader", "Could not find header information.");
       return;
     }
 
-    Opener opener = new Opener();
-    ImagePlus imp = opener.openTiffStack(fi); // is there a cleaner way?
-    if (imp == null) {
-      IJ.showStatus("");
-      IJ.showMessage("ZVI Reader", "Could not extract pixel data.");
-      return;
+    if (blocks.length > 1) {
+      GenericDialog gd = new GenericDialog("ZVI Reader");
+      gd.addMessage(blocks[0].width + " x " + blocks[0].height + ", " +
+        numC + " channels, " + numZ + " slices, " + numT + " frames");
+      gd.addCheckbox("Use virtual stack", openAsVirtualStack);
+      gd.showDialog();
+      if (gd.wasCanceled()) return;
+      openAsVirtualStack = gd.getNextBoolean();
     }
-    //setStack(fileName, imp.getStack());
-
-    // addition by TjC
-    ImageStack istk = imp.getStack();
-
-    int nSlice = istk .getSize();
-    int sWidth = istk.getWidth();
-    int sHeight = istk.getHeight();
-    String stackName="";
-//+ (mb) new image stack construction.
-    //- original code removed
-    //- int sliceOffset = 1;   
-    //- int sliceNumberPerChannel = nSlice/numC;
-    //- 
-    //- //IJ.showMessage("nSlice = " +nSlice  );
-    //- //IJ.showMessage("nSlice/ch = " +sliceNumberPerChannel);
-    //- 
-    //- for (int i=1; i<=numC; i++)
-    //-     {stackName= fileName + "  Ch"+i;
-    //-     ImageStack img = new ImageStack (sWidth,sHeight);
-    //-     for(int j=0; j<sliceNumberPerChannel; j++)
-    //-     	{
-    //-     	//IJ.showMessage("j = " +j);
-    //-     	int theC = getChannel(fi[j*numC+i-1]);
-    //-     	IJ.showMessage("theC = "+ theC);
-    //-     	
-    //-     	ip1 = istk.getProcessor(j*numC+i);
-    //-     	img.addSlice(stackName, ip1);
-    //-     	}
-    //-     new ImagePlus(stackName, img).show();
-    //-     }
-    //-
-    //+ new code
-    // make ImageStack for each channel.
-    Hashtable img = new Hashtable();
-    Iterator it = C_Set.iterator();
-    while (it.hasNext()) {
-        Object theC = it.next();
-        img.put(theC, new ImageStack (sWidth,sHeight));
+
+    ImageStack stack;
+    if (openAsVirtualStack) {
+      stack = new ZVIVirtualStack(this, ole, blocks);
     }
-    // iteratate thru all image slices and
-    // add slice to corresponding channel ImageStack.
-    for (int n=0; n< nSlice; n++) {
-		int theC = getChannel(fi[n]);
-		ip1 = istk.getProcessor(n+1);
-		((ImageStack)img.get(new Integer(theC))).addSlice(null, ip1);
+    else {
+      try { stack = readPlanes(ole, blocks); }
+      catch (IOException e) {
+        IJ.showStatus("");
+        IJ.showMessage("ZVI Reader", "Could not extract pixel data.\n \n" + e);
+        return;
+      }
     }
-    // name image stacks and show them.
-    it = C_Set.iterator();
-    while (it.hasNext()) {
-        Object theC = it.next();
-    	stackName = fileName + "  Ch"+ theC;
-        new ImagePlus(stackName, ((ImageStack)img.get(theC))).show();
+    IJ.showStatus("");
+
+    ImagePlus imp = new ImagePlus(fileName, stack);
+    int rgb48 = channelsPerPlane(blocks[0]);
+    boolean full = numC * numZ * numT == blocks.length;
+    int c = full ? numC : 1, z = full ? numZ : blocks.length, t = full ? numT : 1;
+    imp.setDimensions(rgb48 * c, z, t);
+    if (rgb48 * c > 1 && imp.getBitDepth() != 24) {
+      imp = new CompositeImage(imp, c == 1 ? CompositeImage.COMPOSITE : CompositeImage.COLOR);
     }
-//- (mb)
-    
-//if (arg.equals("")) show();
-
-}
+    else if (full) imp.setOpenAsHyperStack(true);
+    imp.show();
+  }
 
 
   // -- Helper methods --
 
-  /** Reads header information from the given file. */
-  private FileInfo[] getHeaderInfo(String directory, String fileName)
-    throws IOException
-  {
+  /**
+   * Reads the header of every plane. The planes are returned in item order,
+   * and in (c, z, t) stack order when their indexes make a full hyperstack.
+   */
+  private ZVIBlock[] getHeaderInfo(Ole2File ole) throws IOException {
     // Highly questionable decoding strategy:
     //
     // Note that all byte ordering is little endian, including 4-byte header
@@ -195,80 +179,143 @@ public class ZVI_Reader implements PlugIn {
     // 5) Read image data (width * height * bytesPerPixel)
     //
     // 6) Repeat the entire process until no more headers are identified.
+    //
+    // Each plane is the Contents stream of an Image/Item(n) storage, so
+    // the search is done at the start of those streams only, and the
+    // position of the pixels is a position in the stream.
+
+    List<String> items = new ArrayList<String>();
+    for (String path : ole.getStreams()) {
+      if (path.startsWith("Image/Item(") && path.endsWith(")/Contents")) {
+        items.add(path);
+      }
+    }
+    // Item(10) comes after Item(9)
+    Collections.sort(items, new Comparator<String>() {
+      public int compare(String a, String b) {
+        return itemNumber(a) - itemNumber(b);
+      }
+    });
+
+    Set<Integer> Z_Set = new TreeSet<Integer>(); // to hold Z plan index collection.
+    Set<Integer> C_Set = new TreeSet<Integer>(); // to hold C channel index collection
+    Set<Integer> T_Set = new TreeSet<Integer>(); // to hold T time index collection.
+    Vector<ZVIBlock> blockList = new Vector<ZVIBlock>();
+    RandomAccessFile in = new RandomAccessFile(ole.getFile(), "r");
+    try {
+      FileChannel ch = in.getChannel();
+      for (int i=0; i<items.size(); i++) {
+        String path = items.get(i);
+        long size = ole.getSize(path);
+        byte[] b = new byte[(int) Math.min(size, HEADER_SIZE)];
+        ole.read(ch, path, 0, b, 0, b.length);
+        ZVIBlock zviBlock = findHeader(b, path);
+        if (zviBlock == null) continue;
+        if (zviBlock.imagePos + zviBlock.imageSize > size) {
+          if (DEBUG) System.err.println(path + ": plane is larger than stream");
+          continue;
+        }
+        if (DEBUG) System.out.println(zviBlock);
+        // populate Z, C and T index collections
+        Z_Set.add(Integer.valueOf(zviBlock.theZ));
+        C_Set.add(Integer.valueOf(zviBlock.theC));
+        T_Set.add(Integer.valueOf(zviBlock.theT));
+        // save this image block's position
+        blockList.add(zviBlock);
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    if (blockList.isEmpty()) return null;
 
-    RandomAccessFile in = new RandomAccessFile(directory + fileName, "r");
-    byte[] sig = new byte[ZVI_SIG.length];
-    in.readFully(sig);
-    for (int i=0; i<sig.length; i++) {
-      if (sig[i] != ZVI_SIG[i]) return null;
+    // number of Z, C and T index
+    numZ = Z_Set.size();
+    numC = C_Set.size();
+    numT = T_Set.size();
+
+    ZVIBlock first = blockList.elementAt(0);
+    for (int i=0; i<blockList.size(); i++) {
+      ZVIBlock zviBlock = blockList.elementAt(i);
+      if (zviBlock.width != first.width || zviBlock.height != first.height ||
+        zviBlock.fileType() != first.fileType())
+      {
+        throw new IOException("Image plane #" + (i + 1) +
+          " differs in size or type from the first one");
+      }
+    }
+    if (getFileType(first) < 0) {
+      IJ.showMessage("ZVI Reader", "Warning: unknown file type, opening as 8-bit");
+    }
+
+    ZVIBlock[] blocks = new ZVIBlock[blockList.size()];
+    if (numZ * numC * numT != blocks.length) {
+      IJ.showMessage("ZVI Reader", "Warning: image counts do not match.");
+      blockList.copyInto(blocks);
+      return blocks;
     }
-//+ (mb)    
-    //+ new code
-    Set Z_Set = new HashSet(); // to hold Z plan index collection.
-    Set T_Set = new HashSet(); // to hold T time index collection.
-//- (mb)    
-    long pos = 0;
-    Vector blockList = new Vector();
-    int numZ = 0, numT = 0;
-	numC=0;
+    // put each plane at its (c, z, t) place
+    List<Integer> zs = new ArrayList<Integer>(Z_Set);
+    List<Integer> cs = new ArrayList<Integer>(C_Set);
+    List<Integer> ts = new ArrayList<Integer>(T_Set);
+    for (int i=0; i<blockList.size(); i++) {
+      ZVIBlock zviBlock = blockList.elementAt(i);
+      int index = cs.indexOf(Integer.valueOf(zviBlock.theC)) +
+        numC * (zs.indexOf(Integer.valueOf(zviBlock.theZ)) +
+        numZ * ts.indexOf(Integer.valueOf(zviBlock.theT)));
+      if (blocks[index] != null) {
+        IJ.showMessage("ZVI Reader", "Warning: planes with the same indexes.");
+        blockList.copyInto(blocks);
+        numC = numZ = 1;
+        numT = blocks.length;
+        return blocks;
+      }
+      blocks[index] = zviBlock;
+    }
+    return blocks;
+  }
+
+  private static int itemNumber(String path) {
+    int start = path.indexOf('(') + 1;
+    try { return Integer.parseInt(path.substring(start, path.indexOf(')', start))); }
+    catch (NumberFormatException e) { return Integer.MAX_VALUE; }
+  }
+
+  /**
+   * Looks for an image header at the start of a plane's stream, and returns
+   * it with the position of the pixels in the stream, or null.
+   */
+  private ZVIBlock findHeader(byte[] b, String path) {
+    int pos = 0;
     while (true) {
       // search for start of next image header
-      long header = findBlock(in, ZVI_MAGIC_BLOCK_1, pos);
-
+      int header = indexOf(b, ZVI_MAGIC_BLOCK_1, pos);
       if (header < 0) {
         // no more potential headers found; we're done
-        break;
+        return null;
       }
       pos = header + ZVI_MAGIC_BLOCK_1.length;
 
       if (DEBUG) System.err.println("Found potential image block: " + header);
 
-      // these bytes don't matter
-      in.skipBytes(19);
-      pos += 19;
-
-      // these bytes should match ZVI_MAGIC_BLOCK_2
-      byte[] b = new byte[ZVI_MAGIC_BLOCK_2.length];
-      in.readFully(b);
-      boolean ok = true;
-      for (int i=0; i<b.length; i++) {
-        if (b[i] != ZVI_MAGIC_BLOCK_2[i]) {
-          ok = false;
-          break;
-        }
-        pos++;
-      }
-      if (!ok) continue;
-
-      // these bytes should be 00
-      b = new byte[11];
-      in.readFully(b);
-      for (int i=0; i<b.length; i++) {
-        if (b[i] != 0) {
-          ok = false;
-          break;
-        }
-        pos++;
-      }
-      if (!ok) continue;
+      // these bytes don't matter, then ZVI_MAGIC_BLOCK_2 and 11 bytes of 00
+      int p = pos + 19;
+      if (!matches(b, p, ZVI_MAGIC_BLOCK_2)) continue;
+      p += ZVI_MAGIC_BLOCK_2.length;
+      if (!zeros(b, p, 11)) continue;
+      p += 11;
 
       // read potential header information
-      int theZ = readInt(in);
-      int theC = readInt(in);
-      int theT = readInt(in);
-      pos += 12;
+      if (p + 12 > b.length) return null;
+      int theZ = getInt(b, p);
+      int theC = getInt(b, p + 4);
+      int theT = getInt(b, p + 8);
+      p += 12;
 
       // these bytes should be 00
-      b = new byte[108];
-      in.readFully(b);
-      for (int i=0; i<b.length; i++) {
-        if (b[i] != 0) {
-          ok = false;
-          break;
-        }
-        pos++;
-      }
-      if (!ok) continue;
+      if (!zeros(b, p, 108)) continue;
+      p += 108;
       // everything checks out; looks like an image header to me
 
 //+ (mb) decoding strategy modification
@@ -295,198 +342,163 @@ public class ZVI_Reader implements PlugIn {
       //        New decoding strategy looks for the last header information
       //        ZVI_MAGIC_BLOCK_2 / ZVI_MAGIC_BLOCK_3 to get proper image
       //        slice theZ, theC and theT values.
-
-      //- original code removed
-      //- long magic3 = findBlock(in, ZVI_MAGIC_BLOCK_3, pos);
-      //- if (magic3 < 0) return null;
-      //- pos = magic3 + ZVI_MAGIC_BLOCK_3.length;
-      //- 
-      //-
-      //+ new code
       // these bytes don't matter
-      in.skipBytes(89);
-      pos += 89;
-
-      byte[] magic3 = new byte[ZVI_MAGIC_BLOCK_3.length];
-      in.readFully(magic3);
-      for (int i=0; i<magic3.length; i++) {
-        if (magic3[i] != ZVI_MAGIC_BLOCK_3[i]) {
-          ok = false;
-          break;
-        }
-      }
-      if (!ok) continue;
-      pos += ZVI_MAGIC_BLOCK_3.length;
-//- (mb)
+      p += 89;
+      if (!matches(b, p, ZVI_MAGIC_BLOCK_3)) continue;
+      p += ZVI_MAGIC_BLOCK_3.length;
 
       // read more header information
-      int w = readInt(in);
-      int h = readInt(in);
-      int alwaysOne = readInt(in); // don't know what this is for
-      int bytesPerPixel = readInt(in);
-      int pixelType = readInt(in); // not clear what this value signifies
-      int bitDepth = readInt(in); // doesn't always equal bytesPerPixel * 8
-      pos += 24;
+      if (p + 24 > b.length) return null;
+      int w = getInt(b, p);
+      int h = getInt(b, p + 4);
+      int alwaysOne = getInt(b, p + 8); // don't know what this is for
+      int bytesPerPixel = getInt(b, p + 12);
+      int pixelType = getInt(b, p + 16); // not clear what this value signifies
+      int bitDepth = getInt(b, p + 20); // doesn't always equal bytesPerPixel * 8
+      p += 24;
 
       ZVIBlock zviBlock = new ZVIBlock(theZ, theC, theT,
-        w, h, alwaysOne, bytesPerPixel, pixelType, bitDepth, pos);
-      if (DEBUG) System.out.println(zviBlock);
-//+ (mb)
-      //- original code removed
-      //- // perform some checks on the header info
-      //- if (theZ >= numZ) numZ = theZ + 1;
-      //- if (theC >= numC) numC = theC + 1;
-      //- if (theT >= numT) numT = theT + 1;
-      //+ new code 
-      // populate Z, C and T index collections
-      Z_Set.add(new Integer(theZ));    
-      C_Set.add(new Integer(theC));    
-      T_Set.add(new Integer(theT));    
-//- (mb)
-     // save this image block's position
-      blockList.add(zviBlock);
-      pos += w * h * bytesPerPixel;
+        w, h, alwaysOne, bytesPerPixel, pixelType, bitDepth, p);
+      zviBlock.stream = path;
+      return zviBlock;
     }
+  }
 
-    if (blockList.isEmpty()) return null;
+  private static int indexOf(byte[] b, byte[] block, int start) {
+    for (int i=start; i<=b.length-block.length; i++) {
+      if (matches(b, i, block)) return i;
+    }
+    return -1;
+  }
 
-//+ (mb)
-    //+ new code
-    // number of Z, C and T index
-    numZ = Z_Set.size();    
-    numC = C_Set.size();
-    numT = T_Set.size();    
-//- (mb)
+  private static boolean matches(byte[] b, int pos, byte[] block) {
+    if (pos + block.length > b.length) return false;
+    for (int i=0; i<block.length; i++) {
+      if (b[pos + i] != block[i]) return false;
+    }
+    return true;
+  }
 
-    if (numZ * numC * numT != blockList.size()) {
-      IJ.showMessage("ZVI Reader", "Warning: image counts do not match.");
+  private static boolean zeros(byte[] b, int pos, int n) {
+    if (pos + n > b.length) return false;
+    for (int i=0; i<n; i++) {
+      if (b[pos + i] != 0) return false;
     }
+    return true;
+  }
 
-    // convert ZVI blocks into single FileInfo object
-    FileInfo[] fi = new FileInfo[blockList.size()];
-    for (int i=0; i<fi.length; i++) {
-      ZVIBlock zviBlock = (ZVIBlock) blockList.elementAt(i);
-      int ft = -1;
-      if (zviBlock.numChannels == 1) {
-        if (zviBlock.bytesPerChannel == 1) ft = FileInfo.GRAY8;
-        else if (zviBlock.bytesPerChannel == 2) ft = FileInfo.GRAY16_UNSIGNED;
-      }
-      else if (zviBlock.numChannels == 3) {
-        if (zviBlock.bytesPerChannel == 1) ft = FileInfo.BGR;
-        else if (zviBlock.bytesPerChannel == 2) ft = FileInfo.RGB48;
-      }
-      if (ft < 0) {
-        IJ.showMessage("ZVI Reader",
-          "Warning: unknown file type for image plane #" + (i + 1));
-        ft = FileInfo.GRAY8; // better than nothing...
-      }
-      fi[i] = new FileInfo();
-      fi[i].fileFormat = FileInfo.RAW;
-      fi[i].fileName = fileName;
-      fi[i].directory = directory;
-      fi[i].nImages = 1;
-      fi[i].intelByteOrder = true;
-      fi[i].width = zviBlock.width;
-      fi[i].height = zviBlock.height;
-      fi[i].offset = (int) zviBlock.imagePos;
-      fi[i].fileType = ft;
-//+ (mb)
-      //+ new code
-      // add Z, C and T index to file info.
-      fi[i].info = new String(zviBlock.theZ+"," +zviBlock.theC+"," +zviBlock.theT); 
-//- (mb)
+  /** The FileInfo type of a plane, or -1 if it is not known. */
+  private static int getFileType(ZVIBlock zviBlock) {
+    if (zviBlock.numChannels == 1) {
+      if (zviBlock.bytesPerChannel == 1) return FileInfo.GRAY8;
+      else if (zviBlock.bytesPerChannel == 2) return FileInfo.GRAY16_UNSIGNED;
+    }
+    else if (zviBlock.numChannels == 3) {
+      if (zviBlock.bytesPerChannel == 1) return FileInfo.BGR;
+      else if (zviBlock.bytesPerChannel == 2) return FileInfo.RGB48;
     }
-    return fi;
+    return -1;
   }
 
-  /**
-   * Finds the first occurrence of the given byte block within the file,
-   * starting from the given file position.
-   */
-  private long findBlock(RandomAccessFile in, byte[] block, long start)
+  /** Stack slices per plane: 3 for 48-bit RGB, which is split in channels. */
+  static int channelsPerPlane(ZVIBlock zviBlock) {
+    return zviBlock.fileType() == FileInfo.RGB48 ? 3 : 1;
+  }
+
+  /** Decodes all planes, on as many threads as ImageJ may use. */
+  private ImageStack readPlanes(final Ole2File ole, final ZVIBlock[] blocks)
     throws IOException
   {
-    long filePos = start;
-    long fileSize = in.length();
-    byte[] buf = new byte[BUFFER_SIZE];
-    long spot = -1;
-    int step = 0;
-    boolean found = false;
-    in.seek(start);
-
-    while (true) {
-      int len = (int) (fileSize - filePos);
-      if (len < 0) break;
-      if (len > buf.length) len = buf.length;
-      in.readFully(buf, 0, len);
-
-      for (int i=0; i<len; i++) {
-        if (buf[i] == block[step]) {
-          if (step == 0) {
-            // could be a match; flag this spot
-            spot = filePos + i;
-          }
-          step++;
-          if (step == block.length) {
-            // found complete match; done searching
-            found = true;
-            break;
+    final Object[] pixels = new Object[blocks.length];
+    RandomAccessFile in = new RandomAccessFile(ole.getFile(), "r");
+    final FileChannel ch = in.getChannel();
+    ExecutorService exe = Executors.newFixedThreadPool(
+      Math.max(1, Math.min(Prefs.getThreads(), blocks.length)));
+    try {
+      final int[] done = new int[1];
+      List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+      for (int i=0; i<blocks.length; i++) {
+        final int n = i;
+        tasks.add(exe.submit(new Callable<Void>() {
+          public Void call() throws IOException {
+            pixels[n] = readPlane(ole, ch, blocks[n]);
+            synchronized (done) { IJ.showProgress(++done[0], blocks.length); }
+            return null;
           }
+        }));
+      }
+      for (int i=0; i<tasks.size(); i++) {
+        try { tasks.get(i).get(); }
+        catch (InterruptedException e) {
+          throw new IOException("Interrupted");
         }
-        else {
-          // no match; reset step indicator
-          spot = -1;
-          step = 0;
+        catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) throw (IOException) cause;
+          if (cause instanceof Error) throw (Error) cause;
+          throw new IOException("" + cause);
         }
       }
-      if (found) break; // found a match; we're done
-      if (len < buf.length) break; // EOF reached; we're done
-
-      filePos += len;
     }
-
-    // set file pointer to byte immediately following pattern
-    if (spot >= 0) in.seek(spot + block.length);
-
-    return spot;
+    finally {
+      exe.shutdownNow();
+      in.close();
+    }
+    ImageStack stack = new ImageStack(blocks[0].width, blocks[0].height);
+    for (int i=0; i<pixels.length; i++) {
+      if (pixels[i] instanceof short[][]) {
+        short[][] rgb = (short[][]) pixels[i];
+        for (int c=0; c<rgb.length; c++) stack.addSlice(null, rgb[c]);
+      }
+      else stack.addSlice(null, pixels[i]);
+    }
+    return stack;
   }
 
-  /** Translates up to the first 4 bytes of a byte array to an integer. */
-  private static int batoi(byte[] b) {
-    int len = b.length > 4 ? 4 : b.length;
-    int total = 0;
-    for (int i = 0; i < len; i++) {
-      int q = b[i] < 0 ? b[i] + 256 : b[i]; // convert to unsigned
-      int shift = 8 * i; // little endian
-      total += q << shift;
+  /**
+   * Reads the pixels of one plane from its stream. 48-bit RGB is returned as
+   * the three 16-bit channels (short[3][]).
+   */
+  Object readPlane(Ole2File ole, FileChannel ch, ZVIBlock zviBlock)
+    throws IOException
+  {
+    byte[] b = new byte[zviBlock.imageSize];
+    ole.read(ch, zviBlock.stream, zviBlock.imagePos, b, 0, b.length);
+    if (zviBlock.fileType() == FileInfo.RGB48) {
+      // 16-bit B, G, R per pixel, in the order of the 24-bit planes
+      short[][] rgb = new short[3][zviBlock.numPixels];
+      for (int i=0, p=0; i<zviBlock.numPixels; i++, p+=6) {
+        for (int c=0; c<3; c++) {
+          rgb[2 - c][i] = (short) ((b[p + 2 * c] & 0xff) | (b[p + 2 * c + 1] & 0xff) << 8);
+        }
+      }
+      return rgb;
     }
-    return total;
+    FileInfo fi = new FileInfo();
+    fi.fileFormat = FileInfo.RAW;
+    fi.fileName = fileName;
+    fi.nImages = 1;
+    fi.intelByteOrder = true;
+    fi.width = zviBlock.width;
+    fi.height = zviBlock.height;
+    fi.fileType = zviBlock.fileType();
+    ImageReader reader = new ImageReader(fi);
+    Object pixels = reader.readPixels(new ByteArrayInputStream(b));
+    if (pixels == null) throw new IOException("Could not decode " + zviBlock.stream);
+    return pixels;
   }
 
-  /** Reads a little-endian integer from the given file. */
-  private static int readInt(RandomAccessFile fin) throws IOException {
-    byte[] b = new byte[4];
-    fin.readFully(b);
-    return batoi(b);
-  }
-  
-//+ (mb)
-  //+ new code
-  /** get channel index theC from slice fileInfo(). */
-  private static int getChannel(FileInfo theFi) {
-        StringTokenizer st = new StringTokenizer(theFi.info," ,");
-        int theZ  = Integer.parseInt(st.nextToken()); // skip Z index
-        int theC  = Integer.parseInt(st.nextToken());
-        // int theT  = Integer.parseInt(st.nextToken());
-    return theC;
+  /** Reads a little-endian integer from the given position of an array. */
+  private static int getInt(byte[] b, int pos) {
+    return (b[pos] & 0xff) | (b[pos + 1] & 0xff) << 8 |
+      (b[pos + 2] & 0xff) << 16 | (b[pos + 3] & 0xff) << 24;
   }
-//- (mb)
  
 
   // -- Helper classes --
 
   /** Contains information collected from a ZVI image header. */
-  private class ZVIBlock {
+  class ZVIBlock {
     private int theZ, theC, theT;
     private int width, height;
     private int alwaysOne;
@@ -494,6 +506,7 @@ public class ZVI_Reader implements PlugIn {
     private int pixelType;
     private int bitDepth;
     private long imagePos;
+    private String stream;
 
     private int numPixels;
     private int imageSize;
@@ -536,8 +549,18 @@ public class ZVI_Reader implements PlugIn {
       // IJ.showMessage("ZVI Reader", "numChannels: " + numChannels + ", bytesPerPixel: " + bytesPerPixel + ", pixelType: " + pixelType + ", bitDepth: " + bitDepth + ", imagePos: " + imagePos);
     }
 
+    int getWidth() { return width; }
+    int getHeight() { return height; }
+    String getStream() { return stream; }
+
+    int fileType() {
+      int ft = getFileType(this);
+      return ft < 0 ? FileInfo.GRAY8 : ft; // better than nothing...
+    }
+
     public String toString() {
       return "Image header block:\n" +
+        "  stream = " + stream + "\n" +
         "  theZ = " + theZ + "\n" +
         "  theC = " + theC + "\n" +
         "  theT = " + theT + "\n" +
@@ -551,3 +574,57 @@ public class ZVI_Reader implements PlugIn {
   }
 
 }
+
+
+/**
+ * Reads the planes of a ZVI file when they are displayed. The three channels
+ * of a 48-bit RGB plane are three slices, the last such plane is kept.
+ */
+class ZVIVirtualStack extends VirtualStack {
+  private ZVI_Reader reader;
+  private Ole2File ole;
+  private ZVI_Reader.ZVIBlock[] blocks;
+  private int channels;
+  private int lastPlane = -1;
+  private Object lastPixels;
+
+  ZVIVirtualStack(ZVI_Reader reader, Ole2File ole, ZVI_Reader.ZVIBlock[] blocks) {
+    super(blocks[0].getWidth(), blocks[0].getHeight(), null,
+      ole.getFile().getParent() + File.separator);
+    this.reader = reader;
+    this.ole = ole;
+    this.blocks = blocks;
+    this.channels = ZVI_Reader.channelsPerPlane(blocks[0]);
+  }
+
+  public int getSize() { return blocks.length * channels; }
+
+  public String getSliceLabel(int n) { return null; }
+
+  public synchronized ImageProcessor getProcessor(int n) {
+    int plane = (n - 1) / channels;
+    ZVI_Reader.ZVIBlock zviBlock = blocks[plane];
+    ImageStack one = new ImageStack(zviBlock.getWidth(), zviBlock.getHeight());
+    try {
+      if (plane != lastPlane) {
+        RandomAccessFile in = new RandomAccessFile(ole.getFile(), "r");
+        try { lastPixels = reader.readPlane(ole, in.getChannel(), zviBlock); }
+        finally { in.close(); }
+        lastPlane = plane;
+      }
+      Object pixels = lastPixels;
+      if (pixels instanceof short[][]) pixels = ((short[][]) pixels)[(n - 1) % channels];
+      one.addSlice(null, pixels);
+    }
+    catch (IOException e) {
+      IJ.log("ZVI Reader: " + zviBlock.getStream() + ": " + e.getMessage());
+      return zviBlock.fileType() == FileInfo.GRAY16_UNSIGNED ||
+        zviBlock.fileType() == FileInfo.RGB48 ?
+        (ImageProcessor) new ShortProcessor(zviBlock.getWidth(), zviBlock.getHeight()) :
+        zviBlock.fileType() == FileInfo.GRAY8 ?
+        (ImageProcessor) new ByteProcessor(zviBlock.getWidth(), zviBlock.getHeight()) :
+        new ColorProcessor(zviBlock.getWidth(), zviBlock.getHeight());
+    }
+    return one.getProcessor(1);
+  }
+}
@@ -0,0 +1,59 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary of PlugIn:
+ * Reconstructs the raw fid of a ParaVision scan (FidRecon) for scans that
+ * were exported without a reconstruction. The magnitude images are shown
+ * and written as the first free pdata/N (2dseq + visu_pars), so ADC_MAP,
+ * MT_Ratio, CEST_51, DTI_Map and the other map plugins can use the scan
+ * as if it had been reconstructed on the scanner.
+ *
+ * Updates:
+ * 10.19.26 - Created
+ */
+
+import java.io.*;
+
+import ij.*;
+import ij.plugin.*;
+
+public class Reconstruct_Fid implements PlugIn {
+
+	public void run(String arg) {
+		String dir = IJ.getDirectory("Choose the scan folder (i.e. 6_t2)");
+		if (dir == null) {
+			return;
+		}
+		if (!new File(dir, FidRecon.FID).isFile()) {
+			IJ.error("There is no fid in " + dir);
+			return;
+		}
+		try {
+			FidRecon recon = new FidRecon(dir);
+			long start = System.currentTimeMillis();
+			float[][] images = recon.reconstruct();
+			IJ.log("Reconstructed " + images.length + " images in "
+					+ (System.currentTimeMillis() - start) + " ms");
+			recon.toImagePlus(images, new File(dir).getName()).show();
+
+			File pdata = freePdata(new File(dir));
+			recon.writePdata(images, pdata);
+			IJ.log("Saved the reconstruction as " + pdata);
+		} catch (IOException e) {
+			IJ.error("The fid could not be reconstructed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param scan the scan folder
+	 * @return the first pdata/N folder without a 2dseq
+	 */
+	static File freePdata(File scan) {
+		for (int n = 1; ; n++) {
+			File p = new File(scan, ScanWatcher.PDATA + File.separator + n);
+			if (!new File(p, Bruker2dseq.SEQ).exists()) {
+				return p;
+			}
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary of PlugIn:
+ * Measures all ROIs on all slices and channels of a map image in one pass
+ * (RoiStats) instead of one ROI at a time with the ROI Manager. The maps
+ * can be any open image or hyperstack, i.e. the outputs of CEST_51,
+ * ADC_MAP, T2_Analysis, DTI_Map or the MRI_Analysis fits. The regions are
+ * the ROI Manager set or a label image (0 = background). The count, mean,
+ * SD, min, max, median and percentiles of each ROI are saved as a CSV
+ * with one row per ROI, channel, slice and frame, the histograms as a
+ * second CSV next to it.
+ *
+ * Updates:
+ * 10.19.26 - Created
+ * 10.19.26 - Each ROI of the ROI Manager is measured with its own mask
+ */
+
+import java.io.*;
+
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+import ij.plugin.*;
+import ij.plugin.frame.*;
+
+public class Roi_Stats implements PlugIn {
+
+	public static final String ROI_MANAGER = "ROI Manager";
+
+	public void run(String arg) {
+		int[] ids = WindowManager.getIDList();
+		if (ids == null) {
+			IJ.error("Roi Stats", "Please open the maps to measure");
+			return;
+		}
+		String[] titles = new String[ids.length];
+		String[] sources = new String[ids.length + 1];
+		sources[0] = ROI_MANAGER;
+		for (int i = 0; i < ids.length; i++) {
+			titles[i] = WindowManager.getImage(ids[i]).getTitle();
+			sources[i + 1] = titles[i];
+		}
+		ImagePlus current = WindowManager.getCurrentImage();
+		GenericDialog gd = new GenericDialog("Roi Stats");
+		gd.addChoice("Maps:", titles, current != null ? current.getTitle()
+				: titles[0]);
+		gd.addChoice("Regions:", sources, sources[0]);
+		gd.addNumericField("Histogram bins:", RoiStats.DEFAULT_BINS, 0);
+		gd.showDialog();
+		if (gd.wasCanceled()) {
+			return;
+		}
+		ImagePlus maps = WindowManager.getImage(ids[gd.getNextChoiceIndex()]);
+		int source = gd.getNextChoiceIndex();
+		int bins = Math.max(1, (int) gd.getNextNumber());
+
+		Roi[] rois = null;
+		if (source == 0) {
+			RoiManager rm = RoiManager.getInstance();
+			if (rm == null || rm.getCount() == 0) {
+				IJ.error("Roi Stats", "The ROI Manager is empty");
+				return;
+			}
+			rois = rm.getRoisAsArray();
+		}
+
+		SaveDialog sd = new SaveDialog("Save statistics", maps.getTitle()
+				+ "_stats", ".csv");
+		if (sd.getFileName() == null) {
+			return;
+		}
+		String path = sd.getDirectory() + sd.getFileName();
+		try {
+			long start = System.currentTimeMillis();
+			RoiStats stats = rois != null ? new RoiStats(maps, rois, bins)
+					: new RoiStats(maps, WindowManager.getImage(
+							ids[source - 1]), null, bins);
+			int rows = stats.measure().length;
+			stats.writeCsv(path);
+			IJ.log(rows + " ROI statistics of " + maps.getTitle() + " in "
+					+ (System.currentTimeMillis() - start) + " ms, saved as "
+					+ path);
+		} catch (IllegalArgumentException e) {
+			IJ.error("Roi Stats", e.getMessage());
+		} catch (IOException e) {
+			IJ.error("Roi Stats", "The statistics could not be saved: "
+					+ e.getMessage());
+		}
+	}
+}
@@ -10,6 +10,15 @@
  * 			  that is found in the 2dseq file
  * 12.30.17 - Adding Dialog to edit image to make maps and number of images
  * 			  within a single stack in the 2dseq file
+ * 10.19.26 - Slopes are applied at the acquired matrix and only the
+ * 			  final stack is upscaled
+ * 10.19.26 - The 2dseq is read with its frame groups and the desired image
+ * 			  of each set is selected by its index in the set's frame
+ * 			  group (Bruker2dseq.selectSet), the substack and
+ * 			  raw import steps are gone
+ * 10.19.26 - Settings are held in Params and the stack is made by exec(),
+ * 			  which needs no windows or dialogs (macro, batch and headless
+ * 			  runs pass "dir=[...] number_in_set=5 desired_image=3 save")
  * 
  * This method performs the T1 and T2 analysis of post processed 2dseq image
  * stacks. User needs to give the root directory that ends at /t1/ or /t2/
@@ -43,42 +52,113 @@ public class T2_Analysis implements PlugIn {
 	public static final String IM = "/2dseq";
 	public static final String VIS_PAR = "/visu_pars";
 	
+	// The desired images are taken at the acquired matrix and the final
+	// stack is upscaled to OUTPUT_SIZE
+	public static final int OUTPUT_SIZE = 256;
 	
 	public static int DESIRED_IMAGE = 3;
 	public static int NUMBER_IN_SET = 5;
+	// Saved in pdata/2 when Params.save is set
+	public static final String STACK_FILE = "t2_stack.tif";
+	
+	/**
+	 * Settings of one run
+	 */
+	public static class Params {
+		public String dir; // T1 or T2 scan folder, i.e. .../6_t2/
+		public int numberInSet = NUMBER_IN_SET;
+		public int desiredImage = DESIRED_IMAGE;
+		public boolean save = false;
+		
+		/**
+		 * @param options macro options, i.e. from Macro.getOptions()
+		 * @return the settings, saving the stack only with "save"
+		 */
+		public static Params fromOptions(String options) {
+			PluginOptions o = new PluginOptions(options);
+			Params p = new Params();
+			p.dir = o.getDir("dir");
+			p.numberInSet = o.getInt("number_in_set", NUMBER_IN_SET);
+			p.desiredImage = o.getInt("desired_image", DESIRED_IMAGE);
+			p.save = o.getBoolean("save");
+			return p;
+		}
+	}
 
 	public void run(String arg) {
+		// Macro and batch runs skip the dialogs
+		String options = Macro.getOptions();
+		Params p = null;
+		try {
+			if (options != null) {
+				p = Params.fromOptions(options);
+			} else {
+				p = this.askParams();
+			}
+			if (p == null) {
+				return;
+			}
+			ImagePlus stack = this.exec(p);
+			if (options == null) {
+				stack.show();
+				// Autocontrast done by user
+				IJ.log("Please adjust auto-contrast: Command + Shift + C -> Select \"Auto\"");
+			}
+		} catch (IOException e) {
+			IJ.error("The 2dseq could not be read: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			IJ.error(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Makes the stack of desired images without windows or dialogs, so it
+	 * can run headless and several scans can run at once
+	 * @param p the settings
+	 * @return the desired image of every set at OUTPUT_SIZE, titled "Stack"
+	 * @throws IOException if the 2dseq cannot be read or saved
+	 */
+	public ImagePlus exec(Params p) throws IOException {
+		// Reads the slope scaled 2dseq with its frame groups
+		Bruker2dseq seq = new Bruker2dseq(p.dir + PATHS);
+		IJ.log("Print num images: " + seq.getImageCount());
+		
+		// The desired image of every set, brought up to the display size
+		float[][] images = seq.selectSet(p.desiredImage - 1, p.numberInSet);
+		ImagePlus imp = seq.toImagePlus("Stack");
+		ImageStack stack = new ImageStack(seq.getWidth(), seq.getHeight());
+		for (int i = 0; i < images.length; i++) {
+			stack.addSlice("slice " + (i + 1), images[i]);
+		}
+		imp.setStack(stack);
+		imp = MapResampler.upscale(imp, OUTPUT_SIZE, OUTPUT_SIZE,
+				imp.getTitle());
+		if (p.save) {
+			MapWriter.writeTiff(imp, p.dir + PATHS + "/" + STACK_FILE);
+		}
+		return imp;
+	}
+	
+	/**
+	 * Asks for the T folder and confirms the set layout with the user
+	 * @return the settings, or null if canceled
+	 * @throws IOException if the visu_pars cannot be read
+	 */
+	private Params askParams() throws IOException {
 		// Opens the directory for T folder
 		IJ.log("Please c"
 				+ "hoose a directory where the T1 or T2 folder is " +
 				"the last item in the path (i.e. 5_t1 or 6_t2)");
-		String tDir = this.grabDir("General T folder");		
-		
-		// Get 2dseq stack
-		ImagePlus curr = this.getImage(tDir);
-		IJ.log("Print num images: " + curr.getNSlices());
-		
-		// Image Slice Indices
-		String sliceNums = this.strStackBuilder(curr.getNSlices());	
-		
-		// Get slopes
-		double[] slopes = null;
-		try {
-			slopes = this.getSlope(tDir + PATHS, "##$VisuCoreDataSlope=(",
-					sliceNums);
-		} catch (FileNotFoundException e) {
-			IJ.error("The visu_par file was not found.");
+		Params p = new Params();
+		p.dir = this.grabDir("General T folder");
+		if (p.dir == null) {
+			return null;
 		}
 		
-		// Multiply corresponding slope values to each image in stack
-		curr = this.modifyStack(curr, slopes, sliceNums);
-			
-		// Autocontrast done by user
-		IJ.log("Please adjust auto-contrast: Command + Shift + C -> Select \"Auto\"");
-		
-		// Closes the rescaled 2dseq
-		this.closer("2dseq_256_256");
-		
+		// Asks to confirm parameters with users
+		int numImages = JcampParams.read(p.dir + PATHS,
+				Bruker2dseq.VISU_PARS).getInt("VisuCoreFrameCount", 0);
+		return this.confirmUserParameters(p, numImages);
 	}
 	
 	/** 
@@ -94,180 +174,28 @@ public class T2_Analysis implements PlugIn {
 		return dir;
 	}
 
-	/**
-	 * Grabs the VisuCoreDataSlope data from the visu_par file.
-	 * Assumes the file structure in the visu_pars file will be consistent
-	 * @param vp the name of the file that contains an image's parameters
-	 * @param find item that needs to be found within the visu_par file
-	 * @param indx index values that are desired
-	 * @return slope the slope that multiplies the image data
-	 * @return zero if the slope cannot be found
-	 * @throws FileNotFoundException
-	 */	
-	private double[] getSlope(String dir, String find, String indx)
-			throws FileNotFoundException {
-		
-		File vp = new File(dir + VIS_PAR);
-		if (!vp.exists()) {
-			throw new FileNotFoundException();
-		}
-		double[] pars = null;
-		Scanner scanner = new Scanner(vp); 
-		while (scanner.hasNext()) {
-			String currItem = scanner.next();
-			if (currItem.equalsIgnoreCase(find)) {
-				if (scanner.hasNext()) {
-					// Number of images
-					int numIm = scanner.nextInt(); // Number of Images
-					scanner.next(); // Discard ')'
-					pars = new double[numIm / NUMBER_IN_SET];
-					double currSlope;
-					int arrIndex = 0;
-					String[] ind = indx.split(",");
-					// Search for particular slopes
-					int i = 1;
-					while (i <= numIm && arrIndex < ind.length) {
- 						currSlope = scanner.nextDouble();
- 						if (i == Integer.parseInt(ind[arrIndex])) {
- 							pars[arrIndex] = currSlope;
- 							arrIndex++;
-						}
- 						i++;
-					}
- 					return pars;
-				}
-			}
-		}
-		IJ.error("The visu_par file did not read any slope data.");
-		return pars;
-	}
-	
-	/**
-	 * Builds the string that will create a substack
-	 * i.e. returns "3,8,13,18,..." for the 3rd image in each set of five
-	 * @param numImages number of images in the stack
-	 * @return String that has the slice numberID of the images that will be in
-	 * the final stack
-	 */
-	private String strStackBuilder(int numImages) {
-		String returnSlices = Integer.toString(DESIRED_IMAGE);
-		for(int i = DESIRED_IMAGE + NUMBER_IN_SET; 
-				i <= numImages; i += NUMBER_IN_SET) {
-			returnSlices += "," + i;
-		}
-
-		IJ.log("returnSlices is: " + returnSlices);
-		return returnSlices;
-	}
-	
-	/**
-	 * Closes the image that has the associated title
-	 * @param title the image's title or name in the Window Manager
-	 */
-	private void closer(String title) {
-		ImagePlus imp = WindowManager.getImage(title);
-		if (imp != null) {
-			imp.changes = false;
-			imp.close();
-		}
-	}
-	
-	/**
-	 * Retrieves image and scales to correct size
-	 * @param tDir directory that the images files are located at
-	 * @return ImagePlus of the scaled image stack
-	 */
-	private ImagePlus getImage(String tDir) {
-		// Import Instructions to user
-		this.instructions(50);
-
-		IJ.openImage(tDir + PATHS + IM);	// Gets Image	
-		ImagePlus curr = WindowManager.getImage(IM.substring(1));
-		int numIm = curr.getNSlices();
-
-		// Asks to confirm parameters with users
-		this.confirmUserParameters(numIm);
-		
-		IJ.run(curr, "Scale...", "x=- y=- z=1.0 width=256 height=256 depth=" + numIm
-				+ " interpolation=Bilinear average process create " + 
-				"title=2dseq_256_256");
-		
-		// Change current to 2dseq_256_256
-		this.closer(IM.substring(1));
-		curr = WindowManager.getImage(IM.substring(1) + "_256_256");
-		return curr;
-	}
-	
-	/**
-	 * Provides instructions to Import raw image files
-	 * @param numIm number of images in the original image stack
-	 */
-	private void instructions(int numIm) {
-		IJ.log("Please adjust import settings to:");
-		IJ.log("    Image type: 32-bit signed");
-		IJ.log("    Width: 128 pixels");
-		IJ.log("    Height: 256 pixels");
-		IJ.log("    Number of images: " + numIm + " (default is 50)");
-		IJ.log("    Check Little-endian byte order");
-	}
-	
-	
-	/**
-	 * Takes in a stack and multiplies by the corresponding slope values
-	 * @param curr the stack of images that will be modified
-	 * @param slopes the slopes that will multiply the corresponding image
-	 * @param sliceNums desired slices within the stack
-	 * @return the modified ImagePlus of the stack of images
-	 */
-	private ImagePlus modifyStack(ImagePlus curr, double[] slopes, String sliceNums) {
-		int numImages = curr.getNSlices(); // number of images in stack
-		IJ.run(curr, "Substack Maker", "slices=" + sliceNums);
-		IJ.run("Stack to Images", "");
-		
-		// Get the Window ID
-		String title = "Substack-00";
-		String currTitle;
-		ImagePlus curSub;
-		for (int j = 1; j <= numImages / NUMBER_IN_SET; j++) {
-			if (j < 10) {
-				currTitle = title + "0";
-			} else if (j < 100){
-				currTitle = title;
-			} else if (j < 1000) {
-				currTitle = title.substring(0, title.length() - 2);
-			} else {
-				currTitle = title.substring(0, title.length() - 3);
-			}
-			IJ.log("Image " + currTitle + j + " will be multiplied by: " 
-					+ slopes[j - 1]);
-			curSub = WindowManager.getImage(currTitle + j);
-			IJ.run(curSub, "Multiply...", "value=" + slopes[j - 1]
-					+ " stack");			
-		}
-		IJ.run(curr, "Images to Stack", "name=Stack title=[] use");
-		return curr;
-	}
-
 	/**
 	 * Creates a dialog to interact with the user's data parameters. 
-	 * Will modify the NUMBER_IN_SET and DESIRED_IMAGE parameters to 
+	 * Will modify the numberInSet and desiredImage parameters to 
 	 * adjust to different settings.
+	 * @param p the settings to confirm
 	 * @param numImages total number of images within 2dseq file
+	 * @return the confirmed settings, or null if canceled
 	 */
-	private void confirmUserParameters(int numImages) {
+	private Params confirmUserParameters(Params p, int numImages) {
 		GenericDialog gd = new GenericDialog("Confirm Parameters");
 		gd.addNumericField("Number of Images within a Stack:", 
-			(double) NUMBER_IN_SET, 0);
+			(double) p.numberInSet, 0);
 		gd.addNumericField("The index within a stack of the desired image:", 
-			(double) DESIRED_IMAGE, 0);
+			(double) p.desiredImage, 0);
 		gd.addNumericField("Number of images in 2dseq:", numImages, 0);
 		gd.showDialog();
 		if (gd.wasCanceled()) {
-			return;
+			return null;
 		}		
 		
-		NUMBER_IN_SET = (int) gd.getNextNumber();
-		DESIRED_IMAGE = (int) gd.getNextNumber();
-		numImages = (int) gd.getNextNumber();
+		p.numberInSet = (int) gd.getNextNumber();
+		p.desiredImage = (int) gd.getNextNumber();
+		return p;
 	}
 }
@@ -0,0 +1,321 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary of PlugIn:
+ * Watch mode for a study directory on the scanner's export share. Every
+ * scan that finishes landing (see ScanWatcher) is matched by its folder
+ * name to the plugin that would process it, and that plugin's exec() makes
+ * and saves its results on a bounded background pool, so they are ready
+ * before the animal leaves the magnet:
+ *   N_t1 / N_t2    -> T2_Analysis, pdata/2/t2_stack.tif
+ *   N_adc          -> ADC_MAP with every slice selected, the ADC stack and
+ *                     pdata/1/adc_maps.tif (and the ta_adc image if that
+ *                     scan has landed), once pdata/1 and pdata/2 are there
+ *   N_nmt + N_ymt  -> MT_Ratio, pdata/1/mt_ratio.tif of the NMT scan
+ *   N_cest_51_offsets + N_cest_0_power -> CEST_51, pdata/cest_map_all.tif
+ *                     of the CEST scan
+ *   N_dti          -> DTI_Map tensor fit of the raw DWI frames,
+ *                     DTI_Maps.tif in the scan folder
+ * Paired scans are processed when the second one of the pair lands.
+ * The plugins run with their defaults, so the results match an interactive
+ * or macro run, except that the CEST maps are B0 corrected.
+ *
+ * Running the plugin while watching stops the watch; scans that are
+ * being processed finish in the background. synthetic/SyntheticCheck
+ * checks the plugin on a study of synthetic scans from the command line.
+ *
+ * Updates:
+ * 10.19.26 - Created
+ * 10.19.26 - Scans are processed by the plugins' exec() instead of copies
+ *            of their pipelines, added the synthetic check
+ * 10.19.26 - The synthetic check is a command line tool (synthetic/), and
+ *            stopping the watch no longer waits for the running scans
+ */
+
+import java.io.*;
+import java.util.*;
+
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+import ij.plugin.*;
+
+public class Watch_Scans implements PlugIn, ScanWatcher.Listener {
+
+	// Scans that are complete when the watch starts are not processed
+	public static boolean SKIP_EXISTING = true;
+	public static double POLL_SECONDS = 5;
+	public static int QUEUE_SIZE = 16;
+
+	// One watch at a time, kept so a second run can stop it
+	private static Watch_Scans active;
+
+	private ScanWatcher watcher;
+	private final Set<String> donePairs = Collections.synchronizedSet(
+			new HashSet<String>());
+
+	public void run(String arg) {
+		if (active != null) {
+			if (IJ.showMessageWithCancel("Watch Scans", "Stop watching?")) {
+				active.stop();
+			}
+			return;
+		}
+		String dir = IJ.getDirectory("Choose the study directory");
+		if (dir == null) {
+			return;
+		}
+		GenericDialog gd = new GenericDialog("Watch Scans");
+		gd.addNumericField("Poll every (s):", POLL_SECONDS, 1);
+		gd.addNumericField("Scans processed at once:", 1, 0);
+		gd.addCheckbox("Skip scans that are already complete", SKIP_EXISTING);
+		gd.showDialog();
+		if (gd.wasCanceled()) {
+			return;
+		}
+		double period = gd.getNextNumber();
+		int jobs = Math.max(1, (int) gd.getNextNumber());
+		boolean skip = gd.getNextBoolean();
+		this.start(new File(dir), period, jobs, skip);
+		IJ.log("Watching " + dir + " for new scans, run Watch Scans again "
+				+ "to stop");
+	}
+
+	/**
+	 * Starts watching a study directory
+	 * @param study the study directory
+	 * @param period seconds between two polls, 0 to poll only on request
+	 * @param jobs number of scans processed at the same time
+	 * @param skipExisting true to ignore the scans that are complete now
+	 * @return the watcher, i.e. to call poll() directly
+	 */
+	public ScanWatcher start(File study, double period, int jobs,
+			boolean skipExisting) {
+		watcher = new ScanWatcher(study, this, jobs, QUEUE_SIZE);
+		if (skipExisting) {
+			watcher.skipExisting();
+		}
+		if (period > 0) {
+			watcher.start(period);
+		}
+		active = this;
+		return watcher;
+	}
+
+	/**
+	 * Stops polling without waiting, the queued and running scans are
+	 * still processed and their results written
+	 */
+	public void stop() {
+		int pending = watcher.stop();
+		active = null;
+		IJ.log("Stopped watching" + (pending > 0 ? ", " + pending
+				+ " scans finish in the background" : ""));
+	}
+
+	public void failed(File pdataDir, Exception e) {
+		IJ.log("Watch Scans: " + pdataDir + " failed: " + e);
+	}
+
+	/**
+	 * Dispatches a complete data set on its folder name
+	 */
+	public void scanReady(File pdataDir) throws Exception {
+		File scan = pdataDir.getParentFile().getParentFile();
+		String name = scan.getName().toLowerCase();
+		String proc = pdataDir.getName();
+		if (name.matches(".*_t[12](_.*)?")) {
+			if ("2".equals(proc)) {
+				this.t2(scan);
+			}
+		} else if (name.contains("adc") && !name.contains("ta_adc")) {
+			// Needs the b-value images and the scanner's fit results
+			if (("1".equals(proc) || "2".equals(proc))
+					&& ScanWatcher.isComplete(pdata(scan, ADC_MAP.PATHS1))
+					&& ScanWatcher.isComplete(pdata(scan, ADC_MAP.PATHS2))) {
+				this.adc(scan);
+			}
+		} else if (!"1".equals(proc)) {
+			return;
+		} else if (name.contains("cest_0_power")) {
+			File cest = partner(scan, "cest_51_offsets");
+			if (cest != null) {
+				this.cest(cest, scan);
+			}
+		} else if (name.contains("cest")) {
+			File zero = partner(scan, "cest_0_power");
+			if (zero != null) {
+				this.cest(scan, zero);
+			}
+		} else if (name.contains("nmt")) {
+			File ymt = partner(scan, "ymt");
+			if (ymt != null) {
+				this.mtr(scan, ymt);
+			}
+		} else if (name.contains("ymt")) {
+			File nmt = partner(scan, "nmt");
+			if (nmt != null) {
+				this.mtr(nmt, scan);
+			}
+		} else if (name.contains("dti")) {
+			this.dti(scan);
+		}
+	}
+
+	/**
+	 * Desired image of every set of a T1/T2 scan (T2_Analysis)
+	 */
+	private void t2(File scan) throws IOException {
+		T2_Analysis.Params p = new T2_Analysis.Params();
+		p.dir = dir(scan);
+		p.save = true;
+		new T2_Analysis().exec(p);
+		this.saved(pdata(scan, T2_Analysis.PATHS), T2_Analysis.STACK_FILE);
+	}
+
+	/**
+	 * ADC stack and the ADC and R^2 maps of all slices (ADC_MAP)
+	 */
+	private void adc(File scan) throws IOException {
+		if (!donePairs.add(scan.getPath())) {
+			return;
+		}
+		ADC_MAP.Params p = new ADC_MAP.Params();
+		p.dir = dir(scan);
+		File ta = partner(scan, "ta_adc");
+		if (ta != null) {
+			p.taDir = dir(ta);
+		}
+		JcampParams visu = JcampParams.read(p.dir + ADC_MAP.PATHS1,
+				Bruker2dseq.VISU_PARS);
+		p.slices = new boolean[visu.getInt("VisuCoreFrameCount", 0)
+				/ ADC_MAP.NUM_BVALS];
+		Arrays.fill(p.slices, true);
+		new ADC_MAP().exec(p);
+		this.saved(pdata(scan, ADC_MAP.PATHS1), ADC_MAP.MAPS_FILE);
+	}
+
+	/**
+	 * MT ratio of an NMT / YMT pair (MT_Ratio)
+	 */
+	private void mtr(File nmt, File ymt) throws IOException {
+		if (!donePairs.add(nmt.getPath())) {
+			return;
+		}
+		MT_Ratio.Params p = new MT_Ratio.Params();
+		p.nmtDir = dir(nmt);
+		p.ymtDir = dir(ymt);
+		p.save = true;
+		new MT_Ratio().exec(p);
+		this.saved(pdata(nmt, MT_Ratio.PATHS), MT_Ratio.MTR_FILE);
+	}
+
+	/**
+	 * Asymmetry maps of a CEST / zero power pair (CEST_51). The slices are
+	 * counted from the method file, the offsets are the CEST images per
+	 * slice.
+	 */
+	private void cest(File cest, File zero) throws IOException {
+		if (!donePairs.add(cest.getPath())) {
+			return;
+		}
+		CEST_51.Params p = new CEST_51.Params();
+		p.dir = dir(cest);
+		p.dir0 = dir(zero);
+		p.b0Correction = true;
+		p.numSlices = numSlices(zero);
+		JcampParams visu = JcampParams.read(p.dir + CEST_51.PATHS1,
+				Bruker2dseq.VISU_PARS);
+		p.numOffsets = visu.getInt("VisuCoreFrameCount", 0) / p.numSlices;
+		new CEST_51().exec(p);
+		this.saved(new File(cest, ScanWatcher.PDATA), "cest_map_all.tif");
+	}
+
+	/**
+	 * Tensor maps of the raw DWI frames (DTI_Map)
+	 */
+	private void dti(File scan) throws IOException {
+		DTI_Map.Params p = new DTI_Map.Params();
+		p.dir = dir(scan);
+		p.rawFit = true;
+		new DTI_Map().exec(p);
+		this.saved(scan, "DTI_Maps.tif");
+	}
+
+	private void saved(File dir, String name) {
+		IJ.log("Watch Scans: " + new File(dir, name));
+	}
+
+	/**
+	 * Number of slices of a scan: the sum of PVM_SPackArrNSlices in the
+	 * method file, or one slice per image of pdata/1 without it
+	 */
+	static int numSlices(File scan) throws IOException {
+		if (new File(scan, DTI_Map.METHOD).isFile()) {
+			double[] packs = JcampParams.read(scan.getPath(), DTI_Map.METHOD)
+					.getDoubles("PVM_SPackArrNSlices");
+			if (packs != null && packs.length > 0) {
+				int n = 0;
+				for (double v : packs) {
+					n += (int) Math.round(v);
+				}
+				return n;
+			}
+		}
+		IJ.log("Watch Scans: no PVM_SPackArrNSlices for " + scan.getName()
+				+ ", using one slice per image");
+		return JcampParams.read(pdata(scan, CEST_51.PATHS1).getPath(),
+				Bruker2dseq.VISU_PARS).getInt("VisuCoreFrameCount", 1);
+	}
+
+	/**
+	 * @return the scan folder as the plugins' Params take it, ending with a
+	 * separator
+	 */
+	private static String dir(File scan) {
+		return scan.getPath() + File.separator;
+	}
+
+	private static File pdata(File scan, String path) {
+		return new File(scan, path);
+	}
+
+	/**
+	 * Finds the complete sibling scan of a pair, the closest scan number
+	 * wins if the study has several
+	 * @param scan one scan of the pair
+	 * @param keyword text in the folder name of the other scan
+	 * @return the other scan folder, or null if it has not landed yet
+	 */
+	static File partner(File scan, String keyword) {
+		File[] siblings = scan.getParentFile().listFiles();
+		if (siblings == null) {
+			return null;
+		}
+		int num = scanNumber(scan);
+		File best = null;
+		for (File s : siblings) {
+			if (s.equals(scan) || !s.getName().toLowerCase().contains(keyword)
+					|| !ScanWatcher.isComplete(new File(s, "pdata/1"))) {
+				continue;
+			}
+			if (best == null || Math.abs(scanNumber(s) - num)
+					< Math.abs(scanNumber(best) - num)) {
+				best = s;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return the leading number of a scan folder name (7 for 7_nmt)
+	 */
+	static int scanNumber(File scan) {
+		String name = scan.getName();
+		int i = 0;
+		while (i < name.length() && Character.isDigit(name.charAt(i))) {
+			i++;
+		}
+		return i > 0 ? Integer.parseInt(name.substring(0, i)) : 0;
+	}
+}
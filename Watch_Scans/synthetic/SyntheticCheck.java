@@ -0,0 +1,114 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Checks Watch_Scans on a study of synthetic scans (SyntheticScans): the
+ * study is written, processed without a timer, and the values of the
+ * results are compared with the SyntheticScans values. It is run from the
+ * command line with ImageJ and the compiled plugins on the class path, i.e.
+ *   java -Djava.awt.headless=true -cp ij.jar:plugins SyntheticCheck /tmp/study
+ * and is not installed with the plugins.
+ *
+ * Updates:
+ * 10.19.26 - Moved here from Watch_Scans (the "synthetic=[dir]" option)
+ */
+
+import java.io.*;
+
+import ij.*;
+
+public class SyntheticCheck {
+
+	// Largest difference of a result from its synthetic value
+	public static final double TOLERANCE = 0.01;
+	// Seconds to wait for the scans to be processed
+	public static final double TIMEOUT = 600;
+
+	/**
+	 * @param args the study directory, empty or missing
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println("Usage: SyntheticCheck study_directory");
+			System.exit(2);
+		}
+		boolean ok = check(new File(args[0]));
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * Writes a study of synthetic scans, processes it without a timer and
+	 * logs the values of the results against the SyntheticScans values
+	 * @param study an empty or missing directory
+	 * @return true if every result was made and has its expected value
+	 */
+	public static boolean check(File study) {
+		try {
+			SyntheticScans.writeStudy(study);
+		} catch (IOException e) {
+			IJ.log("The synthetic scans could not be written: "
+					+ e.getMessage());
+			return false;
+		}
+		Watch_Scans plugin = new Watch_Scans();
+		ScanWatcher w = plugin.start(study, 0, 2, false);
+		// A data set is queued once it did not change between two polls
+		w.poll();
+		w.poll();
+		try {
+			if (!w.stop(TIMEOUT)) {
+				IJ.log("The synthetic scans were not processed in "
+						+ TIMEOUT + " s");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			plugin.stop();
+		}
+
+		int n = SyntheticScans.NUM_SLICES;
+		String s = study.getPath() + File.separator;
+		boolean ok = check(s + "6_t2/pdata/2/" + T2_Analysis.STACK_FILE,
+				1, n, SyntheticScans.T2_VALUE);
+		ok &= check(s + "7_adc/" + ADC_MAP.STACK_FILE, 1, n,
+				SyntheticScans.ADC_VALUE);
+		ok &= check(s + "7_adc/pdata/1/" + ADC_MAP.MAPS_FILE, 1, n,
+				SyntheticScans.ADC_VALUE);
+		ok &= check(s + "8_nmt/pdata/1/" + MT_Ratio.MTR_FILE, 1, n,
+				SyntheticScans.MTR_VALUE);
+		ok &= check(s + "10_cest_51_offsets/pdata/cest_map_all.tif", 0, n, 0);
+		ok &= check(s + "12_dti/DTI_Maps.tif", 2, n,
+				SyntheticScans.ADC_VALUE);
+		IJ.log("Watch Scans synthetic check " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * Checks the slice count and the centre value of a result
+	 * @param path the saved result
+	 * @param channel channel that holds the value, 0 to check only the
+	 * slice count
+	 * @param slices expected number of z-slices
+	 * @param value expected value of that channel in the first slice
+	 * @return true if it matches
+	 */
+	private static boolean check(String path, int channel, int slices,
+			double value) {
+		ImagePlus imp = new File(path).isFile() ? IJ.openImage(path) : null;
+		String msg;
+		if (imp == null) {
+			msg = "missing";
+		} else if (imp.getNSlices() != slices) {
+			msg = imp.getNSlices() + " slices instead of " + slices;
+		} else if (channel == 0) {
+			msg = null;
+		} else {
+			double v = imp.getStack().getProcessor(imp.getStackIndex(channel,
+					1, 1)).getf(imp.getWidth() / 2, imp.getHeight() / 2);
+			msg = Math.abs(v - value) <= TOLERANCE * Math.abs(value) ? null
+					: v + " instead of " + value;
+		}
+		IJ.log("  " + path + ": " + (msg == null ? "ok" : msg));
+		return msg == null;
+	}
+}
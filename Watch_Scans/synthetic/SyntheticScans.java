@@ -0,0 +1,183 @@
+/**
+ * UW Department of Radiology
+ *
+ * Summary:
+ * Writes a small ParaVision study of synthetic scans (visu_pars, 2dseq and
+ * method files) with known values, so Watch_Scans can be checked on a
+ * local directory without scanner data (SyntheticCheck). Every image is a
+ * constant, and the maps computed from the scans have known values:
+ *   6_t2            5 images per set, image i of a set is 10 (i + 1), the
+ *                   T2_Analysis stack is T2_VALUE
+ *   7_adc           8 b-values (pdata/1) and 5 fit results per slice
+ *                   (pdata/2), the fitted ADC is ADC_VALUE
+ *   8_nmt + 9_ymt   different slopes, the MT ratio is MTR_VALUE
+ *   10_cest_51_offsets + 11_cest_0_power  the zero power scan has
+ *                   ZERO_POWER_REPS images per slice
+ *   12_dti          isotropic diffusion, the MD map is ADC_VALUE
+ * The images are 32-bit floats, little endian, SIZE x SIZE, NUM_SLICES
+ * slices with the slice as the inner loop.
+ *
+ * Updates:
+ * 10.19.26 - Created for the Watch_Scans synthetic check
+ * 10.19.26 - Moved next to SyntheticCheck, out of the plugins
+ */
+
+import java.io.*;
+import java.nio.*;
+
+public class SyntheticScans {
+
+	public static final int SIZE = 32;
+	public static final int NUM_SLICES = 2;
+	public static final int ZERO_POWER_REPS = 2;
+	public static final int NUM_OFFSETS = 51;
+	public static final float T2_VALUE = 30;
+	public static final float ADC_VALUE = 1.1f; // 10^-3 mm^2/s
+	public static final float MTR_VALUE = 40; // percent
+	public static final int[] B_VALUES = {7, 47, 81, 126, 180, 234, 340, 549};
+
+	/**
+	 * Writes every scan of the study
+	 * @param study the study directory, created if missing
+	 * @throws IOException if a file cannot be written
+	 */
+	public static void writeStudy(File study) throws IOException {
+		double d = ADC_VALUE / 1000.0; // mm^2/s
+
+		// T1/T2 fit results, the third image of each set is the map
+		float[] t2 = new float[NUM_SLICES * 5];
+		for (int i = 0; i < t2.length; i++) {
+			t2[i] = 10 * (i % 5 + 1);
+		}
+		writeScan(new File(study, "6_t2/pdata/2"), t2, "");
+
+		// ADC b-value images and the scanner's fit results (in mm^2/s)
+		StringBuilder comments = new StringBuilder("##$VisuFGElemComment=( "
+				+ B_VALUES.length + ", 65 )\n");
+		float[] dwi = new float[B_VALUES.length * NUM_SLICES];
+		for (int k = 0; k < B_VALUES.length; k++) {
+			comments.append("<Dir 1 B ").append(B_VALUES[k]).append("> ");
+			for (int z = 0; z < NUM_SLICES; z++) {
+				dwi[k * NUM_SLICES + z] = (float) (1000
+						* Math.exp(-B_VALUES[k] * d));
+			}
+		}
+		writeScan(new File(study, "7_adc/pdata/1"), dwi,
+				comments.append("\n").toString());
+		float[] fits = new float[NUM_SLICES * 5];
+		for (int i = 0; i < fits.length; i++) {
+			fits[i] = i % 5 == 2 ? (float) d : 1;
+		}
+		writeScan(new File(study, "7_adc/pdata/2"), fits, "");
+
+		// MT pair, the slope of the NMT scan is 2
+		writeScan(new File(study, "8_nmt/pdata/1"),
+				constant(NUM_SLICES, 50), slopes(NUM_SLICES, 2));
+		writeScan(new File(study, "9_ymt/pdata/1"), constant(NUM_SLICES,
+				100 - MTR_VALUE), slopes(NUM_SLICES, 1));
+
+		// CEST pair, a dip at the centre of the Z-spectrum
+		float[] cest = new float[NUM_OFFSETS * NUM_SLICES];
+		for (int k = 0; k < NUM_OFFSETS; k++) {
+			for (int z = 0; z < NUM_SLICES; z++) {
+				cest[k * NUM_SLICES + z] = k == NUM_OFFSETS / 2 ? 400 : 900;
+			}
+		}
+		writeScan(new File(study, "10_cest_51_offsets/pdata/1"), cest, "");
+		writeMethod(new File(study, "10_cest_51_offsets"), slices());
+		writeScan(new File(study, "11_cest_0_power/pdata/1"), constant(
+				NUM_SLICES * ZERO_POWER_REPS, 1000), "");
+		writeMethod(new File(study, "11_cest_0_power"), slices());
+
+		// DTI, one b0 and six directions of b = 1000 s/mm^2
+		double[][] dirs = {{0, 0, 0}, {1, 0, 0}, {0, 1, 0}, {0, 0, 1},
+				{1, 1, 0}, {1, 0, 1}, {0, 1, 1}};
+		StringBuilder bMat = new StringBuilder("##$" + DtiEngine.B_MATRIX
+				+ "=( " + dirs.length + ", 3, 3 )\n");
+		float[] dti = new float[dirs.length * NUM_SLICES];
+		for (int k = 0; k < dirs.length; k++) {
+			double[] g = dirs[k];
+			double norm = Math.sqrt(g[0] * g[0] + g[1] * g[1] + g[2] * g[2]);
+			double b = k == 0 ? 0 : 1000;
+			for (int i = 0; i < 3; i++) {
+				for (int j = 0; j < 3; j++) {
+					double bij = norm == 0 ? 0 : b * g[i] * g[j] / (norm * norm);
+					bMat.append(bij).append(' ');
+				}
+			}
+			for (int z = 0; z < NUM_SLICES; z++) {
+				dti[k * NUM_SLICES + z] = (float) (1000 * Math.exp(-b * d));
+			}
+		}
+		writeScan(new File(study, "12_dti/pdata/1"), dti, "");
+		writeMethod(new File(study, "12_dti"), bMat.append("\n").toString());
+	}
+
+	/**
+	 * Writes one data set, every image is one constant
+	 * @param pdataDir the pdata/K directory, created if missing
+	 * @param values the value of each image
+	 * @param params more visu_pars lines, i.e. the slopes
+	 * @throws IOException if a file cannot be written
+	 */
+	public static void writeScan(File pdataDir, float[] values, String params)
+			throws IOException {
+		pdataDir.mkdirs();
+		int plane = SIZE * SIZE;
+		ByteBuffer buf = ByteBuffer.allocate(4 * plane * values.length)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		for (float v : values) {
+			for (int i = 0; i < plane; i++) {
+				buf.putFloat(v);
+			}
+		}
+		// The 2dseq goes first, a data set is complete once both are there
+		OutputStream out = new FileOutputStream(new File(pdataDir,
+				Bruker2dseq.SEQ));
+		try {
+			out.write(buf.array());
+		} finally {
+			out.close();
+		}
+		write(new File(pdataDir, Bruker2dseq.VISU_PARS), "##TITLE=synthetic\n"
+				+ "##$VisuCoreSize=( 2 )\n" + SIZE + " " + SIZE + "\n"
+				+ "##$VisuCoreExtent=( 2 )\n20 20\n"
+				+ "##$VisuCoreFrameCount=" + values.length + "\n"
+				+ "##$VisuCoreWordType=_32BIT_FLOAT\n"
+				+ "##$VisuCoreByteOrder=littleEndian\n" + params);
+	}
+
+	private static void writeMethod(File scan, String params)
+			throws IOException {
+		write(new File(scan, "method"), "##TITLE=synthetic\n" + params);
+	}
+
+	private static void write(File f, String text) throws IOException {
+		Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+		try {
+			w.write(text);
+			w.write("##END=\n");
+		} finally {
+			w.close();
+		}
+	}
+
+	private static float[] constant(int n, float v) {
+		float[] out = new float[n];
+		java.util.Arrays.fill(out, v);
+		return out;
+	}
+
+	private static String slopes(int n, double slope) {
+		StringBuilder sb = new StringBuilder("##$VisuCoreDataSlope=( " + n
+				+ " )\n");
+		for (int i = 0; i < n; i++) {
+			sb.append(slope).append(' ');
+		}
+		return sb.append("\n").toString();
+	}
+
+	private static String slices() {
+		return "##$PVM_SPackArrNSlices=( 1 )\n" + NUM_SLICES + "\n";
+	}
+}